@@ -20,6 +20,7 @@
 package de.k3b.android.androFotoFinder;
 
 import android.app.Application;
+import android.database.ContentObserver;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -28,8 +29,12 @@ import java.util.Date;
 import de.k3b.FotoLibGlobal;
 import de.k3b.android.GuiUtil;
 import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.android.util.AndroidFileCommands;
 import de.k3b.android.util.LogCat;
+import de.k3b.android.util.MediaWatcherService;
+import de.k3b.android.util.RecursiveMediaScanner;
 import de.k3b.database.QueryParameter;
+import de.k3b.io.AsyncLogAppender;
 import uk.co.senab.photoview.HugeImageLoader;
 import uk.co.senab.photoview.PhotoViewAttacher;
 import uk.co.senab.photoview.gestures.CupcakeGestureDetector;
@@ -43,6 +48,13 @@ import uk.co.senab.photoview.gestures.CupcakeGestureDetector;
 public class AndroFotoFinderApp extends Application {
     private LogCat mCrashSaveToFile = null;
 
+    private final ContentObserver mMediaObserverQueryCache = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            FotoSql.invalidateQueryCache();
+        }
+    };
+
     /*
         private RefWatcher refWatcher;
 
@@ -59,8 +71,23 @@ public class AndroFotoFinderApp extends Application {
     @Override public void onCreate() {
         super.onCreate();
 
+        // the pending lines of the file command log are written if the app crashes.
+        // installed before LogCat so that closing LogCat restores this hook.
+        AsyncLogAppender.installCrashHook();
+
         Global.pickHistoryFile = getDatabasePath("pickHistory.geouri.txt");
+        Global.mediaScannerJournalFile = getDatabasePath("mediaScanner.journal.txt");
+        Global.mediaScannerCheckpointFile = getDatabasePath("mediaScanner.checkpoint.txt");
+        Global.contentHashFile = getDatabasePath("contentHash.txt");
+        Global.similarClustersFile = getDatabasePath("similarClusters.properties");
+        Global.fileOpJournalDir = getDatabasePath("fileOpJournal");
         SettingsActivity.prefs2Global(this);
+        AndroidFileCommands.recoverJournal(this);
+        RecursiveMediaScanner.restoreFromCheckpoint(this);
+        MediaWatcherService.startOrStop(this);
+
+        // cached query results are outdated as soon as the media database changes
+        getContentResolver().registerContentObserver(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, true, mMediaObserverQueryCache);
 
         // create sensible defaults for domain-independant QueryParameter parsing
         QueryParameter.sParserComment = getString(R.string.bookmark_file_comment_format,
@@ -81,7 +108,9 @@ public class AndroFotoFinderApp extends Application {
 
     @Override
     public void onTerminate() {
-        Log.i(Global.LOG_CONTEXT, getString(R.string.app_name) + " " + GuiUtil.getAppVersionName(this) + " terminated");
+        Log.i(Global.LOG_CONTEXT, getString(R.string.app_name) + " " + GuiUtil.getAppVersionName(this) + " terminated. "
+                + FotoSql.getQueryCache());
+        getContentResolver().unregisterContentObserver(mMediaObserverQueryCache);
         if (mCrashSaveToFile != null) {
             mCrashSaveToFile.close();
         }
@@ -36,6 +36,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import java.util.List;
+
 // import com.squareup.leakcanary.RefWatcher;
 
 import de.k3b.android.androFotoFinder.directory.DirectoryGui;
@@ -45,10 +47,12 @@ import de.k3b.android.androFotoFinder.imagedetail.ImageDetailActivityViewPager;
 import de.k3b.android.androFotoFinder.locationmap.GeoEditActivity;
 import de.k3b.android.androFotoFinder.locationmap.LocationMapFragment;
 import de.k3b.android.androFotoFinder.directory.DirectoryPickerFragment;
+import de.k3b.android.androFotoFinder.directory.SimilarPhotoLoaderTask;
 import de.k3b.android.androFotoFinder.queries.FotoSql;
 import de.k3b.android.androFotoFinder.queries.FotoViewerParameter;
 import de.k3b.android.androFotoFinder.queries.Queryable;
 import de.k3b.android.osmdroid.ZoomUtil;
+import de.k3b.android.util.DuplicateFinderTask;
 import de.k3b.android.util.GarbageCollector;
 import de.k3b.android.util.IntentUtil;
 import de.k3b.android.util.SelectedFotos;
@@ -472,6 +476,17 @@ public class FotoGalleryActivity extends LocalizedActivity implements Common,
                 this.mGalleryQueryParameter.setSortID(FotoSql.SORT_BY_LOCATION);
                 reloadGui("sort geo");
                 return true;
+            case R.id.cmd_find_duplicates:
+                findDuplicates();
+                return true;
+            case R.id.cmd_find_similar:
+                mGalleryQueryParameter.mDirQueryID = FotoSql.QUERY_TYPE_GROUP_SIMILAR;
+                if (mDirectoryRoot != null) {
+                    mDirectoryRoot.destroy();
+                    mDirectoryRoot = null; // must reload
+                }
+                openFolderPicker();
+                return true;
             case R.id.cmd_settings:
                 SettingsActivity.show(this);
                 return true;
@@ -484,6 +499,30 @@ public class FotoGalleryActivity extends LocalizedActivity implements Common,
 
     }
 
+    /** searches photos with identical content in the background and shows them in the gallery */
+    private void findDuplicates() {
+        Toast.makeText(this, R.string.duplicates_searching, Toast.LENGTH_SHORT).show();
+        new DuplicateFinderTask(this) {
+            @Override
+            protected void onPostExecute(List<List<Long>> duplicateGroups) {
+                if (isFinishing()) return;
+
+                int count = 0;
+                for (List<Long> group : duplicateGroups) {
+                    count += group.size();
+                }
+                Toast.makeText(FotoGalleryActivity.this,
+                        getString(R.string.duplicates_result_format, count, duplicateGroups.size()),
+                        Toast.LENGTH_LONG).show();
+
+                mGalleryQueryParameter.mGalleryContentQuery = FotoSql.getQueryDuplicateContent(duplicateGroups);
+                mGalleryQueryParameter.setSortID(FotoSql.SORT_BY_NONE);
+                mGalleryQueryParameter.setHasUserDefinedQuery(true);
+                reloadGui("duplicates");
+            }
+        }.execute();
+    }
+
     private BookmarkController bookmarkController = null;
 
     private void loadBookmark() {
@@ -561,7 +600,17 @@ public class FotoGalleryActivity extends LocalizedActivity implements Common,
             dirQueryID = FotoSql.QUERY_TYPE_GROUP_ALBUM;
         }
 
-        if (mDirectoryRoot == null) {
+        if ((mDirectoryRoot == null) && (FotoSql.QUERY_TYPE_GROUP_SIMILAR == dirQueryID)) {
+            // similar photos cannot be grouped by sql
+            Toast.makeText(this, R.string.similar_searching, Toast.LENGTH_SHORT).show();
+            this.mMustShowNavigator = true;
+            new SimilarPhotoLoaderTask(this, mDebugPrefix) {
+                @Override
+                protected void onPostExecute(IDirectory directoryRoot) {
+                    onDirectoryDataLoadComplete(directoryRoot);
+                }
+            }.execute();
+        } else if (mDirectoryRoot == null) {
             // not loaded yet. load directoryRoot in background
             final QueryParameter currentDirContentQuery = new QueryParameter(FotoSql.getQuery(dirQueryID));
             FotoSql.setWhereFilter(currentDirContentQuery, this.mGalleryQueryParameter.mFilter, this.mGalleryQueryParameter.getSortID() != FotoSql.SORT_BY_NONE);
@@ -58,9 +58,61 @@ public class Global {
     /** defines the timespan after which the [Image-View's](Image-View) ActionBar is hidden */
     public static int actionBarHideTimeInMilliSecs = 2000;
 
+    /** number of pages before and after the current [Image-View](Image-View) page that are loaded in background. 0 = no preloading */
+    public static int imageDetailPreloadPages = 2;
+
     /** If checked [multi selection mode](Gallery-View#Multiselection) in [Gallery-View](Gallery-View) is canceled after a command from Actionbar or Menu */
     public static boolean clearSelectionAfterCommand = false;
 
+    /** number of background threads that scan directories and read exif in the media scanner */
+    public static int mediaScannerThreadCount = 3;
+
+    /** number of background threads that read ahead while copying photos. 0 = copy one file after the other */
+    public static int copyReaderThreadCount = 2;
+
+    /** max number of copy reader threads that read from the same storage device at the same time */
+    public static int copyMaxReadersPerDevice = 1;
+
+    /** number of background threads that delete photos in parallel */
+    public static int deleteThreadCount = 3;
+
+    /** number of background threads that write gps exif into photos in parallel */
+    public static int geoThreadCount = 3;
+
+    /** true: geo changes are written to xmp sidecar files instead of the jpg exif */
+    public static boolean xmpSidecarWrite = false;
+
+    /** write-ahead journals of copy/move batches that are recovered at next start if the app was killed */
+    public static File fileOpJournalDir = null; // initialized in app.onCreate with local database dir
+
+    /** max number of items that are inserted/updated in the media database with one call */
+    public static int mediaDbBatchSize = 100;
+
+    /** max memory of the cached results of the directory and map queries. 0 = no caching */
+    public static long queryCacheMaxBytes = 2 * 1024 * 1024;
+
+    /** true: media scanner skips unchanged directories and files that are already up to date in the media database */
+    public static boolean mediaScannerIncremental = false;
+
+    /** remembers the directories that the media scanner has already processed */
+    public static File mediaScannerJournalFile = null; // initialized in app.onCreate with local database file
+
+    /** true: {@link de.k3b.android.util.MediaWatcherService} updates the media database when photos below mediaWatcherDirs change */
+    public static boolean mediaWatcherEnabled = false;
+
+    /** the photo root folders that are watched, separated by ";" */
+    public static String mediaWatcherDirs = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsolutePath()
+            + ";" + Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES).getAbsolutePath();
+
+    /** remembers the content hashes of the duplicate finder so that unchanged files are not read again */
+    public static File contentHashFile = null; // initialized in app.onCreate with local database file
+
+    /** remembers the clusters of similar photos so that a restored gallery filter still finds its photos */
+    public static File similarClustersFile = null; // initialized in app.onCreate with local database file
+
+    /** remembers the unfinished work of the media scanner so that it can be resumed after the app was killed */
+    public static File mediaScannerCheckpointFile = null; // initialized in app.onCreate with local database file
+
     /** true update only if media scanner is not running. false=risky=always allow.  */
     public static final boolean mustCheckMediaScannerRunning = true;
 
@@ -34,10 +34,12 @@ import android.widget.Toast;
 import java.io.File;
 
 import de.k3b.FotoLibGlobal;
+import de.k3b.android.util.MediaWatcherService;
 import de.k3b.android.widget.AboutDialogPreference;
 import de.k3b.android.widget.LocalizedActivity;
 import uk.co.senab.photoview.HugeImageLoader;
 import uk.co.senab.photoview.PhotoViewAttacher;
+import uk.co.senab.photoview.TiledImageDecoder;
 import uk.co.senab.photoview.log.LogManager;
 
 public class SettingsActivity extends PreferenceActivity {
@@ -84,6 +86,7 @@ public class SettingsActivity extends PreferenceActivity {
     @Override
     public void onPause() {
         prefs2Global(this.getApplication());
+        MediaWatcherService.startOrStop(this.getApplication());
         super.onPause();
     }
 
@@ -103,13 +106,24 @@ public class SettingsActivity extends PreferenceActivity {
         prefs.putBoolean("debugEnableLibs", PhotoViewAttacher.DEBUG);
 
         prefs.putBoolean("clearSelectionAfterCommand", Global.clearSelectionAfterCommand);
+        prefs.putBoolean("mediaScannerIncremental", Global.mediaScannerIncremental);
+        prefs.putBoolean("mediaWatcherEnabled", Global.mediaWatcherEnabled);
+        prefs.putBoolean("syncAfterCopy", FotoLibGlobal.syncAfterCopy);
+        prefs.putBoolean("xmpSidecarWrite", Global.xmpSidecarWrite);
 
         prefs.putString("maxSelectionMarkersInMap", "" + Global.maxSelectionMarkersInMap);
         prefs.putString("slideshowIntervalInMilliSecs", "" + Global.slideshowIntervalInMilliSecs);
         prefs.putString("actionBarHideTimeInMilliSecs", "" + Global.actionBarHideTimeInMilliSecs);
+        prefs.putString("imageDetailPreloadPages", "" + Global.imageDetailPreloadPages);
+        prefs.putString("mediaDbBatchSize", "" + Global.mediaDbBatchSize);
+        prefs.putString("copyReaderThreadCount", "" + Global.copyReaderThreadCount);
+        prefs.putString("copyMaxReadersPerDevice", "" + Global.copyMaxReadersPerDevice);
+        prefs.putString("deleteThreadCount", "" + Global.deleteThreadCount);
+        prefs.putString("geoThreadCount", "" + Global.geoThreadCount);
         prefs.putString("pickHistoryMax", "" + Global.pickHistoryMax);
 
         prefs.putString("reportDir", (Global.reportDir != null) ? Global.reportDir.getAbsolutePath() : null);
+        prefs.putString("mediaWatcherDirs", Global.mediaWatcherDirs);
         prefs.putString("logCatDir", (Global.logCatDir != null) ? Global.logCatDir.getAbsolutePath() : null);
         prefs.putString("pickHistoryFile", (Global.pickHistoryFile != null) ? Global.pickHistoryFile.getAbsolutePath() : null);
 
@@ -133,16 +147,28 @@ public class SettingsActivity extends PreferenceActivity {
         // one setting for several 3d party debug-flags
         PhotoViewAttacher.DEBUG                 = getPref(prefs, "debugEnableLibs", PhotoViewAttacher.DEBUG);
         HugeImageLoader.DEBUG                   = PhotoViewAttacher.DEBUG;
+        TiledImageDecoder.DEBUG                 = PhotoViewAttacher.DEBUG;
         LogManager.enableDebug(PhotoViewAttacher.DEBUG);
 
         Global.clearSelectionAfterCommand       = getPref(prefs, "clearSelectionAfterCommand", Global.clearSelectionAfterCommand);
+        Global.mediaScannerIncremental          = getPref(prefs, "mediaScannerIncremental", Global.mediaScannerIncremental);
+        Global.mediaWatcherEnabled              = getPref(prefs, "mediaWatcherEnabled", Global.mediaWatcherEnabled);
+        FotoLibGlobal.syncAfterCopy             = getPref(prefs, "syncAfterCopy", FotoLibGlobal.syncAfterCopy);
+        Global.xmpSidecarWrite                  = getPref(prefs, "xmpSidecarWrite", Global.xmpSidecarWrite);
 
         Global.maxSelectionMarkersInMap         = getPref(prefs, "maxSelectionMarkersInMap"     , Global.maxSelectionMarkersInMap);
         Global.slideshowIntervalInMilliSecs = getPref(prefs, "slideshowIntervalInMilliSecs", Global.slideshowIntervalInMilliSecs);
         Global.actionBarHideTimeInMilliSecs     = getPref(prefs, "actionBarHideTimeInMilliSecs" , Global.actionBarHideTimeInMilliSecs);
+        Global.imageDetailPreloadPages          = getPref(prefs, "imageDetailPreloadPages"      , Global.imageDetailPreloadPages);
+        Global.mediaDbBatchSize                 = getPref(prefs, "mediaDbBatchSize"             , Global.mediaDbBatchSize);
+        Global.copyReaderThreadCount            = getPref(prefs, "copyReaderThreadCount"        , Global.copyReaderThreadCount);
+        Global.copyMaxReadersPerDevice          = getPref(prefs, "copyMaxReadersPerDevice"      , Global.copyMaxReadersPerDevice);
+        Global.deleteThreadCount                = getPref(prefs, "deleteThreadCount"            , Global.deleteThreadCount);
+        Global.geoThreadCount                   = getPref(prefs, "geoThreadCount"               , Global.geoThreadCount);
         Global.pickHistoryMax = getPref(prefs, "pickHistoryMax"               , Global.pickHistoryMax);
 
         Global.reportDir                        = getPref(prefs, "reportDir", Global.reportDir);
+        Global.mediaWatcherDirs                 = getPref(prefs, "mediaWatcherDirs", Global.mediaWatcherDirs);
         Global.logCatDir                        = getPref(prefs, "logCatDir", Global.logCatDir);
 
         Global.pickHistoryFile                  = getPref(prefs, "pickHistoryFile", Global.pickHistoryFile);
@@ -155,20 +181,38 @@ public class SettingsActivity extends PreferenceActivity {
         debugEnabledMemory
         initialImageDetailResolutionHigh
         clearSelectionAfterCommand
+        mediaScannerIncremental
+        mediaWatcherEnabled
+        syncAfterCopy
+        xmpSidecarWrite
 
         // int
         maxSelectionMarkersInMap
         slideshowIntervalInMilliSecs
         actionBarHideTimeInMilliSecs
+        imageDetailPreloadPages
+        mediaDbBatchSize
+        copyReaderThreadCount
+        copyMaxReadersPerDevice
+        deleteThreadCount
+        geoThreadCount
 
         // file
         reportDir
         logCatDir
 
+        // string
+        mediaWatcherDirs
+
         */
 
     }
 
+    /** load String preference from SharedPreferences */
+    private static String getPref(SharedPreferences prefs, String key, String defaultValue) {
+        return prefs.getString(key, defaultValue);
+    }
+
     /** load File preference from SharedPreferences */
     private static File getPref(SharedPreferences prefs, String key, File defaultValue) {
         String def = (defaultValue != null) ? defaultValue.getAbsolutePath() : null;
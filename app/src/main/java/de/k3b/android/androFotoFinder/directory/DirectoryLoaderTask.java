@@ -21,7 +21,6 @@ package de.k3b.android.androFotoFinder.directory;
 
 import android.app.Activity;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.util.Log;
@@ -97,8 +96,8 @@ public class DirectoryLoaderTask extends AsyncTask<QueryParameter, Integer, IDir
         }
         Cursor cursor = null;
         try {
-            cursor = context.getContentResolver().query(Uri.parse(queryParameters.toFrom()), queryParameters.toColumns(),
-                    queryParameters.toAndroidWhere(), queryParameters.toAndroidParameters(), queryParameters.toOrderBy());
+            // opening the picker again with the same query uses the cached result
+            cursor = FotoSql.createCachedCursorForQuery(context, queryParameters);
 
             int itemCount = cursor.getCount();
             final int expectedCount = itemCount + itemCount;
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.androFotoFinder.directory;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.database.SelectedItems;
+import de.k3b.io.DirectoryBuilder;
+import de.k3b.io.FileUtils;
+import de.k3b.io.IDirectory;
+import de.k3b.media.ContentHashStore;
+import de.k3b.media.PerceptualHash;
+import de.k3b.media.SimilarImageClusterer;
+
+/**
+ * Loads the clusters of similar looking photos (burst shots, re-saved copies) as directory tree
+ * for the {@link FotoSql#QUERY_TYPE_GROUP_SIMILAR} grouping of the directory picker.<br/>
+ *
+ * The {@link PerceptualHash} is calculated from the micro thumbnail of the media database
+ * and remembered in {@link Global#contentHashFile} so that only new or changed photos have to be hashed.
+ * The clusters are remembered in {@link Global#similarClustersFile} so that they are still known after a restart.
+ */
+public class SimilarPhotoLoaderTask extends AsyncTask<Void, Integer, IDirectory> {
+    // every 100 items the progress indicator is advanced
+    private static final int PROGRESS_INCREMENT = 100;
+
+    /** cluster path => photo ids. path "/" contains all clustered photos. null: not loaded yet. */
+    private static Map<String, SelectedItems> sClusters = null;
+
+    private final Activity mContext;
+    private final String mDebugPrefix;
+
+    public SimilarPhotoLoaderTask(Activity context, String debugPrefix) {
+        mContext = context;
+        mDebugPrefix = debugPrefix + "SimilarPhotoLoaderTask ";
+    }
+
+    /** @return ids of the photos of the cluster with path as found by the last load or null if unknown */
+    public static SelectedItems getClusterIds(String path) {
+        synchronized (SimilarPhotoLoaderTask.class) {
+            if (sClusters == null) {
+                // the app was restarted since the last load
+                sClusters = loadClusters(Global.similarClustersFile);
+            }
+            return sClusters.get(normalize(path));
+        }
+    }
+
+    @Override
+    protected IDirectory doInBackground(Void... params) {
+        long startTime = System.currentTimeMillis();
+        ContentHashStore store = new ContentHashStore().load(Global.contentHashFile);
+
+        // path => hash and path => id
+        Map<String, Long> hashes = new HashMap<String, Long>();
+        Map<String, Long> ids = new HashMap<String, Long>();
+        int calculated = 0;
+
+        Cursor cursor = null;
+        try {
+            ContentResolver resolver = mContext.getContentResolver();
+            cursor = resolver.query(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI,
+                    new String[]{FotoSql.SQL_COL_PK, FotoSql.SQL_COL_PATH}, null, null, null);
+            if (cursor == null) return null;
+
+            int itemCount = 0;
+            final int expectedCount = cursor.getCount();
+            int increment = PROGRESS_INCREMENT;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String path = cursor.getString(1);
+                File file = (path != null) ? new File(path) : null;
+                if ((file != null) && file.exists()) {
+                    Long hash = store.getPerceptualHash(path, file.length(), file.lastModified());
+                    if (hash == null) {
+                        hash = calculateHash(resolver, id);
+                        if (hash != null) {
+                            store.putPerceptualHash(path, file.length(), file.lastModified(), hash);
+                            calculated++;
+                        }
+                    }
+                    if (hash != null) {
+                        hashes.put(path, hash);
+                        ids.put(path, id);
+                    }
+                }
+
+                itemCount++;
+                if ((--increment) <= 0) {
+                    publishProgress(itemCount, expectedCount);
+                    increment = PROGRESS_INCREMENT;
+
+                    // Escape early if cancel() is called
+                    if (isCancelled()) break;
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(Global.LOG_CONTEXT, mDebugPrefix + "cannot load thumbnails", ex);
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+
+            // also save if cancelled so that the next load does not have to calculate the same hashes again
+            store.save(Global.contentHashFile);
+        }
+
+        // the hashes of a cancelled load are incomplete: keep the clusters of the last complete load
+        if (isCancelled()) return null;
+
+        List<List<String>> clusters = new SimilarImageClusterer(PerceptualHash.DEFAULT_MAX_DISTANCE).cluster(hashes);
+
+        Map<String, SelectedItems> newClusters = new HashMap<String, SelectedItems>();
+        SelectedItems all = new SelectedItems();
+        newClusters.put(normalize("/"), all);
+
+        DirectoryBuilder builder = new DirectoryBuilder();
+        int number = 0;
+        for (List<String> cluster : clusters) {
+            number++;
+            String first = cluster.get(0);
+
+            // the number keeps names unique even if the first photos have the same name
+            String path = "/" + number + " " + new File(first).getName() + "/";
+            SelectedItems clusterIds = new SelectedItems();
+            for (String member : cluster) {
+                clusterIds.add(ids.get(member));
+            }
+            all.addAll(clusterIds);
+            newClusters.put(normalize(path), clusterIds);
+            builder.add(path, cluster.size(), ids.get(first).intValue());
+        }
+
+        synchronized (SimilarPhotoLoaderTask.class) {
+            sClusters = newClusters;
+        }
+        saveClusters(Global.similarClustersFile, newClusters);
+
+        if (Global.debugEnabled) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + hashes.size() + " photos, " + calculated
+                    + " hashes calculated, " + clusters.size() + " clusters in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return builder.getRoot();
+    }
+
+    /** @return perceptual hash of the micro thumbnail or null if there is no thumbnail */
+    private static Long calculateHash(ContentResolver resolver, long id) {
+        Bitmap thumbnail = MediaStore.Images.Thumbnails.getThumbnail(resolver, id,
+                MediaStore.Images.Thumbnails.MICRO_KIND, null);
+        if (thumbnail == null) return null;
+
+        try {
+            int width = thumbnail.getWidth();
+            int height = thumbnail.getHeight();
+            int[] pixels = new int[width * height];
+            thumbnail.getPixels(pixels, 0, width, 0, 0, width, height);
+            return PerceptualHash.dHash(pixels, width, height);
+        } finally {
+            thumbnail.recycle();
+        }
+    }
+
+    /** @return cluster path => photo ids. Empty if there is no file. */
+    private static Map<String, SelectedItems> loadClusters(File file) {
+        Map<String, SelectedItems> result = new HashMap<String, SelectedItems>();
+        if ((file == null) || !file.exists()) return result;
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            Log.w(Global.LOG_CONTEXT, "SimilarPhotoLoaderTask.loadClusters('" + file + "') failed: " + e.getMessage());
+        } finally {
+            FileUtils.close(in, file);
+        }
+
+        for (String path : properties.stringPropertyNames()) {
+            result.put(path, new SelectedItems().parse(properties.getProperty(path)));
+        }
+        return result;
+    }
+
+    private static void saveClusters(File file, Map<String, SelectedItems> clusters) {
+        if (file == null) return;
+
+        final Properties properties = new Properties();
+        for (Map.Entry<String, SelectedItems> cluster : clusters.entrySet()) {
+            properties.setProperty(cluster.getKey(), cluster.getValue().toString());
+        }
+
+        try {
+            FileUtils.replace(file, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    properties.store(out, null);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(Global.LOG_CONTEXT, "SimilarPhotoLoaderTask.saveClusters('" + file + "') failed: " + e.getMessage());
+        }
+    }
+
+    /** without trailing "/" so that "/1 a.jpg/" and "/1 a.jpg" are the same */
+    private static String normalize(String path) {
+        if (path == null) return "";
+        return (path.endsWith("/")) ? path.substring(0, path.length() - 1) : path;
+    }
+}
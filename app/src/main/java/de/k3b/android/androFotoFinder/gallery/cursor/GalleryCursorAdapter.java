@@ -35,6 +35,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.android.util.ExifThumbnailLoader;
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.OnGalleryInteractionListener;
 import de.k3b.android.androFotoFinder.R;
@@ -134,6 +135,9 @@ public class GalleryCursorAdapter extends CursorAdapter {
         holder.filter =  (columnIndexWhereParam >= 0) ? cursor.getString(columnIndexWhereParam) : null;
 
         String description = cursor.getString(cursor.getColumnIndex(FotoSql.SQL_COL_DISPLAY_TEXT));
+
+        // in non grouped queries the display text is the path of the image
+        holder.path = (count == 0) ? description : null;
         if (count > 1) description += " (" + count + ")";
         if (gps) description += "#";
         holder.description.setText(description);
@@ -165,6 +169,9 @@ public class GalleryCursorAdapter extends CursorAdapter {
         /** for delay loading */
         public long imageID = 0;
 
+        /** path of the image file or null if unknown i.e. for grouped queries */
+        public String path = null;
+
         GridCellViewHolder(View parent) {
             lastInstanceNo++;
             debugPrefix = "Holder@" + lastInstanceNo + "#";
@@ -209,12 +216,16 @@ public class GalleryCursorAdapter extends CursorAdapter {
 		protected Bitmap doInBackground(GridCellViewHolder... holders) {
             this.holder = holders[0];
             if (Global.debugEnabledViewItem) Log.i(Global.LOG_CONTEXT, "GridCellImageLoadHandler.handleMessage getThumbnail for " + holder);
-            Bitmap image = getBitmap(holder.imageID);
+            Bitmap image = getBitmap(holder.imageID, holder.path);
 			return image;
         }
 
-        private Bitmap getBitmap(Long id) {
-            final Bitmap thumbnail = MediaStore.Images.Thumbnails.getThumbnail(
+        private Bitmap getBitmap(Long id, String path) {
+            // the thumbnail embedded in the exif is much cheaper than the one from the MediaStore
+            Bitmap thumbnail = ExifThumbnailLoader.load(path);
+            if (thumbnail != null) return thumbnail;
+
+            thumbnail = MediaStore.Images.Thumbnails.getThumbnail(
                     holder.image.getContext().getContentResolver(),
                     id,
                     MediaStore.Images.Thumbnails.MICRO_KIND,
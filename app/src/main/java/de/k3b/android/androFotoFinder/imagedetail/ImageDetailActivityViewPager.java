@@ -64,6 +64,7 @@ import de.k3b.android.widget.AboutDialogPreference;
 import de.k3b.android.widget.Dialogs;
 import de.k3b.android.widget.LocalizedActivity;
 import de.k3b.database.QueryParameter;
+import de.k3b.io.FileCommands;
 import de.k3b.io.GalleryFilterParameter;
 import de.k3b.io.IDirectory;
 import de.k3b.io.OSDirectory;
@@ -517,6 +518,7 @@ public class ImageDetailActivityViewPager extends LocalizedActivity implements C
         // getLoaderManager().destroyLoader(ACTIVITY_ID);
         if (mAdapter != null) {
             mViewPager.setAdapter(null);
+            mAdapter.close();
             mFileCommands.closeLogFile();
             mFileCommands.closeAll();
             mFileCommands.setContext(null);
@@ -812,11 +814,11 @@ public class ImageDetailActivityViewPager extends LocalizedActivity implements C
 
     private void onRenameSubDirAnswer(final long fotoId, final String fotoSourcePath, String newFileName) {
         File src = new File(fotoSourcePath);
-        File srcXmp = mFileCommands.getSidecar(src);
+        File srcXmp = FileCommands.getSidecar(src);
         boolean hasSideCar = ((srcXmp != null) && (mFileCommands.osFileExists(srcXmp)));
 
         File dest = new File(src.getParentFile(), newFileName);
-        File destXmp = mFileCommands.getSidecar(dest);
+        File destXmp = FileCommands.getSidecar(dest);
 
         if (src == dest) return; // new name == old name ==> nothing to do
 
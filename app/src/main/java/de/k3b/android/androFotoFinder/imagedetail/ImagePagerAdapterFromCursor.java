@@ -20,10 +20,8 @@
 package de.k3b.android.androFotoFinder.imagedetail;
 
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.support.v4.view.PagerAdapter;
@@ -32,6 +30,8 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
@@ -62,11 +62,44 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
     private Cursor mCursor = null; // the content of the page
     private boolean mDataValid = true;
 
+    /** the page that is currently visible. */
+    private View mPrimaryView = null;
+    private int mPrimaryPosition = -1;
+
+    /** +1 if the user is swiping forward (or slideshow), -1 if swiping backward */
+    private int mDirection = 1;
+
+    /** loads the images of the neighbour pages in background */
+    private final ImagePreloader mPreloader;
+
+    /** pages that are waiting for their image from {@link #mPreloader} by imageID */
+    private final Map<Long, PhotoView> mWaitingPages = new HashMap<Long, PhotoView>();
+
     public ImagePagerAdapterFromCursor(final Activity context, String name) {
         mActivity = context;
         mDebugPrefix = "ImagePagerAdapterFromCursor#" + (id++) + "@" + name + " ";
         Global.debugMemory(mDebugPrefix, "ctor");
         mMaxTitleLength = context.getResources().getInteger(R.integer.title_length_in_chars);
+        mPreloader = new ImagePreloader(mDebugPrefix, context.getContentResolver(),
+                Global.imageDetailPreloadPages, new ImagePreloader.OnImageLoadedListener() {
+            @Override
+            public void onImageLoaded(long imageID, Bitmap bitmap) {
+                PhotoView photoView = mWaitingPages.remove(imageID);
+
+                // do not replace the exif placeholder if the user has already zoomed in
+                if ((photoView != null) && (photoView.getScale() <= photoView.getMinimumScale())) {
+                    photoView.setImageBitmap(bitmap);
+                }
+            }
+
+            @Override
+            public void onPlaceholderLoaded(long imageID, Bitmap bitmap) {
+                PhotoView photoView = mWaitingPages.get(imageID);
+                if (photoView != null) {
+                    photoView.setImageBitmap(bitmap);
+                }
+            }
+        });
 
         if (Global.debugEnabled) {
             Log.i(Global.LOG_CONTEXT, mDebugPrefix + "()");
@@ -88,9 +121,16 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
         }
         Cursor oldCursor = mCursor;
         mCursor = newCursor;
+        mPrimaryPosition = -1; // positions may have changed
         return oldCursor;
     }
 
+    /** Free all resources. */
+    public void close() {
+        mWaitingPages.clear();
+        mPreloader.close();
+    }
+
     /** debug support for logging current cursor content */
     private String debugCursor(Cursor cursor, int maxRows, String delim, String... colmnNames) {
         StringBuilder result = new StringBuilder();
@@ -239,40 +279,56 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
 
     private void setImage(int position, long imageID, Uri uri, PhotoView photoView) {
         /** k3b 20150913 #10: Faster initial loading: initially the view is loaded with low res image. on first zoom it is reloaded with this uri */
-        photoView.setImageReloadFile(new File(getFullFilePath(position)));
-
-        // #26 option slow-hiqh-quality-detail vs fast-lowRes
-        // #26 android 5.1: does not support Thumbnails.getThumbnail(...,MediaStore.Images.Thumbnails.FULL_SCREEN_KIND,...) :-(
-        // int resolutionKind = Global.initialImageDetailResolutionHigh ? MediaStore.Images.Thumbnails.FULL_SCREEN_KIND : MediaStore.Images.Thumbnails.MINI_KIND;
-        int resolutionKind = MediaStore.Images.Thumbnails.MINI_KIND;
-
-        Bitmap thumbnail = null;
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        final ContentResolver contentResolver = photoView.getContext().getContentResolver();
-        try {
-            thumbnail = MediaStore.Images.Thumbnails.getThumbnail(
-                    contentResolver,
-                    imageID,
-                    resolutionKind,
-                    options);
-        } catch (IllegalArgumentException ex) {
-            // #26 android 5.1: does not support Thumbnails.getThumbnail(...,MediaStore.Images.Thumbnails.FULL_SCREEN_KIND,...) :-(
-            Log.w(Global.LOG_CONTEXT, mDebugPrefix +" getThumbnail(FULL_SCREEN) not supported - resetting to getThumbnail(MINI).");
-
-            Global.initialImageDetailResolutionHigh = false;
-            resolutionKind = MediaStore.Images.Thumbnails.MINI_KIND;
-
-            thumbnail = MediaStore.Images.Thumbnails.getThumbnail(
-                    contentResolver,
-                    imageID,
-                    resolutionKind,
-                    options);
+        final String fullFilePath = getFullFilePath(position);
+        photoView.setImageReloadFile(new File(fullFilePath));
+
+        Bitmap thumbnail = mPreloader.get(imageID);
+        if ((thumbnail == null) && SYNC) {
+            thumbnail = ImagePreloader.loadLowResImage(photoView.getContext().getContentResolver(), imageID);
+        }
+
+        if (thumbnail != null) {
+            photoView.setImageBitmap(thumbnail);
+        } else {
+            // not preloaded yet: until the image is loaded in background show the tiny exif thumbnail if available.
+            // both are loaded in the preloader thread so the gui thread does not wait for the file.
+            photoView.setImageBitmap(null);
+            mWaitingPages.put(imageID, photoView);
+            mPreloader.loadPlaceholder(imageID, fullFilePath);
+            mPreloader.load(imageID);
         }
-        photoView.setImageBitmap(thumbnail);
         photoView.setMaximumScale(20);
         photoView.setMediumScale(5);
     }
 
+    /**
+     * Preloads the images of {@link Global#imageDetailPreloadPages} pages before and after position
+     * nearest first, the pages in swipe direction before the pages behind.
+     */
+    private void preloadNeighbours(int position) {
+        int maxPages = Global.imageDetailPreloadPages;
+        int count = getCount();
+        if ((maxPages <= 0) || (count <= 0)) return;
+
+        long[] imageIDs = new long[2 * maxPages];
+        int index = 0;
+        for (int distance = 1; distance <= maxPages; distance++) {
+            imageIDs[index++] = getImageIdIfAvailable(position + distance * mDirection, count);
+            imageIDs[index++] = getImageIdIfAvailable(position - distance * mDirection, count);
+        }
+
+        String nextPath = getFullFilePathIfAvailable(position + mDirection, count);
+        mPreloader.preload(imageIDs, (nextPath != null) ? new File(nextPath) : null);
+    }
+
+    private long getImageIdIfAvailable(int position, int count) {
+        return ((position >= 0) && (position < count)) ? getImageId(position) : 0;
+    }
+
+    private String getFullFilePathIfAvailable(int position, int count) {
+        return ((position >= 0) && (position < count)) ? getFullFilePath(position) : null;
+    }
+
     /** converts imageID to content-uri */
     private Uri getUri(long imageID) {
         return Uri.parse(
@@ -293,6 +349,10 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
     @Override
     public void destroyItem(ViewGroup container, int position, Object object) {
         if (Global.debugEnabledViewItem) Log.i(Global.LOG_CONTEXT, mDebugPrefix + "destroyItem(#" + position +") " + object);
+        if (mPrimaryView == object) {
+            mPrimaryView = null;
+        }
+        removeWaitingPage(object);
         container.removeView((View) object);
         GarbageCollector.freeMemory((View) object); // to reduce memory leaks
     }
@@ -312,6 +372,17 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
         return view == object;
     }
 
+    /** the page will not be displayed any more so it does not need its image. */
+    private void removeWaitingPage(Object page) {
+        for (Map.Entry<Long, PhotoView> entry : mWaitingPages.entrySet()) {
+            if (entry.getValue() == page) {
+                mPreloader.cancel(entry.getKey());
+                mWaitingPages.remove(entry.getKey());
+                return;
+            }
+        }
+    }
+
     /**
      * Implementation for PagerAdapter:
      * Called to inform the adapter of which item is currently considered to
@@ -324,6 +395,22 @@ public class ImagePagerAdapterFromCursor extends PagerAdapter  {
      */
     public void setPrimaryItem(ViewGroup container, int position, Object object) {
         super.setPrimaryItem(container, position, object);
+        if (mPrimaryView != object) {
+            // previous page was swiped away: loading its high res image is not neccessary any more
+            if (mPrimaryView instanceof PhotoView) {
+                ((PhotoView) mPrimaryView).cancelImageReload();
+            }
+            mPrimaryView = (View) object;
+        }
+        if (mPrimaryPosition != position) {
+            if (mPrimaryPosition >= 0) {
+                // slideshow wraps from the last to the first page
+                boolean wrapped = (position == 0) && (mPrimaryPosition == getCount() - 1);
+                mDirection = ((position < mPrimaryPosition) && !wrapped) ? -1 : 1;
+            }
+            mPrimaryPosition = position;
+            preloadNeighbours(position);
+        }
         this.mActivity.setTitle(this.getPageTitle(position));
     }
 }
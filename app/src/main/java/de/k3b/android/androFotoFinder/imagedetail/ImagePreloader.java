@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.androFotoFinder.imagedetail;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.util.ExifThumbnailLoader;
+
+/**
+ * Loads the low res images of the neighbour pages of the [Image-View](Image-View)
+ * in a background thread before they are swiped into view.<br/>
+ *
+ * The pages around the current position are loaded nearest first, the pages in swipe direction
+ * before the pages behind. The full resolution file of the likely next page is read ahead so that
+ * the operating system has it in its file cache when that page is zoomed.
+ *
+ * All public methods must be called from the gui thread.
+ */
+public class ImagePreloader {
+    /** will be called in the gui thread when a requested image has been loaded */
+    public interface OnImageLoadedListener {
+        void onImageLoaded(long imageID, Bitmap bitmap);
+
+        /** the tiny exif thumbnail that is displayed until {@link #onImageLoaded(long, Bitmap)} */
+        void onPlaceholderLoaded(long imageID, Bitmap bitmap);
+    }
+
+    /** size of the buffer used to read ahead the full resolution file */
+    private static final int READ_AHEAD_BUFFER_SIZE = 64 * 1024;
+
+    private final String mDebugPrefix;
+    private final ContentResolver mContentResolver;
+    private final OnImageLoadedListener mListener;
+    private final Handler mGuiHandler = new Handler(Looper.getMainLooper());
+
+    /** the loaded low res images by imageID */
+    private final LruCache<Long, Bitmap> mCache;
+
+    /**
+     * One background thread that terminates when idle. The queue is processed in order so
+     * requests are sorted by priority when they are added.
+     */
+    private final ThreadPoolExecutor mLoadThread = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    /** imageIDs that are queued but not loaded yet. Only accessed in gui thread. */
+    private final Set<Long> mPending = new HashSet<Long>();
+
+    /** imageIDs of visible pages that wait for their image. Only accessed in gui thread. */
+    private final Set<Long> mRequested = new HashSet<Long>();
+
+    /** imageIDs of the window around the visible page plus {@link #mRequested}. Requests for other images are skipped. */
+    private volatile Set<Long> mWanted = new HashSet<Long>();
+
+    /** the file that is currently read ahead. Only accessed in gui thread. */
+    private File mReadAheadFile = null;
+
+    /**
+     * @param maxPagesBeforeAndAfter number of pages before and after the current page that are preloaded.
+     */
+    public ImagePreloader(String debugPrefix, ContentResolver contentResolver,
+                          int maxPagesBeforeAndAfter, OnImageLoadedListener listener) {
+        mDebugPrefix = debugPrefix + "ImagePreloader ";
+        mContentResolver = contentResolver;
+        mListener = listener;
+        mLoadThread.allowCoreThreadTimeOut(true);
+
+        // the current page, the pages before and after plus the page that is just swiped away
+        mCache = new LruCache<Long, Bitmap>(2 * Math.max(0, maxPagesBeforeAndAfter) + 2);
+    }
+
+    /** @return the low res image if it was already loaded or null if not */
+    public Bitmap get(long imageID) {
+        return mCache.get(imageID);
+    }
+
+    /**
+     * Loads the low res image in background if it is not already cached or queued.
+     * {@link OnImageLoadedListener#onImageLoaded(long, Bitmap)} is called when done.
+     */
+    public void load(long imageID) {
+        if (mCache.get(imageID) == null) {
+            mRequested.add(imageID);
+            Set<Long> wanted = new HashSet<Long>(mWanted);
+            wanted.add(imageID);
+            mWanted = wanted;
+            addRequest(imageID);
+        }
+    }
+
+    /**
+     * Loads the exif thumbnail of fullFilePath in background. Must be called before {@link #load(long)}
+     * so that it is queued before the low res image. {@link OnImageLoadedListener#onPlaceholderLoaded(long, Bitmap)} is called
+     * when done and the low res image is not available yet.
+     */
+    public void loadPlaceholder(final long imageID, final String fullFilePath) {
+        if (mLoadThread.isShutdown() || (fullFilePath == null)) return;
+
+        mLoadThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = ExifThumbnailLoader.load(fullFilePath);
+                if (bitmap != null) {
+                    mGuiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mRequested.contains(imageID) && (mCache.get(imageID) == null)) {
+                                mListener.onPlaceholderLoaded(imageID, bitmap);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** the page that requested the image via {@link #load(long)} is not visible any more. */
+    public void cancel(long imageID) {
+        mRequested.remove(imageID);
+    }
+
+    /**
+     * Defines the window of pages around the visible page: queued requests for images outside
+     * the window are skipped and missing images inside the window are queued.
+     *
+     * @param imageIDs ids of the pages to preload sorted by priority. Ids may be 0 if not available.
+     * @param readAheadFile full resolution file of the likely next page or null.
+     */
+    public void preload(long[] imageIDs, File readAheadFile) {
+        Set<Long> wanted = new HashSet<Long>(mRequested);
+        for (long imageID : imageIDs) {
+            if (imageID != 0) wanted.add(imageID);
+        }
+        mWanted = wanted;
+
+        for (long imageID : imageIDs) {
+            if ((imageID != 0) && (mCache.get(imageID) == null)) {
+                addRequest(imageID);
+            }
+        }
+
+        if ((readAheadFile != null) && !readAheadFile.equals(mReadAheadFile)) {
+            mReadAheadFile = readAheadFile;
+            addReadAhead(readAheadFile);
+        }
+    }
+
+    /** Free all resources. This instance cannot be used afterwards. */
+    public void close() {
+        mWanted = new HashSet<Long>();
+        mLoadThread.shutdownNow();
+        mRequested.clear();
+        mPending.clear();
+        mCache.evictAll();
+    }
+
+    private void addRequest(final long imageID) {
+        if (mLoadThread.isShutdown() || !mPending.add(imageID)) return; // already waiting to be loaded
+
+        mLoadThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = (mWanted.contains(imageID)) ? loadInBackground(imageID) : null;
+                mGuiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.remove(imageID);
+                        mRequested.remove(imageID);
+                        if (bitmap != null) {
+                            mCache.put(imageID, bitmap);
+                            mListener.onImageLoaded(imageID, bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void addReadAhead(final File file) {
+        if (mLoadThread.isShutdown()) return;
+
+        mLoadThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                readAheadInBackground(file);
+            }
+        });
+    }
+
+    /** runs in background thread */
+    private Bitmap loadInBackground(long imageID) {
+        long startTime = (Global.debugEnabledViewItem) ? System.currentTimeMillis() : 0;
+        Bitmap bitmap = null;
+        try {
+            bitmap = loadLowResImage(mContentResolver, imageID);
+        } catch (OutOfMemoryError e) {
+            mCache.evictAll();
+            Log.w(Global.LOG_CONTEXT, mDebugPrefix + "load(#" + imageID + ") not enough memory " + e.getMessage());
+        }
+
+        if (Global.debugEnabledViewItem) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + "load(#" + imageID + ") in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return bitmap;
+    }
+
+    /** runs in background thread: reading the file puts it into the file cache of the operating system. */
+    private void readAheadInBackground(File file) {
+        long startTime = (Global.debugEnabledViewItem) ? System.currentTimeMillis() : 0;
+        long size = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[READ_AHEAD_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (Thread.currentThread().isInterrupted()) break;
+                size += read;
+            }
+        } catch (IOException e) {
+            Log.w(Global.LOG_CONTEXT, mDebugPrefix + "readAhead('" + file + "') failed " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        if (Global.debugEnabledViewItem) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + "readAhead('" + file + "') " + size + " bytes in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    /** loads the low res image that is initially displayed in the [Image-View](Image-View). */
+    public static Bitmap loadLowResImage(ContentResolver contentResolver, long imageID) {
+        // #26 option slow-hiqh-quality-detail vs fast-lowRes
+        // #26 android 5.1: does not support Thumbnails.getThumbnail(...,MediaStore.Images.Thumbnails.FULL_SCREEN_KIND,...) :-(
+        // int resolutionKind = Global.initialImageDetailResolutionHigh ? MediaStore.Images.Thumbnails.FULL_SCREEN_KIND : MediaStore.Images.Thumbnails.MINI_KIND;
+        int resolutionKind = MediaStore.Images.Thumbnails.MINI_KIND;
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        try {
+            return MediaStore.Images.Thumbnails.getThumbnail(
+                    contentResolver,
+                    imageID,
+                    resolutionKind,
+                    options);
+        } catch (IllegalArgumentException ex) {
+            // #26 android 5.1: does not support Thumbnails.getThumbnail(...,MediaStore.Images.Thumbnails.FULL_SCREEN_KIND,...) :-(
+            Log.w(Global.LOG_CONTEXT, "ImagePreloader getThumbnail(FULL_SCREEN) not supported - resetting to getThumbnail(MINI).");
+
+            Global.initialImageDetailResolutionHigh = false;
+            resolutionKind = MediaStore.Images.Thumbnails.MINI_KIND;
+
+            return MediaStore.Images.Thumbnails.getThumbnail(
+                    contentResolver,
+                    imageID,
+                    resolutionKind,
+                    options);
+        }
+    }
+}
@@ -22,7 +22,6 @@ package de.k3b.android.androFotoFinder.locationmap;
 import android.app.Activity;
 import android.database.Cursor;
 import android.graphics.drawable.BitmapDrawable;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 
@@ -98,8 +97,8 @@ public abstract class MarkerLoaderTask<MARKER extends MarkerBase> extends AsyncT
 
         Cursor cursor = null;
         try {
-            cursor = mContext.getContentResolver().query(Uri.parse(queryParameters.toFrom()), queryParameters.toColumns(),
-                    queryParameters.toAndroidWhere(), queryParameters.toAndroidParameters(), queryParameters.toOrderBy());
+            // panning back to an area that was already shown uses the cached result
+            cursor = FotoSql.createCachedCursorForQuery(mContext, queryParameters);
 
             int itemCount = cursor.getCount();
             final int expectedCount = itemCount + itemCount;
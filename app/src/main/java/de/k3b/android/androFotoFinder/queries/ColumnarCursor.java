@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.android.androFotoFinder.queries;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import de.k3b.database.ColumnarResult;
+
+/**
+ * Read only cursor over a {@link ColumnarResult} from the {@link de.k3b.database.QueryResultCache}.<br/>
+ *
+ * Closing it does not affect the cached result so any number of cursors can share the same result.
+ */
+public class ColumnarCursor extends AbstractCursor {
+    private final ColumnarResult mResult;
+
+    public ColumnarCursor(ColumnarResult result) {
+        mResult = result;
+    }
+
+    /** @return copy of all rows of cursor. The cursor position is moved to after the last row. */
+    public static ColumnarResult read(Cursor cursor) {
+        String[] columnNames = cursor.getColumnNames();
+        ColumnarResult.Builder builder = new ColumnarResult.Builder(columnNames);
+        int columnCount = columnNames.length;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            builder.addRow();
+            for (int col = 0; col < columnCount; col++) {
+                switch (cursor.getType(col)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        builder.setLong(col, cursor.getLong(col));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        builder.setDouble(col, cursor.getDouble(col));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        builder.setString(col, cursor.getString(col));
+                        break;
+                    default:
+                        // null. blobs are not used in the cached queries
+                        break;
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int getCount() {
+        return mResult.getRowCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mResult.getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mResult.getString(getPosition(), column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) mResult.getLong(getPosition(), column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) mResult.getLong(getPosition(), column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mResult.getLong(getPosition(), column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) mResult.getDouble(getPosition(), column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mResult.getDouble(getPosition(), column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mResult.isNull(getPosition(), column);
+    }
+}
@@ -36,12 +36,16 @@ import org.osmdroid.util.GeoPoint;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
+import de.k3b.android.androFotoFinder.directory.SimilarPhotoLoaderTask;
+import de.k3b.database.ColumnarResult;
 import de.k3b.database.QueryParameter;
+import de.k3b.database.QueryResultCache;
 import de.k3b.database.SelectedItems;
 import de.k3b.io.DirectoryFormatter;
 import de.k3b.io.FileCommands;
@@ -60,6 +64,12 @@ public class FotoSql {
 //    public static final String SQL_EXPR_DAY = "(ROUND("
 //            + MediaStore.Images.Media.SQL_COL_DATE_TAKEN + "/" + PER_DAY + ") * " + PER_DAY + ")";
 
+    /** sqlite allows max 999 "?" parameters per statement */
+    public static final int MAX_SQL_PARAMETERS = 999;
+
+    /** results of the directory picker and map queries. see {@link #createCachedCursorForQuery(Context, QueryParameter)} */
+    private static final QueryResultCache sQueryCache = new QueryResultCache(Global.queryCacheMaxBytes);
+
     public static final int SORT_BY_NONE = 0;
     public static final int SORT_BY_DATE = 1;
     public static final int SORT_BY_NAME = 2;
@@ -74,6 +84,12 @@ public class FotoSql {
     public static final int QUERY_TYPE_GROUP_PLACE = 14;
     public static final int QUERY_TYPE_GROUP_PLACE_MAP = 141;
 
+    /** dir picker grouping of similar looking photos. loaded by {@link de.k3b.android.androFotoFinder.directory.SimilarPhotoLoaderTask} */
+    public static final int QUERY_TYPE_GROUP_SIMILAR = 15;
+
+    /** gallery that shows groups of photos with identical content */
+    public static final int QUERY_TYPE_GALLERY_DUPLICATES = 16;
+
     public static final int QUERY_TYPE_GROUP_COPY = 20;
     public static final int QUERY_TYPE_GROUP_MOVE = 21;
 
@@ -215,6 +231,41 @@ public class FotoSql {
                     DEFAULT_GALLERY_COLUMNS)
             .addFrom(SQL_TABLE_EXTERNAL_CONTENT_URI.toString());
 
+    /**
+     * @param duplicateGroupIds ids of photos with identical content as found by {@link de.k3b.media.DuplicateFinder}
+     * @return gallery query that shows the duplicates sorted by group. The ids are bound parameters:
+     * if there are more than {@link #MAX_SQL_PARAMETERS} only the first complete groups are shown.
+     */
+    public static QueryParameter getQueryDuplicateContent(List<List<Long>> duplicateGroupIds) {
+        List<String> ids = new ArrayList<String>();
+
+        // the ids are numbers: no quoting problems in the "order by" that cannot have parameters
+        StringBuilder orderByGroup = new StringBuilder();
+        int groupIndex = 0;
+        for (List<Long> group : duplicateGroupIds) {
+            if (ids.size() + group.size() > MAX_SQL_PARAMETERS) {
+                Log.w(Global.LOG_CONTEXT, "FotoSql.getQueryDuplicateContent() showing only " + groupIndex
+                        + " of " + duplicateGroupIds.size() + " groups");
+                break;
+            }
+            for (Long id : group) {
+                ids.add(id.toString());
+                orderByGroup.append(" WHEN ").append(id).append(" THEN ").append(groupIndex);
+            }
+            groupIndex++;
+        }
+
+        QueryParameter result = new QueryParameter(queryDetail)
+                .setID(QUERY_TYPE_GALLERY_DUPLICATES);
+        if (ids.isEmpty()) {
+            result.addWhere("0 = 1");
+        } else {
+            result.addWhere(getWhereInIdsParameters(ids.size()), ids.toArray(new String[ids.size()]))
+                    .addOrderBy("CASE " + SQL_COL_PK + orderByGroup + " END", SQL_COL_PATH);
+        }
+        return result;
+    }
+
     public static final QueryParameter queryGps = new QueryParameter()
             .setID(QUERY_TYPE_UNDEFINED)
             .addColumn(
@@ -305,6 +356,8 @@ public class FotoSql {
         if ((selectedAbsolutePath != null) && (selectedAbsolutePath.length() > 0)) {
             if (QUERY_TYPE_GROUP_DATE == dirQueryID) {
                 addWhereDatePath(newQuery, selectedAbsolutePath);
+            } else if (QUERY_TYPE_GROUP_SIMILAR == dirQueryID) {
+                addWhereSimilarPath(newQuery, selectedAbsolutePath);
             } else {
                 // selectedAbsolutePath is assumed to be a file path i.e. /mnt/sdcard/pictures/
                 addWhereDirectoryPath(newQuery, selectedAbsolutePath);
@@ -312,6 +365,31 @@ public class FotoSql {
         }
     }
 
+    /**
+     * cluster path as created by {@link de.k3b.android.androFotoFinder.directory.SimilarPhotoLoaderTask}.
+     * The ids are bound parameters: if there are more than {@link #MAX_SQL_PARAMETERS} only these are shown.
+     */
+    private static void addWhereSimilarPath(QueryParameter newQuery, String selectedAbsolutePath) {
+        SelectedItems ids = SimilarPhotoLoaderTask.getClusterIds(selectedAbsolutePath);
+        if ((ids != null) && (!ids.isEmpty())) {
+            int count = Math.min(ids.size(), MAX_SQL_PARAMETERS);
+            if (count < ids.size()) {
+                Log.w(Global.LOG_CONTEXT, "FotoSql.addWhereSimilarPath('" + selectedAbsolutePath + "') showing only "
+                        + count + " of " + ids.size() + " photos");
+            }
+            String[] parameters = new String[count];
+            int i = 0;
+            for (Long id : ids) {
+                if (i >= count) break;
+                parameters[i++] = id.toString();
+            }
+            newQuery.addWhere(getWhereInIdsParameters(count), parameters);
+        } else {
+            // the similar photos have never been grouped
+            newQuery.addWhere("0 = 1");
+        }
+    }
+
     /**
      * directory path i.e. /mnt/sdcard/pictures/
      */
@@ -365,6 +443,7 @@ public class FotoSql {
                 return queryGroupByPlace;
             case QUERY_TYPE_GROUP_COPY:
             case QUERY_TYPE_GROUP_MOVE:
+            case QUERY_TYPE_GROUP_SIMILAR:
                 return null;
             default:
                 Log.e(Global.LOG_CONTEXT, "FotoSql.getQuery(" + queryID + "): unknown ID");
@@ -387,6 +466,8 @@ public class FotoSql {
 
             case QUERY_TYPE_GALLERY:
                 return context.getString(R.string.gallery_title);
+            case QUERY_TYPE_GALLERY_DUPLICATES:
+                return context.getString(R.string.duplicates_title);
             case QUERY_TYPE_GROUP_DATE:
                 return context.getString(R.string.sort_by_date);
             case QUERY_TYPE_GROUP_ALBUM:
@@ -394,6 +475,8 @@ public class FotoSql {
             case QUERY_TYPE_GROUP_PLACE:
             case QUERY_TYPE_GROUP_PLACE_MAP:
                 return context.getString(R.string.sort_by_place);
+            case QUERY_TYPE_GROUP_SIMILAR:
+                return context.getString(R.string.similar_title);
             case QUERY_TYPE_GROUP_COPY:
                 return context.getString(R.string.destination_copy);
             case QUERY_TYPE_GROUP_MOVE:
@@ -481,18 +564,119 @@ public class FotoSql {
         return result;
     }
 
+    /** @return path => id of the photos whose path is like pathFilter sorted by path */
+    public static Map<String, Long> execGetFotoIds(Context context, String pathFilter) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        ContentResolver resolver = context.getContentResolver();
+
+        Cursor c = null;
+        try {
+            c = resolver.query(SQL_TABLE_EXTERNAL_CONTENT_URI, new String[]{FotoSql.SQL_COL_PATH, FotoSql.SQL_COL_PK}, FotoSql.SQL_COL_PATH + " like ?", new String[]{pathFilter}, FotoSql.SQL_COL_PATH);
+            while (c.moveToNext()) {
+                result.put(c.getString(0), c.getLong(1));
+            }
+        } catch (Exception ex) {
+            Log.e(Global.LOG_CONTEXT, "FotoSql.execGetFotoIds() Cannot get ids from: " + FotoSql.SQL_COL_PATH + " like '" + pathFilter +"'", ex);
+        } finally {
+            if (c != null) c.close();
+        }
+
+        if (Global.debugEnabled) {
+            Log.d(Global.LOG_CONTEXT, "FotoSql.execGetFotoIds() result count=" + result.size());
+        }
+        return result;
+    }
+
     /**
      * Write geo data (lat/lon) media database.<br/>
+     *
+     * Updated in batches of {@link Global#mediaDbBatchSize} parameterized ids
+     * so that a big selection does not create one huge "_id in (...)" statement.
      */
     public static int execUpdateGeo(final Context context, double latitude, double longitude, SelectedItems selectedItems) {
-        QueryParameter where = new QueryParameter();
-        setWhereSelection(where, selectedItems);
+        if ((selectedItems == null) || selectedItems.isEmpty()) return 0;
 
         ContentValues values = new ContentValues(2);
         values.put(SQL_COL_LAT, DirectoryFormatter.parseLatLon(latitude));
         values.put(SQL_COL_LON, DirectoryFormatter.parseLatLon(longitude));
         ContentResolver resolver = context.getContentResolver();
-        return resolver.update(SQL_TABLE_EXTERNAL_CONTENT_URI, values, where.toAndroidWhere(), where.toAndroidParameters());
+
+        int batchSize = Math.max(1, Math.min(Global.mediaDbBatchSize, MAX_SQL_PARAMETERS));
+        Long[] ids = selectedItems.getIds();
+        int modifyCount = 0;
+        beginQueryCacheUpdate();
+        try {
+            for (int start = 0; start < ids.length; start += batchSize) {
+                int count = Math.min(batchSize, ids.length - start);
+                String[] parameters = new String[count];
+                for (int i = 0; i < count; i++) {
+                    parameters[i] = ids[start + i].toString();
+                }
+                modifyCount += resolver.update(SQL_TABLE_EXTERNAL_CONTENT_URI, values, getWhereInIdsParameters(count), parameters);
+            }
+        } finally {
+            endQueryCacheUpdate();
+        }
+
+        if (Global.debugEnabled) {
+            Log.d(Global.LOG_CONTEXT, "FotoSql.execUpdateGeo(len=" + ids.length + ") result count=" + modifyCount);
+        }
+        return modifyCount;
+    }
+
+    /**
+     * Same as {@link #createCursorForQuery(Context, QueryParameter)} but the result is taken from or put into
+     * the query result cache. The cache is cleared by {@link #invalidateQueryCache()} when the media database changes.
+     */
+    public static Cursor createCachedCursorForQuery(final Context context, QueryParameter parameters) {
+        String from = parameters.toFrom();
+        String sqlWhereStatement = parameters.toAndroidWhere();
+        String[] sqlWhereParameters = parameters.toAndroidParameters();
+        String sqlSortOrder = parameters.toOrderBy();
+        String[] sqlSelectColums = parameters.toColumns();
+
+        String key = QueryResultCache.createKey(from, sqlSelectColums, sqlWhereStatement, sqlWhereParameters, sqlSortOrder);
+        ColumnarResult result = sQueryCache.get(key);
+        if (result == null) {
+            long generation = sQueryCache.getGeneration();
+            Cursor cursor = createCursorForQuery(context, from, sqlWhereStatement, sqlWhereParameters, sqlSortOrder, sqlSelectColums);
+            if (cursor == null) return null;
+            try {
+                result = ColumnarCursor.read(cursor);
+            } finally {
+                cursor.close();
+            }
+            sQueryCache.put(key, generation, result);
+        }
+
+        if (Global.debugEnabledSql) {
+            Log.i(Global.LOG_CONTEXT, "FotoSql.createCachedCursorForQuery() " + sQueryCache);
+        }
+        return new ColumnarCursor(result);
+    }
+
+    /** called when the media database has changed */
+    public static void invalidateQueryCache() {
+        sQueryCache.invalidate();
+    }
+
+    /**
+     * called before this app changes the media database. Must be followed by {@link #endQueryCacheUpdate()}
+     * in a finally block: the ContentObserver that calls {@link #invalidateQueryCache()} is asynchronous
+     * and must not be waited for.
+     */
+    public static void beginQueryCacheUpdate() {
+        sQueryCache.beginUpdate();
+    }
+
+    /** called after this app has changed the media database */
+    public static void endQueryCacheUpdate() {
+        sQueryCache.endUpdate();
+    }
+
+    /** @return the cache of {@link #createCachedCursorForQuery(Context, QueryParameter)} i.e. for hit rate statistics */
+    public static QueryResultCache getQueryCache() {
+        return sQueryCache;
     }
 
     public static Cursor createCursorForQuery(final Context context, QueryParameter parameters) {
@@ -602,6 +786,35 @@ public class FotoSql {
         return result;
     }
 
+    /**
+     * @return path => {date_modified in secs, size} of fileNames that are in the media database.
+     */
+    public static Map<String, long[]> execGetPathModifiedMap(Context context, String... fileNames) {
+        Map<String, long[]> result = new HashMap<String, long[]>();
+
+        String whereFileNames = getWhereInFileNames(fileNames);
+        if (whereFileNames != null) {
+            QueryParameter query = new QueryParameter()
+                    .setID(QUERY_TYPE_UNDEFINED)
+                    .addColumn(SQL_COL_PATH, MediaStore.MediaColumns.DATE_MODIFIED, MediaStore.MediaColumns.SIZE)
+                    .addFrom(SQL_TABLE_EXTERNAL_CONTENT_URI.toString())
+                    .addWhere(whereFileNames);
+
+            Cursor c = null;
+            try {
+                c = createCursorForQuery(context, query);
+                while (c.moveToNext()) {
+                    result.put(c.getString(0), new long[] {c.getLong(1), c.getLong(2)});
+                }
+            } catch (Exception ex) {
+                Log.e(Global.LOG_CONTEXT, "FotoSql.execGetPathModifiedMap: error executing " + query, ex);
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+        return result;
+    }
+
     public static String getWhereInFileNames(String... fileNames) {
         if (fileNames != null) {
             StringBuilder filter = new StringBuilder();
@@ -623,6 +836,30 @@ public class FotoSql {
         return null;
     }
 
+    /**
+     * @return where "_data in (?, ?, ...)" with count parameters that are passed as selectionArgs.
+     * Unlike {@link #getWhereInFileNames(String...)} the sql does not grow with the length of the file names.
+     */
+    public static String getWhereInFileNamesParameters(int count) {
+        return getWhereInParameters(SQL_COL_PATH, count);
+    }
+
+    /** @return where "_id in (?, ?, ...)" with count parameters that are passed as selectionArgs. */
+    public static String getWhereInIdsParameters(int count) {
+        return getWhereInParameters(SQL_COL_PK, count);
+    }
+
+    private static String getWhereInParameters(String column, int count) {
+        StringBuilder filter = new StringBuilder();
+        filter.append(column).append(" in (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) filter.append(", ");
+            filter.append("?");
+        }
+        filter.append(")");
+        return filter.toString();
+    }
+
     public static ContentValues getDbContent(Context context, final long id) {
         ContentResolver resolver = context.getContentResolver();
 
@@ -643,11 +880,21 @@ public class FotoSql {
     }
 
     public static int execUpdate(Context context, int id, ContentValues values) {
-        return context.getContentResolver().update(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, values, SQL_COL_PK + " = ?", new String[]{Integer.toString(id)});
+        beginQueryCacheUpdate();
+        try {
+            return context.getContentResolver().update(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, values, SQL_COL_PK + " = ?", new String[]{Integer.toString(id)});
+        } finally {
+            endQueryCacheUpdate();
+        }
     }
 
     public static Uri execInsert(Context context, ContentValues values) {
-        return context.getContentResolver().insert(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, values);
+        beginQueryCacheUpdate();
+        try {
+            return context.getContentResolver().insert(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, values);
+        } finally {
+            endQueryCacheUpdate();
+        }
     }
 
     @NonNull
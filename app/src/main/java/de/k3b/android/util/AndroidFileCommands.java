@@ -21,27 +21,37 @@ package de.k3b.android.util;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.MenuItem;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.k3b.android.GuiUtil;
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
 import de.k3b.android.androFotoFinder.directory.DirectoryPickerFragment;
 import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.database.SelectedItems;
 import de.k3b.io.DirectoryFormatter;
 import de.k3b.io.FileCommands;
+import de.k3b.io.FileOpJournal;
 import de.k3b.io.IDirectory;
 import de.k3b.io.OSDirectory;
+import de.k3b.io.ParallelFileProcessor;
+import de.k3b.media.XmpSidecar;
 
 /**
  * Api to manipulate files/photos.
@@ -52,12 +62,43 @@ import de.k3b.io.OSDirectory;
 public class AndroidFileCommands extends FileCommands {
     private static final String SETTINGS_KEY_LAST_COPY_TO_PATH = "last_copy_to_path";
     private static final String mDebugPrefix = "AndroidFileCommands.";
+
+    /** setGeo reports progress at least this often even if less than itemsPerProgress photos are finished */
+    private static final long GEO_PROGRESS_INTERVAL_MILLISECS = 250;
     private Activity mContext;
     private AlertDialog mActiveAlert = null;
 
     public AndroidFileCommands() {
         // setLogFilePath(getDefaultLogFile());
         setContext(null);
+        setJournalDir(Global.fileOpJournalDir);
+    }
+
+    /**
+     * Finishes or rolls back copy/move batches that were interrupted because the app was killed
+     * and updates the media database for the files that were processed.
+     */
+    public static void recoverJournal(Context context) {
+        final File journalDir = Global.fileOpJournalDir;
+        if ((journalDir == null) || !journalDir.isDirectory()) return;
+
+        // in case that current activity is destroyed while running async, applicationContext will allow to finish database operation
+        final Context applicationContext = context.getApplicationContext();
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return FileOpJournal.recover(journalDir, new FileOpJournal.Callback() {
+                    @Override
+                    public void onRecovered(int opCode, String[] oldPathNames, String[] newPathNames) {
+                        if (Global.debugEnabled) {
+                            Log.i(Global.LOG_CONTEXT, mDebugPrefix + "recoverJournal(opCode=" + opCode + ") "
+                                    + newPathNames.length + " files");
+                        }
+                        MediaScanner.updateMediaDBInBackground(applicationContext, "recoverJournal", oldPathNames, newPathNames);
+                    }
+                });
+            }
+        }.execute();
     }
 
     public void closeAll() {
@@ -87,6 +128,16 @@ public class AndroidFileCommands extends FileCommands {
         super.onPreProcess(what, oldPathNames, newPathNames, opCode);
     }
 
+    /** updates the media database in the thread of the file operation. */
+    @Override
+    protected void onUpdateMediaDatabase(String what, String[] oldPathNames, String[] newPathNames, int opCode) {
+        // in case that current activity is destroyed while running async, applicationContext will allow to finish database operation
+        int modifyCount = MediaScanner.updateMediaDatabase_Android42(mContext.getApplicationContext(), oldPathNames, newPathNames);
+        if (modifyCount > 0) {
+            MediaScanner.notifyChanges(mContext, what);
+        }
+    }
+
     /** called for each modified/deleted file */
     @Override
     protected void onPostProcess(String what, String[] oldPathNames, String[] newPathNames, int modifyCount, int itemCount, int opCode) {
@@ -98,9 +149,6 @@ public class AndroidFileCommands extends FileCommands {
 
         int resId = getResourceId(opCode);
         String message = mContext.getString(resId, Integer.valueOf(modifyCount), Integer.valueOf(itemCount));
-        if (itemCount > 0) {
-            MediaScanner.updateMediaDBInBackground(mContext, message, oldPathNames, newPathNames);
-        }
 
         Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
     }
@@ -156,7 +204,99 @@ public class AndroidFileCommands extends FileCommands {
             File destDirFolder = new File(copyToPath);
 
             String[] selectedFileNames = srcFotos.getFileNames(mContext);
-            moveOrCopyFilesTo(move, destDirFolder, SelectedFotos.getFiles(selectedFileNames));
+            new MoveOrCopyTask(mContext, move, destDirFolder).execute(SelectedFotos.getFiles(selectedFileNames));
+        }
+    }
+
+    /**
+     * The result of an engine that runs in a background task is processed by this (the command object of the gui)
+     * in the gui thread so that the gui can update itself.
+     */
+    private void postProcessInGuiThread(Activity activity, final String what, final String[] oldPathNames, final String[] newPathNames,
+                                        final int modifyCount, final int itemCount, final int opCode) {
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                onPostProcess(what, oldPathNames, newPathNames, modifyCount, itemCount, opCode);
+            }
+        });
+    }
+
+    /**
+     * Copies/moves in the background with a progress dialog that allows to cancel.
+     * Uses its own engine so that the job can finish even if the gui that started it is detached.
+     */
+    private class MoveOrCopyTask extends AsyncTask<File, Long, Integer> {
+        private final Activity mActivity;
+        private final boolean mMove;
+        private final File mDestDirFolder;
+        private final AndroidFileCommands mEngine;
+        private final AndroidFileCommands mGui = AndroidFileCommands.this;
+        private ProgressDialog mDialog = null;
+
+        MoveOrCopyTask(Activity activity, boolean move, File destDirFolder) {
+            mActivity = activity;
+            mMove = move;
+            mDestDirFolder = destDirFolder;
+
+            // a new engine per task starts uncancelled so a cancel() before doInBackground() is not lost
+            mEngine = new AndroidFileCommands() {
+                /** map FileCommands-progress to AsyncTask-progress */
+                @Override
+                protected void onFileProgress(int fileNumber, int fileCount, long bytesDone, long bytesTotal, long bytesPerSecond) {
+                    publishProgress((long) fileNumber, (long) fileCount, bytesPerSecond);
+                }
+
+                @Override
+                protected void onPostProcess(String what, String[] oldPathNames, String[] newPathNames, int modifyCount, int itemCount, int opCode) {
+                    mGui.postProcessInGuiThread(mActivity, what, oldPathNames, newPathNames, modifyCount, itemCount, opCode);
+                }
+            };
+            mEngine.setContext(activity);
+            mEngine.setLogFilePath(getDefaultLogFile());
+            mEngine.setCopyPipeline(Global.copyReaderThreadCount, Global.copyMaxReadersPerDevice);
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mDialog = new ProgressDialog(mActivity);
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setTitle((mMove) ? R.string.move_menu_title : R.string.copy_menu_title);
+            mDialog.setMessage(mDestDirFolder.getAbsolutePath());
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, mActivity.getString(R.string.btn_cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            // the file that is currently copied is completed
+                            mEngine.cancel();
+                        }
+                    });
+            mDialog.show();
+        }
+
+        @Override
+        protected Integer doInBackground(File... sourceFiles) {
+            int result = mEngine.moveOrCopyFilesTo(mMove, mDestDirFolder, sourceFiles);
+            mEngine.setLogFilePath(null);
+            return result;
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            mDialog.setMax(values[1].intValue());
+            mDialog.setProgress(values[0].intValue());
+            mDialog.setMessage(mDestDirFolder.getAbsolutePath() + "\n"
+                    + Formatter.formatFileSize(mActivity, values[2]) + "/s");
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            try {
+                mDialog.dismiss();
+            } catch (IllegalArgumentException ignore) {
+                // activity was destroyed while copying: dialog is not attached any more
+            }
         }
     }
 
@@ -217,9 +357,81 @@ public class AndroidFileCommands extends FileCommands {
         return true;
     }
 
-    private int deleteFiles(SelectedFotos fotos) {
+    private void deleteFiles(SelectedFotos fotos) {
         String[] fileNames = fotos.getFileNames(mContext);
-        return super.deleteFiles(fileNames);
+        new DeleteTask(mContext).execute(fileNames);
+    }
+
+    /** Deletes in the background with a progress dialog that allows to cancel. Same as {@link MoveOrCopyTask} */
+    private class DeleteTask extends AsyncTask<String, Long, Integer> {
+        private final Activity mActivity;
+        private final AndroidFileCommands mEngine;
+        private final AndroidFileCommands mGui = AndroidFileCommands.this;
+        private ProgressDialog mDialog = null;
+
+        DeleteTask(Activity activity) {
+            mActivity = activity;
+            mEngine = new AndroidFileCommands() {
+                /** map FileCommands-progress to AsyncTask-progress */
+                @Override
+                protected void onFileProgress(int fileNumber, int fileCount, long bytesDone, long bytesTotal, long bytesPerSecond) {
+                    publishProgress((long) fileNumber, (long) fileCount);
+                }
+
+                @Override
+                protected void onPostProcess(String what, String[] oldPathNames, String[] newPathNames, int modifyCount, int itemCount, int opCode) {
+                    mGui.postProcessInGuiThread(mActivity, what, oldPathNames, newPathNames, modifyCount, itemCount, opCode);
+                }
+            };
+            mEngine.setContext(activity);
+            mEngine.setLogFilePath(getDefaultLogFile());
+            mEngine.setDeleteThreadCount(Global.deleteThreadCount);
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mDialog = new ProgressDialog(mActivity);
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setTitle(R.string.delete_menu_title);
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, mActivity.getString(R.string.btn_cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            // the files that are currently deleted are completed
+                            mEngine.cancel();
+                        }
+                    });
+            mDialog.show();
+        }
+
+        @Override
+        protected Integer doInBackground(String... fileNames) {
+            int result = mEngine.deleteFiles(fileNames);
+            mEngine.setLogFilePath(null);
+            return result;
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            mDialog.setMax(values[1].intValue());
+            mDialog.setProgress(values[0].intValue());
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            try {
+                mDialog.dismiss();
+            } catch (IllegalArgumentException ignore) {
+                // activity was destroyed while deleting: dialog is not attached any more
+            }
+
+            List<String> failures = mEngine.getDeleteFailures();
+            if (!failures.isEmpty()) {
+                Toast.makeText(mActivity, mActivity.getString(R.string.delete_failed_format, failures.toString()),
+                        Toast.LENGTH_LONG).show();
+            }
+        }
     }
 
     class MediaScannerDirectoryPickerFragment extends DirectoryPickerFragment {
@@ -316,26 +528,21 @@ public class AndroidFileCommands extends FileCommands {
         if (!Double.isNaN(latitude) && !Double.isNaN(longitude) && (selectedItems != null) && (selectedItems.size() > 0)) {
             // in case that current activity is destroyed while running async, applicationContext will allow to finish database operation
             Context applicationContext = this.mContext.getApplicationContext();
-            int itemcount = 0;
-            int countdown = 0;
             String[] fileNames = selectedItems.getFileNames(this.mContext);
             if (fileNames != null) {
                 File[] files = SelectedFotos.getFiles(fileNames);
                 int maxCount = files.length+1;
                 openLogfile();
-                for (File file : files) {
-                    countdown--;
-                    if (countdown <= 0) {
-                        countdown = itemsPerProgress;
-                        onProgress(itemcount, maxCount);
-                    }
-                    ExifGps.saveLatLon(file, latitude, longitude, mContext.getString(R.string.app_name), GuiUtil.getAppVersionName(mContext));
-                    log("CALL setgps  ", getFilenameForLog(file),
-                            " ", DirectoryFormatter.parseLatLon(latitude), " ", DirectoryFormatter.parseLatLon(longitude));
-                    itemcount++;
-                }
+                onProgress(0, maxCount);
+                List<File> processed = new ArrayList<File>(files.length);
+                int itemcount = (Global.xmpSidecarWrite)
+                        ? setGeoSidecars(files, latitude, longitude, maxCount, processed)
+                        : setGeoParallel(files, latitude, longitude, itemsPerProgress, maxCount, processed);
                 onProgress(itemcount, maxCount);
-                int result = FotoSql.execUpdateGeo(applicationContext, latitude, longitude, selectedItems);
+
+                // the media db gets the new geo only for the photos that were written
+                SelectedItems updated = (processed.size() < files.length) ? getIds(applicationContext, processed) : selectedItems;
+                int result = FotoSql.execUpdateGeo(applicationContext, latitude, longitude, updated);
                 closeLogFile();
                 onProgress(++itemcount, maxCount);
                 return result;
@@ -344,6 +551,113 @@ public class AndroidFileCommands extends FileCommands {
         return 0;
     }
 
+    /** @return media db ids of the files */
+    private static SelectedItems getIds(Context context, List<File> files) {
+        String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = files.get(i).getPath();
+        }
+
+        SelectedItems result = new SelectedItems();
+        for (Integer id : FotoSql.execGetPathIdMap(context, paths).values()) {
+            result.add(id.longValue());
+        }
+        return result;
+    }
+
+    /**
+     * Writes geo into the xmp sidecars of the photos instead of the jpg exif.
+     * Each batch of {@link Global#mediaDbBatchSize} sidecars is written completely or not at all.
+     * @param processed receives the photos of the batches that were written
+     * @return number of processed files
+     */
+    private int setGeoSidecars(File[] files, double latitude, double longitude, int maxCount, List<File> processed) {
+        List<File> photos = new ArrayList<File>(files.length);
+        List<File> sidecars = new ArrayList<File>(files.length);
+        for (File file : files) {
+            // selection may already contain the sidecars
+            if (!isSidecar(file)) {
+                photos.add(file);
+                sidecars.add(getSidecar(file));
+            }
+        }
+
+        XmpSidecar changes = new XmpSidecar().setLatLon(latitude, longitude);
+        int batchSize = Math.max(1, Global.mediaDbBatchSize);
+        int itemcount = 0;
+        for (int start = 0; start < sidecars.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, sidecars.size());
+            List<File> batch = sidecars.subList(start, end);
+            try {
+                itemcount += changes.write(batch.toArray(new File[batch.size()]));
+                processed.addAll(photos.subList(start, end));
+                for (File sidecar : batch) {
+                    log("CALL setgps  ", getFilenameForLog(sidecar),
+                            " ", DirectoryFormatter.parseLatLon(latitude), " ", DirectoryFormatter.parseLatLon(longitude));
+                }
+            } catch (IOException e) {
+                log("rem setgps failed for ", getFilenameForLog(batch.get(0)), "... : ", e.getMessage());
+                onException(e, "setGeoSidecars");
+            }
+            onProgress(itemcount, maxCount);
+        }
+        return itemcount;
+    }
+
+    /**
+     * Writes the exif of the files on a pool of {@link Global#geoThreadCount} threads.
+     * Logging and progress are done in the calling thread in the order in which the files are finished.
+     * A file that cannot be written does not stop the others.
+     * @param processed receives the files that were written
+     * @return number of processed files
+     */
+    private int setGeoParallel(File[] files, final double latitude, final double longitude, final int itemsPerProgress, final int maxCount, List<File> processed) {
+        final String appName = mContext.getString(R.string.app_name);
+        final String appVersion = GuiUtil.getAppVersionName(mContext);
+
+        ParallelFileProcessor writer = new ParallelFileProcessor(Global.geoThreadCount) {
+            private int mCountdown = itemsPerProgress;
+            private long mNextProgressTime = System.currentTimeMillis() + GEO_PROGRESS_INTERVAL_MILLISECS;
+            private int mDoneCount = 0;
+
+            @Override
+            protected void process(File file) throws Exception {
+                // preserves the file modification date
+                ExifGps.saveLatLon(file, latitude, longitude, appName, appVersion);
+            }
+
+            @Override
+            protected void onDone(File file, int doneCount) {
+                log("CALL setgps  ", getFilenameForLog(file),
+                        " ", DirectoryFormatter.parseLatLon(latitude), " ", DirectoryFormatter.parseLatLon(longitude));
+                mDoneCount = doneCount;
+                onFileFinished();
+            }
+
+            @Override
+            protected void onFailed(File file, Exception error) {
+                log("rem setgps failed for ", getFilenameForLog(file), " : ", error.getMessage());
+                onException(error, "setGeo", file);
+                onFileFinished();
+            }
+
+            /** progress every itemsPerProgress files but also if the files are slow to write */
+            private void onFileFinished() {
+                mCountdown--;
+                long now = System.currentTimeMillis();
+                if ((mCountdown <= 0) || (now >= mNextProgressTime)) {
+                    mCountdown = itemsPerProgress;
+                    mNextProgressTime = now + GEO_PROGRESS_INTERVAL_MILLISECS;
+                    onProgress(mDoneCount, maxCount);
+                }
+            }
+        };
+
+        List<File> written = writer.processAll(files);
+        processed.addAll(written);
+        return written.size();
+    }
+
     /** called every time when command makes some little progress. Can be mapped to async progress-bar */
     protected void onProgress(int itemcount, int size) {
     }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.util;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.media.ContentHashStore;
+import de.k3b.media.DuplicateFinder;
+
+/**
+ * Searches all photos of the media database for identical content in a background task.
+ * The content hashes are remembered in {@link Global#contentHashFile}.<br/>
+ *
+ * The caller receives the ids of the groups of duplicates in onPostExecute.
+ */
+public class DuplicateFinderTask extends AsyncTask<Void, Void, List<List<Long>>> {
+    private static final String mDebugPrefix = "DuplicateFinderTask ";
+
+    private final Context mContext;
+
+    public DuplicateFinderTask(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected List<List<Long>> doInBackground(Void... params) {
+        Map<String, Long> ids = FotoSql.execGetFotoIds(mContext, "%");
+        List<String> paths = new ArrayList<String>(ids.keySet());
+
+        ContentHashStore store = new ContentHashStore().load(Global.contentHashFile);
+        DuplicateFinder finder = new DuplicateFinder(Global.mediaScannerThreadCount, store)
+                .setCancellation(new DuplicateFinder.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return DuplicateFinderTask.this.isCancelled();
+                    }
+                });
+        List<List<String>> duplicates = finder.findDuplicates(paths);
+        List<List<Long>> result = new ArrayList<List<Long>>(duplicates.size());
+        for (List<String> group : duplicates) {
+            List<Long> groupIds = new ArrayList<Long>(group.size());
+            for (String path : group) {
+                groupIds.add(ids.get(path));
+            }
+            result.add(groupIds);
+        }
+
+        // also save if cancelled so that the next search does not have to read the same files again
+        store.save(Global.contentHashFile);
+
+        if (Global.debugEnabled) {
+            Log.i(Global.LOG_CONTEXT, mDebugPrefix + paths.size() + " photos, " + result.size()
+                    + " duplicate groups, " + finder.getReadCount() + " files read");
+        }
+        return result;
+    }
+}
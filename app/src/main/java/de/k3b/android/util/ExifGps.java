@@ -24,12 +24,14 @@ import android.media.ExifInterface;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
 
 import de.k3b.android.androFotoFinder.Global;
+import de.k3b.media.ExifGpsPatcher;
 
 /**
  * Write geo data (lat/lon) to photo
@@ -38,53 +40,82 @@ import de.k3b.android.androFotoFinder.Global;
  * Created by k3b on 25.08.2015.
  */
 public class ExifGps {
-    private static SimpleDateFormat sFormatter;
-
-    static {
-        sFormatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-        sFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    /** SimpleDateFormat is not thread safe and geo is written on a pool of threads */
+    private static final ThreadLocal<SimpleDateFormat> sFormatter = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return formatter;
+        }
+    };
 
-    public static void saveLatLon(File filePath, double latitude, double longitude, String appName, String appVersion) {
-        StringBuilder sb = (Global.debugEnabled) ? new StringBuilder("Set Exif ") : null;
+    /**
+     * Writes geo into the exif of the jpg and keeps its modification date.
+     * @throws IOException if the exif cannot be written
+     */
+    public static void saveLatLon(File filePath, double latitude, double longitude, String appName, String appVersion) throws IOException {
+        long lastModified = filePath.lastModified();
+        // #29 set date if not in exif
+        String exifDate = (lastModified != 0) ? sFormatter.get().format(new Date(lastModified)) : null;
         try {
-            long lastModified = filePath.lastModified();
-            ExifInterface exif = new ExifInterface(filePath.getAbsolutePath());
-            exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, convert(latitude));
-            exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, latitudeRef(latitude));
-            exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, convert(longitude));
-            exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, longitudeRef(longitude));
-            // exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE, convert(0));
-            // exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE_REF, longitudeRef(0));
-
-            if (sb != null) sb.append(ExifInterface.TAG_GPS_LATITUDE).append("=").append(latitude).append(" ")
-            .append(ExifInterface.TAG_GPS_LONGITUDE).append("=").append(longitude).append(" ");
-
-            // #29 set date if not in exif
-            if ((lastModified != 0) && (null == exif.getAttribute(ExifInterface.TAG_DATETIME))) {
-                final String exifDate = sFormatter.format(new Date(lastModified));
-                exif.setAttribute(ExifInterface.TAG_DATETIME, exifDate);
-                if (sb != null) sb.append(ExifInterface.TAG_DATETIME).append("=").append(exifDate).append(" ");
-            }
-            if ((appName != null) && (null == exif.getAttribute(ExifInterface.TAG_MAKE))) {
-                exif.setAttribute(ExifInterface.TAG_MAKE, appName);
-                if (sb != null) sb.append(ExifInterface.TAG_MAKE).append("=").append(appName).append(" ");
-            }
-            if ((appVersion != null) && (null == exif.getAttribute(ExifInterface.TAG_MODEL))) {
-                exif.setAttribute(ExifInterface.TAG_MODEL, appVersion);
-                if (sb != null) sb.append(ExifInterface.TAG_MODEL).append("=").append(appVersion).append(" ");
-            }
-            if (sb != null) {
-                Log.d(Global.LOG_CONTEXT, sb.toString());
-            }
-
-            exif.saveAttributes();
+            // usually only the gps bytes are overwritten instead of rewriting the whole file
+            int result = new ExifGpsPatcher(latitude, longitude).setDefaults(exifDate, appName, appVersion).patch(filePath);
 
             // preseve file modification date
             filePath.setLastModified(lastModified);
+            if (Global.debugEnabled) {
+                Log.d(Global.LOG_CONTEXT, "Set Exif " + ((result == ExifGpsPatcher.RESULT_IN_PLACE) ? "in place " : "rewritten ")
+                        + ExifInterface.TAG_GPS_LATITUDE + "=" + latitude + " "
+                        + ExifInterface.TAG_GPS_LONGITUDE + "=" + longitude + " " + filePath);
+            }
+            return;
         } catch (IOException e) {
-            e.printStackTrace();
+            // i.e. exif too big for the patcher
+            Log.w(Global.LOG_CONTEXT, "ExifGpsPatcher failed for " + filePath + ": " + e.getMessage());
         }
+
+        // ExifInterface would silently create an empty exif for a missing file
+        if (!filePath.isFile()) throw new FileNotFoundException("ExifGps: cannot find " + filePath);
+        saveLatLonWithExifInterface(filePath, latitude, longitude, appName, appVersion);
+    }
+
+    private static void saveLatLonWithExifInterface(File filePath, double latitude, double longitude, String appName, String appVersion) throws IOException {
+        StringBuilder sb = (Global.debugEnabled) ? new StringBuilder("Set Exif ") : null;
+        long lastModified = filePath.lastModified();
+        ExifInterface exif = new ExifInterface(filePath.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, convert(latitude));
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, latitudeRef(latitude));
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, convert(longitude));
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, longitudeRef(longitude));
+        // exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE, convert(0));
+        // exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE_REF, longitudeRef(0));
+
+        if (sb != null) sb.append(ExifInterface.TAG_GPS_LATITUDE).append("=").append(latitude).append(" ")
+        .append(ExifInterface.TAG_GPS_LONGITUDE).append("=").append(longitude).append(" ");
+
+        // #29 set date if not in exif
+        if ((lastModified != 0) && (null == exif.getAttribute(ExifInterface.TAG_DATETIME))) {
+            final String exifDate = sFormatter.get().format(new Date(lastModified));
+            exif.setAttribute(ExifInterface.TAG_DATETIME, exifDate);
+            if (sb != null) sb.append(ExifInterface.TAG_DATETIME).append("=").append(exifDate).append(" ");
+        }
+        if ((appName != null) && (null == exif.getAttribute(ExifInterface.TAG_MAKE))) {
+            exif.setAttribute(ExifInterface.TAG_MAKE, appName);
+            if (sb != null) sb.append(ExifInterface.TAG_MAKE).append("=").append(appName).append(" ");
+        }
+        if ((appVersion != null) && (null == exif.getAttribute(ExifInterface.TAG_MODEL))) {
+            exif.setAttribute(ExifInterface.TAG_MODEL, appVersion);
+            if (sb != null) sb.append(ExifInterface.TAG_MODEL).append("=").append(appVersion).append(" ");
+        }
+        if (sb != null) {
+            Log.d(Global.LOG_CONTEXT, sb.toString());
+        }
+
+        exif.saveAttributes();
+
+        // preseve file modification date
+        filePath.setLastModified(lastModified);
     }
 
     /**
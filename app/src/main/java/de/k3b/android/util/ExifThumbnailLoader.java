@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.media.ExifThumbnail;
+
+/**
+ * Loads the thumbnail that is embedded in the exif data of a jpg.
+ * This is much cheaper than asking the MediaStore for a thumbnail or decoding the image.
+ */
+public class ExifThumbnailLoader {
+    /** @return the decoded exif thumbnail or null if path is not a jpg with exif thumbnail */
+    public static Bitmap load(String path) {
+        if ((path == null) || !isJpg(path)) return null;
+
+        long startTime = (Global.debugEnabledViewItem) ? System.currentTimeMillis() : 0;
+        byte[] jpg = ExifThumbnail.getThumbnail(new File(path));
+        Bitmap result = null;
+        if (jpg != null) {
+            try {
+                result = BitmapFactory.decodeByteArray(jpg, 0, jpg.length);
+            } catch (OutOfMemoryError e) {
+                Log.w(Global.LOG_CONTEXT, "ExifThumbnailLoader.load('" + path + "') not enough memory " + e.getMessage());
+            }
+        }
+
+        if (Global.debugEnabledViewItem) {
+            Log.i(Global.LOG_CONTEXT, "ExifThumbnailLoader.load('" + path + "') "
+                    + ((result == null) ? "not found" : (result.getWidth() + "x" + result.getHeight()))
+                    + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return result;
+    }
+
+    private static boolean isJpg(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.provider.MediaStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.database.BatchedWriter;
+
+/**
+ * Writes to the media database in batches of {@link Global#mediaDbBatchSize}
+ * instead of one ContentResolver call per item:
+ * inserts via {@link ContentResolver#bulkInsert}, updates via {@link ContentResolver#applyBatch}.
+ */
+public class MediaDbWriter {
+    private MediaDbWriter() {
+    }
+
+    /** inserts ContentValues into the media database. Call flush() when done. */
+    public static BatchedWriter<ContentValues> createInserter(Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new BatchedWriter<ContentValues>("MediaDbWriter.insert: ", Global.mediaDbBatchSize) {
+            @Override
+            protected int executeBatch(List<ContentValues> batch) throws Exception {
+                FotoSql.beginQueryCacheUpdate();
+                try {
+                    return appContext.getContentResolver().bulkInsert(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI,
+                            batch.toArray(new ContentValues[batch.size()]));
+                } finally {
+                    FotoSql.endQueryCacheUpdate();
+                }
+            }
+
+            @Override
+            protected int executeSingle(ContentValues values) throws Exception {
+                return (FotoSql.execInsert(appContext, values) != null) ? 1 : 0;
+            }
+        };
+    }
+
+    /**
+     * updates the media database item with id {@link FotoSql#SQL_COL_PK} contained in the ContentValues.
+     * Call flush() when done.
+     */
+    public static BatchedWriter<ContentValues> createUpdater(Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new BatchedWriter<ContentValues>("MediaDbWriter.update: ", Global.mediaDbBatchSize) {
+            @Override
+            protected int executeBatch(List<ContentValues> batch) throws Exception {
+                ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(batch.size());
+                for (ContentValues values : batch) {
+                    operations.add(ContentProviderOperation.newUpdate(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI)
+                            .withSelection(FotoSql.SQL_COL_PK + " = ?", new String[]{values.getAsString(FotoSql.SQL_COL_PK)})
+                            .withValues(withoutId(values))
+                            .build());
+                }
+
+                ContentProviderResult[] results;
+                FotoSql.beginQueryCacheUpdate();
+                try {
+                    results = appContext.getContentResolver().applyBatch(MediaStore.AUTHORITY, operations);
+                } finally {
+                    FotoSql.endQueryCacheUpdate();
+                }
+                int modifyCount = 0;
+                for (ContentProviderResult result : results) {
+                    if ((result != null) && (result.count != null)) modifyCount += result.count;
+                }
+                return modifyCount;
+            }
+
+            @Override
+            protected int executeSingle(ContentValues values) throws Exception {
+                return FotoSql.execUpdate(appContext, values.getAsInteger(FotoSql.SQL_COL_PK), withoutId(values));
+            }
+        };
+    }
+
+    /** the primary key is only used to find the item and must not be updated */
+    private static ContentValues withoutId(ContentValues values) {
+        if (!values.containsKey(FotoSql.SQL_COL_PK)) return values;
+        ContentValues result = new ContentValues(values);
+        result.remove(FotoSql.SQL_COL_PK);
+        return result;
+    }
+}
@@ -39,15 +39,21 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
 import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
 import de.k3b.android.androFotoFinder.queries.FotoSql;
+import de.k3b.database.BatchedWriter;
 import de.k3b.database.QueryParameter;
+import de.k3b.io.FileCommands;
+import de.k3b.media.JpegHeaderReader;
+import de.k3b.media.XmpSidecar;
 
 /**
  * Since android.media.MediaScannerConnection does not work on my android-4.2
@@ -57,12 +63,15 @@ import de.k3b.database.QueryParameter;
  */
 public class MediaScanner extends AsyncTask<String[],Object,Integer> {
     private static final String CONTEXT = "MediaScanner.";
-    private static SimpleDateFormat sFormatter;
-
-    static {
-        sFormatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-        sFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    /** SimpleDateFormat is not thread safe and exif is read by the workers of the ParallelDirectoryScanner */
+    private static final ThreadLocal<SimpleDateFormat> sFormatter = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return formatter;
+        }
+    };
 
     protected final Context mContext;
     protected final String mWhy;
@@ -97,6 +106,8 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
             Log.i(Global.LOG_CONTEXT, CONTEXT + "notifyChanges(" + why + ") "
                     + FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI);
         }
+        // do not wait for the asynchronous ContentObserver: the next query must not get a cached result
+        FotoSql.invalidateQueryCache();
         context.getContentResolver().notifyChange(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, null);
     }
 
@@ -140,37 +151,51 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
                 }
             }
 
-            Map<String, Integer> inMediaDb = FotoSql.execGetPathIdMap(context.getApplicationContext(), newPathNames);
-
+            List<ContentValues> valuesList = new ArrayList<ContentValues>(newPathNames.length);
             for (String fileName : newPathNames) {
                 if (fileName != null) {
-                    Integer id = inMediaDb.get(fileName);
-                    if (id != null) {
-                        // already exists
-                        update_Android42(context, id, new File(fileName));
-                    } else {
-                        insert_Android42(context, new File(fileName));
+                    ContentValues values = getExifFromFile(new File(fileName));
+                    if (values != null) {
+                        valuesList.add(values);
                     }
-                    modifyCount++;
                 }
             }
+            modifyCount = updateMediaDatabase_Android42(context, valuesList);
         }
         return modifyCount;
     }
 
-    /** delete oldPathNames from media database */
+    /** delete oldPathNames from media database in batches of {@link Global#mediaDbBatchSize} parameterized file names */
     private static int deleteInMediaDatabase(Context context, String[] oldPathNames) {
-        String sqlWhere = FotoSql.getWhereInFileNames(oldPathNames);
+        List<String> paths = new ArrayList<String>(oldPathNames.length);
+        for (String path : oldPathNames) {
+            if ((path != null) && !FileCommands.isSidecar(path)) {
+                paths.add(path);
+            }
+        }
+
+        int batchSize = Math.max(1, Math.min(Global.mediaDbBatchSize, FotoSql.MAX_SQL_PARAMETERS));
+        ContentResolver resolver = context.getContentResolver();
         int modifyCount = 0;
+        FotoSql.beginQueryCacheUpdate();
         try {
-            modifyCount = context.getContentResolver().delete(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, sqlWhere, null);
-            if (Global.debugEnabled) {
-                Log.d(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(len=" + oldPathNames.length + ", files='" + oldPathNames[0] + "'...) result count=" + modifyCount);
+            for (int start = 0; start < paths.size(); start += batchSize) {
+                List<String> batch = paths.subList(start, Math.min(start + batchSize, paths.size()));
+                String sqlWhere = FotoSql.getWhereInFileNamesParameters(batch.size());
+                try {
+                    modifyCount += resolver.delete(FotoSql.SQL_TABLE_EXTERNAL_CONTENT_URI, sqlWhere,
+                            batch.toArray(new String[batch.size()]));
+                } catch (Exception ex) {
+                    Log.e(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase('" + batch.get(0) + "'...) error :", ex);
+                }
             }
-        } catch (Exception ex) {
-            Log.e(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(" + sqlWhere + ") error :", ex);
+        } finally {
+            FotoSql.endQueryCacheUpdate();
         }
 
+        if (Global.debugEnabled && (oldPathNames.length > 0)) {
+            Log.d(Global.LOG_CONTEXT, CONTEXT + "deleteInMediaDatabase(len=" + oldPathNames.length + ", files='" + oldPathNames[0] + "'...) result count=" + modifyCount);
+        }
         return modifyCount;
     }
 
@@ -186,18 +211,18 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
 
         QueryParameter query = new QueryParameter(FotoSql.queryChangePath);
         FotoSql.setWhereFileNames(query, oldPathNames);
-        int modifyCount = 0;
+        BatchedWriter<ContentValues> updater = MediaDbWriter.createUpdater(context);
 
         Cursor c = null;
         try {
             c = FotoSql.createCursorForQuery(context, query);
-            int pkColNo  = c.getColumnIndex(FotoSql.SQL_COL_PK);
             int pathColNo  = c.getColumnIndex(FotoSql.SQL_COL_PATH);
             while (c.moveToNext()) {
                 String oldPath = c.getString(pathColNo);
-                MediaScanner.updatePathRelatedFields(context, c, old2NewFileNames.get(oldPath), pkColNo, pathColNo);
-
-                modifyCount++;
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(c, values);
+                setPathRelatedFieldsIfNeccessary(values, old2NewFileNames.get(oldPath), oldPath);
+                updater.add(values);
             }
         } catch (Exception ex) {
             Log.e(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() error :", ex);
@@ -205,8 +230,9 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
             if (c != null) c.close();
         }
 
+        int modifyCount = updater.flush();
         if (Global.debugEnabled) {
-            Log.d(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() result count=" + modifyCount);
+            Log.d(Global.LOG_CONTEXT, CONTEXT + "execChangePaths() result count=" + modifyCount + ", " + updater);
         }
         return modifyCount;
     }
@@ -219,6 +245,21 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
         values.put(MediaStore.MediaColumns.DATE_MODIFIED, file.lastModified() / 1000);
         values.put(MediaStore.MediaColumns.SIZE, file.length());
 
+        // jpg: size and exif in one pass over the file header
+        JpegHeaderReader header = (isJpeg(absolutePath)) ? JpegHeaderReader.read(file) : null;
+        if (header != null) {
+            getExifFromHeader(values, header);
+        } else {
+            getExifFromImage(values, absolutePath);
+        }
+
+        // changes in the sidecar are newer than the exif in the photo
+        getExifFromSidecar(values, XmpSidecar.read(FileCommands.getSidecar(file)));
+    }
+
+    /** updates values with the infos of a non-jpg image */
+    private static void getExifFromImage(ContentValues values, String absolutePath) {
+
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true; // only need with/height but not content
         BitmapFactory.decodeFile(absolutePath, options);
@@ -252,25 +293,65 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
 
             int orientation = exif.getAttributeInt(
                     ExifInterface.TAG_ORIENTATION, -1);
-            if (orientation != -1) {
-                // We only recognize a subset of orientation tag values.
-                int degree;
-                switch(orientation) {
-                    case ExifInterface.ORIENTATION_ROTATE_90:
-                        degree = 90;
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_180:
-                        degree = 180;
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_270:
-                        degree = 270;
-                        break;
-                    default:
-                        degree = 0;
-                        break;
-                }
-                values.put(MediaStore.Images.Media.ORIENTATION, degree);
+            setOrientation(values, orientation);
+        }
+    }
+
+    /** updates values with the infos from a xmp sidecar. sidecar may be null */
+    private static void getExifFromSidecar(ContentValues values, XmpSidecar sidecar) {
+        if (sidecar != null) {
+            if (sidecar.hasLatLon()) {
+                values.put(MediaStore.Images.Media.LATITUDE, sidecar.getLatitude());
+                values.put(MediaStore.Images.Media.LONGITUDE, sidecar.getLongitude());
+            }
+
+            Date dateTimeTaken = sidecar.getDateTimeTaken();
+            if (dateTimeTaken != null) {
+                values.put(MediaStore.Images.Media.DATE_TAKEN, dateTimeTaken.getTime());
+            }
+        }
+    }
+
+    /** updates values with the infos from a jpg header */
+    private static void getExifFromHeader(ContentValues values, JpegHeaderReader header) {
+        if (header.getWidth() > 0 && header.getHeight() > 0) {
+            values.put(MediaStore.MediaColumns.WIDTH, header.getWidth());
+            values.put(MediaStore.MediaColumns.HEIGHT, header.getHeight());
+        }
+        values.put(MediaStore.MediaColumns.MIME_TYPE, header.getMimeType());
+
+        if (header.hasLatLon()) {
+            values.put(MediaStore.Images.Media.LATITUDE, header.getLatitude());
+            values.put(MediaStore.Images.Media.LONGITUDE, header.getLongitude());
+        }
+
+        Date dateTimeTaken = header.getDateTimeTaken();
+        if (dateTimeTaken != null) {
+            values.put(MediaStore.Images.Media.DATE_TAKEN, dateTimeTaken.getTime());
+        }
+
+        setOrientation(values, header.getOrientation());
+    }
+
+    private static void setOrientation(ContentValues values, int orientation) {
+        if (orientation != -1) {
+            // We only recognize a subset of orientation tag values.
+            int degree;
+            switch(orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    degree = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    degree = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    degree = 270;
+                    break;
+                default:
+                    degree = 0;
+                    break;
             }
+            values.put(MediaStore.Images.Media.ORIENTATION, degree);
         }
     }
 
@@ -304,23 +385,76 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
         }
     }
 
-    private static void update_Android42(Context context, int id, File file) {
+    /**
+     * Can be called from any thread.
+     * @return media database values of file or null if file cannot be read.
+     */
+    public static ContentValues getExifFromFile(File file) {
         if ((file != null) && file.exists() && file.canRead()) {
             ContentValues values = new ContentValues();
             getExifFromFile(values, file);
-            FotoSql.execUpdate(context, id, values);
+            return values;
         }
+        return null;
     }
 
-    private static void insert_Android42(Context context, File file) {
-        if ((file != null) && file.exists() && file.canRead()) {
-            ContentValues values = new ContentValues();
-            long now = new Date().getTime();
-            values.put(MediaStore.Images.ImageColumns.DATE_ADDED, now / 1000);//sec
+    /**
+     * Inserts or updates the media database with values created by {@link #getExifFromFile(File)}.
+     * @return number of modified items
+     */
+    public static int updateMediaDatabase_Android42(Context context, List<ContentValues> valuesList) {
+        String[] paths = new String[valuesList.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = valuesList.get(i).getAsString(MediaStore.MediaColumns.DATA);
+        }
 
-            getExifFromFile(values, file);
-            FotoSql.execInsert(context, values);
+        Map<String, Integer> inMediaDb = FotoSql.execGetPathIdMap(context.getApplicationContext(), paths);
+
+        BatchedWriter<ContentValues> updater = MediaDbWriter.createUpdater(context);
+        BatchedWriter<ContentValues> inserter = MediaDbWriter.createInserter(context);
+        long now = new Date().getTime();
+        for (ContentValues values : valuesList) {
+            Integer id = inMediaDb.get(values.getAsString(MediaStore.MediaColumns.DATA));
+            if (id != null) {
+                // already exists
+                values.put(FotoSql.SQL_COL_PK, id);
+                updater.add(values);
+            } else {
+                values.put(MediaStore.Images.ImageColumns.DATE_ADDED, now / 1000);//sec
+                inserter.add(values);
+            }
+        }
+
+        int modifyCount = updater.flush() + inserter.flush();
+        if (Global.debugEnabled) {
+            Log.d(Global.LOG_CONTEXT, CONTEXT + "updateMediaDatabase_Android42(" + valuesList.size() + ") " + updater + "; " + inserter);
+        }
+        return modifyCount;
+    }
+
+    /**
+     * Can be called from any thread.
+     * @return the files that are not in the media database or whose size or modification date
+     * differ from the media database.
+     */
+    public static List<File> getModifiedFiles(Context context, List<File> files) {
+        String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = files.get(i).getAbsolutePath();
+        }
+
+        Map<String, long[]> inMediaDb = FotoSql.execGetPathModifiedMap(context.getApplicationContext(), paths);
+
+        List<File> result = new ArrayList<File>();
+        for (File file : files) {
+            long[] dateModifiedAndSize = inMediaDb.get(file.getAbsolutePath());
+            if ((dateModifiedAndSize == null)
+                    || (dateModifiedAndSize[0] != file.lastModified() / 1000)
+                    || (dateModifiedAndSize[1] != file.length())) {
+                result.add(file);
+            }
         }
+        return result;
     }
 
     @NonNull
@@ -365,7 +499,7 @@ public class MediaScanner extends AsyncTask<String[],Object,Integer> {
 
         ParsePosition pos = new ParsePosition(0);
         try {
-            Date datetime = sFormatter.parse(dateTimeString, pos);
+            Date datetime = sFormatter.get().parse(dateTimeString, pos);
             if (datetime == null) return -1;
             return datetime.getTime();
         } catch (IllegalArgumentException ex) {
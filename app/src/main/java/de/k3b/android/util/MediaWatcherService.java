@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.android.util;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.k3b.android.androFotoFinder.Global;
+import de.k3b.io.EventCoalescer;
+
+/**
+ * Optional background service that keeps the media database up to date:
+ * watches the photo roots {@link Global#mediaWatcherDirs} and their sub directories with {@link FileObserver}
+ * and feeds new, changed and deleted jpgs into the {@link MediaScanner} in batches.<br/>
+ *
+ * Bursts of events (i.e. copying many photos) are coalesced by {@link EventCoalescer}.
+ */
+public class MediaWatcherService extends Service {
+    private static final String mDebugPrefix = "MediaWatcherService ";
+
+    /** a path is processed if there was no event for it during this time */
+    private static final long QUIET_PERIOD_IN_MILLISECS = 2000;
+
+    /** a path is processed at the latest this time after its first event */
+    private static final long MAX_DELAY_IN_MILLISECS = 10000;
+
+    private static final int EVENTS_CHANGED = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+    private static final int EVENTS_DELETED = FileObserver.DELETE | FileObserver.MOVED_FROM;
+    private static final int EVENTS_DIR = FileObserver.CREATE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    private static final int EVENTS = EVENTS_CHANGED | EVENTS_DELETED | EVENTS_DIR;
+
+    /** FileObserver is not recursive: one observer per directory. path => observer */
+    private final Map<String, DirectoryObserver> mObservers = new HashMap<String, DirectoryObserver>();
+
+    private EventCoalescer mCoalescer = null;
+    private HandlerThread mThread = null;
+    private Handler mHandler = null;
+
+    private final Runnable mProcessDueEvents = new Runnable() {
+        @Override
+        public void run() {
+            processEvents(SystemClock.uptimeMillis());
+        }
+    };
+
+    /** the {@link Global#mediaWatcherDirs} watched by the running service or null if not running */
+    private static String sWatchedDirs = null;
+
+    /** starts, restarts or stops the service depending on {@link Global#mediaWatcherEnabled} and {@link Global#mediaWatcherDirs} */
+    public static void startOrStop(Context context) {
+        Intent intent = new Intent(context, MediaWatcherService.class);
+        if ((sWatchedDirs != null) && !sWatchedDirs.equals(Global.mediaWatcherDirs)) {
+            context.stopService(intent);
+        }
+        if (Global.mediaWatcherEnabled && !getRoots(Global.mediaWatcherDirs).isEmpty()) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mCoalescer = new EventCoalescer(QUIET_PERIOD_IN_MILLISECS, MAX_DELAY_IN_MILLISECS, Global.mediaDbBatchSize);
+        mThread = new HandlerThread("MediaWatcher");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        sWatchedDirs = Global.mediaWatcherDirs;
+        final List<File> roots = getRoots(sWatchedDirs);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (File root : roots) {
+                    watchRecursive(root, false);
+                }
+                if (Global.debugEnabled) {
+                    Log.i(Global.LOG_CONTEXT, mDebugPrefix + "watching " + mObservers.size() + " directories below " + roots);
+                }
+            }
+        });
+    }
+
+    /** @return the existing directories of the ";" separated dirs */
+    private static List<File> getRoots(String dirs) {
+        List<File> result = new ArrayList<File>();
+        if (dirs != null) {
+            for (String dir : dirs.split(";")) {
+                File root = new File(dir.trim());
+                if ((dir.trim().length() > 0) && root.isDirectory()) {
+                    result.add(root);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        sWatchedDirs = null;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mObservers) {
+                    for (DirectoryObserver observer : mObservers.values()) {
+                        observer.stopWatching();
+                    }
+                    mObservers.clear();
+                }
+
+                // do not lose pending changes: everything is due
+                processEvents(Long.MAX_VALUE);
+                mThread.quit();
+            }
+        });
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /** runs in the handler thread */
+    private void watchRecursive(File directory, boolean isNew) {
+        if ((directory == null) || directory.getName().startsWith(".")) return;
+        File[] children = directory.listFiles();
+        if (children == null) return;
+
+        String path = directory.getAbsolutePath();
+        synchronized (mObservers) {
+            if (!mObservers.containsKey(path)) {
+                DirectoryObserver observer = new DirectoryObserver(path);
+                mObservers.put(path, observer);
+                observer.startWatching();
+            }
+        }
+
+        long now = SystemClock.uptimeMillis();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                watchRecursive(child, isNew);
+            } else if (isNew && MediaScanner.isJpeg(child.getName())) {
+                // a directory that was moved here: its files did not create events
+                mCoalescer.onEvent(child.getAbsolutePath(), false, now);
+            }
+        }
+        if (isNew) scheduleProcessing();
+    }
+
+    /** runs in the handler thread */
+    private void unwatch(String path) {
+        synchronized (mObservers) {
+            DirectoryObserver observer = mObservers.remove(path);
+            if (observer != null) observer.stopWatching();
+        }
+    }
+
+    /** called in the FileObserver thread */
+    private void onEvent(String directory, int event, String name) {
+        event &= FileObserver.ALL_EVENTS;
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            final String path = directory;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    unwatch(path);
+                }
+            });
+            return;
+        }
+        if (name == null) return;
+
+        final File file = new File(directory, name);
+        if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0 && file.isDirectory()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    watchRecursive(file, true);
+                }
+            });
+        } else if (MediaScanner.isJpeg(name)) {
+            if ((event & EVENTS_CHANGED) != 0) {
+                mCoalescer.onEvent(file.getAbsolutePath(), false, SystemClock.uptimeMillis());
+                scheduleProcessing();
+            } else if ((event & EVENTS_DELETED) != 0) {
+                mCoalescer.onEvent(file.getAbsolutePath(), true, SystemClock.uptimeMillis());
+                scheduleProcessing();
+            }
+        }
+    }
+
+    /** time base is SystemClock.uptimeMillis() as used by Handler.postAtTime() */
+    private void scheduleProcessing() {
+        long nextDueTime = mCoalescer.getNextDueTime();
+        if (nextDueTime != Long.MAX_VALUE) {
+            mHandler.removeCallbacks(mProcessDueEvents);
+            mHandler.postAtTime(mProcessDueEvents, nextDueTime);
+        }
+    }
+
+    /** runs in the handler thread: feeds the paths that are due at time now into the media database */
+    private void processEvents(long now) {
+        int modifyCount = 0;
+        EventCoalescer.Batch batch;
+        while (!(batch = mCoalescer.poll(now)).isEmpty()) {
+            if (Global.debugEnabled) {
+                Log.i(Global.LOG_CONTEXT, mDebugPrefix + "processing " + batch);
+            }
+            if (!batch.deleted.isEmpty()) {
+                modifyCount += MediaScanner.updateMediaDatabase_Android42(this, toArray(batch.deleted), (String[]) null);
+            }
+            if (!batch.modified.isEmpty()) {
+                modifyCount += MediaScanner.updateMediaDatabase_Android42(this, null, toArray(batch.modified));
+            }
+        }
+
+        if (modifyCount > 0) {
+            MediaScanner.notifyChanges(this, mDebugPrefix);
+        }
+        scheduleProcessing();
+    }
+
+    private static String[] toArray(List<String> paths) {
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    private class DirectoryObserver extends FileObserver {
+        private final String mDirectory;
+
+        DirectoryObserver(String directory) {
+            super(directory, EVENTS);
+            mDirectory = directory;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            MediaWatcherService.this.onEvent(mDirectory, event, name);
+        }
+    }
+}
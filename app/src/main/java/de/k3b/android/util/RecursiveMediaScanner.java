@@ -21,21 +21,25 @@ package de.k3b.android.util;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.List;
 
+import de.k3b.android.androFotoFinder.Global;
 import de.k3b.android.androFotoFinder.R;
-import de.k3b.io.FileUtils;
+import de.k3b.io.ParallelDirectoryScanner;
+import de.k3b.io.ScanCheckpoint;
+import de.k3b.io.ScanJournal;
 
 /**
  * Special MediaScanner that can only handle inserNew/updateExisting for directories or jp(e)g files.
@@ -43,6 +47,15 @@ import de.k3b.io.FileUtils;
  * Can handle pause/resume scanning after a directory was scanned before
  * continuing scanning other dirs.
  *
+ * Directories are scanned in parallel by {@link ParallelDirectoryScanner}.
+ * All media database updates are done in the AsyncTask's background thread.
+ *
+ * If {@link Global#mediaScannerIncremental} unchanged directories (see {@link ScanJournal})
+ * and files that are up to date in the media database are skipped.
+ *
+ * The unfinished work is saved in {@link Global#mediaScannerCheckpointFile} (see {@link ScanCheckpoint})
+ * so that a scan can be resumed after the app was killed.
+ *
  * Created by k3b on 22.10.2015.
  */
 public class RecursiveMediaScanner extends MediaScanner {
@@ -51,9 +64,12 @@ public class RecursiveMediaScanner extends MediaScanner {
      * - or reumable instanc */
     public static RecursiveMediaScanner sScanner = null;
 
+    /** min time between two saves of the checkpoint file */
+    private static final long CHECKPOINT_SAVE_INTERVAL_IN_MILLISECS = 2000;
+
     // statistics displayed in the status dialog
-    private String mCurrentFolder = "";
-    private int mCount = 0;
+    private volatile String mCurrentFolder = "";
+    private volatile int mCount = 0;
 
     private AlertDialog mStatusDialog = null;
     private Handler mTimerHandler = null;
@@ -62,7 +78,7 @@ public class RecursiveMediaScanner extends MediaScanner {
     /** if not null scanner is either
      * - in resume mode (can be started without parameters to resume interrupted scan)
      * - or in pausing mode collecting all canceled scans here to be processed in resumeIfNecessary() */
-    private List<String> mPaused = null;
+    private volatile List<String> mPaused = null;
 
     public RecursiveMediaScanner(Context context, String why) {
         super(context, why);
@@ -71,66 +87,97 @@ public class RecursiveMediaScanner extends MediaScanner {
     @Override
     protected Integer doInBackground(String[]... pathNames) {
         // do not call super.doInBackground here because logic is different
-        int resultCount = 0;
+        List<String> paths = new ArrayList<String>();
         for (String[] pathArray : pathNames) {
             if (pathArray != null) {
                 for (String pathName : pathArray) {
                     if ((pathName != null) && (pathName.length() > 0)) {
-                        resultCount += scanDirOrFile(new File(pathName));
+                        paths.add(pathName);
                     }
                 }
             }
         }
-        return resultCount;
-    }
 
-    private int scanDirOrFile(File parent) {
-        int resultCount = 0;
-        final String parentPath = FileUtils.tryGetCanonicalPath(parent, null);
-        if (parentPath != null) {
-            if (!isCancelled()) {
-                if (parent.isDirectory()) {
-                    String[] childFileNames = parent.list(new FilenameFilter() {
-                        @Override
-                        public boolean accept(File dir, String filename) {
-                            return MediaScanner.isJpeg(filename);
-                        }
-                    });
-
-                    if (childFileNames != null) {
-                        // #33
-                        // convert to absolute paths
-                        for (int i = 0; i < childFileNames.length; i++) {
-                            childFileNames[i] = parentPath + "/" + childFileNames[i];
-                        }
-                        resultCount += runScanner(parentPath, childFileNames);
+        ParallelDirectoryScanner<ContentValues> scanner = new ParallelDirectoryScanner<ContentValues>(
+                Global.mediaScannerThreadCount, Global.mediaDbBatchSize, new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String filename) {
+                        return MediaScanner.isJpeg(filename);
+                    }
+                }, new ParallelDirectoryScanner.Callback<ContentValues>() {
+                    @Override
+                    public boolean isCancelled() {
+                        return RecursiveMediaScanner.this.isCancelled();
+                    }
+
+                    @Override
+                    public void onDirectory(String directory) {
+                        mCurrentFolder = directory;
+                    }
+
+                    @Override
+                    public ContentValues extract(File file) {
+                        return MediaScanner.getExifFromFile(file);
                     }
 
-                    File[] subDirs = parent.listFiles(new FileFilter() {
-                        @Override
-                        public boolean accept(File file) {
-                            return ((file != null) && (file.isDirectory()) && (!file.getName().startsWith(".")));
-                        }
-                    });
-
-                    if (subDirs != null) {
-                        // #33
-                        for (File subDir : subDirs) {
-                            if (subDir != null) {
-                                resultCount += scanDirOrFile(subDir);
-                            }
-                        }
+                    @Override
+                    public int write(List<ContentValues> batch) {
+                        int count = MediaScanner.updateMediaDatabase_Android42(mContext, batch);
+                        mCount += count;
+                        return count;
                     }
-                } else if (MediaScanner.isJpeg(parent.getName())) {
-                    resultCount += runScanner(parentPath, parentPath);
+                });
+
+        ScanJournal journal = null;
+        if (Global.mediaScannerIncremental) {
+            journal = new ScanJournal().load(Global.mediaScannerJournalFile);
+            scanner.setJournal(journal).setChangeDetector(new ParallelDirectoryScanner.ChangeDetector() {
+                @Override
+                public List<File> getModified(String directory, List<File> files) {
+                    return MediaScanner.getModifiedFiles(mContext, files);
                 }
-            } else if (mPaused != null) {
-                mPaused.add(parentPath);
-            }
+            });
+        }
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(Global.mediaScannerCheckpointFile,
+                CHECKPOINT_SAVE_INTERVAL_IN_MILLISECS).load();
+        scanner.setCheckpoint(checkpoint);
+
+        int resultCount = scanner.scan(paths.toArray(new String[paths.size()]));
+
+        if (journal != null) {
+            // also if cancelled: completely scanned directories need not be scanned again
+            journal.save(Global.mediaScannerJournalFile);
+        }
+
+        List<String> paused = mPaused;
+        if (paused != null) {
+            paused.addAll(scanner.getPaused());
+        } else if (isCancelled()) {
+            // cancelled without pause: nothing to resume
+            checkpoint.delete();
         }
         return resultCount;
     }
 
+    /**
+     * If the app was killed while scanning: create a paused scanner
+     * that continues where the scan was interrupted.
+     */
+    public static void restoreFromCheckpoint(Context context) {
+        if (sScanner == null) {
+            List<String> pending = new ScanCheckpoint(Global.mediaScannerCheckpointFile, 0).load().getPending();
+            if (!pending.isEmpty()) {
+                RecursiveMediaScanner scanner = new RecursiveMediaScanner(context, "resumed after restart");
+                scanner.mPaused = new ArrayList<String>(pending);
+                sScanner = scanner;
+                if (Global.debugEnabled) {
+                    Log.i(Global.LOG_CONTEXT, "RecursiveMediaScanner.restoreFromCheckpoint: " + pending.size() + " pending");
+                }
+            }
+        }
+    }
+
     /** @return true if scanner was resumable and started resume operation. */
     public boolean resumeIfNeccessary() {
         if ((getStatus() == AsyncTask.Status.PENDING) && (mPaused != null))
@@ -142,16 +189,6 @@ public class RecursiveMediaScanner extends MediaScanner {
         return false;
     }
 
-    /** call the original background scanner and update the statistics */
-    private Integer runScanner(String parentPath, String... fileNames) {
-        this.mCurrentFolder = parentPath;
-        final Integer resultCount = super.doInBackground(null, fileNames);
-        if (resultCount != null) {
-            this.mCount += resultCount.intValue();
-        }
-        return resultCount;
-    }
-
     @Override protected void onPostExecute(Integer modifyCount) {
         super.onPostExecute(modifyCount);
         if (isCancelled()) {
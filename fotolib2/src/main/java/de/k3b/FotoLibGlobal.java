@@ -32,6 +32,9 @@ public class FotoLibGlobal {
      */
     public static boolean debugEnabled = false;
 
+    /** true: copied files are synced to the storage device before they are closed. safer but slower */
+    public static boolean syncAfterCopy = false;
+
     /** false do not follow symlinks when scanning Directories.  */
     public static final boolean ignoreSymLinks = false;
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Collects database operations and executes them in batches
+ * to reduce the number of (expensive) database round trips.<br/>
+ *
+ * If a batch fails its operations are executed one by one so that one bad item
+ * does not prevent the others from being written. Items that still fail are
+ * collected in {@link #getFailed()}.<br/>
+ *
+ * The policy is independent of the database so it can be tested without a device.
+ * Not thread safe.
+ */
+public abstract class BatchedWriter<T> {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private final String mDebugPrefix;
+    private final int mBatchSize;
+    private List<T> mPending;
+    private final List<T> mFailed = new ArrayList<T>();
+
+    private int mModifyCount = 0;
+    private int mBatchCount = 0;
+    private long mDurationInMilliSecs = 0;
+
+    /**
+     * @param debugPrefix used in log messages
+     * @param batchSize max number of items that are executed at once. 1 means no batching.
+     */
+    protected BatchedWriter(String debugPrefix, int batchSize) {
+        mDebugPrefix = debugPrefix;
+        mBatchSize = Math.max(1, batchSize);
+        mPending = new ArrayList<T>(mBatchSize);
+    }
+
+    /**
+     * executes all items in one database call.
+     * @return number of modified items
+     * @throws Exception if the batch failed. The items are then executed one by one.
+     */
+    protected abstract int executeBatch(List<T> batch) throws Exception;
+
+    /**
+     * executes one item after its batch has failed.
+     * @return number of modified items
+     * @throws Exception if item failed. The item is added to {@link #getFailed()}.
+     */
+    protected abstract int executeSingle(T item) throws Exception;
+
+    /** adds item to the current batch that is executed if it is full. @return this for chaining */
+    public BatchedWriter<T> add(T item) {
+        mPending.add(item);
+        if (mPending.size() >= mBatchSize) {
+            flush();
+        }
+        return this;
+    }
+
+    /** executes the pending items. @return number of all items modified so far */
+    public int flush() {
+        if (!mPending.isEmpty()) {
+            List<T> batch = mPending;
+            mPending = new ArrayList<T>(mBatchSize);
+            execute(batch);
+        }
+        return mModifyCount;
+    }
+
+    private void execute(List<T> batch) {
+        long startTime = System.currentTimeMillis();
+        int modifyCount = 0;
+        int failedCount = 0;
+        boolean batchFailed = false;
+        try {
+            modifyCount = (batch.size() == 1) ? executeSingle(batch.get(0)) : executeBatch(batch);
+        } catch (Exception ex) {
+            batchFailed = true;
+            logger.warn(mDebugPrefix + "batch of " + batch.size() + " failed. Retrying one by one: " + ex.getMessage());
+
+            for (T item : batch) {
+                try {
+                    modifyCount += executeSingle(item);
+                } catch (Exception itemEx) {
+                    failedCount++;
+                    mFailed.add(item);
+                    logger.warn(mDebugPrefix + "failed " + item + ": " + itemEx.getMessage());
+                }
+            }
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+        mModifyCount += modifyCount;
+        mBatchCount++;
+        mDurationInMilliSecs += duration;
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug(mDebugPrefix + "batch #" + mBatchCount + ": " + modifyCount + " of " + batch.size()
+                    + " items in " + duration + " ms"
+                    + ((batchFailed) ? (" (retried one by one, " + failedCount + " failed)") : ""));
+        }
+    }
+
+    /** @return number of items that were modified so far */
+    public int getModifyCount() {
+        return mModifyCount;
+    }
+
+    /** @return number of executed batches so far */
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /** @return time spent in the database calls so far */
+    public long getDurationInMilliSecs() {
+        return mDurationInMilliSecs;
+    }
+
+    /** @return the items that could not be written */
+    public List<T> getFailed() {
+        return Collections.unmodifiableList(mFailed);
+    }
+
+    @Override
+    public String toString() {
+        return mDebugPrefix + "modified " + mModifyCount + " in " + mBatchCount + " batches, "
+                + mDurationInMilliSecs + " ms, " + mFailed.size() + " failed";
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.database;
+
+import java.lang.reflect.Array;
+
+/**
+ * Compact read only copy of a query result: one primitive array per column instead of one object per row.<br/>
+ *
+ * Integer columns are stored as long[], floating point columns as double[] and all others as String[].
+ * A column with mixed types (sqlite is dynamically typed) is stored as String[].
+ * Independent of android so that it can be tested without a device.
+ */
+public class ColumnarResult {
+    private static final int TYPE_NONE = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_STRING = 3;
+
+    private final String[] mColumnNames;
+    private final int mRowCount;
+    private final int[] mTypes;
+    /** long[], double[] or String[] per column */
+    private final Object[] mValues;
+    /** null flags of numeric columns or null if the column contains no null */
+    private final boolean[][] mNulls;
+
+    private ColumnarResult(Builder builder) {
+        mColumnNames = builder.mColumnNames;
+        mRowCount = builder.mRowCount;
+        mTypes = builder.mTypes;
+        mValues = new Object[mColumnNames.length];
+        mNulls = new boolean[mColumnNames.length][];
+        for (int col = 0; col < mColumnNames.length; col++) {
+            mValues[col] = trim(builder.mValues[col], mRowCount, mTypes[col]);
+            mNulls[col] = (builder.mHasNull[col] && (mTypes[col] != TYPE_STRING))
+                    ? copyOf(builder.mNulls[col], mRowCount) : null;
+        }
+    }
+
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public boolean isNull(int row, int col) {
+        switch (mTypes[col]) {
+            case TYPE_NONE:
+                return true;
+            case TYPE_STRING:
+                return ((String[]) mValues[col])[row] == null;
+            default:
+                return (mNulls[col] != null) && mNulls[col][row];
+        }
+    }
+
+    /** @return value as long. null is 0 like in android cursors */
+    public long getLong(int row, int col) {
+        switch (mTypes[col]) {
+            case TYPE_LONG:
+                return ((long[]) mValues[col])[row];
+            case TYPE_DOUBLE:
+                return (long) ((double[]) mValues[col])[row];
+            case TYPE_STRING:
+                return (long) parse(((String[]) mValues[col])[row]);
+            default:
+                return 0;
+        }
+    }
+
+    /** @return value as double. null is 0 like in android cursors */
+    public double getDouble(int row, int col) {
+        switch (mTypes[col]) {
+            case TYPE_LONG:
+                return ((long[]) mValues[col])[row];
+            case TYPE_DOUBLE:
+                return ((double[]) mValues[col])[row];
+            case TYPE_STRING:
+                return parse(((String[]) mValues[col])[row]);
+            default:
+                return 0;
+        }
+    }
+
+    public String getString(int row, int col) {
+        if (isNull(row, col)) return null;
+        switch (mTypes[col]) {
+            case TYPE_LONG:
+                return Long.toString(((long[]) mValues[col])[row]);
+            case TYPE_DOUBLE:
+                return Double.toString(((double[]) mValues[col])[row]);
+            default:
+                return ((String[]) mValues[col])[row];
+        }
+    }
+
+    /** @return estimated number of bytes used by this result */
+    public long getEstimatedSize() {
+        long result = 64;
+        for (int col = 0; col < mColumnNames.length; col++) {
+            result += 32 + 2L * mColumnNames[col].length();
+            if (mNulls[col] != null) result += mRowCount;
+            switch (mTypes[col]) {
+                case TYPE_LONG:
+                case TYPE_DOUBLE:
+                    result += 8L * mRowCount;
+                    break;
+                case TYPE_STRING:
+                    for (String value : (String[]) mValues[col]) {
+                        result += 4 + ((value != null) ? (40 + 2L * value.length()) : 0);
+                    }
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private static double parse(String value) {
+        if (value == null) return 0;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Object trim(Object values, int length, int type) {
+        switch (type) {
+            case TYPE_LONG: {
+                long[] result = new long[length];
+                System.arraycopy(values, 0, result, 0, length);
+                return result;
+            }
+            case TYPE_DOUBLE: {
+                double[] result = new double[length];
+                System.arraycopy(values, 0, result, 0, length);
+                return result;
+            }
+            case TYPE_STRING: {
+                String[] result = new String[length];
+                System.arraycopy(values, 0, result, 0, length);
+                return result;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static boolean[] copyOf(boolean[] values, int length) {
+        boolean[] result = new boolean[length];
+        System.arraycopy(values, 0, result, 0, Math.min(length, values.length));
+        return result;
+    }
+
+    /** collects the rows of a query result. Not thread safe */
+    public static class Builder {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final String[] mColumnNames;
+        private final int[] mTypes;
+        private final Object[] mValues;
+        private final boolean[][] mNulls;
+        private final boolean[] mHasNull;
+        private int mRowCount = 0;
+        private int mCapacity = INITIAL_CAPACITY;
+
+        public Builder(String... columnNames) {
+            int count = columnNames.length;
+            mColumnNames = columnNames;
+            mTypes = new int[count];
+            mValues = new Object[count];
+            mNulls = new boolean[count][];
+            mHasNull = new boolean[count];
+            for (int col = 0; col < count; col++) {
+                mNulls[col] = new boolean[mCapacity];
+            }
+        }
+
+        /** starts a new row. All values of the row are null until they are set */
+        public Builder addRow() {
+            if (mRowCount >= mCapacity) {
+                mCapacity *= 2;
+                for (int col = 0; col < mColumnNames.length; col++) {
+                    mNulls[col] = copyOf(mNulls[col], mCapacity);
+                    if (mValues[col] != null) mValues[col] = grow(mValues[col], mTypes[col], mCapacity);
+                }
+            }
+            mRowCount++;
+            for (int col = 0; col < mColumnNames.length; col++) {
+                mNulls[col][mRowCount - 1] = true;
+            }
+            return this;
+        }
+
+        public Builder setLong(int col, long value) {
+            if (toType(col, TYPE_LONG) == TYPE_LONG) {
+                ((long[]) mValues[col])[mRowCount - 1] = value;
+            } else if (mTypes[col] == TYPE_DOUBLE) {
+                ((double[]) mValues[col])[mRowCount - 1] = value;
+            } else {
+                ((String[]) mValues[col])[mRowCount - 1] = Long.toString(value);
+            }
+            mNulls[col][mRowCount - 1] = false;
+            return this;
+        }
+
+        public Builder setDouble(int col, double value) {
+            if (toType(col, TYPE_DOUBLE) == TYPE_DOUBLE) {
+                ((double[]) mValues[col])[mRowCount - 1] = value;
+            } else {
+                ((String[]) mValues[col])[mRowCount - 1] = Double.toString(value);
+            }
+            mNulls[col][mRowCount - 1] = false;
+            return this;
+        }
+
+        public Builder setString(int col, String value) {
+            if (value != null) {
+                toType(col, TYPE_STRING);
+                ((String[]) mValues[col])[mRowCount - 1] = value;
+                mNulls[col][mRowCount - 1] = false;
+            }
+            return this;
+        }
+
+        public ColumnarResult build() {
+            for (int col = 0; col < mColumnNames.length; col++) {
+                for (int row = 0; (row < mRowCount) && !mHasNull[col]; row++) {
+                    if (mNulls[col][row]) mHasNull[col] = true;
+                }
+            }
+            return new ColumnarResult(this);
+        }
+
+        /** converts the column if necessary: long can become double and all can become String. @return the new type */
+        private int toType(int col, int type) {
+            int current = mTypes[col];
+            if (current == type) return type;
+
+            if (current == TYPE_NONE) {
+                mValues[col] = grow(null, type, mCapacity);
+                mTypes[col] = type;
+            } else if ((current == TYPE_DOUBLE) && (type == TYPE_LONG)) {
+                return TYPE_DOUBLE;
+            } else if ((current == TYPE_LONG) && (type == TYPE_DOUBLE)) {
+                long[] old = (long[]) mValues[col];
+                double[] values = new double[mCapacity];
+                for (int row = 0; row < mRowCount; row++) values[row] = old[row];
+                mValues[col] = values;
+                mTypes[col] = TYPE_DOUBLE;
+            } else if (current != TYPE_STRING) {
+                String[] values = new String[mCapacity];
+                for (int row = 0; row < mRowCount; row++) {
+                    if (!mNulls[col][row]) {
+                        values[row] = (current == TYPE_LONG)
+                                ? Long.toString(((long[]) mValues[col])[row])
+                                : Double.toString(((double[]) mValues[col])[row]);
+                    }
+                }
+                mValues[col] = values;
+                mTypes[col] = TYPE_STRING;
+            }
+            return mTypes[col];
+        }
+
+        private static Object grow(Object values, int type, int capacity) {
+            Object result;
+            switch (type) {
+                case TYPE_LONG:
+                    result = new long[capacity];
+                    break;
+                case TYPE_DOUBLE:
+                    result = new double[capacity];
+                    break;
+                default:
+                    result = new String[capacity];
+                    break;
+            }
+            if (values != null) {
+                System.arraycopy(values, 0, result, 0, Array.getLength(values));
+            }
+            return result;
+        }
+    }
+}
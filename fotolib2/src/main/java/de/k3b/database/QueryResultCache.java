@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Remembers query results as {@link ColumnarResult} so that the same query
+ * (i.e. the directory picker or the map summary markers) is not executed again and again.<br/>
+ *
+ * Results are keyed by the rendered sql including the parameters (see {@link #createKey}).
+ * When the database changes {@link #invalidate()} increments the generation and removes all results.
+ * A result of a query that was started before the last invalidate is not cached because it may be outdated.
+ * Changes of the database by this app are enclosed in {@link #beginUpdate()} and {@link #endUpdate()}:
+ * while a change is in progress no result is returned or cached.
+ * If the cached results are bigger than maxBytes the least recently used are removed.
+ * All methods are thread safe.
+ */
+public class QueryResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private final long mMaxBytes;
+
+    /** key => result in least recently used order */
+    private final LinkedHashMap<String, ColumnarResult> mResults = new LinkedHashMap<String, ColumnarResult>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mGeneration = 0;
+    /** number of database changes in progress */
+    private int mUpdateCount = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+    private long mInvalidateCount = 0;
+
+    /** @param maxBytes max estimated memory of all cached results. 0 = no caching */
+    public QueryResultCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /** @return cache key for a query */
+    public static String createKey(String from, String[] columns, String where, String[] parameters, String orderBy) {
+        StringBuilder result = new StringBuilder();
+        result.append(from).append('\n');
+        if (columns != null) {
+            for (String column : columns) result.append(column).append(',');
+        }
+        result.append('\n').append(where).append('\n');
+        if (parameters != null) {
+            for (String parameter : parameters) result.append(parameter).append('\u0000');
+        }
+        result.append('\n').append(orderBy);
+        return result.toString();
+    }
+
+    /** @return the generation that must be passed to {@link #put} for a query that is started now */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /** @return cached result or null */
+    public synchronized ColumnarResult get(String key) {
+        ColumnarResult result = (mUpdateCount == 0) ? mResults.get(key) : null;
+        if (result != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return result;
+    }
+
+    /**
+     * @param generation value of {@link #getGeneration()} before the query was executed
+     * @return true if result was cached
+     */
+    public synchronized boolean put(String key, long generation, ColumnarResult result) {
+        if ((result == null) || (generation != mGeneration) || (mUpdateCount > 0)) return false;
+
+        long size = result.getEstimatedSize();
+        // one big result must not replace all others
+        if (size > mMaxBytes / 4) return false;
+
+        ColumnarResult old = mResults.put(key, result);
+        if (old != null) mBytes -= old.getEstimatedSize();
+        mBytes += size;
+
+        Iterator<Map.Entry<String, ColumnarResult>> iterator = mResults.entrySet().iterator();
+        while ((mBytes > mMaxBytes) && iterator.hasNext()) {
+            mBytes -= iterator.next().getValue().getEstimatedSize();
+            iterator.remove();
+            mEvictionCount++;
+        }
+        return true;
+    }
+
+    /** called when the database has changed: all cached results are outdated */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mInvalidateCount++;
+        mResults.clear();
+        mBytes = 0;
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("QueryResultCache.invalidate() " + this);
+        }
+    }
+
+    /** called before the database is changed by this app. Must be followed by {@link #endUpdate()} */
+    public synchronized void beginUpdate() {
+        mUpdateCount++;
+        invalidate();
+    }
+
+    /** called after the database was changed: results of queries that ran during the change are outdated */
+    public synchronized void endUpdate() {
+        if (mUpdateCount > 0) mUpdateCount--;
+        invalidate();
+    }
+
+    public synchronized int size() {
+        return mResults.size();
+    }
+
+    /** @return estimated memory of all cached results */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /** @return hits / (hits + misses) in percent */
+    public synchronized int getHitRatePercent() {
+        long total = mHitCount + mMissCount;
+        return (total > 0) ? (int) (mHitCount * 100 / total) : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryResultCache[" + mResults.size() + " results, " + mBytes / 1024 + "/" + mMaxBytes / 1024
+                + " KB, hits " + mHitCount + ", misses " + mMissCount + " (" + getHitRatePercent() + "% hit rate)"
+                + ", evictions " + mEvictionCount + ", invalidations " + mInvalidateCount
+                + ", generation " + mGeneration + "]";
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Appends lines to a log file in a background thread so that the caller does not wait for
+ * a synchronous write to flash for every line.<br/>
+ *
+ * The lines go through a bounded queue (a caller waits if the writer cannot keep up) and are
+ * written as a group: if {@link #DEFAULT_COMMIT_SIZE} chars are pending, if the oldest pending line
+ * is {@link #DEFAULT_COMMIT_MILLISECS} old, on {@link #commit(boolean)} and from the crash hook
+ * of the app (see {@link #installCrashHook()}).
+ * If the file would grow above maxFileSize it is renamed to file.1 and a new file is started.
+ * The previous file.1 becomes file.2 and so on up to {@link #MAX_ROTATED_FILES}.<br/>
+ *
+ * There is one instance per file, see {@link #getInstance(File)}.
+ */
+public class AsyncLogAppender {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_COMMIT_SIZE = 8 * 1024;
+    public static final long DEFAULT_COMMIT_MILLISECS = 1000;
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+    /** how long {@link #commitAll()} waits for each file in the crash hook */
+    private static final long CRASH_COMMIT_MILLISECS = 1000;
+
+    /** number of old log files that are kept by the rotation: file.1 ... file.3 */
+    private static final int MAX_ROTATED_FILES = 3;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final Map<String, AsyncLogAppender> sInstances = new HashMap<String, AsyncLogAppender>();
+    private static boolean sCrashHookInstalled = false;
+
+    private final File mFile;
+    private final int mCommitSize;
+    private final long mCommitMillis;
+    private final long mMaxFileSize;
+
+    /** contains String lines and CountDownLatch commit requests */
+    private final BlockingQueue<Object> mQueue;
+
+    private volatile long mLastAppendTime = 0;
+    private volatile int mCommitCount = 0;
+
+    /** only used by the writer thread */
+    private final StringBuilder mPending = new StringBuilder();
+    private long mPendingSince = 0;
+
+    /** @return the shared appender for file with default settings. */
+    public static AsyncLogAppender getInstance(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (sInstances) {
+            AsyncLogAppender result = sInstances.get(key);
+            if (result == null) {
+                result = new AsyncLogAppender(file, DEFAULT_QUEUE_SIZE, DEFAULT_COMMIT_SIZE,
+                        DEFAULT_COMMIT_MILLISECS, DEFAULT_MAX_FILE_SIZE);
+                sInstances.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param queueSize max number of lines that are not processed by the writer yet
+     * @param commitSize pending chars that trigger a write
+     * @param commitMillis max age of a pending line before it is written
+     * @param maxFileSize file is rotated if it would grow above. 0 = never rotate
+     */
+    public AsyncLogAppender(File file, int queueSize, int commitSize, long commitMillis, long maxFileSize) {
+        mFile = file;
+        mQueue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+        mCommitSize = commitSize;
+        mCommitMillis = commitMillis;
+        mMaxFileSize = maxFileSize;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AsyncLogAppender " + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** adds line (without line separator) to the log. Blocks only if the queue is full */
+    public void append(String line) {
+        mLastAppendTime = System.currentTimeMillis();
+        try {
+            mQueue.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes all lines appended so far.
+     * @param wait true: blocks until they are in the file.
+     */
+    public void commit(boolean wait) {
+        commit(wait ? Long.MAX_VALUE : 0);
+    }
+
+    private void commit(long waitMillis) {
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            if (waitMillis == 0) {
+                mQueue.put(done);
+            } else if (mQueue.offer(done, waitMillis, TimeUnit.MILLISECONDS)) {
+                done.await(waitMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return time of the last change of the log (including lines that are not written yet) or 0 if it does not exist */
+    public long lastModified() {
+        return Math.max(mLastAppendTime, mFile.lastModified());
+    }
+
+    /** number of group writes so far */
+    public int getCommitCount() {
+        return mCommitCount;
+    }
+
+    /** writes the pending lines of all appenders. Used by the crash hook */
+    public static void commitAll() {
+        List<AsyncLogAppender> instances;
+        synchronized (sInstances) {
+            instances = new ArrayList<AsyncLogAppender>(sInstances.values());
+        }
+        for (AsyncLogAppender instance : instances) {
+            instance.commit(CRASH_COMMIT_MILLISECS);
+        }
+    }
+
+    /**
+     * To be called once by the app at startup: on an uncaught exception or vm shutdown the pending
+     * lines are written. An uncaught exception is then passed on to the handler that was installed before.
+     */
+    public static synchronized void installCrashHook() {
+        if (sCrashHookInstalled) return;
+        sCrashHookInstalled = true;
+
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                commitAll();
+                if (previous != null) previous.uncaughtException(thread, ex);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogAppender shutdown") {
+            @Override
+            public void run() {
+                commitAll();
+            }
+        });
+    }
+
+    /** runs in the writer thread */
+    private void writeLoop() {
+        try {
+            while (true) {
+                long timeout = (mPending.length() == 0)
+                        ? Long.MAX_VALUE
+                        : Math.max(1, mPendingSince + mCommitMillis - System.currentTimeMillis());
+                Object item = mQueue.poll(timeout, TimeUnit.MILLISECONDS);
+
+                if (item instanceof String) {
+                    if (mPending.length() == 0) mPendingSince = System.currentTimeMillis();
+                    mPending.append((String) item).append(LINE_SEPARATOR);
+                    if (mPending.length() >= mCommitSize) write();
+                } else if (item instanceof CountDownLatch) {
+                    write();
+                    ((CountDownLatch) item).countDown();
+                } else if (System.currentTimeMillis() - mPendingSince >= mCommitMillis) {
+                    write();
+                }
+            }
+        } catch (InterruptedException e) {
+            write();
+        }
+    }
+
+    /** runs in the writer thread: file.2 => file.3, file.1 => file.2, file => file.1. The oldest is dropped. */
+    private void rotate() {
+        getRotated(MAX_ROTATED_FILES).delete();
+        for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+            File older = getRotated(i);
+            if (older.exists() && !older.renameTo(getRotated(i + 1))) {
+                // do not overwrite the previous backup: the file grows above max size
+                logger.warn("AsyncLogAppender cannot rotate " + older);
+                return;
+            }
+        }
+        if (!mFile.renameTo(getRotated(1))) {
+            logger.warn("AsyncLogAppender cannot rotate " + mFile);
+        }
+    }
+
+    private File getRotated(int number) {
+        return new File(mFile.getAbsolutePath() + "." + number);
+    }
+
+    /** runs in the writer thread: one group commit */
+    private void write() {
+        if (mPending.length() == 0) return;
+
+        long size = mFile.length();
+        if ((mMaxFileSize > 0) && (size > 0) && (size + mPending.length() > mMaxFileSize)) {
+            rotate();
+        }
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8");
+            writer.write(mPending.toString());
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            logger.warn("AsyncLogAppender cannot write " + mFile + ": " + e.getMessage());
+        } finally {
+            FileUtils.close(writer, mFile);
+        }
+        mPending.setLength(0);
+        mCommitCount++;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds names for new files in one directory that neither collide with an existing file
+ * nor with the sidecar of an existing file: "a.jpg" becomes "a(1).jpg", "a(2).jpg", ...<br/>
+ *
+ * Works on the listing of the directory that is read once, so resolving the names of a
+ * whole batch needs no file system calls. Every resolved name (and its sidecar) is remembered
+ * so that the files of the same batch do not collide with each other.
+ * Names are compared case-insensitive because sd cards are usually formatted with FAT.
+ */
+public class DuplicateNameResolver {
+    /** lower case names of existing and resolved files */
+    private final Set<String> mUsed = new HashSet<String>();
+
+    /** lower case "name()ext" => last number that was given. Many files with the same name do not probe from 1 again */
+    private final Map<String, Integer> mLastIds = new HashMap<String, Integer>();
+
+    /** @param existingNames names of the files that already exist in the directory. */
+    public DuplicateNameResolver(String... existingNames) {
+        if (existingNames != null) {
+            for (String name : existingNames) {
+                markUsed(name);
+            }
+        }
+    }
+
+    /**
+     * @return name if neither name nor its sidecar is used else name(n).ext with the smallest free n.
+     * The result and its sidecar are marked as used.
+     */
+    public String resolve(String name) {
+        String result = name;
+        if (isUsed(name) || isUsed(FileCommands.getSidecarPath(name))) {
+            String prefix = name + "(";
+            String suffix = ")";
+            int extensionPosition = name.lastIndexOf(".");
+            if (extensionPosition >= 0) {
+                prefix = name.substring(0, extensionPosition) + "(";
+                suffix = ")" + name.substring(extensionPosition);
+            }
+
+            // names are never removed: all numbers up to the last one given are still in use
+            String key = (prefix + suffix).toLowerCase();
+            Integer lastId = mLastIds.get(key);
+            int id = (lastId != null) ? lastId : 0;
+            do {
+                id++;
+                result = prefix + id + suffix;
+            } while (isUsed(result) || isUsed(FileCommands.getSidecarPath(result)));
+            mLastIds.put(key, id);
+        }
+
+        markUsed(result);
+        markUsed(FileCommands.getSidecarPath(result));
+        return result;
+    }
+
+    /** @return true if a file with this name exists or was resolved before. */
+    protected boolean isUsed(String name) {
+        return mUsed.contains(name.toLowerCase());
+    }
+
+    private void markUsed(String name) {
+        mUsed.add(name.toLowerCase());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces bursts of file system events into batches.<br/>
+ *
+ * Several events for the same path are merged into one where the last event wins
+ * (i.e. created + modified + deleted = deleted).
+ * A path becomes due if there was no event for it during the quiet period (debounce)
+ * or if its first event is older than the max delay (files that are written for a long time).<br/>
+ *
+ * The current time is a parameter so that the logic can be tested without waiting.
+ * All methods are thread safe.
+ */
+public class EventCoalescer {
+    /** the paths that are due. */
+    public static class Batch {
+        /** paths that were created or modified */
+        public final List<String> modified = new ArrayList<String>();
+        /** paths that were deleted or moved away */
+        public final List<String> deleted = new ArrayList<String>();
+
+        public boolean isEmpty() {
+            return modified.isEmpty() && deleted.isEmpty();
+        }
+
+        public int size() {
+            return modified.size() + deleted.size();
+        }
+
+        @Override
+        public String toString() {
+            return "Batch[modified=" + modified.size() + ", deleted=" + deleted.size() + "]";
+        }
+    }
+
+    private static class PendingEvent {
+        final long firstTime;
+        long lastTime;
+        boolean deleted;
+
+        PendingEvent(long time, boolean deleted) {
+            this.firstTime = time;
+            this.lastTime = time;
+            this.deleted = deleted;
+        }
+    }
+
+    private final long mQuietPeriodInMilliSecs;
+    private final long mMaxDelayInMilliSecs;
+    private final int mMaxBatchSize;
+
+    /** path => pending event in order of the first event */
+    private final Map<String, PendingEvent> mPending = new LinkedHashMap<String, PendingEvent>();
+
+    /**
+     * @param quietPeriodInMilliSecs a path is due if there was no event for it since this time
+     * @param maxDelayInMilliSecs a path is due at the latest this time after its first event
+     * @param maxBatchSize max number of paths in one {@link Batch}
+     */
+    public EventCoalescer(long quietPeriodInMilliSecs, long maxDelayInMilliSecs, int maxBatchSize) {
+        mQuietPeriodInMilliSecs = quietPeriodInMilliSecs;
+        mMaxDelayInMilliSecs = Math.max(quietPeriodInMilliSecs, maxDelayInMilliSecs);
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /** remember event for path at time now */
+    public synchronized void onEvent(String path, boolean deleted, long now) {
+        PendingEvent event = mPending.get(path);
+        if (event == null) {
+            mPending.put(path, new PendingEvent(now, deleted));
+        } else {
+            event.lastTime = now;
+            event.deleted = deleted;
+        }
+    }
+
+    /** @return the paths that are due at time now (at most maxBatchSize). Empty if nothing is due. */
+    public synchronized Batch poll(long now) {
+        Batch result = new Batch();
+        Iterator<Map.Entry<String, PendingEvent>> iterator = mPending.entrySet().iterator();
+        while (iterator.hasNext() && (result.size() < mMaxBatchSize)) {
+            Map.Entry<String, PendingEvent> entry = iterator.next();
+            PendingEvent event = entry.getValue();
+            if (getDueTime(event) <= now) {
+                if (event.deleted) {
+                    result.deleted.add(entry.getKey());
+                } else {
+                    result.modified.add(entry.getKey());
+                }
+                iterator.remove();
+            }
+        }
+        return result;
+    }
+
+    /** @return time when the next path will be due or Long.MAX_VALUE if nothing is pending */
+    public synchronized long getNextDueTime() {
+        long result = Long.MAX_VALUE;
+        for (PendingEvent event : mPending.values()) {
+            result = Math.min(result, getDueTime(event));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    private long getDueTime(PendingEvent event) {
+        return Math.min(event.lastTime + mQuietPeriodInMilliSecs, event.firstTime + mMaxDelayInMilliSecs);
+    }
+}
@@ -20,17 +20,18 @@
 package de.k3b.io;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by k3b on 03.08.2015.
@@ -41,14 +42,34 @@ public class FileCommands implements  Cloneable {
     public static final int OP_DELETE = 3;
     public static final int OP_RENAME = 4;
     public static final int OP_UPDATE = 5;
-    private static final String EXT_SIDECAR = ".xmp";
+    public static final String EXT_SIDECAR = ".xmp";
 
     private String mLogFilePath;
     // private static final String LOG_FILE_ENCODING = "UTF-8";
-    private PrintWriter mLogFile;
+    private AsyncLogAppender mLogFile;
     private ArrayList<String> mModifiedDestFiles;
     private ArrayList<String> mModifiedSrcFiles;
 
+    /** set by {@link #cancel()} from an other thread. checked before every file */
+    private volatile boolean mCancelled = false;
+
+    /** 0: sequential copy else number of reader threads for {@link PipelinedFileCopier} */
+    private int mCopyReaderCount = 0;
+    private int mCopyMaxReadersPerDevice = 1;
+
+    /** created on demand for each move batch so that the file systems are cached for the batch only */
+    private FileMoveEngine mMoveEngine = null;
+
+    /** if not null copy/move batches are journaled here so that they can be recovered after process death */
+    private File mJournalDir = null;
+    private FileOpJournal mJournal = null;
+
+    /** number of threads that delete in parallel. 1: sequential */
+    private int mDeleteThreadCount = 1;
+
+    /** files that could not be deleted by the last {@link #deleteFiles(String...)} */
+    private List<String> mDeleteFailures = new ArrayList<String>();
+
     public FileCommands() {
         setLogFilePath(null);
     }
@@ -58,15 +79,106 @@ public class FileCommands implements  Cloneable {
         if (canProcessFile(OP_DELETE)) {
             openLogfile();
             onPreProcess("delete", paths, null, OP_DELETE);
-            for (String path : paths) {
-                if (deleteFileWitSidecar(new File(path))) result++;
-            }
-            onPostProcess("delete", paths, null, result, paths.length, OP_DELETE);
+            List<String> deleted = deleteFilesParallel(paths);
+            result = deleted.size();
+
+            // only the files that are gone are removed from the media db
+            String[] deletedPathNames = deleted.toArray(new String[result]);
+            if (result > 0) onUpdateMediaDatabase("delete", deletedPathNames, null, OP_DELETE);
+            onPostProcess("delete", deletedPathNames, null, result, paths.length, OP_DELETE);
             closeLogFile();
         }
         return result;
     }
 
+    /**
+     * Deletes the files (with sidecars) on a small pool of threads.
+     * Progress and cancel are handled in the calling thread.
+     * @return paths that were deleted or did not exist. The others are in {@link #getDeleteFailures()}
+     */
+    private List<String> deleteFilesParallel(String[] paths) {
+        final int fileCount = paths.length;
+        List<String> deleted = new ArrayList<String>(fileCount);
+        mDeleteFailures = new ArrayList<String>();
+
+        int threadCount = Math.min(mDeleteThreadCount, fileCount);
+        if (threadCount <= 1) {
+            for (int pos = 0; pos < fileCount; pos++) {
+                if (isCancelled()) {
+                    log("rem cancelled after ", pos, " of ", fileCount, " files");
+                    break;
+                }
+                addDeleteResult(deleted, paths[pos], deleteFileWitSidecar(new File(paths[pos])));
+                onFileProgress(pos + 1, fileCount, 0, 0, 0);
+            }
+            return deleted;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount);
+        try {
+            CompletionService<DeleteResult> results = new ExecutorCompletionService<DeleteResult>(workers);
+            for (final String path : paths) {
+                results.submit(new Callable<DeleteResult>() {
+                    @Override
+                    public DeleteResult call() throws Exception {
+                        return new DeleteResult(path, (isCancelled()) ? null : deleteFileWitSidecar(new File(path)));
+                    }
+                });
+            }
+
+            int cancelled = 0;
+            for (int pos = 0; pos < fileCount; pos++) {
+                DeleteResult result = results.take().get();
+                if (result.deleted != null) {
+                    addDeleteResult(deleted, result.path, result.deleted);
+                } else {
+                    cancelled++;
+                }
+                onFileProgress(pos + 1, fileCount, 0, 0, 0);
+            }
+            if (cancelled > 0) {
+                log("rem cancelled after ", fileCount - cancelled, " of ", fileCount, " files");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            onException(e, "deleteFiles");
+        } finally {
+            workers.shutdownNow();
+        }
+        return deleted;
+    }
+
+    private void addDeleteResult(List<String> deleted, String path, boolean success) {
+        if (success) {
+            deleted.add(path);
+        } else {
+            mDeleteFailures.add(path);
+        }
+    }
+
+    private static class DeleteResult {
+        final String path;
+        /** null: not processed because cancelled */
+        final Boolean deleted;
+
+        DeleteResult(String path, Boolean deleted) {
+            this.path = path;
+            this.deleted = deleted;
+        }
+    }
+
+    /** @param threadCount number of threads that delete in parallel. 1: sequential */
+    public FileCommands setDeleteThreadCount(int threadCount) {
+        mDeleteThreadCount = Math.max(1, threadCount);
+        return this;
+    }
+
+    /** @return files that could not be deleted by the last {@link #deleteFiles(String...)} */
+    public List<String> getDeleteFailures() {
+        return mDeleteFailures;
+    }
+
     protected boolean canProcessFile(int opCode) {
         return true;
     }
@@ -124,46 +236,235 @@ public class FileCommands implements  Cloneable {
         return result;
     }
 
+    /**
+     * Stops a running {@link #moveOrCopyFilesTo(boolean, File, File...)} or {@link #deleteFiles(String...)} after the current file
+     * (cooperative cancel). May be called from any thread.
+     * The files processed so far are reported to onPostProcess.
+     * A cancel() that arrives before the job starts is kept: use a new instance for every cancellable job.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
     /** does the copying. also used by unittesting */
     protected int moveOrCopyFiles(boolean move, String what, File[] destFiles, File[] sourceFiles) {
         int opCode = (move) ? OP_MOVE : OP_COPY;
 
         mModifiedSrcFiles = (move) ? new ArrayList<String>() : null;
         mModifiedDestFiles = new ArrayList<String>();
+        mMoveEngine = null;
 
         openLogfile();
+        journalBegin(opCode);
         // onPreProcess(what, sourceFiles, destFiles, opCode);
         onPreProcess(what, null, null, opCode);
         int itemCount = 0;
         int pos = 0;
         int fileCount = destFiles.length;
 
+        long startTime = System.currentTimeMillis();
+        long bytesDone = 0;
+        long bytesTotal = 0;
+        for (File sourceFile : sourceFiles) {
+            bytesTotal += sourceFile.length();
+        }
+
+        // all names are resolved in advance: every dest dir is listed only once
+        File[] destRenamedFiles = resolveDuplicates(destFiles);
+
+        if (!move && (mCopyReaderCount > 0) && (fileCount > 1)) {
+            itemCount = copyFilesPipelined(destRenamedFiles, sourceFiles, bytesTotal);
+            pos = fileCount;
+        }
+
         while (pos < fileCount) {
+            if (isCancelled()) {
+                log("rem cancelled after ", pos, " of ", fileCount, " files");
+                break;
+            }
             File sourceFile = sourceFiles[pos];
-            File destFile = destFiles[pos];
+            File destRenamed = destRenamedFiles[pos];
+            long fileSize = sourceFile.length();
 
-            File destRenamed = renameDuplicate(destFile);
-            if (osFileMoveOrCopy(move, destRenamed, sourceFile)) itemCount++;
+            int journalNumber = journalIntent(sourceFile, destRenamed);
+            boolean success = osFileMoveOrCopy(move, destRenamed, sourceFile);
+            journalDone(journalNumber, success);
+            if (success) itemCount++;
             log(((move) ? "MOVE /y " : "COPY /y "), getFilenameForLog(sourceFile), " " , getFilenameForLog(destRenamed));
 
             File sourceSidecar = getSidecar(sourceFile);
             if (osFileExists(sourceSidecar)) {
                 File destSidecar = getSidecar(destRenamed);
-                if (osFileMoveOrCopy(move, destSidecar, sourceSidecar)) itemCount++;
+                journalNumber = journalIntent(sourceSidecar, destSidecar);
+                success = osFileMoveOrCopy(move, destSidecar, sourceSidecar);
+                journalDone(journalNumber, success);
+                if (success) itemCount++;
                 log(((move) ? "MOVE /y " : "COPY /y "), getFilenameForLog(sourceSidecar), " " , getFilenameForLog(destSidecar));
             }
             pos++;
+
+            bytesDone += fileSize;
+            long elapsed = System.currentTimeMillis() - startTime;
+            onFileProgress(pos, fileCount, bytesDone, bytesTotal, (elapsed > 0) ? (bytesDone * 1000 / elapsed) : 0);
         }
         int modifyCount = mModifiedDestFiles.size();
 
         String[] modifiedSourceFiles =  ((mModifiedSrcFiles != null) && (mModifiedSrcFiles.size() > 0)) ? mModifiedSrcFiles.toArray(new String[modifyCount]) : null;
 
-        onPostProcess(what, modifiedSourceFiles, (modifyCount > 0) ? mModifiedDestFiles.toArray(new String[modifyCount]) : null, itemCount, sourceFiles.length, opCode);
+        String[] modifiedDestFiles = (modifyCount > 0) ? mModifiedDestFiles.toArray(new String[modifyCount]) : null;
+
+        // all moved/copied files go to the media database in one batch
+        if (itemCount > 0) onUpdateMediaDatabase(what, modifiedSourceFiles, modifiedDestFiles, opCode);
+
+        // media db is updated: the journal of the batch is not needed any more
+        if (mJournal != null) {
+            mJournal.commit();
+            mJournal = null;
+        }
+
+        onPostProcess(what, modifiedSourceFiles, modifiedDestFiles, itemCount, sourceFiles.length, opCode);
 
         closeLogFile();
+        mMoveEngine = null;
         return itemCount;
     }
 
+    /**
+     * Copy with read ahead: files (and their sidecars) are read in background by a {@link PipelinedFileCopier}
+     * while the current file is written. Results, log and progress are in the same order as the sequential copy.
+     * @param destFiles dest names that are already resolved by {@link #resolveDuplicates(File[])}
+     * @return number of files (including sidecars) copied
+     */
+    private int copyFilesPipelined(File[] destFiles, File[] sourceFiles, final long bytesTotal) {
+        final int fileCount = sourceFiles.length;
+        final List<File> sources = new ArrayList<File>();
+        final List<File> dests = new ArrayList<File>();
+
+        // jobIndex => number of the photo if job is a photo or -1 if it is a sidecar
+        final List<Integer> fileNumbers = new ArrayList<Integer>();
+
+        for (int pos = 0; pos < fileCount; pos++) {
+            sources.add(sourceFiles[pos]);
+            dests.add(destFiles[pos]);
+            fileNumbers.add(pos + 1);
+
+            File sourceSidecar = getSidecar(sourceFiles[pos]);
+            if (osFileExists(sourceSidecar)) {
+                sources.add(sourceSidecar);
+                dests.add(getSidecar(destFiles[pos]));
+                fileNumbers.add(-1);
+            }
+        }
+
+        // all intents in advance: the copier may create several dest files before the first is complete
+        final int[] journalNumbers = new int[sources.size()];
+        for (int index = 0; index < journalNumbers.length; index++) {
+            journalNumbers[index] = journalIntent(sources.get(index), dests.get(index));
+        }
+
+        final long startTime = System.currentTimeMillis();
+        PipelinedFileCopier copier = new PipelinedFileCopier(mCopyReaderCount, mCopyMaxReadersPerDevice);
+        return copier.copy(sources.toArray(new File[sources.size()]), dests.toArray(new File[dests.size()]),
+                new PipelinedFileCopier.Callback() {
+                    private long bytesDone = 0;
+                    private int lastFileNumber = 0;
+
+                    @Override
+                    public boolean isCancelled() {
+                        boolean cancelled = FileCommands.this.isCancelled();
+                        if (cancelled) {
+                            log("rem cancelled after ", lastFileNumber, " of ", fileCount, " files");
+                        }
+                        return cancelled;
+                    }
+
+                    @Override
+                    public void onCopied(int index, File source, File dest, IOException error) {
+                        journalDone(journalNumbers[index], error == null);
+                        if (error == null) {
+                            mModifiedDestFiles.add(dest.getAbsolutePath());
+                        } else {
+                            onException(error, "osFileCopy", source, dest);
+                        }
+                        log("COPY /y ", getFilenameForLog(source), " ", getFilenameForLog(dest));
+
+                        int fileNumber = fileNumbers.get(index);
+                        if (fileNumber > 0) {
+                            lastFileNumber = fileNumber;
+                            bytesDone += source.length();
+                            long elapsed = System.currentTimeMillis() - startTime;
+                            onFileProgress(fileNumber, fileCount, bytesDone, bytesTotal, (elapsed > 0) ? (bytesDone * 1000 / elapsed) : 0);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Enables copy with read ahead in background threads for batches with more than one file.
+     * @param readerCount number of reader threads. 0 means sequential copy
+     * @param maxReadersPerDevice number of readers that may read from the same device at the same time
+     */
+    public FileCommands setCopyPipeline(int readerCount, int maxReadersPerDevice) {
+        mCopyReaderCount = readerCount;
+        mCopyMaxReadersPerDevice = maxReadersPerDevice;
+        return this;
+    }
+
+    /**
+     * Enables the write-ahead journal for copy/move batches.
+     * @param journalDir where the journals are written. null: no journal.
+     * @see FileOpJournal#recover(File, FileOpJournal.Callback)
+     */
+    public FileCommands setJournalDir(File journalDir) {
+        mJournalDir = journalDir;
+        return this;
+    }
+
+    private void journalBegin(int opCode) {
+        mJournal = null;
+        if (mJournalDir != null) {
+            try {
+                mJournal = FileOpJournal.begin(mJournalDir, opCode);
+            } catch (IOException e) {
+                onException(e, "journalBegin", mJournalDir);
+            }
+        }
+    }
+
+    /** @return number of the journal record or -1 if there is no journal */
+    private int journalIntent(File source, File dest) {
+        if (mJournal != null) {
+            try {
+                return mJournal.intent(source, dest);
+            } catch (IOException e) {
+                onException(e, "journalIntent", source, dest);
+                journalAbort();
+            }
+        }
+        return -1;
+    }
+
+    private void journalDone(int journalNumber, boolean success) {
+        if ((mJournal != null) && (journalNumber >= 0)) {
+            try {
+                mJournal.done(journalNumber, success);
+            } catch (IOException e) {
+                onException(e, "journalDone", journalNumber);
+                journalAbort();
+            }
+        }
+    }
+
+    /** journal cannot be written: continue without */
+    private void journalAbort() {
+        mJournal.commit();
+        mJournal = null;
+    }
+
     private File[] createDestFiles(File destDirFolder, File... sourceFiles) {
         File[] result = new File[sourceFiles.length];
         int pos = 0;
@@ -191,18 +492,24 @@ public class FileCommands implements  Cloneable {
         return name.toLowerCase().endsWith(EXT_SIDECAR);
     }
 
-    public File getSidecar(File file) {
+    /** @return sidecar file of a photo: same name with extension .xmp */
+    public static File getSidecar(File file) {
         if (file == null) return null;
         return getSidecar(file.getAbsolutePath());
     }
 
-    public File getSidecar(String absolutePath) {
+    public static File getSidecar(String absolutePath) {
         if (absolutePath == null) return null;
+        return new File(getSidecarPath(absolutePath));
+    }
 
-        int suffix = absolutePath.lastIndexOf(".");
+    /** @return path or name of the sidecar of a photo: same name with extension .xmp */
+    public static String getSidecarPath(String path) {
+        int suffix = path.lastIndexOf(".");
 
-        if (suffix >= 0) absolutePath = absolutePath.substring(0, suffix);
-        return new File(absolutePath + EXT_SIDECAR);
+        // a "." in the directory name is no suffix
+        if (suffix > path.lastIndexOf(File.separatorChar)) path = path.substring(0, suffix);
+        return path + EXT_SIDECAR;
     }
 
     private List<File> getDuplicates(File[] files) {
@@ -221,6 +528,49 @@ public class FileCommands implements  Cloneable {
         return null;
     }
 
+    /**
+     * Same as {@link #renameDuplicate(File)} for a batch of files. Each dest dir is listed only once
+     * and the collisions (including sidecars) are resolved in memory.
+     * The files of the batch do not collide with each other.
+     *
+     * @return for each destFile the file itself if rename is not neccessary else File with new name
+     */
+    protected File[] resolveDuplicates(File[] destFiles) {
+        File[] result = new File[destFiles.length];
+        Map<File, DuplicateNameResolver> resolvers = new HashMap<File, DuplicateNameResolver>();
+        for (int pos = 0; pos < destFiles.length; pos++) {
+            File destFile = destFiles[pos];
+            File destDir = destFile.getParentFile();
+            DuplicateNameResolver resolver = resolvers.get(destDir);
+            if (resolver == null) {
+                resolver = createNameResolver(destDir);
+                resolvers.put(destDir, resolver);
+            }
+
+            String name = resolver.resolve(destFile.getName());
+            if (name.equals(destFile.getName())) {
+                result[pos] = destFile;
+            } else {
+                result[pos] = new File(destDir, name);
+                log("rem renamed from ", getFilenameForLog(destFile), " to ", getFilenameForLog(result[pos]));
+            }
+        }
+        return result;
+    }
+
+    private DuplicateNameResolver createNameResolver(final File destDir) {
+        String[] names = osListFiles(destDir);
+        if (names != null) return new DuplicateNameResolver(names);
+
+        // dir cannot be listed: ask the file system for every candidate
+        return new DuplicateNameResolver() {
+            @Override
+            protected boolean isUsed(String name) {
+                return super.isUsed(name) || osFileExists(new File(destDir, name));
+            }
+        };
+    }
+
     /**
      * @return file if rename is not neccessary else File with new name
      */
@@ -273,9 +623,21 @@ public class FileCommands implements  Cloneable {
         return result;
     }
 
-    /** can be replaced by mock/stub in unittests */
+    /**
+     * Renames if source and dest are on the same file system else copy, verify and delete.
+     * can be replaced by mock/stub in unittests
+     */
     protected boolean osFileMove(File dest, File source) {
-        return source.renameTo(dest);
+        if (mMoveEngine == null) {
+            mMoveEngine = new FileMoveEngine();
+        }
+        try {
+            mMoveEngine.move(source, dest);
+            return true;
+        } catch (IOException e) {
+            onException(e, "osFileMove", source, dest);
+        }
+        return false;
     }
 
     /**
@@ -286,25 +648,11 @@ public class FileCommands implements  Cloneable {
      * Copies a file from the sourceFullPath path to the target path.
      */
     private boolean osFileCopy(File targetFullPath, File sourceFullPath) {
-        FileChannel in = null, out = null;
         try {
-            in = new FileInputStream(sourceFullPath).getChannel();
-            out = new FileOutputStream(targetFullPath).getChannel();
-            long size = in.size();
-            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0,	size);
-            out.write(buf);
+            new FileCopyEngine().copy(sourceFullPath, targetFullPath);
             return true;
         } catch (IOException e) {
             onException(e,"osFileCopy",sourceFullPath, targetFullPath);
-        } finally {
-            if (in != null)
-                try {
-                    in.close();
-                    if (out != null)
-                        out.close();
-                } catch (IOException e) {
-                    onException(e,"osFileCopy-close",sourceFullPath, targetFullPath);
-                }
         }
         return false;
     }
@@ -326,6 +674,11 @@ public class FileCommands implements  Cloneable {
         return destDirFolder.mkdirs() || destDirFolder.isDirectory();
     }
 
+    /** can be replaced by mock/stub in unittests. @return names of the files in dir or null if not readable */
+    protected String[] osListFiles(File dir) {
+        return (dir != null) ? dir.list() : null;
+    }
+
     /** can be replaced by mock/stub in unittests */
     public boolean osFileExists(File file) {
         return file.exists();
@@ -335,6 +688,25 @@ public class FileCommands implements  Cloneable {
     protected void onPreProcess(String what, String[] oldPathNames, String[] newPathNames, int opCode) {
     }
 
+    /**
+     * called after each file of copy/move (sidecar included) so that long running operations can show progress.
+     * @param fileNumber number of files processed so far
+     * @param fileCount number of files to process
+     * @param bytesDone size of the files processed so far (without sidecars)
+     * @param bytesTotal size of all files to process (without sidecars)
+     * @param bytesPerSecond average throughput so far
+     */
+    protected void onFileProgress(int fileNumber, int fileCount, long bytesDone, long bytesTotal, long bytesPerSecond) {
+    }
+
+    /**
+     * called after copy/move/rename/delete in the calling thread before {@link #onPostProcess}.
+     * The media database must be updated synchronously:
+     * the copy/move journal is committed as soon as this returns.
+     */
+    protected void onUpdateMediaDatabase(String what, String[] oldPathNames, String[] newPathNames, int opCode) {
+    }
+
     /** called for each modified/deleted file */
     protected void onPostProcess(String what, String[] oldPathNames, String[] newPathNames, int modifyCount, int itemCount, int opCode) {
     }
@@ -342,33 +714,20 @@ public class FileCommands implements  Cloneable {
     public void openLogfile() {
         closeLogFile();
         if (mLogFilePath != null) {
-            OutputStream stream = null;
-            try {
-                File logFile = new File(mLogFilePath);
-                if (osFileExists(logFile)) {
-                    // open existing in append mode
-                    long ageInHours = (new Date().getTime() - logFile.lastModified()) / (1000 * 60 * 60);
-                    stream = new FileOutputStream(logFile, true);
-                    mLogFile = new PrintWriter(stream, true);
-
-                    if (ageInHours > 15) {
-                        log();
-                        log("rem ", new Date());
-                    }
-                } else {
-                    // create new
-                    mLogFile = new PrintWriter(logFile, "UTF-8");
-                    log("rem " , new Date());
-                }
-            } catch (Exception e) {
-                onException(e, "openLogfile", mLogFilePath);
-                if (stream != null) {
-                    try {
-                        stream.close();
-                    } catch (IOException e1) {
-                        onException(e1, "openLogfile-close", mLogFilePath);
-                    }
+            // the appender of a file is shared and stays open: no reopen for every operation
+            mLogFile = AsyncLogAppender.getInstance(new File(mLogFilePath));
+            long lastModified = mLogFile.lastModified();
+            if (lastModified != 0) {
+                // existing: append
+                long ageInHours = (new Date().getTime() - lastModified) / (1000 * 60 * 60);
+
+                if (ageInHours > 15) {
+                    log();
+                    log("rem ", new Date());
                 }
+            } else {
+                // create new
+                log("rem " , new Date());
             }
         }
     }
@@ -378,20 +737,21 @@ public class FileCommands implements  Cloneable {
         mLogFilePath = logFilePath;
     }
 
+    /** the lines logged so far are written in background */
     public void closeLogFile() {
         if (mLogFile != null) {
-            mLogFile.close();
+            mLogFile.commit(false);
             mLogFile = null;
         }
     }
 
     public FileCommands log(Object... messages) {
         if (mLogFile != null) {
+            StringBuilder line = new StringBuilder();
             for(Object message : messages) {
-                mLogFile.print(message);
+                line.append(message);
             }
-            mLogFile.println();
-            mLogFile.flush();
+            mLogFile.append(line.toString());
         }
         return this;
     }
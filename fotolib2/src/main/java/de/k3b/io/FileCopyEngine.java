@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Copies the content of one file to an other.<br/>
+ *
+ * Uses {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} in bounded chunks
+ * so that the os can copy without going through java buffers and without mapping the whole file
+ * into memory (multi-GB videos do not fit into a 32 bit address space).
+ * If transferTo fails or makes no progress the rest is copied through a buffer.<br/>
+ *
+ * Optionally the destination is synced to the storage device before it is closed.
+ */
+public class FileCopyEngine {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    /** bytes per transferTo call */
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long mChunkSize;
+    private final boolean mSync;
+    private boolean mUseTransferTo = true;
+
+    /** copy engine as configured in {@link FotoLibGlobal#syncAfterCopy} */
+    public FileCopyEngine() {
+        this(DEFAULT_CHUNK_SIZE, FotoLibGlobal.syncAfterCopy);
+    }
+
+    /**
+     * @param chunkSize maximum bytes per transferTo call
+     * @param sync true: dest is written to the storage device (fsync) before it is closed.
+     *             Slower but the copy survives a power loss.
+     */
+    public FileCopyEngine(long chunkSize, boolean sync) {
+        mChunkSize = Math.max(BUFFER_SIZE, chunkSize);
+        mSync = sync;
+    }
+
+    /** false: always copy through a buffer. Used for benchmarks and if transferTo is known to be broken */
+    public FileCopyEngine setUseTransferTo(boolean useTransferTo) {
+        mUseTransferTo = useTransferTo;
+        return this;
+    }
+
+    /**
+     * @return number of bytes copied
+     * @throws IOException if reading, writing, syncing or closing fails. Then dest is incomplete.
+     */
+    public long copy(File source, File dest) throws IOException {
+        FileInputStream inStream = null;
+        FileOutputStream outStream = null;
+        boolean success = false;
+        try {
+            inStream = new FileInputStream(source);
+            outStream = new FileOutputStream(dest);
+            FileChannel in = inStream.getChannel();
+            FileChannel out = outStream.getChannel();
+
+            long size = in.size();
+            long position = (mUseTransferTo) ? transfer(in, out, size, source) : 0;
+            if (position < size) {
+                position = bufferCopy(in, out, position);
+            }
+
+            if (mSync) {
+                outStream.getFD().sync();
+            }
+            success = true;
+            return position;
+        } finally {
+            // source is only read: close errors do not matter
+            FileUtils.close(inStream, source);
+
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException ex) {
+                    // if copy already failed do not hide the original exception
+                    if (success) throw ex;
+                }
+            }
+        }
+    }
+
+    /** @return number of bytes transferred. less than size if transferTo stopped working */
+    private long transfer(FileChannel in, FileChannel out, long size, File source) {
+        long position = 0;
+        try {
+            while (position < size) {
+                long count = in.transferTo(position, Math.min(mChunkSize, size - position), out);
+                if (count <= 0) break; // no progress: continue with buffer copy
+                position += count;
+            }
+        } catch (IOException ex) {
+            // some file systems/os versions do not support transferTo: continue with buffer copy
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("FileCopyEngine.transferTo('" + source + "') failed at " + position
+                        + ". Using buffer copy: " + ex.getMessage());
+            }
+        }
+        return position;
+    }
+
+    /** @return position after copying everything from position to the end of in */
+    private static long bufferCopy(FileChannel in, FileChannel out, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        in.position(position);
+        out.position(position);
+        while (in.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return position;
+    }
+}
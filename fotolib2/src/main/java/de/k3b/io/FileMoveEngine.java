@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Moves files. If source and destination are on the same file system the file is renamed which is
+ * atomic and does not depend on the file size. Else (i.e. internal storage to sd card where
+ * {@link File#renameTo(File)} just returns false) the file is copied, verified and the source is deleted.<br/>
+ *
+ * The file system of a directory is the longest matching mount point from /proc/mounts.
+ * The result is cached per directory pair so that moving a batch of files between
+ * the same directories costs only one lookup.
+ * If the mount points are unknown a rename is tried first.
+ */
+public class FileMoveEngine {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private static final String PROC_MOUNTS = "/proc/mounts";
+
+    /** mount points with the longest first. Empty if unknown */
+    private final List<String> mMountPoints;
+
+    /** sourceDir + "\n" + destDir => same file system */
+    private final Map<String, Boolean> mSameFileSystem = new HashMap<String, Boolean>();
+
+    private final FileCopyEngine mCopyEngine;
+    private int mRenameCount = 0;
+    private int mCopyCount = 0;
+
+    /** engine with the mount points of the current system */
+    public FileMoveEngine() {
+        this(loadMountPoints(new File(PROC_MOUNTS)), new FileCopyEngine());
+    }
+
+    /**
+     * @param mountPoints absolute paths of the mount points. null or empty if unknown.
+     * @param copyEngine used if source and dest are on different file systems.
+     */
+    public FileMoveEngine(List<String> mountPoints, FileCopyEngine copyEngine) {
+        mMountPoints = new ArrayList<String>();
+        if (mountPoints != null) mMountPoints.addAll(mountPoints);
+        Collections.sort(mMountPoints, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return rhs.length() - lhs.length();
+            }
+        });
+        mCopyEngine = copyEngine;
+    }
+
+    /**
+     * Moves source to dest. dest must not exist.
+     * @throws IOException if the file could not be moved. Then source is unchanged and dest does not exist.
+     */
+    public void move(File source, File dest) throws IOException {
+        if (isSameFileSystem(source, dest) && source.renameTo(dest)) {
+            mRenameCount++;
+            return;
+        }
+
+        if (!source.isFile()) throw new FileNotFoundException("Cannot move " + source + ": not found");
+        copyVerifyDelete(source, dest);
+        mCopyCount++;
+    }
+
+    private void copyVerifyDelete(File source, File dest) throws IOException {
+        long size = source.length();
+        long lastModified = source.lastModified();
+        try {
+            mCopyEngine.copy(source, dest);
+            if (dest.length() != size) {
+                throw new IOException("Cannot move " + source + ": " + dest + " has " + dest.length()
+                        + " bytes instead of " + size);
+            }
+            dest.setLastModified(lastModified);
+            if (!source.delete()) {
+                throw new IOException("Cannot move " + source + ": cannot delete source");
+            }
+        } catch (IOException ex) {
+            // do not leave a second copy behind
+            dest.delete();
+            throw ex;
+        }
+    }
+
+    /** @return true if source and dest are known to be or may be on the same file system. */
+    public boolean isSameFileSystem(File source, File dest) {
+        if (mMountPoints.isEmpty()) return true;
+
+        File sourceDir = source.getAbsoluteFile().getParentFile();
+        File destDir = dest.getAbsoluteFile().getParentFile();
+        if ((sourceDir == null) || (destDir == null)) return true;
+
+        String key = sourceDir.getPath() + "\n" + destDir.getPath();
+        Boolean result = mSameFileSystem.get(key);
+        if (result == null) {
+            // canonical: /sdcard is a symlink to /storage/emulated/0
+            String sourceMount = getMountPoint(FileUtils.tryGetCanonicalPath(sourceDir, sourceDir.getPath()));
+            String destMount = getMountPoint(FileUtils.tryGetCanonicalPath(destDir, destDir.getPath()));
+            result = sourceMount.equals(destMount);
+            mSameFileSystem.put(key, result);
+
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("FileMoveEngine: " + sourceDir + " (" + sourceMount + ") => "
+                        + destDir + " (" + destMount + ") same file system=" + result);
+            }
+        }
+        return result;
+    }
+
+    /** @return the longest mount point that contains path */
+    protected String getMountPoint(String path) {
+        for (String mountPoint : mMountPoints) {
+            if (path.equals(mountPoint) || mountPoint.equals("/")
+                    || path.startsWith(mountPoint + "/")) {
+                return mountPoint;
+            }
+        }
+        return "/";
+    }
+
+    /** number of files moved by rename */
+    public int getRenameCount() {
+        return mRenameCount;
+    }
+
+    /** number of files moved by copy, verify and delete */
+    public int getCopyCount() {
+        return mCopyCount;
+    }
+
+    /** @return the mount points of a /proc/mounts file. Empty if the file cannot be read. */
+    public static List<String> loadMountPoints(File mounts) {
+        List<String> result = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mounts)));
+            parseMountPoints(reader, result);
+        } catch (IOException ex) {
+            // i.e. not a linux system: rename will be tried first
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("FileMoveEngine: cannot read " + mounts + ": " + ex.getMessage());
+            }
+        } finally {
+            FileUtils.close(reader, mounts);
+        }
+        return result;
+    }
+
+    /** adds the mount points of lines "device mountPoint type options dump pass" to result */
+    static void parseMountPoints(BufferedReader reader, List<String> result) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(" ");
+            if (fields.length > 1) {
+                // blanks in the path are escaped as octal \040
+                result.add(fields[1].replace("\\040", " "));
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Write-ahead journal of one batch of file copy/move operations so that a batch that was
+ * interrupted by process death can be cleaned up at the next start, see {@link #recover(File, Callback)}.<br/>
+ *
+ * Every batch has its own file in the journal dir with one record per line (TAB separated):
+ * <pre>
+ * B opCode                       begin of batch ({@link FileCommands#OP_COPY} or {@link FileCommands#OP_MOVE})
+ * I number source dest           intent: before the file operation starts
+ * D number                       done: the file operation succeeded
+ * F number                       failed: the file operation failed and was cleaned up
+ * </pre>
+ * The file is deleted by {@link #commit()} after the batch including the media db update is complete.
+ * A record is written directly to the os (no java buffer) so that it survives when the process is killed.
+ */
+public class FileOpJournal {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    public static final String EXT_JOURNAL = ".journal";
+    private static final String DELIMITER = "\t";
+    private static final String LINE_SEPARATOR = "\n";
+
+    private static final String RECORD_BEGIN = "B";
+    private static final String RECORD_INTENT = "I";
+    private static final String RECORD_DONE = "D";
+    private static final String RECORD_FAILED = "F";
+
+    /** receives the result of an interrupted batch */
+    public interface Callback {
+        /**
+         * same parameters as {@link FileCommands#onPostProcess(String, String[], String[], int, int, int)} so that
+         * the media db can be updated for the files that were copied/moved before the batch was interrupted.
+         * @param oldPathNames moved files: the old names. null for copy
+         * @param newPathNames copied/moved files: the new names
+         */
+        void onRecovered(int opCode, String[] oldPathNames, String[] newPathNames);
+    }
+
+    private final File mFile;
+    private final boolean mSync;
+    private FileOutputStream mOut;
+    private int mNextNumber = 0;
+
+    private static int sLastId = 0;
+
+    private FileOpJournal(File file, boolean sync) throws IOException {
+        mFile = file;
+        mSync = sync;
+        mOut = new FileOutputStream(file, true);
+    }
+
+    /** starts the journal of a new batch in dir */
+    public static FileOpJournal begin(File dir, int opCode) throws IOException {
+        dir.mkdirs();
+        FileOpJournal result = new FileOpJournal(new File(dir, createId() + EXT_JOURNAL), FotoLibGlobal.syncAfterCopy);
+        result.write(RECORD_BEGIN, opCode);
+        return result;
+    }
+
+    /** @return unique and ascending so that recovery can process the batches in the original order */
+    private static synchronized String createId() {
+        int id = (++sLastId) % 1000;
+        return String.format("%d-%03d", System.currentTimeMillis(), id);
+    }
+
+    /** must be called before the operation starts. @return number of the operation for {@link #done(int, boolean)} */
+    public int intent(File source, File dest) throws IOException {
+        int number = mNextNumber++;
+        write(RECORD_INTENT, number, source.getAbsolutePath(), dest.getAbsolutePath());
+        return number;
+    }
+
+    /** must be called after the operation is complete */
+    public void done(int number, boolean success) throws IOException {
+        write((success) ? RECORD_DONE : RECORD_FAILED, number);
+    }
+
+    /** the batch is complete: the journal is not needed any more */
+    public void commit() {
+        close();
+        if (!mFile.delete() && mFile.exists()) {
+            logger.warn("FileOpJournal cannot delete " + mFile);
+        }
+    }
+
+    /** closes without deleting: the batch will be recovered at next start. Used if the batch cannot be completed */
+    public void close() {
+        FileUtils.close(mOut, mFile);
+        mOut = null;
+    }
+
+    private void write(Object... fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (Object field : fields) {
+            if (line.length() > 0) line.append(DELIMITER);
+            line.append(field);
+        }
+        line.append(LINE_SEPARATOR);
+        mOut.write(line.toString().getBytes("UTF-8"));
+        if (mSync) mOut.getFD().sync();
+    }
+
+    /**
+     * Finishes or rolls back the interrupted batches in dir and deletes their journals.
+     * For every operation that was started but not confirmed the file system decides:
+     * <ul>
+     *     <li>move: dest exists but source not: the rename/delete was complete: finished.</li>
+     *     <li>copy: dest has the size of source: finished.</li>
+     *     <li>else dest is incomplete and is deleted (rolled back). source is still there.</li>
+     * </ul>
+     * Operations that never started are not continued: the batch ends as if it was cancelled.
+     * @param callback receives the finished files of each batch to update the media db. may be null
+     * @return number of recovered batches
+     */
+    public static int recover(File dir, Callback callback) {
+        File[] journals = (dir != null) ? dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXT_JOURNAL);
+            }
+        }) : null;
+        if (journals == null) return 0;
+
+        Arrays.sort(journals);
+        for (File journal : journals) {
+            recoverBatch(journal, callback);
+            if (!journal.delete()) {
+                logger.warn("FileOpJournal.recover cannot delete " + journal);
+            }
+        }
+        return journals.length;
+    }
+
+    private static void recoverBatch(File journal, Callback callback) {
+        int opCode = 0;
+
+        // number => [source, dest]
+        Map<Integer, String[]> intents = new HashMap<Integer, String[]>();
+        List<Integer> order = new ArrayList<Integer>();
+        Map<Integer, Boolean> results = new HashMap<Integer, Boolean>();
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(DELIMITER);
+                try {
+                    if (RECORD_BEGIN.equals(fields[0]) && (fields.length == 2)) {
+                        opCode = Integer.parseInt(fields[1]);
+                    } else if (RECORD_INTENT.equals(fields[0]) && (fields.length == 4)) {
+                        Integer number = Integer.valueOf(fields[1]);
+                        intents.put(number, new String[]{fields[2], fields[3]});
+                        order.add(number);
+                    } else if ((RECORD_DONE.equals(fields[0]) || RECORD_FAILED.equals(fields[0])) && (fields.length == 2)) {
+                        results.put(Integer.valueOf(fields[1]), RECORD_DONE.equals(fields[0]));
+                    }
+                } catch (NumberFormatException ignore) {
+                    // incomplete last record of a killed process
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("FileOpJournal.recover('" + journal + "') failed: " + e.getMessage());
+        } finally {
+            FileUtils.close(reader, journal);
+        }
+
+        boolean move = (opCode == FileCommands.OP_MOVE);
+        List<String> oldPathNames = new ArrayList<String>();
+        List<String> newPathNames = new ArrayList<String>();
+        int rolledBack = 0;
+        for (Integer number : order) {
+            String[] paths = intents.get(number);
+            Boolean success = results.get(number);
+            if (success == null) {
+                success = finishOrRollback(move, new File(paths[0]), new File(paths[1]));
+                if (!success) rolledBack++;
+            }
+            if (success) {
+                oldPathNames.add(paths[0]);
+                newPathNames.add(paths[1]);
+            }
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("FileOpJournal.recover('" + journal + "') opCode " + opCode + ": " + newPathNames.size()
+                    + " finished, " + rolledBack + " not started or rolled back of " + order.size());
+        }
+
+        if ((callback != null) && (opCode != 0) && !newPathNames.isEmpty()) {
+            callback.onRecovered(opCode,
+                    (move) ? oldPathNames.toArray(new String[oldPathNames.size()]) : null,
+                    newPathNames.toArray(new String[newPathNames.size()]));
+        }
+    }
+
+    /** @return true if the operation turns out to be complete. Else an incomplete dest is deleted */
+    private static boolean finishOrRollback(boolean move, File source, File dest) {
+        if (!dest.exists()) return false; // never started
+
+        if (!source.exists()) {
+            // a move is complete when the source is gone. a copy without source: keep what is there
+            return move;
+        }
+
+        if (!move && (dest.length() == source.length())) {
+            dest.setLastModified(source.lastModified());
+            return true;
+        }
+
+        // incomplete copy or a move by copy that did not delete the source yet: source is the original
+        if (!dest.delete()) {
+            logger.warn("FileOpJournal.recover cannot delete incomplete " + dest);
+        }
+        return false;
+    }
+}
@@ -20,10 +20,14 @@
 package de.k3b.io;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,6 +91,78 @@ public class FileUtils {
         }
     }
 
+    /** close silently. source is only used for logging. */
+    public static void close(Closeable stream, Object source) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                if (FotoLibGlobal.debugEnabled) {
+                    logger.warn("Error close('" + source + "') exception " + ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    /** writes the content of a file. See {@link #replace(File, ContentWriter)} */
+    public interface ContentWriter {
+        /** writes the content to out. out must not be closed. */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /** @return temp file where the new content of file is written to before it replaces file */
+    public static File getTempFile(File file) {
+        return new File(file.getAbsolutePath() + ".tmp");
+    }
+
+    /**
+     * Replaces the content of file so that it survives process death or reboot:
+     * content is written to a temp file that is synced to disk and then renamed over file.
+     * If something fails file is unchanged and the temp file is deleted.
+     */
+    public static void replace(File file, ContentWriter content) throws IOException {
+        commitTemp(writeTemp(file, content), file);
+    }
+
+    /**
+     * First half of {@link #replace(File, ContentWriter)} for a batch of files that is committed together.
+     * @return temp file with content that is synced to disk. Deleted if something fails.
+     */
+    public static File writeTemp(File file, ContentWriter content) throws IOException {
+        File tempFile = getTempFile(file);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            content.write(out);
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            success = true;
+        } finally {
+            close(out, tempFile);
+            if (!success) tempFile.delete();
+        }
+        return tempFile;
+    }
+
+    /**
+     * Second half of {@link #replace(File, ContentWriter)}: renames tempFile over file.
+     * The old file is never deleted before: if the rename fails file is unchanged and tempFile is deleted.
+     */
+    public static void commitTemp(File tempFile, File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("cannot rename '" + tempFile + "' to '" + file + "'");
+        }
+    }
+
+    /** flushes writer. PrintWriter does not throw: a write error would be lost without this */
+    public static void flush(PrintWriter writer, File file) throws IOException {
+        writer.flush();
+        if (writer.checkError()) throw new IOException("cannot write '" + file + "'");
+    }
+
     /** @return true if directory is an alias of an other (symlink-dir). */
 	public static  boolean isSymlinkDir(File directory, boolean errorValue) {
         if (FotoLibGlobal.ignoreSymLinks) {
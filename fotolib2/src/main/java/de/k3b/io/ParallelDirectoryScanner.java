@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Scans directory trees with a bounded pool of worker threads.<br/>
+ *
+ * The workers list the directories and extract the infos of the matching files.
+ * The extracted infos are written in batches by the thread that called {@link #scan(String...)}
+ * so all writes come from one thread.<br/>
+ *
+ * If the scan is cancelled the directories and files that have not been processed yet
+ * are collected in {@link #getPaused()} so that they can be scanned later.<br/>
+ *
+ * Optional incremental mode: see {@link #setJournal(ScanJournal)} and {@link #setChangeDetector(ChangeDetector)}.<br/>
+ *
+ * Optional resume after process death: see {@link #setCheckpoint(ScanCheckpoint)}.
+ */
+public class ParallelDirectoryScanner<T> {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    /** how long an aborted scan waits for the running workers to pause their work */
+    private static final int WORKER_SHUTDOWN_TIMEOUT_SECS = 10;
+
+    /** receives the results of the scan. */
+    public interface Callback<T> {
+        /** @return true if the scan should stop. Called from all threads. */
+        boolean isCancelled();
+
+        /** called in a worker thread before the files of directory are processed. */
+        void onDirectory(String directory);
+
+        /** called in a worker thread. @return the infos of file or null if file should be ignored. */
+        T extract(File file);
+
+        /** called in the scanning thread. @return number of written items */
+        int write(List<T> batch);
+    }
+
+    /** optional: decides which files of a directory must be processed. */
+    public interface ChangeDetector {
+        /** called in a worker thread. @return the files that are new or modified since the last scan. */
+        List<File> getModified(String directory, List<File> files);
+    }
+
+    private final int mThreadCount;
+    private final int mBatchSize;
+    private final FilenameFilter mFileFilter;
+    private final Callback<T> mCallback;
+
+    /** extracted infos waiting to be written. Bounded so the workers cannot run far ahead of the writer. */
+    private final BlockingQueue<Extracted<T>> mResults;
+
+    /** number of submitted tasks that have not finished yet */
+    private final AtomicInteger mRunningTasks = new AtomicInteger(0);
+
+    /** submitted tasks that have not been started by a worker yet */
+    private final Set<ScanTask> mQueuedTasks = Collections.synchronizedSet(new HashSet<ScanTask>());
+
+    /** directories and files that were not processed because the scan was cancelled or interrupted */
+    private final List<String> mPaused = Collections.synchronizedList(new ArrayList<String>());
+
+    private ExecutorService mWorkers = null;
+
+    /** if not null: directories that have not changed since the last scan are skipped. */
+    private ScanJournal mJournal = null;
+
+    /** if not null: only new or modified files of changed directories are processed. */
+    private ChangeDetector mChangeDetector = null;
+
+    /** if not null: the not yet processed directories and files are saved from time to time. */
+    private ScanCheckpoint mCheckpoint = null;
+
+    /** an extracted info and the file it belongs to */
+    private static class Extracted<T> {
+        final String path;
+        final T item;
+
+        /** if not null: is told when item is written */
+        final DirectoryProgress progress;
+
+        Extracted(String path, T item, DirectoryProgress progress) {
+            this.path = path;
+            this.item = item;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * @param threadCount number of worker threads that list directories and extract file infos
+     * @param batchSize max number of file infos that are written at once
+     * @param fileFilter which files to process
+     */
+    public ParallelDirectoryScanner(int threadCount, int batchSize, FilenameFilter fileFilter, Callback<T> callback) {
+        mThreadCount = Math.max(1, threadCount);
+        mBatchSize = Math.max(1, batchSize);
+        mFileFilter = fileFilter;
+        mCallback = callback;
+        mResults = new ArrayBlockingQueue<Extracted<T>>(mBatchSize * 4);
+    }
+
+    /**
+     * Incremental scan: skip directories whose lastModified and number of matching files are
+     * the same as in journal. A directory is added to the journal after all its files are written.
+     */
+    public ParallelDirectoryScanner<T> setJournal(ScanJournal journal) {
+        mJournal = journal;
+        return this;
+    }
+
+    /** Incremental scan: only process files that changeDetector considers new or modified. */
+    public ParallelDirectoryScanner<T> setChangeDetector(ChangeDetector changeDetector) {
+        mChangeDetector = changeDetector;
+        return this;
+    }
+
+    /**
+     * Resume after process death: the directories and files that still have to be processed are
+     * saved to checkpoint while scanning. {@link #scan(String...)} also processes
+     * what is pending in checkpoint. The checkpoint is empty after a complete scan.
+     */
+    public ParallelDirectoryScanner<T> setCheckpoint(ScanCheckpoint checkpoint) {
+        mCheckpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Scans the directories or files and blocks until all are processed or the scan is cancelled.
+     *
+     * @return number of written items
+     */
+    public int scan(String... paths) {
+        mPaused.clear();
+        mWorkers = Executors.newFixedThreadPool(mThreadCount);
+        int resultCount = 0;
+        try {
+            List<File> roots = new ArrayList<File>();
+            for (String path : paths) {
+                if ((path != null) && (path.length() > 0)) {
+                    roots.add(new File(path));
+                }
+            }
+
+            if (mCheckpoint != null) {
+                // the pending items of an interrupted scan are scanned, too
+                for (File root : roots) {
+                    mCheckpoint.add(getCheckpointPath(root));
+                }
+                mCheckpoint.save();
+                roots.clear();
+                for (String path : mCheckpoint.getPending()) {
+                    roots.add(new File(path));
+                }
+            }
+
+            for (File file : roots) {
+                if (file.isDirectory()) {
+                    submitDirectory(file);
+                } else if (file.isFile() && mFileFilter.accept(file.getParentFile(), file.getName())) {
+                    file = FileUtils.tryGetCanonicalFile(file, file);
+                    submitFiles(file.getParent(), Arrays.asList(file), null);
+                } else if (mCheckpoint != null) {
+                    // does not exist any more
+                    mCheckpoint.remove(file.getPath());
+                }
+            }
+
+            resultCount = writeResults();
+        } finally {
+            // only if interrupted: the queued tasks are not started any more
+            mWorkers.shutdownNow();
+            awaitWorkers();
+            mWorkers = null;
+            synchronized (mQueuedTasks) {
+                for (ScanTask notStarted : mQueuedTasks) {
+                    notStarted.pause();
+                }
+                mQueuedTasks.clear();
+            }
+
+            // only if interrupted: extracted but not written
+            for (Extracted<T> notWritten : mResults) {
+                mPaused.add(notWritten.path);
+            }
+            mResults.clear();
+        }
+
+        if (mCheckpoint != null) {
+            mCheckpoint.save();
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("ParallelDirectoryScanner.scan(" + Arrays.toString(paths) + ") written " + resultCount
+                    + ((mPaused.isEmpty()) ? "" : (", paused " + mPaused.size())));
+        }
+        return resultCount;
+    }
+
+    /** @return directories and files that were not processed because the scan was cancelled or interrupted. */
+    public List<String> getPaused() {
+        synchronized (mPaused) {
+            return new ArrayList<String>(mPaused);
+        }
+    }
+
+    /** waits until the interrupted workers have paused their current work. Keeps the interrupted state. */
+    private void awaitWorkers() {
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!mWorkers.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                logger.warn("ParallelDirectoryScanner: workers did not stop within " + WORKER_SHUTDOWN_TIMEOUT_SECS + " secs");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** the writer loop: runs in the scanning thread until all workers are finished. */
+    private int writeResults() {
+        int resultCount = 0;
+        List<Extracted<T>> batch = new ArrayList<Extracted<T>>(mBatchSize);
+        while (true) {
+            Extracted<T> item = null;
+            try {
+                item = mResults.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (item != null) {
+                batch.add(item);
+                mResults.drainTo(batch, mBatchSize - batch.size());
+            }
+
+            if ((batch.size() >= mBatchSize) || ((item == null) && !batch.isEmpty())) {
+                resultCount += write(batch);
+                batch = new ArrayList<Extracted<T>>(mBatchSize);
+            } else if ((item == null) && (mRunningTasks.get() == 0) && mResults.isEmpty()) {
+                break; // all done
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            resultCount += write(batch);
+        }
+        return resultCount;
+    }
+
+    private int write(List<Extracted<T>> batch) {
+        List<T> items = new ArrayList<T>(batch.size());
+        List<String> paths = new ArrayList<String>(batch.size());
+        for (Extracted<T> extracted : batch) {
+            items.add(extracted.item);
+            paths.add(extracted.path);
+        }
+
+        int resultCount = mCallback.write(items);
+
+        for (Extracted<T> extracted : batch) {
+            if (extracted.progress != null) extracted.progress.onWritten();
+        }
+
+        if (mCheckpoint != null) {
+            mCheckpoint.removeAll(paths);
+            mCheckpoint.saveIfDue();
+        }
+        return resultCount;
+    }
+
+    /**
+     * @return the name of file or directory in the checkpoint. The same file must always have the same name
+     * so it is canonical like the paths in {@link #getPaused()} that are used to resume.
+     */
+    private static String getCheckpointPath(File file) {
+        return FileUtils.tryGetCanonicalFile(file, file).getPath();
+    }
+
+    /** work for the pool that knows what to remember if it is not started because the scan was aborted. */
+    private abstract class ScanTask implements Runnable {
+        @Override
+        public void run() {
+            mQueuedTasks.remove(this);
+            try {
+                process();
+            } finally {
+                mRunningTasks.decrementAndGet();
+            }
+        }
+
+        abstract void process();
+
+        /** remember the unprocessed work in {@link #mPaused} */
+        abstract void pause();
+    }
+
+    private void submit(ScanTask task) {
+        mRunningTasks.incrementAndGet();
+        mQueuedTasks.add(task);
+        try {
+            mWorkers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // scan was aborted while a worker was still listing a directory
+            mQueuedTasks.remove(task);
+            mRunningTasks.decrementAndGet();
+            task.pause();
+        }
+    }
+
+    private void submitDirectory(final File directory) {
+        submit(new ScanTask() {
+            @Override
+            void process() {
+                scanDirectory(directory);
+            }
+
+            @Override
+            void pause() {
+                mPaused.add(FileUtils.tryGetCanonicalPath(directory, directory.getAbsolutePath()));
+            }
+        });
+    }
+
+    private void submitFiles(final String directory, final List<File> files, final DirectoryProgress progress) {
+        submit(new ScanTask() {
+            @Override
+            void process() {
+                extractFiles(directory, files, progress);
+            }
+
+            @Override
+            void pause() {
+                ParallelDirectoryScanner.this.pause(files, 0);
+            }
+        });
+    }
+
+    /** runs in worker thread: submits the matching files and the sub directories */
+    private void scanDirectory(File directory) {
+        final String directoryPath = FileUtils.tryGetCanonicalPath(directory, null);
+        if (directoryPath == null) return;
+
+        if (mCallback.isCancelled()) {
+            mPaused.add(directoryPath);
+            return;
+        }
+
+        final long lastModified = directory.lastModified();
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return (file != null) && (file.isDirectory()
+                        ? !file.getName().startsWith(".")
+                        : mFileFilter.accept(file.getParentFile(), file.getName()));
+            }
+        });
+        if (files == null) {
+            // cannot be read: nothing to resume
+            if (mCheckpoint != null) mCheckpoint.remove(directoryPath);
+            return;
+        }
+
+        List<File> subDirectories = new ArrayList<File>();
+        List<File> matchingFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                subDirectories.add(FileUtils.tryGetCanonicalFile(file, file));
+            } else {
+                matchingFiles.add(new File(directoryPath, file.getName()));
+            }
+        }
+
+        boolean unchanged = (mJournal != null)
+                && mJournal.isUnchanged(directoryPath, lastModified, matchingFiles.size());
+        if (unchanged) {
+            // files have already been scanned before. The sub dirs may have changed.
+            matchingFiles.clear();
+        }
+
+        if (mCheckpoint != null) {
+            List<String> children = new ArrayList<String>(subDirectories.size() + matchingFiles.size());
+            for (File file : subDirectories) children.add(file.getPath());
+            for (File file : matchingFiles) children.add(file.getPath());
+            mCheckpoint.replace(directoryPath, children);
+        }
+
+        for (File file : subDirectories) {
+            submitDirectory(file);
+        }
+
+        if (mJournal != null) {
+            if (unchanged) return;
+            if (matchingFiles.isEmpty()) {
+                mJournal.put(directoryPath, lastModified, 0);
+                return;
+            }
+        }
+
+        // big directories are shared between several workers
+        int chunkCount = (matchingFiles.size() + mBatchSize - 1) / mBatchSize;
+        DirectoryProgress progress = (mJournal == null)
+                ? null
+                : new DirectoryProgress(mJournal, directoryPath, lastModified, matchingFiles.size(), chunkCount);
+        for (int first = 0; first < matchingFiles.size(); first += mBatchSize) {
+            submitFiles(directoryPath,
+                    matchingFiles.subList(first, Math.min(first + mBatchSize, matchingFiles.size())),
+                    progress);
+        }
+    }
+
+    /** runs in worker thread */
+    private void extractFiles(String directory, List<File> files, DirectoryProgress progress) {
+        mCallback.onDirectory(directory);
+        if (mChangeDetector != null) {
+            List<File> modified = mChangeDetector.getModified(directory, files);
+            if (mCheckpoint != null) {
+                for (File file : files) {
+                    if (!modified.contains(file)) mCheckpoint.remove(file.getPath());
+                }
+            }
+            files = modified;
+        }
+
+        boolean complete = true;
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (mCallback.isCancelled()) {
+                pause(files, i);
+                complete = false;
+                break;
+            }
+
+            T item = mCallback.extract(file);
+            if (item == null) {
+                if (mCheckpoint != null) mCheckpoint.remove(file.getPath());
+            } else {
+                if (progress != null) progress.onExtracted();
+                try {
+                    mResults.put(new Extracted<T>(file.getPath(), item, progress));
+                } catch (InterruptedException e) {
+                    // scan was aborted
+                    pause(files, i);
+                    Thread.currentThread().interrupt();
+                    complete = false;
+                    break;
+                }
+            }
+        }
+
+        if (progress != null) {
+            progress.onChunkDone(complete);
+        }
+    }
+
+    /**
+     * tracks when all files of a directory are extracted and written to update the journal.
+     * A directory whose items are still waiting for the writer must not be journaled:
+     * if the scan is aborted the next incremental scan would skip the unwritten files.
+     */
+    private static class DirectoryProgress {
+        private final ScanJournal mJournal;
+        private final String mDirectory;
+        private final long mLastModified;
+        private final int mFileCount;
+
+        /** chunks whose files are not extracted yet */
+        private final AtomicInteger mOpenChunks;
+
+        /** extracted items that are not written yet */
+        private final AtomicInteger mUnwritten = new AtomicInteger(0);
+        private final AtomicBoolean mJournaled = new AtomicBoolean(false);
+        private volatile boolean mComplete = true;
+
+        DirectoryProgress(ScanJournal journal, String directory, long lastModified, int fileCount, int chunkCount) {
+            mJournal = journal;
+            mDirectory = directory;
+            mLastModified = lastModified;
+            mFileCount = fileCount;
+            mOpenChunks = new AtomicInteger(chunkCount);
+        }
+
+        /** called in worker thread before an item is queued for the writer */
+        void onExtracted() {
+            mUnwritten.incrementAndGet();
+        }
+
+        /** called in worker thread after all files of a chunk are extracted or the chunk was aborted */
+        void onChunkDone(boolean complete) {
+            if (!complete) mComplete = false;
+            mOpenChunks.decrementAndGet();
+            journalIfDone();
+        }
+
+        /** called in the scanning thread after an item was written */
+        void onWritten() {
+            mUnwritten.decrementAndGet();
+            journalIfDone();
+        }
+
+        private void journalIfDone() {
+            if ((mOpenChunks.get() == 0) && (mUnwritten.get() == 0) && mComplete
+                    && mJournaled.compareAndSet(false, true)) {
+                mJournal.put(mDirectory, mLastModified, mFileCount);
+            }
+        }
+    }
+
+    /** remember unprocessed files */
+    private void pause(List<File> files, int first) {
+        for (int i = first; i < files.size(); i++) {
+            mPaused.add(files.get(i).getAbsolutePath());
+        }
+    }
+}
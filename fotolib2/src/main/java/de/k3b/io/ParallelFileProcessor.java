@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Processes files on a small pool of threads (i.e. writing exif of many photos).<br/>
+ *
+ * A file that fails does not stop the others.
+ * {@link #onDone(File, int)} and {@link #onFailed(File, Exception)} are called in the calling thread
+ * in the order in which the files are finished so that logging and progress need no synchronisation.
+ */
+public abstract class ParallelFileProcessor {
+    private final int mThreadCount;
+
+    /** result of one file */
+    private static class Result {
+        final File file;
+        final Exception error;
+
+        Result(File file, Exception error) {
+            this.file = file;
+            this.error = error;
+        }
+    }
+
+    public ParallelFileProcessor(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /** called in a worker thread for every file. An exception marks the file as failed. */
+    protected abstract void process(File file) throws Exception;
+
+    /** called in the calling thread after file was processed successfully */
+    protected void onDone(File file, int doneCount) {
+    }
+
+    /** called in the calling thread if {@link #process(File)} failed for file */
+    protected void onFailed(File file, Exception error) {
+    }
+
+    /**
+     * @return the files that were processed without error.
+     * If the calling thread is interrupted the files finished so far are returned.
+     */
+    public List<File> processAll(File... files) {
+        List<File> result = new ArrayList<File>(files.length);
+        if (files.length == 0) return result;
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(mThreadCount, files.length));
+        try {
+            CompletionService<Result> results = new ExecutorCompletionService<Result>(workers);
+            for (final File file : files) {
+                results.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        try {
+                            process(file);
+                            return new Result(file, null);
+                        } catch (Exception e) {
+                            return new Result(file, e);
+                        }
+                    }
+                });
+            }
+
+            for (int i = 0; i < files.length; i++) {
+                Result done = results.take().get();
+                if (done.error == null) {
+                    result.add(done.file);
+                    onDone(done.file, result.size());
+                } else {
+                    onFailed(done.file, done.error);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // cannot happen: call() catches all exceptions
+            throw new IllegalStateException(e);
+        } finally {
+            workers.shutdownNow();
+        }
+        return result;
+    }
+}
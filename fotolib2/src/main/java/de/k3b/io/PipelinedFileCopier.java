@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Copies many files with read ahead: a small pool of reader threads reads the next files
+ * into pooled direct buffers while the calling thread writes the current file to its destination.
+ * Useful if source and destination are on different devices (i.e. internal storage to sd card).<br/>
+ *
+ * The files are written and reported in the same order as given, so a photo and its sidecar
+ * that follow each other are still written one after the other.
+ * Memory is bounded by (bufferCount + 1) * bufferSize: if the files after the one that is written hold
+ * all pooled buffers, the reader of the written file continues with one reserved buffer
+ * that the writer hands back after each chunk. The number of concurrent readers per source device
+ * is limited because parallel reads from the same sd card slow each other down.
+ */
+public class PipelinedFileCopier {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 32;
+
+    /** how long a reader waits for a free buffer before it checks again if it is the one the writer waits for */
+    private static final long BUFFER_POLL_MILLISECS = 10;
+
+    /** marks the end of the content of a file */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** receives the results in the order of the files */
+    public interface Callback {
+        /** @return true if the remaining files shall not be copied any more */
+        boolean isCancelled();
+
+        /**
+         * called in the thread of {@link #copy(File[], File[], Callback)} in the order of the files.
+         * @param error null if successfull
+         */
+        void onCopied(int index, File source, File dest, IOException error);
+    }
+
+    private final int mReaderCount;
+    private final int mMaxReadersPerDevice;
+    private final int mBufferSize;
+    private final int mBufferCount;
+    private final boolean mSync;
+
+    private final BlockingQueue<ByteBuffer> mPool;
+    private final AtomicInteger mAllocatedBuffers = new AtomicInteger(0);
+
+    /** the reserved buffer if it is not in use. Only the reader of the file that the writer is waiting for may use it */
+    private final BlockingQueue<ByteBuffer> mReserve = new ArrayBlockingQueue<ByteBuffer>(1);
+    private final AtomicBoolean mReserveAllocated = new AtomicBoolean(false);
+    private volatile ByteBuffer mReserveBuffer = null;
+
+    /** device => semaphore that limits concurrent reads from this device */
+    private final Map<String, Semaphore> mDeviceLimits = new HashMap<String, Semaphore>();
+
+    /** index of the file that the writer is waiting for. Its reader may use the reserved buffer */
+    private volatile int mWriterIndex = 0;
+
+    public PipelinedFileCopier(int readerCount, int maxReadersPerDevice) {
+        this(readerCount, maxReadersPerDevice, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT, FotoLibGlobal.syncAfterCopy);
+    }
+
+    /**
+     * @param readerCount number of reader threads
+     * @param maxReadersPerDevice number of readers that may read from the same device at the same time
+     * @param bufferSize bytes per buffer
+     * @param bufferCount max number of pooled buffers. There is one reserved buffer in addition.
+     * @param sync true: destination is synced to the storage device before it is closed
+     */
+    public PipelinedFileCopier(int readerCount, int maxReadersPerDevice, int bufferSize, int bufferCount, boolean sync) {
+        mReaderCount = Math.max(1, readerCount);
+        mMaxReadersPerDevice = Math.max(1, maxReadersPerDevice);
+        mBufferSize = bufferSize;
+        mBufferCount = Math.max(2, bufferCount);
+        mSync = sync;
+        mPool = new ArrayBlockingQueue<ByteBuffer>(mBufferCount);
+    }
+
+    /**
+     * @param sources files to read
+     * @param dests same number of destination files
+     * @return number of files copied successfully
+     */
+    public int copy(File[] sources, File[] dests, Callback callback) {
+        final int count = sources.length;
+        Job[] jobs = new Job[count];
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(mReaderCount, Math.max(1, count)));
+        int result = 0;
+        try {
+            // the fixed pool processes the jobs in submit order so reading ahead follows the write order
+            for (int i = 0; i < count; i++) {
+                jobs[i] = new Job(i, sources[i], dests[i]);
+                readers.execute(jobs[i]);
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (callback.isCancelled()) break;
+                mWriterIndex = i;
+                IOException error = write(jobs[i]);
+                if (error == null) result++;
+                callback.onCopied(i, jobs[i].source, jobs[i].dest, error);
+            }
+        } finally {
+            // cancelled: readers that are still working are interrupted
+            readers.shutdownNow();
+        }
+        return result;
+    }
+
+    /** @return null if successful else the reason why it failed */
+    private IOException write(Job job) {
+        IOException error = null;
+        FileOutputStream outStream = null;
+        FileChannel out = null;
+        try {
+            outStream = new FileOutputStream(job.dest);
+            out = outStream.getChannel();
+        } catch (IOException ex) {
+            error = ex;
+        }
+
+        // always consume all chunks so that the buffers go back to the pool
+        try {
+            ByteBuffer buffer;
+            while ((buffer = job.chunks.take()) != END) {
+                if (error == null) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                    } catch (IOException ex) {
+                        error = ex;
+                    }
+                }
+                release(buffer);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (error == null) error = new InterruptedIOException("PipelinedFileCopier interrupted");
+        }
+        if (error == null) error = job.error;
+
+        if (outStream != null) {
+            try {
+                if ((error == null) && mSync) {
+                    outStream.getFD().sync();
+                }
+                outStream.close();
+            } catch (IOException ex) {
+                if (error == null) error = ex;
+            }
+        }
+
+        if (error != null) {
+            job.dest.delete();
+        } else {
+            job.dest.setLastModified(job.source.lastModified());
+        }
+        return error;
+    }
+
+    /**
+     * @return device of file. Files on the same device share the maxReadersPerDevice limit.
+     * Default: the first two path elements i.e. "/storage/emulated" or "/storage/1234-ABCD"
+     */
+    protected String getDevice(File file) {
+        String path = file.getAbsolutePath();
+        int pos = path.indexOf('/', 1);
+        if (pos > 0) {
+            int next = path.indexOf('/', pos + 1);
+            if (next > 0) return path.substring(0, next);
+        }
+        return path;
+    }
+
+    private Semaphore getDeviceLimit(File file) {
+        String device = getDevice(file);
+        synchronized (mDeviceLimits) {
+            Semaphore result = mDeviceLimits.get(device);
+            if (result == null) {
+                result = new Semaphore(mMaxReadersPerDevice);
+                mDeviceLimits.put(device, result);
+            }
+            return result;
+        }
+    }
+
+    /** runs in reader thread: blocks until a buffer is available */
+    private ByteBuffer acquire(int jobIndex) throws InterruptedIOException {
+        try {
+            while (true) {
+                ByteBuffer result = mPool.poll();
+                if (result != null) return result;
+                if (mAllocatedBuffers.incrementAndGet() <= mBufferCount) {
+                    return allocateBuffer();
+                }
+                mAllocatedBuffers.decrementAndGet();
+
+                if (jobIndex == mWriterIndex) {
+                    // all pooled buffers may be used by files after this one: without the reserve the writer would wait forever
+                    if (mReserveAllocated.compareAndSet(false, true)) {
+                        mReserveBuffer = allocateBuffer();
+                        return mReserveBuffer;
+                    }
+                    result = mReserve.poll(BUFFER_POLL_MILLISECS, TimeUnit.MILLISECONDS);
+                } else {
+                    result = mPool.poll(BUFFER_POLL_MILLISECS, TimeUnit.MILLISECONDS);
+                }
+                if (result != null) return result;
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("PipelinedFileCopier interrupted");
+        }
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (buffer == mReserveBuffer) {
+            mReserve.offer(buffer);
+        } else {
+            mPool.offer(buffer);
+        }
+    }
+
+    /** can be replaced in unittests to count the allocated buffers */
+    ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    private class Job implements Runnable {
+        final int index;
+        final File source;
+        final File dest;
+        /** room for all buffers and END: reading is limited by the buffers, not by this queue */
+        final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(mBufferCount + 2);
+        volatile IOException error = null;
+
+        Job(int index, File source, File dest) {
+            this.index = index;
+            this.source = source;
+            this.dest = dest;
+        }
+
+        /** runs in reader thread */
+        @Override
+        public void run() {
+            Semaphore deviceLimit = getDeviceLimit(source);
+            FileInputStream inStream = null;
+            try {
+                inStream = new FileInputStream(source);
+                FileChannel in = inStream.getChannel();
+                while (true) {
+                    // the device is only locked while reading: waiting for a buffer must not block other readers
+                    ByteBuffer buffer = acquire(index);
+                    int read;
+                    deviceLimit.acquire();
+                    try {
+                        read = in.read(buffer);
+                    } finally {
+                        deviceLimit.release();
+                    }
+                    if (read < 0) {
+                        release(buffer);
+                        break;
+                    }
+                    buffer.flip();
+                    chunks.add(buffer);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } catch (InterruptedException ex) {
+                error = new InterruptedIOException("PipelinedFileCopier interrupted");
+            } finally {
+                FileUtils.close(inStream, source);
+                chunks.add(END);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * The frontier of a running directory scan: the directories that have not been listed yet
+ * and the files that have not been written yet.<br/>
+ *
+ * The frontier is saved to a file from time to time so that a scan that was interrupted
+ * (i.e. because the process was killed) can continue where it left off.
+ * Items are only removed after they have been processed so a resumed scan may process
+ * a few items twice but never misses one.<br/>
+ *
+ * Persisted as text file with one path per line. All methods are thread safe.
+ */
+public class ScanCheckpoint {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private final File mFile;
+    private final long mSaveIntervalInMilliSecs;
+
+    private final Set<String> mPending = new LinkedHashSet<String>();
+    private boolean mModified = false;
+    private long mLastSaveTime = 0;
+
+    /**
+     * @param file where the frontier is saved. null: not persisted.
+     * @param saveIntervalInMilliSecs min time between two saves in {@link #saveIfDue()}
+     */
+    public ScanCheckpoint(File file, long saveIntervalInMilliSecs) {
+        mFile = file;
+        mSaveIntervalInMilliSecs = saveIntervalInMilliSecs;
+    }
+
+    public synchronized void add(String path) {
+        mModified |= mPending.add(path);
+    }
+
+    public synchronized void remove(String path) {
+        mModified |= mPending.remove(path);
+    }
+
+    public synchronized void removeAll(Collection<String> paths) {
+        mModified |= mPending.removeAll(paths);
+    }
+
+    /** parent has been processed and children must be processed: in one step so that no save sees neither */
+    public synchronized void replace(String parent, Collection<String> children) {
+        mModified |= mPending.addAll(children);
+        mModified |= mPending.remove(parent);
+    }
+
+    /** @return paths that still have to be processed */
+    public synchronized List<String> getPending() {
+        return new ArrayList<String>(mPending);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    /** replaces the content with the content of the file. A missing file results in an empty checkpoint. */
+    public synchronized ScanCheckpoint load() {
+        mPending.clear();
+        mModified = false;
+        if ((mFile == null) || !mFile.exists()) return this;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    mPending.add(line);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("ScanCheckpoint.load('" + mFile + "') failed: " + e.getMessage());
+        } finally {
+            FileUtils.close(reader, mFile);
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("ScanCheckpoint.load('" + mFile + "') " + mPending.size() + " pending");
+        }
+        return this;
+    }
+
+    /** saves if modified and the last save is older than the save interval */
+    public synchronized void saveIfDue() {
+        if (mModified && (System.currentTimeMillis() - mLastSaveTime >= mSaveIntervalInMilliSecs)) {
+            save();
+        }
+    }
+
+    /**
+     * writes the content to a temp file that replaces the checkpoint file when complete.
+     * An empty checkpoint deletes the file.
+     */
+    public synchronized void save() {
+        mLastSaveTime = System.currentTimeMillis();
+        mModified = false;
+        if (mFile == null) return;
+
+        if (mPending.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+
+        try {
+            FileUtils.replace(mFile, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+                    for (String path : mPending) {
+                        writer.println(path);
+                    }
+                    FileUtils.flush(writer, mFile);
+                }
+            });
+        } catch (IOException e) {
+            // the last saved checkpoint is kept
+            mModified = true;
+            logger.warn("ScanCheckpoint.save('" + mFile + "') failed: " + e.getMessage());
+        }
+    }
+
+    /** the scan is finished or abandoned: nothing to resume. */
+    public synchronized void delete() {
+        mPending.clear();
+        mModified = false;
+        if (mFile != null) mFile.delete();
+    }
+}
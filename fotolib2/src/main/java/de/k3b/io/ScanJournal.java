@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Remembers the state (lastModified and number of matching files) of each scanned directory
+ * so that a following scan can skip directories that have not changed.<br/>
+ *
+ * Persisted as text file with one line per directory: lastModified TAB fileCount TAB path.
+ * All methods are thread safe.
+ */
+public class ScanJournal {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+    private static final String DELIMITER = "\t";
+
+    /** path => {lastModified, fileCount} */
+    private final Map<String, long[]> mDirectories = new HashMap<String, long[]>();
+
+    /** @return true if directory was scanned before and has not changed since. */
+    public synchronized boolean isUnchanged(String directory, long lastModified, int fileCount) {
+        long[] state = mDirectories.get(directory);
+        return (state != null) && (state[0] == lastModified) && (state[1] == fileCount);
+    }
+
+    /** remember that directory with this state has been scanned completely */
+    public synchronized void put(String directory, long lastModified, int fileCount) {
+        mDirectories.put(directory, new long[] {lastModified, fileCount});
+    }
+
+    /** directory must be scanned again */
+    public synchronized void remove(String directory) {
+        mDirectories.remove(directory);
+    }
+
+    public synchronized int size() {
+        return mDirectories.size();
+    }
+
+    public synchronized void clear() {
+        mDirectories.clear();
+    }
+
+    /** replaces the content with the content of file. A missing or corrupt file results in an empty journal. */
+    public synchronized ScanJournal load(File file) {
+        mDirectories.clear();
+        if ((file == null) || !file.exists()) return this;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(DELIMITER, 3);
+                if (parts.length == 3) {
+                    try {
+                        put(parts[2], Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+                    } catch (NumberFormatException ignore) {
+                        // corrupt line: directory will be scanned again
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("ScanJournal.load('" + file + "') failed: " + e.getMessage());
+        } finally {
+            FileUtils.close(reader, file);
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("ScanJournal.load('" + file + "') " + mDirectories.size() + " directories");
+        }
+        return this;
+    }
+
+    /** writes the content to a temp file that replaces file when complete. */
+    public synchronized void save(final File file) {
+        if (file == null) return;
+
+        try {
+            FileUtils.replace(file, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+                    for (Map.Entry<String, long[]> entry : mDirectories.entrySet()) {
+                        long[] state = entry.getValue();
+                        writer.print(state[0]);
+                        writer.print(DELIMITER);
+                        writer.print(state[1]);
+                        writer.print(DELIMITER);
+                        writer.println(entry.getKey());
+                    }
+                    FileUtils.flush(writer, file);
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("ScanJournal.save('" + file + "') failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+import de.k3b.io.FileUtils;
+
+/**
+ * Remembers the content hashes calculated by {@link DuplicateFinder} and the {@link PerceptualHash}
+ * so that a following search only has to read files that are new or have changed (different size or lastModified).<br/>
+ *
+ * Persisted as text file with one line per file:
+ * size TAB lastModified TAB partialHash TAB fullHash TAB perceptualHash TAB path.
+ * Lines without perceptualHash (older format) are also accepted.
+ * All methods are thread safe.
+ */
+public class ContentHashStore {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+    private static final String DELIMITER = "\t";
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        String partialHash;
+        String fullHash;
+        Long perceptualHash;
+
+        Entry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mModified = false;
+
+    /** @return the remembered partial hash of file or null if unknown or file has changed */
+    public synchronized String getPartialHash(String path, long size, long lastModified) {
+        Entry entry = get(path, size, lastModified);
+        return (entry != null) ? entry.partialHash : null;
+    }
+
+    /** @return the remembered full hash of file or null if unknown or file has changed */
+    public synchronized String getFullHash(String path, long size, long lastModified) {
+        Entry entry = get(path, size, lastModified);
+        return (entry != null) ? entry.fullHash : null;
+    }
+
+    /** @return the remembered {@link PerceptualHash} of file or null if unknown or file has changed */
+    public synchronized Long getPerceptualHash(String path, long size, long lastModified) {
+        Entry entry = get(path, size, lastModified);
+        return (entry != null) ? entry.perceptualHash : null;
+    }
+
+    public synchronized void putPartialHash(String path, long size, long lastModified, String hash) {
+        getOrCreate(path, size, lastModified).partialHash = hash;
+        mModified = true;
+    }
+
+    public synchronized void putFullHash(String path, long size, long lastModified, String hash) {
+        getOrCreate(path, size, lastModified).fullHash = hash;
+        mModified = true;
+    }
+
+    public synchronized void putPerceptualHash(String path, long size, long lastModified, long hash) {
+        getOrCreate(path, size, lastModified).perceptualHash = hash;
+        mModified = true;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private Entry get(String path, long size, long lastModified) {
+        Entry entry = mEntries.get(path);
+        return ((entry != null) && (entry.size == size) && (entry.lastModified == lastModified)) ? entry : null;
+    }
+
+    private Entry getOrCreate(String path, long size, long lastModified) {
+        Entry entry = get(path, size, lastModified);
+        if (entry == null) {
+            // new or changed file: old hashes are invalid
+            entry = new Entry(size, lastModified);
+            mEntries.put(path, entry);
+        }
+        return entry;
+    }
+
+    /** replaces the content with the content of file. A missing or corrupt file results in an empty store. */
+    public synchronized ContentHashStore load(File file) {
+        mEntries.clear();
+        mModified = false;
+        if ((file == null) || !file.exists()) return this;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(DELIMITER, 6);
+                if (parts.length >= 5) {
+                    try {
+                        Entry entry = new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                        entry.partialHash = (parts[2].length() > 0) ? parts[2] : null;
+                        entry.fullHash = (parts[3].length() > 0) ? parts[3] : null;
+                        if (parts.length == 6) {
+                            entry.perceptualHash = (parts[4].length() > 0) ? PerceptualHash.parse(parts[4]) : null;
+                        }
+                        mEntries.put(parts[parts.length - 1], entry);
+                    } catch (NumberFormatException ignore) {
+                        // corrupt line: file will be hashed again
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("ContentHashStore.load('" + file + "') failed: " + e.getMessage());
+        } finally {
+            FileUtils.close(reader, file);
+        }
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("ContentHashStore.load('" + file + "') " + mEntries.size() + " files");
+        }
+        return this;
+    }
+
+    /** writes the content to a temp file that replaces file when complete. */
+    public synchronized void save(final File file) {
+        if ((file == null) || !mModified) return;
+
+        try {
+            FileUtils.replace(file, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    writeEntries(out, file);
+                }
+            });
+            mModified = false;
+        } catch (IOException e) {
+            logger.warn("ContentHashStore.save('" + file + "') failed: " + e.getMessage());
+        }
+    }
+
+    private void writeEntries(OutputStream out, File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+            Entry entry = item.getValue();
+            writer.print(entry.size);
+            writer.print(DELIMITER);
+            writer.print(entry.lastModified);
+            writer.print(DELIMITER);
+            writer.print((entry.partialHash != null) ? entry.partialHash : "");
+            writer.print(DELIMITER);
+            writer.print((entry.fullHash != null) ? entry.fullHash : "");
+            writer.print(DELIMITER);
+            writer.print((entry.perceptualHash != null) ? PerceptualHash.toString(entry.perceptualHash) : "");
+            writer.print(DELIMITER);
+            writer.println(item.getKey());
+        }
+        FileUtils.flush(writer, file);
+    }
+}
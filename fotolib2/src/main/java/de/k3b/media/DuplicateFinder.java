@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.k3b.FotoLibGlobal;
+import de.k3b.io.FileUtils;
+
+/**
+ * Finds files with identical content under different paths.<br/>
+ *
+ * To read as little as possible the candidates are narrowed down in 3 steps:
+ * <ol>
+ *     <li>group by file size. Files with a unique size cannot have a duplicate.</li>
+ *     <li>group by a hash of the first and the last {@link #PARTIAL_SIZE} bytes.</li>
+ *     <li>group by a hash of the complete content. Only for files that are still candidates.</li>
+ * </ol>
+ * Hashing is done by a bounded pool of threads. The hashes are remembered in a {@link ContentHashStore}
+ * so that unchanged files do not have to be read again in a following search.
+ */
+public class DuplicateFinder {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    /** number of bytes at the beginning and at the end of a file that go into the partial hash */
+    public static final int PARTIAL_SIZE = 64 * 1024;
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** allows to stop a long running search */
+    public interface Cancellation {
+        boolean isCancelled();
+    }
+
+    private final int mThreadCount;
+    private final ContentHashStore mStore;
+    private Cancellation mCancellation = null;
+
+    /** number of files that were actually read (not found in store) */
+    private final AtomicInteger mReadCount = new AtomicInteger(0);
+
+    /**
+     * @param threadCount number of files that are hashed in parallel
+     * @param store remembers the hashes. May be null.
+     */
+    public DuplicateFinder(int threadCount, ContentHashStore store) {
+        mThreadCount = Math.max(1, threadCount);
+        mStore = (store != null) ? store : new ContentHashStore();
+    }
+
+    public DuplicateFinder setCancellation(Cancellation cancellation) {
+        mCancellation = cancellation;
+        return this;
+    }
+
+    /** @return number of files that had to be read in the last {@link #findDuplicates(Collection)} */
+    public int getReadCount() {
+        return mReadCount.get();
+    }
+
+    /**
+     * @return groups of paths with identical content. Each group is sorted and contains at least 2 paths.
+     * The groups are sorted by their first path. Empty if cancelled.
+     */
+    public List<List<String>> findDuplicates(Collection<String> paths) {
+        long startTime = System.currentTimeMillis();
+        mReadCount.set(0);
+
+        // 1. by size
+        Map<Long, List<FileInfo>> bySize = new HashMap<Long, List<FileInfo>>();
+        for (String path : paths) {
+            File file = new File(path);
+            long size = file.length();
+            if (size > 0) {
+                add(bySize, size, new FileInfo(path, size, file.lastModified()));
+            }
+        }
+        List<List<FileInfo>> candidates = getGroupsWithDuplicates(bySize.values());
+        int sizeCandidates = countFiles(candidates);
+
+        ExecutorService workers = Executors.newFixedThreadPool(mThreadCount);
+        List<List<String>> result = new ArrayList<List<String>>();
+        try {
+            // 2. by partial hash
+            candidates = groupByHash(workers, candidates, false);
+            int partialCandidates = countFiles(candidates);
+
+            // 3. by full hash
+            candidates = groupByHash(workers, candidates, true);
+
+            for (List<FileInfo> group : candidates) {
+                List<String> groupPaths = new ArrayList<String>(group.size());
+                for (FileInfo info : group) {
+                    groupPaths.add(info.path);
+                }
+                Collections.sort(groupPaths);
+                result.add(groupPaths);
+            }
+            Collections.sort(result, new Comparator<List<String>>() {
+                @Override
+                public int compare(List<String> lhs, List<String> rhs) {
+                    return lhs.get(0).compareTo(rhs.get(0));
+                }
+            });
+
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("DuplicateFinder: " + paths.size() + " files, same size " + sizeCandidates
+                        + ", same partial hash " + partialCandidates
+                        + ", duplicate groups " + result.size()
+                        + ", files read " + mReadCount.get()
+                        + " in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.clear();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (isCancelled()) result.clear();
+        return result;
+    }
+
+    /** @return candidates regrouped by (partial or full) hash. Only groups with more than one file. */
+    private List<List<FileInfo>> groupByHash(ExecutorService workers, List<List<FileInfo>> candidates, final boolean full)
+            throws InterruptedException {
+        List<Future<String>> hashes = new ArrayList<Future<String>>();
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (List<FileInfo> group : candidates) {
+            for (final FileInfo info : group) {
+                files.add(info);
+                hashes.add(workers.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return (isCancelled()) ? null : getHash(info, full);
+                    }
+                }));
+            }
+        }
+
+        // the size is part of the key so that equal hashes of different groups are not mixed
+        Map<String, List<FileInfo>> byHash = new HashMap<String, List<FileInfo>>();
+        for (int i = 0; i < files.size(); i++) {
+            String hash;
+            try {
+                hash = hashes.get(i).get();
+            } catch (ExecutionException e) {
+                hash = null;
+                logger.warn("DuplicateFinder: cannot read " + files.get(i).path + ": " + e.getCause());
+            }
+            if (hash != null) {
+                FileInfo info = files.get(i);
+                add(byHash, info.size + ":" + hash, info);
+            }
+        }
+        return getGroupsWithDuplicates(byHash.values());
+    }
+
+    /** runs in worker thread */
+    private String getHash(FileInfo info, boolean full) throws IOException {
+        // small files: the partial hash covers the complete content
+        boolean partialIsFull = info.size <= 2L * PARTIAL_SIZE;
+        if (full && partialIsFull) {
+            full = false;
+        }
+
+        String hash = (full)
+                ? mStore.getFullHash(info.path, info.size, info.lastModified)
+                : mStore.getPartialHash(info.path, info.size, info.lastModified);
+        if (hash == null) {
+            mReadCount.incrementAndGet();
+            if (full) {
+                hash = calculateFullHash(new File(info.path));
+                mStore.putFullHash(info.path, info.size, info.lastModified, hash);
+            } else {
+                hash = calculatePartialHash(new File(info.path));
+                mStore.putPartialHash(info.path, info.size, info.lastModified, hash);
+            }
+        }
+        return hash;
+    }
+
+    /** @return hash of the first and the last {@link #PARTIAL_SIZE} bytes (or the whole content if smaller) */
+    public static String calculatePartialHash(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long size = in.length();
+            if (size <= 2L * PARTIAL_SIZE) {
+                update(digest, in, buffer, size);
+            } else {
+                update(digest, in, buffer, PARTIAL_SIZE);
+                in.seek(size - PARTIAL_SIZE);
+                update(digest, in, buffer, PARTIAL_SIZE);
+            }
+        } finally {
+            FileUtils.close(in, file);
+        }
+        return toHex(digest.digest());
+    }
+
+    /** @return hash of the whole content. Streaming so that big files need no memory. */
+    public static String calculateFullHash(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            FileUtils.close(in, file);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, RandomAccessFile in, byte[] buffer, long count) throws IOException {
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read <= 0) break;
+            digest.update(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            result[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(result);
+    }
+
+    private boolean isCancelled() {
+        return (mCancellation != null) && mCancellation.isCancelled();
+    }
+
+    private static <K> void add(Map<K, List<FileInfo>> map, K key, FileInfo info) {
+        List<FileInfo> group = map.get(key);
+        if (group == null) {
+            group = new ArrayList<FileInfo>(2);
+            map.put(key, group);
+        }
+        group.add(info);
+    }
+
+    private static List<List<FileInfo>> getGroupsWithDuplicates(Collection<List<FileInfo>> groups) {
+        List<List<FileInfo>> result = new ArrayList<List<FileInfo>>();
+        for (List<FileInfo> group : groups) {
+            if (group.size() > 1) result.add(group);
+        }
+        return result;
+    }
+
+    private static int countFiles(List<List<FileInfo>> groups) {
+        int result = 0;
+        for (List<FileInfo> group : groups) {
+            result += group.size();
+        }
+        return result;
+    }
+
+    private static class FileInfo {
+        final String path;
+        final long size;
+        final long lastModified;
+
+        FileInfo(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.k3b.FotoLibGlobal;
+import de.k3b.io.FileUtils;
+
+/**
+ * Writes gps latitude/longitude into the exif of a jpg file.<br/>
+ *
+ * If the file already has a gps ifd with latitude and longitude (i.e. it was geotagged before)
+ * only the few bytes of these values are overwritten in place so the io does not depend on the file size.
+ * Otherwise the exif APP1 segment is extended by a new gps ifd (and a relocated IFD0 that points to it)
+ * and the file is rewritten by streaming the remaining segments and the image data into a temp file
+ * that replaces the original. Padding in an existing APP1 segment is not reused: a photo without gps ifd
+ * is always rewritten.
+ * All existing exif data stays at its original position so offsets inside maker notes and the thumbnail remain valid.
+ */
+public class ExifGpsPatcher {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    /** {@link #patch(File)} result: gps values were overwritten in place */
+    public static final int RESULT_IN_PLACE = 1;
+    /** {@link #patch(File)} result: the file had to be rewritten */
+    public static final int RESULT_REWRITTEN = 2;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int MARKER_APP0 = 0xE0;
+
+    /** a segment including its 2 length bytes cannot be bigger than this */
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final int TAG_GPS_VERSION_ID = 0x0000;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_GPS_IFD = 0x8825;
+
+    /** IFD0 tags that are added by {@link #setDefaults(String, String, String)} if missing */
+    private static final int[] DEFAULT_TAGS = {TAG_DATETIME, TAG_MAKE, TAG_MODEL};
+
+    private final double mLatitude;
+    private final double mLongitude;
+    private final String[] mDefaultValues = new String[DEFAULT_TAGS.length];
+
+    public ExifGpsPatcher(double latitude, double longitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    /**
+     * IFD0 values that are added if the exif does not contain them yet (#29). Null values are not added.
+     * A missing default forces a rewrite so it should only be set if it is really needed.
+     */
+    public ExifGpsPatcher setDefaults(String dateTime, String make, String model) {
+        mDefaultValues[0] = dateTime;
+        mDefaultValues[1] = make;
+        mDefaultValues[2] = model;
+        return this;
+    }
+
+    /**
+     * writes latitude/longitude into jpg. The caller is responsible for preserving lastModified.
+     *
+     * @return {@link #RESULT_IN_PLACE} or {@link #RESULT_REWRITTEN}
+     * @throws IOException if jpg is not a jpg file or the exif segment would become too big.
+     */
+    public int patch(File jpg) throws IOException {
+        JpegLayout layout = JpegLayout.read(jpg);
+        if ((layout.tiff != null) && patchInPlace(jpg, layout)) {
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("ExifGpsPatcher.patch('" + jpg + "') in place");
+            }
+            return RESULT_IN_PLACE;
+        }
+        rewrite(jpg, layout);
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("ExifGpsPatcher.patch('" + jpg + "') rewritten");
+        }
+        return RESULT_REWRITTEN;
+    }
+
+    /** @return false if the exif has not the space for the values so the file must be rewritten */
+    private boolean patchInPlace(File jpg, JpegLayout layout) throws IOException {
+        TiffReader tiff = layout.tiff;
+        int ifd0 = tiff.getFirstIfdOffset();
+        for (int i = 0; i < DEFAULT_TAGS.length; i++) {
+            if ((mDefaultValues[i] != null) && (tiff.findEntry(ifd0, DEFAULT_TAGS[i]) < 0)) return false;
+        }
+
+        int gpsIfd = (int) tiff.getIntValue(ifd0, TAG_GPS_IFD, 0);
+        int latitudeRef = findInlineRef(tiff, gpsIfd, TAG_GPS_LATITUDE_REF);
+        int latitude = findDegrees(tiff, gpsIfd, TAG_GPS_LATITUDE);
+        int longitudeRef = findInlineRef(tiff, gpsIfd, TAG_GPS_LONGITUDE_REF);
+        int longitude = findDegrees(tiff, gpsIfd, TAG_GPS_LONGITUDE);
+        if ((latitudeRef < 0) || (latitude < 0) || (longitudeRef < 0) || (longitude < 0)) return false;
+
+        ByteOrder order = getByteOrder(tiff);
+        long tiffStart = layout.exifDataStart + EXIF_HEADER.length;
+        RandomAccessFile file = new RandomAccessFile(jpg, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            write(channel, tiffStart + latitudeRef, getRef(mLatitude, "N", "S"));
+            write(channel, tiffStart + latitude, getDegrees(mLatitude, order));
+            write(channel, tiffStart + longitudeRef, getRef(mLongitude, "E", "W"));
+            write(channel, tiffStart + longitude, getDegrees(mLongitude, order));
+        } finally {
+            FileUtils.close(file, jpg);
+        }
+        return true;
+    }
+
+    /** @return offset of the 4 inline value bytes of an ASCII ref entry or -1 if not found */
+    private static int findInlineRef(TiffReader tiff, int ifd, int tag) {
+        int entry = tiff.findEntry(ifd, tag);
+        if ((entry < 0) || (tiff.getShort(entry + 2) != TiffReader.TYPE_ASCII)) return -1;
+        long count = tiff.getInt(entry + 4);
+        return ((count >= 2) && (count <= 4)) ? (entry + 8) : -1;
+    }
+
+    /** @return offset of the 3 RATIONAL values (degrees, minutes, seconds) or -1 if not found */
+    private static int findDegrees(TiffReader tiff, int ifd, int tag) {
+        int entry = tiff.findEntry(ifd, tag);
+        if ((entry < 0) || (tiff.getShort(entry + 2) != TiffReader.TYPE_RATIONAL) || (tiff.getInt(entry + 4) != 3)) return -1;
+        int offset = (int) tiff.getInt(entry + 8);
+        return ((offset > 0) && (tiff.getBytes(offset, 3 * 8) != null)) ? offset : -1;
+    }
+
+    private static void write(FileChannel channel, long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /** copies the file with an extended exif segment into a temp file that replaces jpg */
+    private void rewrite(File jpg, final JpegLayout layout) throws IOException {
+        byte[] exif = createExif(layout.tiff);
+        if (exif.length + 2 > MAX_SEGMENT_LENGTH) {
+            throw new IOException("ExifGpsPatcher: exif of '" + jpg + "' too big");
+        }
+
+        final ByteBuffer segment = ByteBuffer.allocate(4 + exif.length);
+        segment.put((byte) 0xFF).put((byte) JpegSegmentParser.MARKER_APP1).putShort((short) (exif.length + 2)).put(exif);
+        segment.flip();
+
+        final RandomAccessFile in = new RandomAccessFile(jpg, "r");
+        try {
+            // the original is replaced only if the temp file is complete and synced
+            FileUtils.replace(jpg, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    FileChannel inChannel = in.getChannel();
+                    WritableByteChannel outChannel = Channels.newChannel(out);
+
+                    transfer(inChannel, 0, layout.segmentStart, outChannel);
+                    while (segment.hasRemaining()) {
+                        outChannel.write(segment);
+                    }
+                    transfer(inChannel, layout.segmentEnd, inChannel.size() - layout.segmentEnd, outChannel);
+                }
+            });
+        } finally {
+            FileUtils.close(in, jpg);
+        }
+    }
+
+    private static void transfer(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        while (count > 0) {
+            long done = in.transferTo(position, count, out);
+            if (done <= 0) throw new IOException("ExifGpsPatcher: unexpected end of file");
+            position += done;
+            count -= done;
+        }
+    }
+
+    /**
+     * @param tiff existing exif or null.
+     * @return content of the new exif APP1 segment: the old tiff data followed by a new gps ifd and a new IFD0.
+     */
+    private byte[] createExif(TiffReader tiff) throws IOException {
+        ByteOrder order = (tiff != null) ? getByteOrder(tiff) : ByteOrder.BIG_ENDIAN;
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_SEGMENT_LENGTH).order(order);
+        try {
+            buffer.put(EXIF_HEADER);
+            int ifd0 = 0;
+            if (tiff != null) {
+                ifd0 = tiff.getFirstIfdOffset();
+                buffer.put(tiff.getBytes(0, tiff.getLength()));
+            } else {
+                buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(0);
+            }
+
+            int gpsIfd = (tiff != null) ? (int) tiff.getIntValue(ifd0, TAG_GPS_IFD, 0) : 0;
+            List<byte[]> gpsEntries = getEntries(tiff, gpsIfd,
+                    TAG_GPS_LATITUDE_REF, TAG_GPS_LATITUDE, TAG_GPS_LONGITUDE_REF, TAG_GPS_LONGITUDE);
+            if (findEntry(gpsEntries, TAG_GPS_VERSION_ID, order) == null) {
+                gpsEntries.add(createEntry(order, TAG_GPS_VERSION_ID, TiffReader.TYPE_BYTE, 4, new byte[]{2, 2, 0, 0}));
+            }
+            gpsEntries.add(createEntry(order, TAG_GPS_LATITUDE_REF, TiffReader.TYPE_ASCII, 2, getRef(mLatitude, "N", "S")));
+            gpsEntries.add(createEntry(order, TAG_GPS_LATITUDE, TiffReader.TYPE_RATIONAL, 3,
+                    putData(buffer, getDegrees(mLatitude, order))));
+            gpsEntries.add(createEntry(order, TAG_GPS_LONGITUDE_REF, TiffReader.TYPE_ASCII, 2, getRef(mLongitude, "E", "W")));
+            gpsEntries.add(createEntry(order, TAG_GPS_LONGITUDE, TiffReader.TYPE_RATIONAL, 3,
+                    putData(buffer, getDegrees(mLongitude, order))));
+
+            List<byte[]> ifd0Entries = getEntries(tiff, ifd0, TAG_GPS_IFD);
+            for (int i = 0; i < DEFAULT_TAGS.length; i++) {
+                String value = mDefaultValues[i];
+                if ((value != null) && (findEntry(ifd0Entries, DEFAULT_TAGS[i], order) == null)) {
+                    byte[] ascii = getAscii(value);
+                    ifd0Entries.add(createEntry(order, DEFAULT_TAGS[i], TiffReader.TYPE_ASCII, ascii.length,
+                            (ascii.length <= 4) ? ascii : putData(buffer, ascii)));
+                }
+            }
+
+            int newGpsIfd = putIfd(buffer, gpsEntries, 0, order);
+            ifd0Entries.add(createEntry(order, TAG_GPS_IFD, TiffReader.TYPE_LONG, 1, toBytes(newGpsIfd, order)));
+            long nextIfd = (tiff != null) ? Math.max(0, tiff.getNextIfdOffset(ifd0)) : 0;
+            int newIfd0 = putIfd(buffer, ifd0Entries, nextIfd, order);
+
+            // the tiff header points to the new IFD0. The old one is not referenced any more.
+            buffer.putInt(EXIF_HEADER.length + 4, newIfd0);
+        } catch (BufferOverflowException ex) {
+            throw new IOException("ExifGpsPatcher: exif too big");
+        }
+
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /** @return the raw 12 byte entries of ifd without the entries of excludedTags. */
+    private static List<byte[]> getEntries(TiffReader tiff, int ifd, int... excludedTags) {
+        List<byte[]> result = new ArrayList<>();
+        int count = ((tiff != null) && (ifd > 0)) ? tiff.getShort(ifd) : 0;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * TiffReader.ENTRY_SIZE;
+            byte[] bytes = tiff.getBytes(entry, TiffReader.ENTRY_SIZE);
+            if (bytes == null) break;
+
+            // values that are stored outside the entry keep their offsets because the old tiff data is not moved
+            if (!contains(excludedTags, tiff.getShort(entry))) result.add(bytes);
+        }
+        return result;
+    }
+
+    private static byte[] findEntry(List<byte[]> entries, int tag, ByteOrder order) {
+        for (byte[] entry : entries) {
+            if (getTag(entry, order) == tag) return entry;
+        }
+        return null;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int candidate : values) {
+            if (candidate == value) return true;
+        }
+        return false;
+    }
+
+    private static int getTag(byte[] entry, ByteOrder order) {
+        return ByteBuffer.wrap(entry).order(order).getShort(0) & 0xFFFF;
+    }
+
+    /** @param value up to 4 bytes that are stored inside the entry. */
+    private static byte[] createEntry(ByteOrder order, int tag, int type, int count, byte[] value) {
+        ByteBuffer result = ByteBuffer.allocate(TiffReader.ENTRY_SIZE).order(order);
+        result.putShort((short) tag).putShort((short) type).putInt(count).put(value);
+        return result.array();
+    }
+
+    /** appends data word aligned to the tiff in buffer. @return its offset as 4 bytes for the entry */
+    private static byte[] putData(ByteBuffer buffer, byte[] data) {
+        int offset = align(buffer);
+        buffer.put(data);
+        return toBytes(offset, buffer.order());
+    }
+
+    /** appends an ifd with entries sorted by tag to the tiff in buffer. @return its offset */
+    private static int putIfd(ByteBuffer buffer, List<byte[]> entries, long nextIfd, final ByteOrder order) {
+        Collections.sort(entries, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] lhs, byte[] rhs) {
+                return getTag(lhs, order) - getTag(rhs, order);
+            }
+        });
+        int offset = align(buffer);
+        buffer.putShort((short) entries.size());
+        for (byte[] entry : entries) {
+            buffer.put(entry);
+        }
+        buffer.putInt((int) nextIfd);
+        return offset;
+    }
+
+    /** @return the position in buffer as tiff offset after padding it to an even value */
+    private static int align(ByteBuffer buffer) {
+        if (((buffer.position() - EXIF_HEADER.length) & 1) != 0) buffer.put((byte) 0);
+        return buffer.position() - EXIF_HEADER.length;
+    }
+
+    private static byte[] toBytes(int value, ByteOrder order) {
+        return ByteBuffer.allocate(4).order(order).putInt(value).array();
+    }
+
+    private static ByteOrder getByteOrder(TiffReader tiff) {
+        return (tiff.isLittleEndian()) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /** @return 4 bytes for the inline value of a ref entry with count 2: the letter and 0 padding */
+    private static byte[] getRef(double value, String positive, String negative) {
+        return new byte[]{(byte) ((value < 0.0d) ? negative : positive).charAt(0), 0, 0, 0};
+    }
+
+    private static byte[] getAscii(String value) {
+        try {
+            return (value + "\0").getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return (value + "\0").getBytes();
+        }
+    }
+
+    /**
+     * @return 3 RATIONAL values degrees/1, minutes/1, milliseconds/1000 i.e.
+     * -79.948862 becomes 79/1,56/1,55903/1000 (the same format as android ExifInterface uses)
+     */
+    static byte[] getDegrees(double value, ByteOrder order) {
+        value = Math.abs(value);
+        int degree = (int) value;
+        value *= 60;
+        value -= (degree * 60.0d);
+        int minute = (int) value;
+        value *= 60;
+        value -= (minute * 60.0d);
+        int second = (int) (value * 1000.0d);
+
+        ByteBuffer result = ByteBuffer.allocate(3 * 8).order(order);
+        result.putInt(degree).putInt(1).putInt(minute).putInt(1).putInt(second).putInt(1000);
+        return result.array();
+    }
+
+    /** positions of the segments in the jpg header that are relevant for patching */
+    private static class JpegLayout {
+        /** the existing exif or null */
+        TiffReader tiff = null;
+        /** file position of the exif content "Exif\0\0" */
+        long exifDataStart = -1;
+        /** file position where the new exif segment starts: the old exif segment or after SOI/APP0 */
+        long segmentStart = -1;
+        /** file position after the old exif segment. Same as segmentStart if there is no exif */
+        long segmentEnd = -1;
+
+        static JpegLayout read(File jpg) throws IOException {
+            RandomAccessFile in = new RandomAccessFile(jpg, "r");
+            try {
+                return read(in, jpg);
+            } finally {
+                FileUtils.close(in, jpg);
+            }
+        }
+
+        private static JpegLayout read(RandomAccessFile in, File jpg) throws IOException {
+            JpegLayout result = new JpegLayout();
+            if ((in.read() != 0xFF) || (in.read() != JpegSegmentParser.MARKER_SOI)) {
+                throw new IOException("ExifGpsPatcher: '" + jpg + "' is not a jpg");
+            }
+
+            // a new exif segment must follow a JFIF APP0 segment
+            result.segmentStart = in.getFilePointer();
+            while (true) {
+                long markerStart = in.getFilePointer();
+                if (in.read() != 0xFF) break;
+                int marker;
+                do {
+                    marker = in.read();
+                } while (marker == 0xFF);
+                if ((marker < 0) || (marker == JpegSegmentParser.MARKER_SOS) || (marker == JpegSegmentParser.MARKER_EOI)) break;
+                if ((marker == 0x01) || ((marker >= 0xD0) && (marker <= 0xD7))) continue; // standalone marker
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) break;
+                long dataStart = in.getFilePointer();
+                if ((marker == JpegSegmentParser.MARKER_APP1) && (length >= EXIF_HEADER.length)) {
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    TiffReader tiff = TiffReader.fromApp1(data);
+                    if (tiff != null) {
+                        result.tiff = tiff;
+                        result.exifDataStart = dataStart;
+                        result.segmentStart = markerStart;
+                        result.segmentEnd = dataStart + length;
+                        return result;
+                    }
+                } else if ((marker == MARKER_APP0) && (markerStart == 2)) {
+                    result.segmentStart = dataStart + length;
+                }
+                in.seek(dataStart + length);
+            }
+            result.segmentEnd = result.segmentStart;
+            return result;
+        }
+    }
+}
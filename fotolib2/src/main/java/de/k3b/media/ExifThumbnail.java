@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Extracts the small jpg thumbnail (typically 160x120) that most cameras embed into the exif data.<br/>
+ *
+ * Only the jpg header up to the exif APP1 segment is read, which is a few KB instead of the whole file.
+ */
+public class ExifThumbnail {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    /** IFD1 tag: offset of the thumbnail jpg */
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    /** IFD1 tag: length of the thumbnail jpg */
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    /** the exif segment is at the beginning of the file so a small buffer is enough */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** @return the embedded jpg thumbnail or null if the file has none or cannot be read */
+    public static byte[] getThumbnail(File jpgFile) {
+        if ((jpgFile == null) || !jpgFile.isFile()) return null;
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(jpgFile), BUFFER_SIZE);
+            return getThumbnail(in);
+        } catch (IOException e) {
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("ExifThumbnail.getThumbnail('" + jpgFile + "') failed: " + e.getMessage());
+            }
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /** @return the embedded jpg thumbnail or null if the jpg stream has none */
+    public static byte[] getThumbnail(InputStream jpgStream) throws IOException {
+        final byte[][] result = new byte[1][];
+        JpegSegmentParser.parse(jpgStream, new JpegSegmentParser.SegmentHandler() {
+            @Override
+            public boolean isInterestedIn(int marker) {
+                return marker == JpegSegmentParser.MARKER_APP1;
+            }
+
+            @Override
+            public boolean onSegment(int marker, byte[] data) {
+                TiffReader tiff = TiffReader.fromApp1(data);
+                if (tiff == null) return true; // i.e. xmp APP1: continue searching for exif
+
+                result[0] = getThumbnail(tiff);
+                return false;
+            }
+        });
+        return result[0];
+    }
+
+    static byte[] getThumbnail(TiffReader tiff) {
+        int ifd1 = tiff.getNextIfdOffset(tiff.getFirstIfdOffset());
+        if (ifd1 <= 0) return null;
+
+        long offset = tiff.getIntValue(ifd1, TAG_JPEG_INTERCHANGE_FORMAT, -1);
+        long length = tiff.getIntValue(ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, -1);
+        if ((offset <= 0) || (length <= 2)) return null;
+
+        byte[] result = tiff.getBytes((int) offset, (int) length);
+
+        // must start with jpg SOI
+        if ((result == null) || ((result[0] & 0xFF) != 0xFF) || ((result[1] & 0xFF) != JpegSegmentParser.MARKER_SOI)) {
+            return null;
+        }
+        return result;
+    }
+}
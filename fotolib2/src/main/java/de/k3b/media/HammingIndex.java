@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multi-index hashing: finds all 64 bit hashes within a small hamming distance
+ * without comparing with every hash, so searching for similar images stays fast
+ * for 100000 and more images.<br/>
+ *
+ * The hash is split into maxDistance + 1 chunks. If two hashes differ in at most maxDistance bits
+ * at least one chunk must be identical (pigeonhole principle). So only the hashes that share
+ * a chunk with the query are candidates and have to be compared.<br/>
+ *
+ * For every chunk the hashes are sorted by chunk value into one array (counting sort)
+ * so that a search reads the candidates sequentially. The arrays are rebuilt by the
+ * first search after {@link #add(long, Object)}. Not thread safe.
+ */
+public class HammingIndex<T> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** more than 16 bits per chunk would need huge tables: the remaining bits are compared later */
+    private static final int MAX_CHUNK_BITS = 16;
+
+    private final int mMaxDistance;
+    private final int mChunkCount;
+    private final int[] mChunkShift;
+    private final int[] mChunkMask;
+
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    private Object[] mItems = new Object[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    /** chunk => chunk-value => first position in mBucketHashes/mBucketIndexes. one more entry as end marker */
+    private final int[][] mBucketStart;
+    /** chunk => hashes sorted by chunk-value */
+    private long[][] mBucketHashes = null;
+    /** chunk => index into mItems in the same order as mBucketHashes */
+    private int[][] mBucketIndexes = null;
+    private boolean mMustRebuild = false;
+
+    /** number of hash comparisons of the last {@link #search(long, List)} */
+    private int mLastCompareCount = 0;
+
+    /** @param maxDistance the hamming distance that is searched for. 0..15 */
+    public HammingIndex(int maxDistance) {
+        if ((maxDistance < 0) || (maxDistance > 15)) {
+            throw new IllegalArgumentException("HammingIndex(maxDistance=" + maxDistance + ")");
+        }
+        mMaxDistance = maxDistance;
+        mChunkCount = maxDistance + 1;
+        mChunkShift = new int[mChunkCount];
+        mChunkMask = new int[mChunkCount];
+        mBucketStart = new int[mChunkCount][];
+
+        int shift = 0;
+        for (int chunk = 0; chunk < mChunkCount; chunk++) {
+            // distribute 64 bits as evenly as possible
+            int bits = 64 / mChunkCount + ((chunk < 64 % mChunkCount) ? 1 : 0);
+            int usedBits = Math.min(bits, MAX_CHUNK_BITS);
+            mChunkShift[chunk] = shift;
+            mChunkMask[chunk] = (1 << usedBits) - 1;
+            mBucketStart[chunk] = new int[(1 << usedBits) + 1];
+            shift += bits;
+        }
+    }
+
+    public HammingIndex<T> add(long hash, T item) {
+        if (mSize == mHashes.length) {
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+            mItems = Arrays.copyOf(mItems, mSize * 2);
+        }
+        mHashes[mSize] = hash;
+        mItems[mSize] = item;
+        mSize++;
+        mMustRebuild = true;
+        return this;
+    }
+
+    /**
+     * @param hash to search for
+     * @param result all items with a hash within maxDistance of the constructor are added here.
+     *               If null a new list is created.
+     * @return result
+     */
+    public List<T> search(long hash, List<T> result) {
+        if (result == null) result = new ArrayList<T>();
+        if (mMustRebuild) rebuild();
+
+        int compareCount = 0;
+        if (mBucketHashes != null) {
+            for (int chunk = 0; chunk < mChunkCount; chunk++) {
+                int value = getChunk(hash, chunk);
+                int end = mBucketStart[chunk][value + 1];
+                long[] hashes = mBucketHashes[chunk];
+                for (int pos = mBucketStart[chunk][value]; pos < end; pos++) {
+                    compareCount++;
+                    long candidate = hashes[pos];
+                    if ((PerceptualHash.distance(candidate, hash) <= mMaxDistance)
+                            && !isFoundInPreviousChunk(candidate, hash, chunk)) {
+                        result.add(getItem(mBucketIndexes[chunk][pos]));
+                    }
+                }
+            }
+        }
+        mLastCompareCount = compareCount;
+        return result;
+    }
+
+    /** number of items added */
+    public int size() {
+        return mSize;
+    }
+
+    public int getMaxDistance() {
+        return mMaxDistance;
+    }
+
+    /** number of hash comparisons of the last {@link #search(long, List)} */
+    public int getLastCompareCount() {
+        return mLastCompareCount;
+    }
+
+    /** a candidate is reported only for the first chunk that is identical so that it is not found twice */
+    private boolean isFoundInPreviousChunk(long candidate, long hash, int chunk) {
+        for (int previous = 0; previous < chunk; previous++) {
+            if (getChunk(candidate, previous) == getChunk(hash, previous)) return true;
+        }
+        return false;
+    }
+
+    /** counting sort of all hashes by chunk-value for every chunk */
+    private void rebuild() {
+        mBucketHashes = new long[mChunkCount][mSize];
+        mBucketIndexes = new int[mChunkCount][mSize];
+        for (int chunk = 0; chunk < mChunkCount; chunk++) {
+            int[] start = mBucketStart[chunk];
+            Arrays.fill(start, 0);
+            for (int i = 0; i < mSize; i++) {
+                start[getChunk(mHashes[i], chunk) + 1]++;
+            }
+            for (int value = 1; value < start.length; value++) {
+                start[value] += start[value - 1];
+            }
+
+            int[] next = Arrays.copyOf(start, start.length - 1);
+            long[] hashes = mBucketHashes[chunk];
+            int[] indexes = mBucketIndexes[chunk];
+            for (int i = 0; i < mSize; i++) {
+                int pos = next[getChunk(mHashes[i], chunk)]++;
+                hashes[pos] = mHashes[i];
+                indexes[pos] = i;
+            }
+        }
+        mMustRebuild = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T getItem(int index) {
+        return (T) mItems[index];
+    }
+
+    private int getChunk(long hash, int chunk) {
+        return (int) (hash >>> mChunkShift[chunk]) & mChunkMask[chunk];
+    }
+}
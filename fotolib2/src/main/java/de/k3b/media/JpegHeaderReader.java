@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Reads the metadata that the media database needs from a jpg in one pass over the file header:
+ * image size, mime, exif orientation, exif DateTimeOriginal and exif gps.<br/>
+ *
+ * Reading stops at the start of the compressed image data (SOS) so usually only a few KB are read.
+ */
+public class JpegHeaderReader {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    public static final String MIME_JPEG = "image/jpeg";
+
+    /** exif orientation value if not available */
+    public static final int NO_ORIENTATION = -1;
+
+    // exif tags
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /** the header is at the beginning of the file so a small buffer is enough */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mOrientation = NO_ORIENTATION;
+    private Date mDateTimeTaken = null;
+    private double mLatitude = Double.NaN;
+    private double mLongitude = Double.NaN;
+
+    private boolean mHasSize = false;
+    private boolean mHasExif = false;
+
+    /**
+     * @return the header infos of jpgFile or null if it is not a jpg or cannot be read.
+     */
+    public static JpegHeaderReader read(File jpgFile) {
+        if ((jpgFile == null) || !jpgFile.isFile()) return null;
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(jpgFile), BUFFER_SIZE);
+            return read(in);
+        } catch (IOException e) {
+            if (FotoLibGlobal.debugEnabled) {
+                logger.debug("JpegHeaderReader.read('" + jpgFile + "') failed: " + e.getMessage());
+            }
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the header infos of jpgStream or null if it is not a jpg.
+     */
+    public static JpegHeaderReader read(InputStream jpgStream) throws IOException {
+        final JpegHeaderReader result = new JpegHeaderReader();
+        boolean isJpg = JpegSegmentParser.parse(jpgStream, new JpegSegmentParser.SegmentHandler() {
+            @Override
+            public boolean isInterestedIn(int marker) {
+                return ((marker == JpegSegmentParser.MARKER_APP1) && !result.mHasExif)
+                        || isStartOfFrame(marker);
+            }
+
+            @Override
+            public boolean onSegment(int marker, byte[] data) {
+                if (isStartOfFrame(marker)) {
+                    result.parseStartOfFrame(data);
+                } else {
+                    result.parseExif(TiffReader.fromApp1(data));
+                }
+
+                // the image size is in the last segment that we need
+                return !result.mHasSize;
+            }
+        });
+        return (isJpg) ? result : null;
+    }
+
+    /** @return true if marker is one of SOF0..SOF15 that contain the image size. */
+    private static boolean isStartOfFrame(int marker) {
+        return (marker >= 0xC0) && (marker <= 0xCF)
+                && (marker != 0xC4) // DHT
+                && (marker != 0xC8) // JPG
+                && (marker != 0xCC); // DAC
+    }
+
+    private void parseStartOfFrame(byte[] data) {
+        // precision(1), height(2), width(2), ...
+        if (data.length >= 5) {
+            mHeight = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+            mWidth = ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+            mHasSize = true;
+        }
+    }
+
+    private void parseExif(TiffReader tiff) {
+        if (tiff == null) return; // i.e. xmp APP1
+        mHasExif = true;
+
+        int ifd0 = tiff.getFirstIfdOffset();
+        mOrientation = (int) tiff.getIntValue(ifd0, TAG_ORIENTATION, NO_ORIENTATION);
+
+        int exifIfd = (int) tiff.getIntValue(ifd0, TAG_EXIF_IFD, 0);
+        String dateTime = tiff.getStringValue(exifIfd, TAG_DATETIME_ORIGINAL);
+        if (dateTime == null) dateTime = tiff.getStringValue(ifd0, TAG_DATETIME);
+        mDateTimeTaken = parseDateTime(dateTime);
+
+        int gpsIfd = (int) tiff.getIntValue(ifd0, TAG_GPS_IFD, 0);
+        if (gpsIfd > 0) {
+            double latitude = getDegrees(tiff.getRationalValues(gpsIfd, TAG_GPS_LATITUDE),
+                    tiff.getStringValue(gpsIfd, TAG_GPS_LATITUDE_REF), "S");
+            double longitude = getDegrees(tiff.getRationalValues(gpsIfd, TAG_GPS_LONGITUDE),
+                    tiff.getStringValue(gpsIfd, TAG_GPS_LONGITUDE_REF), "W");
+            if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+                mLatitude = latitude;
+                mLongitude = longitude;
+            }
+        }
+    }
+
+    /** @return degrees from exif (degrees, minutes, seconds) or NaN if not available */
+    private static double getDegrees(double[] degreesMinutesSeconds, String ref, String negativeRef) {
+        if ((degreesMinutesSeconds == null) || (degreesMinutesSeconds.length < 3)) return Double.NaN;
+        double result = degreesMinutesSeconds[0]
+                + degreesMinutesSeconds[1] / 60.0
+                + degreesMinutesSeconds[2] / 3600.0;
+        return (negativeRef.equalsIgnoreCase(ref)) ? -result : result;
+    }
+
+    /** @return date from exif format "yyyy:MM:dd HH:mm:ss" interpreted as UTC like android's ExifInterface or null */
+    static Date parseDateTime(String dateTime) {
+        // parsed by hand because SimpleDateFormat is expensive to create and not thread safe
+        if ((dateTime == null) || (dateTime.length() < 19)) return null;
+        try {
+            Calendar calendar = new GregorianCalendar(UTC);
+            calendar.clear();
+            calendar.set(
+                    Integer.parseInt(dateTime.substring(0, 4)),
+                    Integer.parseInt(dateTime.substring(5, 7)) - 1,
+                    Integer.parseInt(dateTime.substring(8, 10)),
+                    Integer.parseInt(dateTime.substring(11, 13)),
+                    Integer.parseInt(dateTime.substring(14, 16)),
+                    Integer.parseInt(dateTime.substring(17, 19)));
+            return calendar.getTime();
+        } catch (NumberFormatException e) {
+            // i.e. "    :  :     :  :  " if camera has no date
+            return null;
+        }
+    }
+
+    /** @return image width in pixels or 0 if not available */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** @return image height in pixels or 0 if not available */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getMimeType() {
+        return MIME_JPEG;
+    }
+
+    /** @return exif orientation (1..8) or {@link #NO_ORIENTATION} */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /** @return exif DateTimeOriginal (or DateTime if there is no DateTimeOriginal) or null */
+    public Date getDateTimeTaken() {
+        return mDateTimeTaken;
+    }
+
+    /** @return true if exif contains gps */
+    public boolean hasLatLon() {
+        return !Double.isNaN(mLatitude);
+    }
+
+    /** @return latitude in degrees north or NaN if not available */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /** @return longitude in degrees east or NaN if not available */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    @Override
+    public String toString() {
+        return "JpegHeaderReader[" + mWidth + "x" + mHeight +
+                ", orientation=" + mOrientation +
+                ", taken=" + mDateTimeTaken +
+                ", lat/lon=" + mLatitude + "/" + mLongitude + "]";
+    }
+}
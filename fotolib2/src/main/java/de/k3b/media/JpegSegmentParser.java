@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the header segments of a jpg file without reading the compressed image data.<br/>
+ *
+ * Only segments that the {@link SegmentHandler} is interested in are loaded into memory.
+ * All other segments are skipped. Parsing stops at the start of the image data (SOS).
+ */
+public class JpegSegmentParser {
+    /** start of image */
+    public static final int MARKER_SOI = 0xD8;
+    /** end of image */
+    public static final int MARKER_EOI = 0xD9;
+    /** start of scan: the compressed image data follows */
+    public static final int MARKER_SOS = 0xDA;
+    /** application segment that contains exif data */
+    public static final int MARKER_APP1 = 0xE1;
+
+    /** receives the segments of a jpg file */
+    public interface SegmentHandler {
+        /** @return true if the content of the segment with this marker should be passed to {@link #onSegment(int, byte[])} */
+        boolean isInterestedIn(int marker);
+
+        /** @return false if parsing should stop after this segment */
+        boolean onSegment(int marker, byte[] data);
+    }
+
+    /**
+     * Parses the segments of a jpg stream.
+     *
+     * @return false if the stream is not a jpg
+     */
+    public static boolean parse(InputStream stream, SegmentHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if ((in.read() != 0xFF) || (in.read() != MARKER_SOI)) return false;
+
+        while (true) {
+            int marker = readMarker(in);
+            if ((marker < 0) || (marker == MARKER_SOS) || (marker == MARKER_EOI)) return true;
+
+            if (isStandalone(marker)) continue; // no length and no content
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) return true; // corrupt file
+
+            if (handler.isInterestedIn(marker)) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (!handler.onSegment(marker, data)) return true;
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /** @return next marker or -1 if end of stream */
+    private static int readMarker(InputStream in) throws IOException {
+        int value = in.read();
+        if (value != 0xFF) return -1; // end of stream or corrupt file
+
+        // a marker may be preceded by any number of fill bytes 0xFF
+        do {
+            value = in.read();
+        } while (value == 0xFF);
+        return value;
+    }
+
+    /** @return true if the marker has no length and no content */
+    private static boolean isStandalone(int marker) {
+        return (marker == 0x01) || ((marker >= 0xD0) && (marker <= 0xD7));
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import java.math.BigInteger;
+
+/**
+ * Perceptual "difference hash" (dHash) of an image: similar looking images (re-saved with other
+ * jpg quality, resized, slightly brighter, burst shots) get hashes with a small hamming distance.<br/>
+ *
+ * The image (usually the small thumbnail) is reduced to 9x8 gray values and each bit of the 64 bit hash
+ * tells if a gray value is brighter than its right neighbour.
+ * Pure java so that it does not depend on android bitmaps.
+ */
+public class PerceptualHash {
+    private static final int HASH_WIDTH = 8;
+    private static final int HASH_HEIGHT = 8;
+
+    /** one column more than bits per row because neighbours are compared */
+    private static final int GRID_WIDTH = HASH_WIDTH + 1;
+
+    /** hamming distance up to which two images are considered similar */
+    public static final int DEFAULT_MAX_DISTANCE = 6;
+
+    /**
+     * @param argbPixels image content row by row as delivered by android.graphics.Bitmap.getPixels()
+     * @param width of image. must be > 0
+     * @param height of image. must be > 0
+     * @return the 64 bit difference hash
+     */
+    public static long dHash(int[] argbPixels, int width, int height) {
+        if ((width <= 0) || (height <= 0) || (argbPixels.length < width * height)) {
+            throw new IllegalArgumentException("PerceptualHash.dHash(" + width + "x" + height
+                    + ") with " + argbPixels.length + " pixels");
+        }
+
+        // area average of the gray values per grid cell so that all pixels contribute
+        long[] sum = new long[GRID_WIDTH * HASH_HEIGHT];
+        int[] count = new int[GRID_WIDTH * HASH_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int row = (y * HASH_HEIGHT / height) * GRID_WIDTH;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int cell = row + (x * GRID_WIDTH / width);
+                sum[cell] += gray(argbPixels[offset + x]);
+                count[cell]++;
+            }
+        }
+
+        // images smaller than the grid have cells without pixels: use the left neighbour
+        long[] average = new long[sum.length];
+        for (int cell = 0; cell < sum.length; cell++) {
+            if (count[cell] > 0) {
+                average[cell] = (sum[cell] << 8) / count[cell];
+            } else if ((cell % GRID_WIDTH) > 0) {
+                average[cell] = average[cell - 1];
+            }
+        }
+
+        long result = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            int row = y * GRID_WIDTH;
+            for (int x = 0; x < HASH_WIDTH; x++) {
+                result <<= 1;
+                if (average[row + x] > average[row + x + 1]) {
+                    result |= 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return number of different bits between the two hashes (0..64) */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /** @return hash formatted as 16 hex digits */
+    public static String toString(long hash) {
+        String result = Long.toHexString(hash);
+        while (result.length() < 16) {
+            result = "0" + result;
+        }
+        return result;
+    }
+
+    /** @return hash parsed from {@link #toString(long)} */
+    public static long parse(String hash) {
+        // Long.parseLong cannot parse values with the highest bit set
+        return new BigInteger(hash, 16).longValue();
+    }
+
+    /** luminance 0..255 of argb pixel (ITU-R 601 weights) */
+    private static int gray(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
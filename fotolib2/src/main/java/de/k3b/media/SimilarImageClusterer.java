@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.k3b.FotoLibGlobal;
+
+/**
+ * Groups images by their {@link PerceptualHash} into clusters of similar images
+ * (burst shots, re-saved or resized copies).<br/>
+ *
+ * Two images belong to the same cluster if the hamming distance of their hashes is at most maxDistance
+ * or if they are connected through other images of the cluster (single linkage).
+ * Neighbours are found with a {@link HammingIndex} so the effort does not grow quadratic with the number of images.
+ */
+public class SimilarImageClusterer {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private final int mMaxDistance;
+
+    public SimilarImageClusterer(int maxDistance) {
+        mMaxDistance = maxDistance;
+    }
+
+    /**
+     * @param hashes image-path => perceptual hash
+     * @return clusters with more than one image. Each cluster is sorted by path,
+     * the clusters are sorted by their first path.
+     */
+    public List<List<String>> cluster(Map<String, Long> hashes) {
+        long startTime = System.currentTimeMillis();
+
+        List<String> paths = new ArrayList<String>(hashes.keySet());
+        HammingIndex<Integer> index = new HammingIndex<Integer>(mMaxDistance);
+        for (int i = 0; i < paths.size(); i++) {
+            index.add(hashes.get(paths.get(i)), i);
+        }
+
+        // union find over the indexes of paths
+        int[] parent = new int[paths.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        long compareCount = 0;
+        List<Integer> neighbours = new ArrayList<Integer>();
+        for (int i = 0; i < paths.size(); i++) {
+            neighbours.clear();
+            index.search(hashes.get(paths.get(i)), neighbours);
+            compareCount += index.getLastCompareCount();
+            for (Integer neighbour : neighbours) {
+                union(parent, i, neighbour);
+            }
+        }
+
+        Map<Integer, List<String>> clusters = new HashMap<Integer, List<String>>();
+        for (int i = 0; i < paths.size(); i++) {
+            Integer root = find(parent, i);
+            List<String> cluster = clusters.get(root);
+            if (cluster == null) {
+                cluster = new ArrayList<String>(2);
+                clusters.put(root, cluster);
+            }
+            cluster.add(paths.get(i));
+        }
+
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (List<String> cluster : clusters.values()) {
+            if (cluster.size() > 1) {
+                Collections.sort(cluster);
+                result.add(cluster);
+            }
+        }
+        Collections.sort(result, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> lhs, List<String> rhs) {
+                return lhs.get(0).compareTo(rhs.get(0));
+            }
+        });
+
+        if (FotoLibGlobal.debugEnabled) {
+            logger.debug("SimilarImageClusterer: " + paths.size() + " images, " + result.size() + " clusters, "
+                    + compareCount + " hash compares in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            // path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads tags from the tiff structure inside the exif APP1 segment of a jpg.<br/>
+ *
+ * All offsets are relative to the start of the tiff header. Invalid offsets are treated as missing values.
+ */
+class TiffReader {
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /** ifd entry type for unsigned 8 bit */
+    static final int TYPE_BYTE = 1;
+    /** ifd entry type for 0 terminated text */
+    static final int TYPE_ASCII = 2;
+    /** ifd entry type for unsigned 16 bit */
+    static final int TYPE_SHORT = 3;
+    /** ifd entry type for unsigned 32 bit */
+    static final int TYPE_LONG = 4;
+    /** ifd entry type for two unsigned 32 bit: numerator and denominator */
+    static final int TYPE_RATIONAL = 5;
+
+    /** size of one ifd entry: tag(2) type(2) count(4) value-or-offset(4) */
+    static final int ENTRY_SIZE = 12;
+
+    private final byte[] mData;
+    private final int mStart;
+    private final boolean mLittleEndian;
+
+    private TiffReader(byte[] data, int start, boolean littleEndian) {
+        mData = data;
+        mStart = start;
+        mLittleEndian = littleEndian;
+    }
+
+    /** @return reader for the content of a jpg APP1 segment or null if it contains no exif */
+    static TiffReader fromApp1(byte[] app1) {
+        if ((app1 == null) || (app1.length < EXIF_HEADER.length + 8)) return null;
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (app1[i] != EXIF_HEADER[i]) return null;
+        }
+
+        int start = EXIF_HEADER.length;
+        boolean littleEndian;
+        if ((app1[start] == 'I') && (app1[start + 1] == 'I')) {
+            littleEndian = true;
+        } else if ((app1[start] == 'M') && (app1[start + 1] == 'M')) {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+
+        TiffReader result = new TiffReader(app1, start, littleEndian);
+        if (result.getShort(2) != 42) return null;
+        return result;
+    }
+
+    /** @return true if the tiff structure is "II" (intel) else "MM" (motorola) */
+    boolean isLittleEndian() {
+        return mLittleEndian;
+    }
+
+    /** @return number of bytes of the tiff structure */
+    int getLength() {
+        return mData.length - mStart;
+    }
+
+    /** @return offset of the first ifd (IFD0 with the main image infos) or 0 if there is none */
+    int getFirstIfdOffset() {
+        return (int) getInt(4);
+    }
+
+    /** @return offset of the ifd following ifdOffset (IFD1 with the thumbnail follows IFD0) or 0 if there is none */
+    int getNextIfdOffset(int ifdOffset) {
+        int count = getShort(ifdOffset);
+        if (count < 0) return 0;
+        return (int) getInt(ifdOffset + 2 + count * ENTRY_SIZE);
+    }
+
+    /** @return offset of the ifd entry with tag or -1 if not found */
+    int findEntry(int ifdOffset, int tag) {
+        if (ifdOffset <= 0) return -1;
+        int count = getShort(ifdOffset);
+        for (int i = 0; i < count; i++) {
+            int entryOffset = ifdOffset + 2 + i * ENTRY_SIZE;
+            int entryTag = getShort(entryOffset);
+            if (entryTag == tag) return entryOffset;
+            if (entryTag < 0) return -1;
+        }
+        return -1;
+    }
+
+    /** @return value of a SHORT or LONG entry with tag or notFoundValue */
+    long getIntValue(int ifdOffset, int tag, long notFoundValue) {
+        int entryOffset = findEntry(ifdOffset, tag);
+        if (entryOffset < 0) return notFoundValue;
+
+        switch (getShort(entryOffset + 2)) {
+            case TYPE_SHORT:
+                return getShort(entryOffset + 8);
+            case TYPE_LONG:
+                return getInt(entryOffset + 8);
+            default:
+                return notFoundValue;
+        }
+    }
+
+    /** @return value of an ASCII entry with tag or null if not found */
+    String getStringValue(int ifdOffset, int tag) {
+        int entryOffset = findEntry(ifdOffset, tag);
+        if ((entryOffset < 0) || (getShort(entryOffset + 2) != TYPE_ASCII)) return null;
+
+        int count = (int) getInt(entryOffset + 4);
+        // values with up to 4 bytes are stored inside the entry
+        int valueOffset = (count <= 4) ? (entryOffset + 8) : (int) getInt(entryOffset + 8);
+        byte[] bytes = getBytes(valueOffset, count);
+        if (bytes == null) return null;
+
+        int length = 0;
+        while ((length < bytes.length) && (bytes[length] != 0)) length++;
+        try {
+            return new String(bytes, 0, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes, 0, length);
+        }
+    }
+
+    /** @return values of a RATIONAL entry with tag or null if not found */
+    double[] getRationalValues(int ifdOffset, int tag) {
+        int entryOffset = findEntry(ifdOffset, tag);
+        if ((entryOffset < 0) || (getShort(entryOffset + 2) != TYPE_RATIONAL)) return null;
+
+        int count = (int) getInt(entryOffset + 4);
+        int valueOffset = (int) getInt(entryOffset + 8);
+        if ((count <= 0) || (valueOffset < 0) || (valueOffset + 8L * count > getLength())) return null;
+
+        double[] result = new double[count];
+        for (int i = 0; i < count; i++) {
+            long numerator = getInt(valueOffset + 8 * i);
+            long denominator = getInt(valueOffset + 8 * i + 4);
+            if (denominator == 0) return null;
+            result[i] = ((double) numerator) / denominator;
+        }
+        return result;
+    }
+
+    /** @return copy of length bytes at offset or null if out of range */
+    byte[] getBytes(int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset + length > getLength())) return null;
+        byte[] result = new byte[length];
+        System.arraycopy(mData, mStart + offset, result, 0, length);
+        return result;
+    }
+
+    /** @return unsigned 16 bit value at offset or -1 if out of range */
+    int getShort(int offset) {
+        if ((offset < 0) || (offset + 2 > getLength())) return -1;
+        int b0 = mData[mStart + offset] & 0xFF;
+        int b1 = mData[mStart + offset + 1] & 0xFF;
+        return (mLittleEndian) ? ((b1 << 8) | b0) : ((b0 << 8) | b1);
+    }
+
+    /** @return unsigned 32 bit value at offset or -1 if out of range */
+    long getInt(int offset) {
+        if ((offset < 0) || (offset + 4 > getLength())) return -1;
+        long result = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = mData[mStart + offset + ((mLittleEndian) ? (3 - i) : i)] & 0xFF;
+            result = (result << 8) | b;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.media;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal streaming xml tokenizer for xmp sidecar files.<br/>
+ *
+ * Splits the content into tags and text and keeps the raw text of every token
+ * so that a writer can copy unchanged tokens as they are.
+ * Does no validation and does not resolve namespaces: names are used as written (i.e. "exif:GPSLatitude").
+ */
+class XmlTokenizer {
+    static final int EOF = 0;
+    /** text between tags */
+    static final int TEXT = 1;
+    /** &lt;name ...&gt; or &lt;name .../&gt; */
+    static final int START_TAG = 2;
+    /** &lt;/name&gt; */
+    static final int END_TAG = 3;
+    /** comment, processing instruction (i.e. xpacket), cdata or doctype */
+    static final int OTHER = 4;
+
+    private final Reader mReader;
+    private int mPeek = -1;
+
+    private int mType = EOF;
+    private final StringBuilder mRaw = new StringBuilder();
+    private String mName = null;
+
+    XmlTokenizer(Reader reader) {
+        mReader = reader;
+    }
+
+    /** @return type of the next token */
+    int next() throws IOException {
+        mRaw.setLength(0);
+        mName = null;
+
+        int c = read();
+        if (c < 0) return mType = EOF;
+
+        if (c != '<') {
+            while ((c >= 0) && (c != '<')) {
+                mRaw.append((char) c);
+                c = read();
+            }
+            mPeek = c;
+            return mType = TEXT;
+        }
+
+        mRaw.append('<');
+        c = read();
+        if ((c == '!') || (c == '?')) {
+            readOther(c);
+            return mType = OTHER;
+        }
+
+        // tag: ">" inside quoted attribute values does not end the tag
+        int quote = 0;
+        while (c >= 0) {
+            mRaw.append((char) c);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if ((c == '"') || (c == '\'')) {
+                quote = c;
+            } else if (c == '>') {
+                break;
+            }
+            c = read();
+        }
+
+        boolean end = (mRaw.length() > 1) && (mRaw.charAt(1) == '/');
+        int start = (end) ? 2 : 1;
+        int pos = start;
+        while ((pos < mRaw.length()) && isNameChar(mRaw.charAt(pos))) pos++;
+        mName = mRaw.substring(start, pos);
+        return mType = (end) ? END_TAG : START_TAG;
+    }
+
+    private void readOther(int c) throws IOException {
+        mRaw.append((char) c);
+        String terminator = (c == '?') ? "?>" : ">";
+        boolean comment = false;
+        while ((c = read()) >= 0) {
+            mRaw.append((char) c);
+            if ((mRaw.length() == 4) && (mRaw.indexOf("<!--") == 0)) {
+                comment = true;
+                terminator = "-->";
+            } else if ((mRaw.length() == 9) && (mRaw.indexOf("<![CDATA[") == 0)) {
+                terminator = "]]>";
+            }
+            if (endsWith(mRaw, terminator) && (!comment || (mRaw.length() >= 7))) return;
+        }
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    /** @return the token as it was in the input */
+    String getRaw() {
+        return mRaw.toString();
+    }
+
+    /** @return name of START_TAG or END_TAG */
+    String getName() {
+        return mName;
+    }
+
+    /** @return true if the current START_TAG ends with "/&gt;" */
+    boolean isEmptyElement() {
+        return (mType == START_TAG) && endsWith(mRaw, "/>");
+    }
+
+    /** @return attribute names and decoded values of the current START_TAG in document order */
+    Map<String, String> getAttributes() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        if (mType != START_TAG) return result;
+
+        String raw = getRaw();
+        int pos = 1 + mName.length();
+        int length = raw.length();
+        while (pos < length) {
+            while ((pos < length) && !isNameChar(raw.charAt(pos))) pos++;
+            int nameStart = pos;
+            while ((pos < length) && isNameChar(raw.charAt(pos))) pos++;
+            if (pos == nameStart) break;
+            String name = raw.substring(nameStart, pos);
+
+            while ((pos < length) && Character.isWhitespace(raw.charAt(pos))) pos++;
+            if ((pos >= length) || (raw.charAt(pos) != '=')) continue; // attribute without value
+            pos++;
+            while ((pos < length) && Character.isWhitespace(raw.charAt(pos))) pos++;
+            if (pos >= length) break;
+
+            char quote = raw.charAt(pos);
+            if ((quote != '"') && (quote != '\'')) continue;
+            int valueEnd = raw.indexOf(quote, pos + 1);
+            if (valueEnd < 0) break;
+            result.put(name, decode(raw.substring(pos + 1, valueEnd)));
+            pos = valueEnd + 1;
+        }
+        return result;
+    }
+
+    /** @return text with the predefined xml entities resolved */
+    static String decode(String text) {
+        if (text.indexOf('&') < 0) return text;
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    /** @return text that can be used as attribute value or element content */
+    static String encode(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || (c == ':') || (c == '_') || (c == '-') || (c == '.');
+    }
+
+    private static boolean endsWith(StringBuilder text, String suffix) {
+        int start = text.length() - suffix.length();
+        return (start >= 0) && (text.indexOf(suffix, start) == start);
+    }
+
+    private int read() throws IOException {
+        if (mPeek != -1) {
+            int result = mPeek;
+            mPeek = -1;
+            return result;
+        }
+        return mReader.read();
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import de.k3b.FotoLibGlobal;
+import de.k3b.io.FileCopyEngine;
+import de.k3b.io.FileUtils;
+
+/**
+ * Geo, date taken and rating of a photo stored in a xmp sidecar file (photo.xmp next to photo.jpg)
+ * so that these infos can be changed without rewriting the jpg.<br/>
+ *
+ * Reading and writing is streaming: the xml is processed token by token.
+ * When an existing sidecar is updated all other content (i.e. from digikam or lightroom) is copied unchanged,
+ * only the properties that are set in this object are replaced.
+ * Unset properties (NaN/null) are not changed. <br/>
+ *
+ * Properties are recognized by their usual prefixes "exif:", "xmp:" and "photoshop:" as attributes of
+ * rdf:Description or as simple elements.
+ */
+public class XmpSidecar {
+    private static final Logger logger = LoggerFactory.getLogger(FotoLibGlobal.LOG_TAG);
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String RDF_DESCRIPTION = "rdf:Description";
+    private static final String GPS_LATITUDE = "exif:GPSLatitude";
+    private static final String GPS_LONGITUDE = "exif:GPSLongitude";
+    private static final String DATE_TIME_ORIGINAL = "exif:DateTimeOriginal";
+    private static final String RATING = "xmp:Rating";
+
+    /** read if there is no DATE_TIME_ORIGINAL. Never written */
+    private static final String[] DATE_ALTERNATIVES = {"photoshop:DateCreated", "xmp:CreateDate"};
+
+    private static final String[][] NAMESPACES = {
+            {"xmlns:exif", "http://ns.adobe.com/exif/1.0/"},
+            {"xmlns:xmp", "http://ns.adobe.com/xap/1.0/"}};
+
+    private double mLatitude = Double.NaN;
+    private double mLongitude = Double.NaN;
+    private Date mDateTimeTaken = null;
+    private Integer mRating = null;
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public boolean hasLatLon() {
+        return !Double.isNaN(mLatitude) && !Double.isNaN(mLongitude);
+    }
+
+    public XmpSidecar setLatLon(double latitude, double longitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        return this;
+    }
+
+    /** @return date taken (local time of the camera stored as utc like {@link JpegHeaderReader#getDateTimeTaken()}) or null */
+    public Date getDateTimeTaken() {
+        return mDateTimeTaken;
+    }
+
+    public XmpSidecar setDateTimeTaken(Date dateTimeTaken) {
+        mDateTimeTaken = dateTimeTaken;
+        return this;
+    }
+
+    /** @return rating 0..5 or null if unknown */
+    public Integer getRating() {
+        return mRating;
+    }
+
+    public XmpSidecar setRating(Integer rating) {
+        mRating = rating;
+        return this;
+    }
+
+    /** @return content of sidecar or null if it does not exist or cannot be read */
+    public static XmpSidecar read(File sidecar) {
+        if ((sidecar == null) || !sidecar.isFile()) return null;
+
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(sidecar), ENCODING));
+            return parse(reader);
+        } catch (IOException e) {
+            logger.warn("XmpSidecar.read('" + sidecar + "') failed: " + e.getMessage());
+            return null;
+        } finally {
+            FileUtils.close(reader, sidecar);
+        }
+    }
+
+    /** @return content of xmp. Properties that are not in xmp are NaN/null */
+    public static XmpSidecar parse(Reader xmp) throws IOException {
+        XmpSidecar result = new XmpSidecar();
+        String[] alternativeDates = new String[DATE_ALTERNATIVES.length];
+        XmlTokenizer tokenizer = new XmlTokenizer(xmp);
+        while (tokenizer.next() != XmlTokenizer.EOF) {
+            if (tokenizer.getType() != XmlTokenizer.START_TAG) continue;
+
+            if (RDF_DESCRIPTION.equals(tokenizer.getName())) {
+                for (Map.Entry<String, String> attribute : tokenizer.getAttributes().entrySet()) {
+                    result.setValue(attribute.getKey(), attribute.getValue(), alternativeDates);
+                }
+            } else if (!tokenizer.isEmptyElement()) {
+                String name = tokenizer.getName();
+                if (isProperty(name)) {
+                    result.setValue(name, readText(tokenizer), alternativeDates);
+                }
+            }
+        }
+
+        for (int i = 0; (result.mDateTimeTaken == null) && (i < alternativeDates.length); i++) {
+            result.mDateTimeTaken = parseDate(alternativeDates[i]);
+        }
+        return result;
+    }
+
+    private static boolean isProperty(String name) {
+        if (GPS_LATITUDE.equals(name) || GPS_LONGITUDE.equals(name) || DATE_TIME_ORIGINAL.equals(name)
+                || RATING.equals(name)) return true;
+        for (String alternative : DATE_ALTERNATIVES) {
+            if (alternative.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private void setValue(String name, String value, String[] alternativeDates) {
+        if (GPS_LATITUDE.equals(name)) {
+            mLatitude = parseCoordinate(value);
+        } else if (GPS_LONGITUDE.equals(name)) {
+            mLongitude = parseCoordinate(value);
+        } else if (DATE_TIME_ORIGINAL.equals(name)) {
+            mDateTimeTaken = parseDate(value);
+        } else if (RATING.equals(name)) {
+            try {
+                mRating = Integer.valueOf(value.trim());
+            } catch (NumberFormatException ignore) {
+                mRating = null;
+            }
+        } else {
+            for (int i = 0; i < DATE_ALTERNATIVES.length; i++) {
+                if (DATE_ALTERNATIVES[i].equals(name)) alternativeDates[i] = value;
+            }
+        }
+    }
+
+    /** @return the text content up to the end tag of the current element. Nested tags are ignored. */
+    private static String readText(XmlTokenizer tokenizer) throws IOException {
+        StringBuilder result = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (tokenizer.next()) {
+                case XmlTokenizer.EOF:
+                    depth = 0;
+                    break;
+                case XmlTokenizer.TEXT:
+                    result.append(tokenizer.getRaw());
+                    break;
+                case XmlTokenizer.START_TAG:
+                    if (!tokenizer.isEmptyElement()) depth++;
+                    break;
+                case XmlTokenizer.END_TAG:
+                    depth--;
+                    break;
+            }
+        }
+        return XmlTokenizer.decode(result.toString().trim());
+    }
+
+    /**
+     * Writes the properties of this into the sidecars of a selection.
+     * All sidecars are first written to synced temp files that replace the sidecars only if all could be written.
+     * The old sidecars are kept as backups until all are replaced so that a failed rename can be rolled back.
+     *
+     * @return number of sidecars written
+     * @throws IOException if one of the sidecars could not be written. Then no sidecar is changed.
+     */
+    public int write(File... sidecars) throws IOException {
+        List<File> tempFiles = new ArrayList<File>(sidecars.length);
+        List<File> backups = new ArrayList<File>(sidecars.length);
+        int committed = 0;
+        boolean success = false;
+        try {
+            for (File sidecar : sidecars) {
+                tempFiles.add(writeTemp(sidecar));
+            }
+            for (File sidecar : sidecars) {
+                backups.add(createBackup(sidecar));
+            }
+
+            // commit: the renames are fast compared to writing
+            while (committed < sidecars.length) {
+                commitTemp(tempFiles.get(committed), sidecars[committed]);
+                committed++;
+            }
+            success = true;
+        } finally {
+            if (!success) rollback(sidecars, committed, backups);
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+            for (File backup : backups) {
+                if (backup != null) backup.delete();
+            }
+        }
+
+        if (FotoLibGlobal.debugEnabled && (sidecars.length > 0)) {
+            logger.debug("XmpSidecar.write(len=" + sidecars.length + ", files='" + sidecars[0] + "'...) " + this);
+        }
+        return sidecars.length;
+    }
+
+    /** @return synced temp file with the new content of sidecar */
+    private File writeTemp(final File sidecar) throws IOException {
+        return FileUtils.writeTemp(sidecar, new FileUtils.ContentWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                Reader reader = null;
+                try {
+                    if (sidecar.exists()) {
+                        reader = new BufferedReader(new InputStreamReader(new FileInputStream(sidecar), ENCODING));
+                    }
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, ENCODING));
+                    XmpSidecar.this.write(reader, writer);
+                    writer.flush();
+                } finally {
+                    FileUtils.close(reader, sidecar);
+                }
+            }
+        });
+    }
+
+    /** @return copy of the existing sidecar or null if there is none */
+    private static File createBackup(File sidecar) throws IOException {
+        if (!sidecar.exists()) return null;
+        File backup = new File(sidecar.getAbsolutePath() + ".bak");
+        new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, true).copy(sidecar, backup);
+        return backup;
+    }
+
+    /** replaces sidecar with tempFile. can be replaced by stub in unittests */
+    void commitTemp(File tempFile, File sidecar) throws IOException {
+        FileUtils.commitTemp(tempFile, sidecar);
+    }
+
+    /** restores the sidecars that were already replaced */
+    private static void rollback(File[] sidecars, int committed, List<File> backups) {
+        for (int i = 0; i < committed; i++) {
+            File backup = backups.get(i);
+            boolean restored = (backup != null) ? backup.renameTo(sidecars[i]) : sidecars[i].delete();
+            if (!restored) {
+                logger.warn("XmpSidecar.write: cannot restore '" + sidecars[i] + "'");
+            }
+        }
+    }
+
+    /**
+     * Streams existingXmp to out with the properties of this replaced.
+     * The properties are written to the first rdf:Description and removed from all others.
+     *
+     * @param existingXmp null: a new xmp is created
+     * @throws IOException if existingXmp contains no rdf:Description
+     */
+    public void write(Reader existingXmp, Writer out) throws IOException {
+        Map<String, String> values = getValues();
+        if (existingXmp == null) {
+            writeNew(out, values);
+            return;
+        }
+
+        Set<String> namespaces = new HashSet<String>();
+        boolean descriptionDone = false;
+        int skipDepth = 0;
+        XmlTokenizer tokenizer = new XmlTokenizer(existingXmp);
+        while (tokenizer.next() != XmlTokenizer.EOF) {
+            int type = tokenizer.getType();
+            if (skipDepth > 0) {
+                // inside an element whose value is replaced
+                if ((type == XmlTokenizer.START_TAG) && !tokenizer.isEmptyElement()) skipDepth++;
+                if (type == XmlTokenizer.END_TAG) skipDepth--;
+            } else if (type == XmlTokenizer.START_TAG) {
+                String name = tokenizer.getName();
+                Map<String, String> attributes = tokenizer.getAttributes();
+                namespaces.addAll(attributes.keySet());
+
+                if (values.containsKey(name)) {
+                    if (!tokenizer.isEmptyElement()) skipDepth = 1;
+                } else if (!descriptionDone && RDF_DESCRIPTION.equals(name)) {
+                    writeDescription(out, attributes, values, namespaces, tokenizer.isEmptyElement());
+                    descriptionDone = true;
+                } else if (RDF_DESCRIPTION.equals(name) && containsAny(attributes, values)) {
+                    // the values are in the first rdf:Description only
+                    writeDescription(out, attributes, values, null, tokenizer.isEmptyElement());
+                } else {
+                    out.write(tokenizer.getRaw());
+                }
+            } else {
+                out.write(tokenizer.getRaw());
+            }
+        }
+
+        if (!descriptionDone) throw new IOException("XmpSidecar: no " + RDF_DESCRIPTION + " found");
+    }
+
+    private static void writeNew(Writer out, Map<String, String> values) throws IOException {
+        out.write("<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n");
+        out.write("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n");
+        out.write(" <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n  ");
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("rdf:about", "");
+        writeDescription(out, attributes, values, new HashSet<String>(), true);
+        out.write("\n </rdf:RDF>\n");
+        out.write("</x:xmpmeta>\n");
+        out.write("<?xpacket end=\"w\"?>\n");
+    }
+
+    /**
+     * writes the rdf:Description start tag with values as attributes.
+     * @param namespaces null: the old attributes of values are removed without writing the new values
+     */
+    private static void writeDescription(Writer out, Map<String, String> attributes, Map<String, String> values,
+                                         Set<String> namespaces, boolean emptyElement) throws IOException {
+        out.write("<" + RDF_DESCRIPTION);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (!values.containsKey(attribute.getKey())) {
+                writeAttribute(out, attribute.getKey(), attribute.getValue());
+            }
+        }
+        if (namespaces != null) {
+            for (String[] namespace : NAMESPACES) {
+                if (!namespaces.contains(namespace[0])) {
+                    writeAttribute(out, namespace[0], namespace[1]);
+                }
+            }
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                writeAttribute(out, value.getKey(), value.getValue());
+            }
+        }
+        out.write((emptyElement) ? "/>" : ">");
+    }
+
+    private static boolean containsAny(Map<String, String> attributes, Map<String, String> values) {
+        for (String name : attributes.keySet()) {
+            if (values.containsKey(name)) return true;
+        }
+        return false;
+    }
+
+    private static void writeAttribute(Writer out, String name, String value) throws IOException {
+        out.write("\n    ");
+        out.write(name);
+        out.write("=\"");
+        out.write(XmlTokenizer.encode(value));
+        out.write("\"");
+    }
+
+    /** @return xmp property name => formatted value of the properties that are set */
+    private Map<String, String> getValues() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        if (hasLatLon()) {
+            result.put(GPS_LATITUDE, formatCoordinate(mLatitude, 'N', 'S'));
+            result.put(GPS_LONGITUDE, formatCoordinate(mLongitude, 'E', 'W'));
+        }
+        if (mDateTimeTaken != null) result.put(DATE_TIME_ORIGINAL, createDateFormat().format(mDateTimeTaken));
+        if (mRating != null) result.put(RATING, mRating.toString());
+        return result;
+    }
+
+    /** @return xmp GPSCoordinate "DDD,MM.mmmmmmk" i.e. "52,30.205667N" */
+    static String formatCoordinate(double value, char positive, char negative) {
+        double abs = Math.abs(value);
+        int degrees = (int) abs;
+        double minutes = (abs - degrees) * 60;
+        return String.format(Locale.US, "%d,%.6f%c", degrees, minutes, (value < 0) ? negative : positive);
+    }
+
+    /** @return degrees from "DDD,MM.mmk", "DDD,MM,SSk" or a decimal number. NaN if value cannot be parsed */
+    static double parseCoordinate(String value) {
+        if (value == null) return Double.NaN;
+        value = value.trim();
+        if (value.length() == 0) return Double.NaN;
+
+        try {
+            char ref = Character.toUpperCase(value.charAt(value.length() - 1));
+            boolean hasRef = (ref == 'N') || (ref == 'S') || (ref == 'E') || (ref == 'W');
+            String[] parts = ((hasRef) ? value.substring(0, value.length() - 1) : value).split(",");
+            double result = 0;
+            double factor = 1;
+            for (String part : parts) {
+                result += Double.parseDouble(part.trim()) / factor;
+                factor *= 60;
+            }
+            return ((ref == 'S') || (ref == 'W')) ? -result : result;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** @return date from xmp date "yyyy-MM-ddTHH:mm:ss" with optional seconds or time. Fractions and time zone are ignored */
+    static Date parseDate(String value) {
+        if (value == null) return null;
+        value = value.trim();
+        String[] patterns = {"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"};
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            Date result = format.parse(value, new ParsePosition(0));
+            if (result != null) return result;
+        }
+        return null;
+    }
+
+    private static SimpleDateFormat createDateFormat() {
+        SimpleDateFormat result = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        result.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getValues().toString();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchedWriterTests {
+    /** records the calls. Items starting with "bad" fail. */
+    private static class TestWriter extends BatchedWriter<String> {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        final List<String> singles = new ArrayList<String>();
+
+        TestWriter(int batchSize) {
+            super("TestWriter: ", batchSize);
+        }
+
+        @Override
+        protected int executeBatch(List<String> batch) throws Exception {
+            batches.add(new ArrayList<String>(batch));
+            for (String item : batch) {
+                if (item.startsWith("bad")) throw new IllegalArgumentException(item);
+            }
+            return batch.size();
+        }
+
+        @Override
+        protected int executeSingle(String item) throws Exception {
+            singles.add(item);
+            if (item.startsWith("bad")) throw new IllegalArgumentException(item);
+            return 1;
+        }
+    }
+
+    @Test
+    public void shouldExecuteInBatches() {
+        TestWriter sut = new TestWriter(3);
+        for (int i = 0; i < 7; i++) {
+            sut.add("item" + i);
+        }
+        Assert.assertEquals("full batches only", 2, sut.batches.size());
+
+        int count = sut.flush();
+
+        Assert.assertEquals(7, count);
+        Assert.assertEquals(Arrays.asList("item0", "item1", "item2"), sut.batches.get(0));
+        Assert.assertEquals(Arrays.asList("item3", "item4", "item5"), sut.batches.get(1));
+        Assert.assertEquals("rest of 1 executed as single", Arrays.asList("item6"), sut.singles);
+        Assert.assertEquals(3, sut.getBatchCount());
+        Assert.assertEquals(0, sut.getFailed().size());
+    }
+
+    @Test
+    public void shouldRetryFailedBatchOneByOne() {
+        TestWriter sut = new TestWriter(4);
+        sut.add("a").add("bad1").add("b").add("c").add("d").add("bad2");
+
+        int count = sut.flush();
+
+        Assert.assertEquals(4, count);
+        Assert.assertEquals(Arrays.asList("bad1", "bad2"), sut.getFailed());
+        Assert.assertEquals(Arrays.asList("a", "bad1", "b", "c", "d", "bad2"), sut.singles);
+    }
+
+    @Test
+    public void shouldNotExecuteEmptyFlush() {
+        TestWriter sut = new TestWriter(4);
+        Assert.assertEquals(0, sut.flush());
+        Assert.assertEquals(0, sut.getBatchCount());
+    }
+
+    @Test
+    public void shouldNotBatchWithSize1() {
+        TestWriter sut = new TestWriter(0);
+        sut.add("a").add("b");
+        Assert.assertEquals(2, sut.flush());
+        Assert.assertEquals(0, sut.batches.size());
+        Assert.assertEquals(2, sut.singles.size());
+    }
+}
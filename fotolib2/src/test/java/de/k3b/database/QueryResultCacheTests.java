@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryResultCacheTests {
+    @Test
+    public void shouldBuildColumnarResult() {
+        ColumnarResult.Builder builder = new ColumnarResult.Builder("id", "lat", "name", "mixed", "empty");
+        for (int i = 0; i < 20; i++) {
+            builder.addRow().setLong(0, i).setDouble(1, i / 2.0).setString(2, "n" + i);
+            if (i == 0) builder.setLong(3, 1);
+            if (i == 1) builder.setDouble(3, 1.5);
+            if (i == 2) builder.setString(3, "x");
+        }
+        ColumnarResult result = builder.build();
+
+        Assert.assertEquals(20, result.getRowCount());
+        Assert.assertEquals(19, result.getLong(19, 0));
+        Assert.assertEquals(9.5, result.getDouble(19, 1), 0.0001);
+        Assert.assertEquals("n19", result.getString(19, 2));
+        Assert.assertEquals(1, result.getLong(0, 3));
+        Assert.assertEquals(1.5, result.getDouble(1, 3), 0.0001);
+        Assert.assertEquals("x", result.getString(2, 3));
+        Assert.assertTrue(result.isNull(3, 3));
+        Assert.assertFalse(result.isNull(3, 0));
+        Assert.assertTrue(result.isNull(0, 4));
+        Assert.assertNull(result.getString(0, 4));
+        Assert.assertEquals(0, result.getLong(0, 4));
+    }
+
+    @Test
+    public void shouldKeepNullsOfNumericColumns() {
+        ColumnarResult result = new ColumnarResult.Builder("lat")
+                .addRow().setDouble(0, 1.5)
+                .addRow()
+                .build();
+
+        Assert.assertFalse(result.isNull(0, 0));
+        Assert.assertTrue(result.isNull(1, 0));
+        Assert.assertNull(result.getString(1, 0));
+    }
+
+    @Test
+    public void shouldHitAfterPut() {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024);
+        String key = QueryResultCache.createKey("content://media", new String[]{"a"}, "x = ?", new String[]{"1"}, null);
+
+        Assert.assertNull(cache.get(key));
+        Assert.assertTrue(cache.put(key, cache.getGeneration(), createResult(10)));
+        Assert.assertNotNull(cache.get(key));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(50, cache.getHitRatePercent());
+    }
+
+    @Test
+    public void shouldDistinguishParameters() {
+        String key1 = QueryResultCache.createKey("content://media", new String[]{"a"}, "x = ?", new String[]{"1"}, null);
+        String key2 = QueryResultCache.createKey("content://media", new String[]{"a"}, "x = ?", new String[]{"2"}, null);
+        Assert.assertFalse(key1.equals(key2));
+    }
+
+    @Test
+    public void shouldNotCacheResultOfQueryStartedBeforeInvalidate() {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024);
+        cache.put("old", cache.getGeneration(), createResult(10));
+
+        long generation = cache.getGeneration();
+        cache.invalidate();
+
+        Assert.assertNull(cache.get("old"));
+        Assert.assertFalse(cache.put("new", generation, createResult(10)));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void shouldNotReturnOrCacheResultsDuringUpdate() {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024);
+        cache.put("old", cache.getGeneration(), createResult(10));
+
+        cache.beginUpdate();
+        long generation = cache.getGeneration();
+        Assert.assertNull(cache.get("old"));
+        Assert.assertFalse(cache.put("new", generation, createResult(10)));
+        Assert.assertNull(cache.get("new"));
+        cache.endUpdate();
+
+        Assert.assertFalse("query ran during the update", cache.put("new", generation, createResult(10)));
+        Assert.assertTrue(cache.put("new", cache.getGeneration(), createResult(10)));
+        Assert.assertNotNull(cache.get("new"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        ColumnarResult result = createResult(100);
+        QueryResultCache cache = new QueryResultCache(result.getEstimatedSize() * 4);
+        cache.put("1", 0, createResult(100));
+        cache.put("2", 0, createResult(100));
+        cache.put("3", 0, createResult(100));
+        cache.put("4", 0, createResult(100));
+        cache.get("1");
+        cache.put("5", 0, createResult(100));
+
+        Assert.assertEquals(4, cache.size());
+        Assert.assertNotNull(cache.get("1"));
+        Assert.assertNull(cache.get("2"));
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertTrue(cache.getBytes() <= result.getEstimatedSize() * 4);
+    }
+
+    @Test
+    public void shouldNotCacheHugeResult() {
+        QueryResultCache cache = new QueryResultCache(createResult(100).getEstimatedSize());
+        Assert.assertFalse(cache.put("huge", 0, createResult(100)));
+    }
+
+    private static ColumnarResult createResult(int rowCount) {
+        ColumnarResult.Builder builder = new ColumnarResult.Builder("_id", "count", "path");
+        for (int i = 0; i < rowCount; i++) {
+            builder.addRow().setLong(0, i).setLong(1, i * 2).setString(2, "/storage/DCIM/" + i);
+        }
+        return builder.build();
+    }
+}
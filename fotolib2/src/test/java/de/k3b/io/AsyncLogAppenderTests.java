@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class AsyncLogAppenderTests {
+    private static final String NL = System.getProperty("line.separator");
+
+    private File mRoot;
+    private File mLog;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("AsyncLogAppenderTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+        mLog = new File(mRoot, "log.txt");
+    }
+
+    @Test
+    public void shouldWriteLinesInOneGroupOnCommit() throws IOException {
+        AsyncLogAppender sut = new AsyncLogAppender(mLog, 10, 100000, 100000, 0);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sut.append("COPY /y \"a" + i + ".jpg\"");
+            expected.append("COPY /y \"a" + i + ".jpg\"").append(NL);
+        }
+        Assert.assertFalse("nothing written before commit", mLog.exists());
+
+        sut.commit(true);
+
+        Assert.assertEquals(expected.toString(), FileUtils.readFile(mLog));
+        Assert.assertEquals(1, sut.getCommitCount());
+    }
+
+    @Test
+    public void shouldCommitOnSize() throws IOException {
+        AsyncLogAppender sut = new AsyncLogAppender(mLog, 10, 50, 100000, 0);
+        for (int i = 0; i < 20; i++) {
+            sut.append("0123456789");
+        }
+        sut.commit(true);
+
+        // 11 chars per line: a write after every 5th line
+        Assert.assertEquals(4, sut.getCommitCount());
+        Assert.assertEquals(20 * (10 + NL.length()), mLog.length());
+    }
+
+    @Test
+    public void shouldCommitOnTime() throws Exception {
+        AsyncLogAppender sut = new AsyncLogAppender(mLog, 10, 100000, 50, 0);
+        sut.append("rem hello");
+
+        for (int i = 0; (i < 100) && (sut.getCommitCount() == 0); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("rem hello" + NL, FileUtils.readFile(mLog));
+    }
+
+    @Test
+    public void shouldRotate() throws IOException {
+        AsyncLogAppender sut = new AsyncLogAppender(mLog, 10, 1, 100000, 25);
+        sut.append("line 1 6789");
+        sut.append("line 2 6789");
+        sut.append("line 3 6789");
+        sut.commit(true);
+
+        Assert.assertEquals("line 3 6789" + NL, FileUtils.readFile(mLog));
+        Assert.assertEquals("line 1 6789" + NL + "line 2 6789" + NL, FileUtils.readFile(new File(mLog.getAbsolutePath() + ".1")));
+
+        sut.append("line 4 6789");
+        sut.append("line 5 6789");
+        sut.commit(true);
+
+        // the previous backup is kept
+        Assert.assertEquals("line 5 6789" + NL, FileUtils.readFile(mLog));
+        Assert.assertEquals("line 3 6789" + NL + "line 4 6789" + NL, FileUtils.readFile(new File(mLog.getAbsolutePath() + ".1")));
+        Assert.assertEquals("line 1 6789" + NL + "line 2 6789" + NL, FileUtils.readFile(new File(mLog.getAbsolutePath() + ".2")));
+    }
+
+    @Test
+    public void shouldLogFileCommandsInSameFormat() throws IOException {
+        FileCommands sut = new FileCommands();
+        sut.setLogFilePath(mLog.getAbsolutePath());
+        sut.openLogfile();
+        sut.log("COPY /y ", FileCommands.getFilenameForLog("/a/b.jpg"), " ", null);
+        sut.log();
+        sut.closeLogFile();
+        AsyncLogAppender.getInstance(mLog).commit(true);
+
+        String content = FileUtils.readFile(mLog);
+        Assert.assertTrue(content, content.startsWith("rem "));
+        Assert.assertTrue(content, content.endsWith(NL + "COPY /y \"\\a\\b.jpg\" null" + NL + NL));
+    }
+}
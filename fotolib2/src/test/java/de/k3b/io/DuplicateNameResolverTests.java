@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class DuplicateNameResolverTests {
+    @Test
+    public void shouldKeepUnusedName() {
+        DuplicateNameResolver sut = new DuplicateNameResolver("b.jpg");
+        Assert.assertEquals("a.jpg", sut.resolve("a.jpg"));
+    }
+
+    @Test
+    public void shouldRenameExisting() {
+        DuplicateNameResolver sut = new DuplicateNameResolver("a.jpg", "b.png", "b(1).png");
+        Assert.assertEquals("a(1).jpg", sut.resolve("a.jpg"));
+        Assert.assertEquals("b(2).png", sut.resolve("b.png"));
+    }
+
+    @Test
+    public void shouldRenameExistingWithXmp() {
+        // a(3) is next possible
+        DuplicateNameResolver sut = new DuplicateNameResolver("a.jpg", "a.xmp", "a(1).xmp", "a(2).jpg");
+        Assert.assertEquals("a(3).jpg", sut.resolve("a.jpg"));
+    }
+
+    @Test
+    public void shouldNotCollideWithinBatch() {
+        DuplicateNameResolver sut = new DuplicateNameResolver("a.jpg");
+        Assert.assertEquals("a(1).jpg", sut.resolve("a.jpg"));
+        Assert.assertEquals("a(2).jpg", sut.resolve("a.jpg"));
+
+        Assert.assertEquals("a.png", sut.resolve("a.png"));
+
+        // a.gif, a(1).gif and a(2).gif would share the sidecar of a file of this batch
+        Assert.assertEquals("a(3).gif", sut.resolve("a.gif"));
+        Assert.assertEquals("c.jpg", sut.resolve("c.jpg"));
+        Assert.assertEquals("C(1).JPG", sut.resolve("C.JPG"));
+    }
+
+    @Test
+    public void shouldResolveNameWithoutExtension() {
+        DuplicateNameResolver sut = new DuplicateNameResolver("readme");
+        Assert.assertEquals("readme(1)", sut.resolve("readme"));
+    }
+
+    @Test
+    public void shouldResolveBurstIntoPopulatedDirWithFewProbes() {
+        int existing = 500;
+        int count = 500;
+        String[] names = new String[existing];
+        for (int i = 0; i < existing; i++) {
+            names[i] = (i == 0) ? "IMG_0001.jpg" : "IMG_0001(" + i + ").jpg";
+        }
+
+        final int[] probes = {0};
+        DuplicateNameResolver sut = new DuplicateNameResolver(names) {
+            @Override
+            protected boolean isUsed(String name) {
+                probes[0]++;
+                return super.isUsed(name);
+            }
+        };
+
+        Set<String> result = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            result.add(sut.resolve("IMG_0001.jpg"));
+        }
+
+        Assert.assertEquals(count, result.size());
+        Assert.assertTrue(result.contains("IMG_0001(" + (existing + count - 1) + ").jpg"));
+
+        // without remembering the last number this would be about existing * count * 2 probes
+        Assert.assertTrue("probes " + probes[0], probes[0] < 4 * (existing + count));
+    }
+}
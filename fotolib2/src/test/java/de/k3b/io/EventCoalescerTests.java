@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class EventCoalescerTests {
+    private static final long QUIET = 1000;
+    private static final long MAX_DELAY = 5000;
+
+    @Test
+    public void shouldDebounce() {
+        EventCoalescer sut = new EventCoalescer(QUIET, MAX_DELAY, 100);
+        sut.onEvent("/a.jpg", false, 0);
+        sut.onEvent("/a.jpg", false, 500);
+
+        Assert.assertTrue("still busy", sut.poll(1000).isEmpty());
+        Assert.assertEquals(1500, sut.getNextDueTime());
+
+        EventCoalescer.Batch batch = sut.poll(1500);
+        Assert.assertEquals(Arrays.asList("/a.jpg"), batch.modified);
+        Assert.assertEquals(0, sut.size());
+        Assert.assertEquals(Long.MAX_VALUE, sut.getNextDueTime());
+    }
+
+    @Test
+    public void shouldDedupeAndLastEventWins() {
+        EventCoalescer sut = new EventCoalescer(QUIET, MAX_DELAY, 100);
+        sut.onEvent("/a.jpg", false, 0);
+        sut.onEvent("/b.jpg", false, 10);
+        sut.onEvent("/a.jpg", true, 20);
+        sut.onEvent("/b.jpg", false, 30);
+
+        EventCoalescer.Batch batch = sut.poll(2000);
+        Assert.assertEquals(Arrays.asList("/b.jpg"), batch.modified);
+        Assert.assertEquals(Arrays.asList("/a.jpg"), batch.deleted);
+    }
+
+    @Test
+    public void shouldFlushAfterMaxDelayEvenIfBusy() {
+        EventCoalescer sut = new EventCoalescer(QUIET, MAX_DELAY, 100);
+        for (long time = 0; time <= 6000; time += 500) {
+            sut.onEvent("/growing.jpg", false, time);
+            if (time < MAX_DELAY) {
+                Assert.assertTrue("at " + time, sut.poll(time).isEmpty());
+            }
+        }
+        Assert.assertEquals(Arrays.asList("/growing.jpg"), sut.poll(6000).modified);
+    }
+
+    @Test
+    public void shouldLimitBatchSize() {
+        EventCoalescer sut = new EventCoalescer(QUIET, MAX_DELAY, 2);
+        sut.onEvent("/1.jpg", false, 0);
+        sut.onEvent("/2.jpg", false, 0);
+        sut.onEvent("/3.jpg", false, 0);
+
+        Assert.assertEquals(Arrays.asList("/1.jpg", "/2.jpg"), sut.poll(QUIET).modified);
+        Assert.assertEquals(Arrays.asList("/3.jpg"), sut.poll(QUIET).modified);
+    }
+}
@@ -19,10 +19,14 @@
 
 package de.k3b.io;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.File;
+import java.util.Arrays;
 
 import static org.mockito.Mockito.*;
 /**
@@ -67,6 +71,39 @@ public class FileCommandTests {
         verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "a(3).xmp"), createTestFile("a.xmp"));
     }
 
+    @Test
+    public void shouldListDestDirOnlyOnce() {
+        doReturn(new String[] {"a.jpg", "a(1).jpg", "b.xmp"}).when(sut).osListFiles(X_FAKE_OUTPUT_DIR);
+
+        sut.moveOrCopyFilesTo(false, X_FAKE_OUTPUT_DIR, createTestFiles("a.jpg", "b.jpg", "a.png", "c.jpg"));
+
+        verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "a(2).jpg"), createTestFile("a.jpg"));
+        verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "b(1).jpg"), createTestFile("b.jpg"));
+        verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "a.png"), createTestFile("a.png"));
+        verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "c.jpg"), createTestFile("c.jpg"));
+        verify(sut, times(1)).osListFiles(X_FAKE_OUTPUT_DIR);
+        verify(sut, never()).osFileExists(new File(X_FAKE_OUTPUT_DIR, "c.jpg"));
+    }
+
+    @Test
+    public void shouldCancelAndReportPartialResult() {
+        registerFakeFiles(sut);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                sut.cancel();
+                return null;
+            }
+        }).when(sut).onFileProgress(eq(2), eq(3), anyLong(), anyLong(), anyLong());
+
+        int result = sut.moveOrCopyFilesTo(false, X_FAKE_OUTPUT_DIR, createTestFiles("a.jpg", "b.jpg", "c.jpg"));
+
+        verify(sut).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "b.jpg"), createTestFile("b.jpg"));
+        verify(sut, never()).osFileMoveOrCopy(false, new File(X_FAKE_OUTPUT_DIR, "c.jpg"), createTestFile("c.jpg"));
+        verify(sut).onPostProcess(anyString(), any(String[].class), any(String[].class), eq(2), eq(3), eq(FileCommands.OP_COPY));
+        Assert.assertEquals(2, result);
+    }
+
     @Test
     public void shouldDeleteExistingWithXmp() {
         registerFakeFiles(sut, "a.jpg", "a.xmp");
@@ -76,6 +113,27 @@ public class FileCommandTests {
         verify(sut).osDeleteFile(createTestFile("a.xmp"));
     }
 
+    @Test
+    public void shouldDeleteInParallelAndReportFailures() {
+        registerFakeFiles(sut, "a.jpg", "b.jpg", "c.jpg", "d.jpg");
+        doReturn(false).when(sut).osDeleteFile(createTestFile("b.jpg"));
+        sut.setDeleteThreadCount(3);
+
+        int result = sut.deleteFiles(createTestFile("a.jpg").getAbsolutePath(), createTestFile("b.jpg").getAbsolutePath(),
+                createTestFile("c.jpg").getAbsolutePath(), createTestFile("d.jpg").getAbsolutePath());
+
+        Assert.assertEquals(3, result);
+        Assert.assertEquals(Arrays.asList(createTestFile("b.jpg").getAbsolutePath()), sut.getDeleteFailures());
+        verify(sut).onFileProgress(eq(4), eq(4), anyLong(), anyLong(), anyLong());
+        verify(sut).onPostProcess(anyString(), any(String[].class), any(String[].class), eq(3), eq(4), eq(FileCommands.OP_DELETE));
+    }
+
+    @Test
+    public void shouldGetSidecar() {
+        Assert.assertEquals("test.xmp", FileCommands.getSidecar(new File("/dir.x/test.jpg")).getName());
+        Assert.assertEquals("test.xmp", FileCommands.getSidecar(new File("/dir.x/test")).getName());
+    }
+
     /** these files exist in source-dir and in dest-dir */
     private static void registerFakeFiles(FileCommands sut, String... filenames) {
         if (filenames.length == 0) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Throughput of {@link FileCopyEngine} with transferTo compared to copying through a buffer.<br/>
+ *
+ * Not part of the normal unit tests: only runs with -Dbenchmark=true.
+ * The size of the big file can be changed i.e. with -DFileCopyEngineBenchmark.bigMB=2048 for 2GB.
+ * The measured MB/s are reported in the assertion messages.
+ * Source and destination are in the temp dir so the result depends on its file system and cache.
+ */
+public class FileCopyEngineBenchmark {
+    private static final int MB = 1024 * 1024;
+
+    /** photo sized files */
+    private static final int SMALL_MB = 3;
+    private static final int SMALL_COUNT = 20;
+
+    /** video sized file */
+    private static final int BIG_MB = Integer.getInteger("FileCopyEngineBenchmark.bigMB", 512);
+
+    /** transferTo must reach at least this part of the buffer copy throughput */
+    private static final double MIN_RATIO = 0.8;
+
+    private File mRoot;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("FileCopyEngineBenchmark");
+
+    @Before
+    public void setup() throws IOException {
+        Assume.assumeTrue("run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        mRoot = mTempDir.getRoot();
+    }
+
+    @Test
+    public void benchmarkSmallFiles() throws IOException {
+        File[] sources = new File[SMALL_COUNT];
+        for (int i = 0; i < SMALL_COUNT; i++) {
+            sources[i] = create("small" + i + ".src", (long) SMALL_MB * MB);
+        }
+
+        assertTransferToNotSlower("" + SMALL_COUNT + " x " + SMALL_MB + "MB", sources);
+    }
+
+    @Test
+    public void benchmarkBigFile() throws IOException {
+        assertTransferToNotSlower("1 x " + BIG_MB + "MB", create("big.src", (long) BIG_MB * MB));
+    }
+
+    private void assertTransferToNotSlower(String what, File... sources) throws IOException {
+        // first round only warms up the jvm and the file system cache
+        copyAll(new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, false), sources);
+        copyAll(new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, false).setUseTransferTo(false), sources);
+
+        double transferTo = copyAll(new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, false), sources);
+        double buffer = copyAll(new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, false).setUseTransferTo(false), sources);
+
+        Assert.assertTrue(what + ": transferTo " + Math.round(transferTo) + " MB/s, buffer " + Math.round(buffer) + " MB/s",
+                transferTo >= buffer * MIN_RATIO);
+    }
+
+    /** @return MB per second */
+    private double copyAll(FileCopyEngine engine, File... sources) throws IOException {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (File source : sources) {
+            File dest = new File(mRoot, source.getName() + ".dest");
+            dest.delete();
+            bytes += engine.copy(source, dest);
+            Assert.assertEquals(source.length(), dest.length());
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        return (bytes / (double) MB) / (nanos / 1000000000.0);
+    }
+
+    private File create(String name, long size) throws IOException {
+        File file = new File(mRoot, name);
+        byte[] buffer = new byte[MB];
+        new Random(size).nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileCopyEngineTests {
+    private static final int MB = 1024 * 1024;
+
+    /** size of the big test file. i.e. -DFileCopyEngineTests.bigMB=2048 for 2GB */
+    private static final int BIG_MB = Integer.getInteger("FileCopyEngineTests.bigMB", 64);
+
+    private File mRoot;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("FileCopyEngineTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+    }
+
+    @Test
+    public void shouldCopyInChunks() throws IOException {
+        File source = create("source.jpg", 3 * MB + 17);
+        File dest = new File(mRoot, "dest.jpg");
+
+        long result = new FileCopyEngine(64 * 1024, false).copy(source, dest);
+
+        Assert.assertEquals(source.length(), result);
+        assertSameContent(source, dest);
+    }
+
+    @Test
+    public void shouldCopyWithBufferAndSync() throws IOException {
+        File source = create("source.jpg", MB + 17);
+        File dest = new File(mRoot, "dest.jpg");
+
+        new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE, true).setUseTransferTo(false).copy(source, dest);
+
+        assertSameContent(source, dest);
+    }
+
+    @Test
+    public void shouldCopyEmptyFile() throws IOException {
+        File source = create("empty.jpg", 0);
+        File dest = new File(mRoot, "dest.jpg");
+
+        Assert.assertEquals(0, new FileCopyEngine().copy(source, dest));
+        Assert.assertTrue(dest.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailIfDestDirDoesNotExist() throws IOException {
+        File source = create("source.jpg", 100);
+        new FileCopyEngine().copy(source, new File(mRoot, "missing/dest.jpg"));
+    }
+
+    /** transferTo and buffer copy give the same result for small (3MB photo) and big (video) files */
+    @Test
+    public void shouldCopySmallAndBigFilesWithTransferToAndBuffer() throws IOException {
+        assertCopy(3 * MB);
+        assertCopy((long) BIG_MB * MB);
+    }
+
+    private void assertCopy(long size) throws IOException {
+        File source = create("big.src", size);
+        File dest = new File(mRoot, "big.dest");
+        try {
+            Assert.assertEquals(size, new FileCopyEngine().copy(source, dest));
+            assertSameContent(source, dest);
+
+            dest.delete();
+            Assert.assertEquals(size, new FileCopyEngine().setUseTransferTo(false).copy(source, dest));
+            assertSameContent(source, dest);
+        } finally {
+            source.delete();
+            dest.delete();
+        }
+    }
+
+    private File create(String name, long size) throws IOException {
+        File file = new File(mRoot, name);
+        byte[] buffer = new byte[MB];
+        new Random(size).nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        Assert.assertEquals(expected.length(), actual.length());
+        FileInputStream expectedIn = new FileInputStream(expected);
+        FileInputStream actualIn = new FileInputStream(actual);
+        try {
+            byte[] expectedBuffer = new byte[64 * 1024];
+            byte[] actualBuffer = new byte[64 * 1024];
+            int read;
+            while ((read = expectedIn.read(expectedBuffer)) > 0) {
+                int actualRead = 0;
+                while (actualRead < read) {
+                    actualRead += actualIn.read(actualBuffer, actualRead, read - actualRead);
+                }
+                Assert.assertTrue(Arrays.equals(expectedBuffer, actualBuffer));
+            }
+        } finally {
+            expectedIn.close();
+            actualIn.close();
+        }
+    }
+}
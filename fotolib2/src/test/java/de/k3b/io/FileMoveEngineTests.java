@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FileMoveEngineTests {
+    private File mRoot;
+    private File mSrcDir;
+    private File mDestDir;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("FileMoveEngineTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+        mSrcDir = new File(mRoot, "src");
+        mDestDir = new File(mRoot, "dest");
+        mSrcDir.mkdirs();
+        mDestDir.mkdirs();
+    }
+
+    @Test
+    public void shouldParseMountPoints() throws IOException {
+        List<String> result = new ArrayList<String>();
+        FileMoveEngine.parseMountPoints(new BufferedReader(new StringReader(
+                "rootfs / rootfs ro,relatime 0 0\n"
+                + "/dev/fuse /storage/emulated fuse rw,nosuid 0 0\n"
+                + "/dev/block/vold/179:65 /mnt/media_rw/my\\040card vfat rw 0 0\n")), result);
+
+        Assert.assertEquals(Arrays.asList("/", "/storage/emulated", "/mnt/media_rw/my card"), result);
+    }
+
+    @Test
+    public void shouldFindMountPoint() {
+        FileMoveEngine sut = new FileMoveEngine(Arrays.asList("/", "/storage/emulated", "/storage/1234-ABCD"), null);
+
+        Assert.assertEquals("/storage/emulated", sut.getMountPoint("/storage/emulated/0/DCIM"));
+        Assert.assertEquals("/storage/1234-ABCD", sut.getMountPoint("/storage/1234-ABCD"));
+        Assert.assertEquals("/", sut.getMountPoint("/storage/1234-ABCDEF/DCIM"));
+        Assert.assertTrue(sut.isSameFileSystem(new File("/storage/emulated/0/a.jpg"), new File("/storage/emulated/1/a.jpg")));
+        Assert.assertFalse(sut.isSameFileSystem(new File("/storage/emulated/0/a.jpg"), new File("/storage/1234-ABCD/a.jpg")));
+    }
+
+    @Test
+    public void shouldRenameOnSameFileSystem() throws IOException {
+        File source = create(mSrcDir, "a.jpg", 1000);
+        File dest = new File(mDestDir, "a.jpg");
+        FileMoveEngine sut = new FileMoveEngine(Arrays.asList("/"), new FileCopyEngine());
+
+        sut.move(source, dest);
+
+        Assert.assertFalse(source.exists());
+        Assert.assertEquals(1000, dest.length());
+        Assert.assertEquals(1, sut.getRenameCount());
+        Assert.assertEquals(0, sut.getCopyCount());
+    }
+
+    @Test
+    public void shouldCopyVerifyDeleteOnOtherFileSystem() throws IOException {
+        File source = create(mSrcDir, "a.jpg", 1000);
+        long lastModified = source.lastModified() - 100000;
+        source.setLastModified(lastModified);
+        File dest = new File(mDestDir, "a.jpg");
+
+        // pretend that dest dir is an other device
+        FileMoveEngine sut = new FileMoveEngine(Arrays.asList("/", mDestDir.getAbsolutePath()), new FileCopyEngine());
+        sut.move(source, dest);
+
+        Assert.assertFalse(source.exists());
+        Assert.assertEquals(1000, dest.length());
+        Assert.assertEquals(lastModified / 1000, dest.lastModified() / 1000);
+        Assert.assertEquals(0, sut.getRenameCount());
+        Assert.assertEquals(1, sut.getCopyCount());
+    }
+
+    @Test
+    public void shouldKeepSourceIfCopyFails() throws IOException {
+        File source = create(mSrcDir, "a.jpg", 1000);
+        File dest = new File(mDestDir, "a.jpg");
+        FileCopyEngine failingCopy = new FileCopyEngine() {
+            @Override
+            public long copy(File source, File dest) throws IOException {
+                create(dest.getParentFile(), dest.getName(), 10);
+                throw new IOException("disk full");
+            }
+        };
+
+        FileMoveEngine sut = new FileMoveEngine(Arrays.asList("/", mDestDir.getAbsolutePath()), failingCopy);
+        try {
+            sut.move(source, dest);
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+            // ok
+        }
+
+        Assert.assertTrue(source.exists());
+        Assert.assertFalse("no partial copy left", dest.exists());
+    }
+
+    @Test
+    public void shouldMoveWithSidecarInFileCommands() throws IOException {
+        create(mSrcDir, "a.jpg", 1000);
+        create(mSrcDir, "a.xmp", 100);
+        create(mSrcDir, "b.jpg", 2000);
+
+        int count = new FileCommands().moveOrCopyFilesTo(true, mDestDir, new File(mSrcDir, "a.jpg"), new File(mSrcDir, "b.jpg"));
+
+        Assert.assertEquals(3, count);
+        Assert.assertEquals(0, mSrcDir.list().length);
+        Assert.assertEquals(100, new File(mDestDir, "a.xmp").length());
+        Assert.assertEquals(2000, new File(mDestDir, "b.jpg").length());
+    }
+
+    @Test
+    public void shouldMoveManyFilesOnSameFileSystem() throws IOException {
+        int count = 1000;
+        File[] sources = new File[count];
+        for (int i = 0; i < count; i++) {
+            sources[i] = create(mSrcDir, "IMG_" + i + ".jpg", 100);
+        }
+
+        int result = new FileCommands().moveOrCopyFilesTo(true, mDestDir, sources);
+
+        Assert.assertEquals(count, result);
+        Assert.assertEquals(count, mDestDir.list().length);
+        Assert.assertEquals(0, mSrcDir.list().length);
+    }
+
+    private static File create(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
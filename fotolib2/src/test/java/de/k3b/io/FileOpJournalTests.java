@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** crash injection: a FileCommands batch is interrupted by an exception that simulates process death */
+public class FileOpJournalTests {
+    private File mRoot;
+    private File mSrcDir;
+    private File mDestDir;
+    private File mJournalDir;
+
+    private int mRecoveredOpCode;
+    private String[] mRecoveredOld;
+    private String[] mRecoveredNew;
+
+    private static class CrashException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** engine that crashes in file operation number crashAt */
+    private class CrashingFileCommands extends FileCommands {
+        private final int mCrashAt;
+        private final int mCrashMode;
+        private int mCount = 0;
+
+        static final int CRASH_BEFORE = 0;
+        static final int CRASH_AFTER = 1;
+        static final int CRASH_PARTIAL = 2;
+        static final int CRASH_COPIED_NOT_DELETED = 3;
+
+        CrashingFileCommands(int crashAt, int crashMode) {
+            mCrashAt = crashAt;
+            mCrashMode = crashMode;
+            setJournalDir(mJournalDir);
+        }
+
+        @Override
+        protected boolean osFileMoveOrCopy(boolean move, File dest, File source) {
+            if (++mCount < mCrashAt) return super.osFileMoveOrCopy(move, dest, source);
+
+            try {
+                switch (mCrashMode) {
+                    case CRASH_AFTER:
+                        super.osFileMoveOrCopy(move, dest, source);
+                        break;
+                    case CRASH_PARTIAL:
+                        create(dest.getParentFile(), dest.getName(), 10);
+                        break;
+                    case CRASH_COPIED_NOT_DELETED:
+                        new FileCopyEngine().copy(source, dest);
+                        break;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            throw new CrashException();
+        }
+    }
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("FileOpJournalTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+        mSrcDir = new File(mRoot, "src");
+        mDestDir = new File(mRoot, "dest");
+        mJournalDir = new File(mRoot, "journal");
+        mSrcDir.mkdirs();
+        mDestDir.mkdirs();
+
+        create(mSrcDir, "a.jpg", 1000);
+        create(mSrcDir, "b.jpg", 2000);
+        create(mSrcDir, "c.jpg", 3000);
+        mRecoveredOpCode = 0;
+        mRecoveredOld = null;
+        mRecoveredNew = null;
+    }
+
+    @Test
+    public void shouldNotKeepJournalOfCompleteBatch() {
+        int result = new FileCommands().setJournalDir(mJournalDir).moveOrCopyFilesTo(true, mDestDir, sources());
+
+        Assert.assertEquals(3, result);
+        Assert.assertEquals(0, mJournalDir.list().length);
+        Assert.assertEquals(0, recover());
+    }
+
+    @Test
+    public void shouldFinishMoveThatCrashedAfterRename() {
+        crash(new CrashingFileCommands(2, CrashingFileCommands.CRASH_AFTER), true);
+
+        Assert.assertEquals(1, recover());
+        Assert.assertEquals(FileCommands.OP_MOVE, mRecoveredOpCode);
+        Assert.assertEquals(Arrays.asList(src("a.jpg"), src("b.jpg")), Arrays.asList(mRecoveredOld));
+        Assert.assertEquals(Arrays.asList(dest("a.jpg"), dest("b.jpg")), Arrays.asList(mRecoveredNew));
+        Assert.assertTrue("not started", new File(mSrcDir, "c.jpg").exists());
+        Assert.assertFalse(new File(mDestDir, "c.jpg").exists());
+        Assert.assertEquals(0, mJournalDir.list().length);
+    }
+
+    @Test
+    public void shouldRollbackMoveThatCrashedBeforeSourceWasDeleted() {
+        crash(new CrashingFileCommands(2, CrashingFileCommands.CRASH_COPIED_NOT_DELETED), true);
+
+        recover();
+        Assert.assertEquals(Arrays.asList(src("a.jpg")), Arrays.asList(mRecoveredOld));
+        Assert.assertEquals(Arrays.asList(dest("a.jpg")), Arrays.asList(mRecoveredNew));
+        Assert.assertTrue(new File(mSrcDir, "b.jpg").exists());
+        Assert.assertFalse("second copy is removed", new File(mDestDir, "b.jpg").exists());
+    }
+
+    @Test
+    public void shouldRollbackPartialCopy() {
+        crash(new CrashingFileCommands(3, CrashingFileCommands.CRASH_PARTIAL), false);
+
+        recover();
+        Assert.assertEquals(FileCommands.OP_COPY, mRecoveredOpCode);
+        Assert.assertNull(mRecoveredOld);
+        Assert.assertEquals(Arrays.asList(dest("a.jpg"), dest("b.jpg")), Arrays.asList(mRecoveredNew));
+        Assert.assertFalse("partial copy is removed", new File(mDestDir, "c.jpg").exists());
+        Assert.assertEquals(3000, new File(mSrcDir, "c.jpg").length());
+    }
+
+    @Test
+    public void shouldFinishCompleteCopyWithoutDoneRecord() {
+        crash(new CrashingFileCommands(1, CrashingFileCommands.CRASH_AFTER), false);
+
+        recover();
+        Assert.assertEquals(Arrays.asList(dest("a.jpg")), Arrays.asList(mRecoveredNew));
+    }
+
+    @Test
+    public void shouldRecoverPipelinedCopy() {
+        FileCommands sut = new FileCommands() {
+            @Override
+            protected void onFileProgress(int fileNumber, int fileCount, long bytesDone, long bytesTotal, long bytesPerSecond) {
+                if (fileNumber == 2) throw new CrashException();
+            }
+        }.setJournalDir(mJournalDir).setCopyPipeline(2, 1);
+        crash(sut, false);
+
+        recover();
+        Assert.assertEquals(Arrays.asList(dest("a.jpg"), dest("b.jpg")), Arrays.asList(mRecoveredNew));
+        Assert.assertFalse(new File(mDestDir, "c.jpg").exists());
+    }
+
+    @Test
+    public void shouldKeepJournalUntilMediaDatabaseIsUpdated() {
+        FileCommands sut = new FileCommands() {
+            @Override
+            protected void onUpdateMediaDatabase(String what, String[] oldPathNames, String[] newPathNames, int opCode) {
+                Assert.assertEquals(1, mJournalDir.list().length);
+                throw new CrashException();
+            }
+        }.setJournalDir(mJournalDir);
+        crash(sut, true);
+
+        Assert.assertEquals(1, recover());
+        Assert.assertEquals(Arrays.asList(dest("a.jpg"), dest("b.jpg"), dest("c.jpg")), Arrays.asList(mRecoveredNew));
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteLastRecord() throws IOException {
+        FileOpJournal journal = FileOpJournal.begin(mJournalDir, FileCommands.OP_COPY);
+        int number = journal.intent(new File(mSrcDir, "a.jpg"), new File(mDestDir, "a.jpg"));
+        create(mDestDir, "a.jpg", 1000);
+        journal.done(number, true);
+        journal.close();
+        FileOutputStream out = new FileOutputStream(mJournalDir.listFiles()[0], true);
+        out.write("D\t".getBytes());
+        out.close();
+
+        Assert.assertEquals(1, recover());
+        Assert.assertEquals(Arrays.asList(dest("a.jpg")), Arrays.asList(mRecoveredNew));
+    }
+
+    private void crash(FileCommands sut, boolean move) {
+        try {
+            sut.moveOrCopyFilesTo(move, mDestDir, sources());
+            Assert.fail("crash expected");
+        } catch (CrashException expected) {
+            // simulated process death
+        }
+    }
+
+    private int recover() {
+        return FileOpJournal.recover(mJournalDir, new FileOpJournal.Callback() {
+            @Override
+            public void onRecovered(int opCode, String[] oldPathNames, String[] newPathNames) {
+                mRecoveredOpCode = opCode;
+                mRecoveredOld = oldPathNames;
+                mRecoveredNew = newPathNames;
+            }
+        });
+    }
+
+    private File[] sources() {
+        return new File[] {new File(mSrcDir, "a.jpg"), new File(mSrcDir, "b.jpg"), new File(mSrcDir, "c.jpg")};
+    }
+
+    private String src(String name) {
+        return new File(mSrcDir, name).getAbsolutePath();
+    }
+
+    private String dest(String name) {
+        return new File(mDestDir, name).getAbsolutePath();
+    }
+
+    private static File create(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
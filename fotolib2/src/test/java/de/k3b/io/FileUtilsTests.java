@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class FileUtilsTests {
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("FileUtilsTests");
+
+    @Test
+    public void shouldReplace() throws IOException {
+        File file = new File(mTempDir.getRoot(), "a.txt");
+        FileUtils.replace(file, createContent("old"));
+        FileUtils.replace(file, createContent("new"));
+
+        Assert.assertEquals("new\n", FileUtils.readFile(file));
+        Assert.assertEquals(1, mTempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void shouldKeepOldContentIfWriteFails() throws IOException {
+        File file = new File(mTempDir.getRoot(), "a.txt");
+        FileUtils.replace(file, createContent("old"));
+
+        try {
+            FileUtils.replace(file, new FileUtils.ContentWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    out.write("partial".getBytes("UTF-8"));
+                    throw new IOException("disk full");
+                }
+            });
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+            // content cannot be written
+        }
+
+        Assert.assertEquals("old\n", FileUtils.readFile(file));
+        Assert.assertFalse(FileUtils.getTempFile(file).exists());
+    }
+
+    @Test
+    public void shouldKeepOldContentIfRenameFails() throws IOException {
+        // a non empty directory cannot be replaced by a file
+        File file = mTempDir.getDir("a.txt");
+        new File(file, "child").createNewFile();
+
+        try {
+            FileUtils.replace(file, createContent("new"));
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+            // cannot rename
+        }
+
+        Assert.assertTrue(new File(file, "child").exists());
+        Assert.assertFalse(FileUtils.getTempFile(file).exists());
+    }
+
+    private static FileUtils.ContentWriter createContent(final String line) {
+        return new FileUtils.ContentWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write((line + "\n").getBytes("UTF-8"));
+            }
+        };
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the scanner against a temporary directory tree.
+ */
+public class ParallelDirectoryScannerTests {
+    private static final FilenameFilter JPG = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return filename.toLowerCase().endsWith(".jpg");
+        }
+    };
+
+    private File mRoot;
+    private Set<String> mExpected;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("ParallelDirectoryScannerTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+        mExpected = new HashSet<String>();
+
+        // 3 levels with 5 jpgs each plus some files that must be ignored
+        for (String dir : new String[] {"a", "a/b", "a/b/c", "d", "e/f"}) {
+            for (int i = 0; i < 5; i++) {
+                mExpected.add(createFile(dir + "/img" + i + ".jpg"));
+            }
+            createFile(dir + "/readme.txt");
+        }
+        createFile(".hidden/img.jpg");
+        mExpected.add(createFile("top.jpg"));
+    }
+
+    @Test
+    public void shouldFindAllOnceInBatches() {
+        TestCallback callback = new TestCallback(-1);
+        ParallelDirectoryScanner<String> scanner = new ParallelDirectoryScanner<String>(3, 4, JPG, callback);
+
+        int count = scanner.scan(mRoot.getAbsolutePath());
+
+        Assert.assertEquals(mExpected.size(), count);
+        Assert.assertEquals(mExpected.size(), callback.written.size());
+        Assert.assertEquals(mExpected, new HashSet<String>(callback.written));
+        Assert.assertTrue("max batch " + callback.maxBatchSize, callback.maxBatchSize <= 4);
+        Assert.assertEquals("one writer thread", 1, callback.writerThreads.size());
+        Assert.assertEquals(Thread.currentThread(), callback.writerThreads.iterator().next());
+        Assert.assertEquals(0, scanner.getPaused().size());
+    }
+
+    @Test
+    public void shouldScanSingleFile() {
+        TestCallback callback = new TestCallback(-1);
+        ParallelDirectoryScanner<String> scanner = new ParallelDirectoryScanner<String>(2, 10, JPG, callback);
+
+        int count = scanner.scan(new File(mRoot, "top.jpg").getAbsolutePath(), new File(mRoot, "a/readme.txt").getAbsolutePath());
+
+        Assert.assertEquals(1, count);
+        Assert.assertEquals(new File(mRoot, "top.jpg").getAbsolutePath(), callback.written.get(0));
+    }
+
+    @Test
+    public void shouldResumeCancelledWithoutLossOrDuplicates() {
+        // cancel after 7 extracted files
+        TestCallback callback = new TestCallback(7);
+        ParallelDirectoryScanner<String> scanner = new ParallelDirectoryScanner<String>(3, 2, JPG, callback);
+        scanner.scan(mRoot.getAbsolutePath());
+
+        List<String> paused = scanner.getPaused();
+        Assert.assertTrue("something paused", paused.size() > 0);
+        Assert.assertTrue("something written", callback.written.size() > 0);
+
+        // resume
+        TestCallback resumeCallback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, resumeCallback).scan(paused.toArray(new String[paused.size()]));
+
+        List<String> all = new ArrayList<String>(callback.written);
+        all.addAll(resumeCallback.written);
+        Assert.assertEquals(mExpected.size(), all.size());
+        Assert.assertEquals(mExpected, new HashSet<String>(all));
+    }
+
+    @Test
+    public void shouldResumeInterruptedWithoutLossOrDuplicates() {
+        // the scanning thread is interrupted while writing the first batch
+        TestCallback callback = new TestCallback(-1);
+        callback.interruptAtBatch = 1;
+        ParallelDirectoryScanner<String> scanner = new ParallelDirectoryScanner<String>(2, 2, JPG, callback);
+        scanner.scan(mRoot.getAbsolutePath());
+        Assert.assertTrue("interrupted state is kept", Thread.interrupted());
+
+        List<String> paused = scanner.getPaused();
+        Assert.assertTrue("something paused", paused.size() > 0);
+
+        // resume
+        TestCallback resumeCallback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, resumeCallback).scan(paused.toArray(new String[paused.size()]));
+
+        List<String> all = new ArrayList<String>(callback.written);
+        all.addAll(resumeCallback.written);
+        Assert.assertEquals(mExpected.size(), all.size());
+        Assert.assertEquals(mExpected, new HashSet<String>(all));
+    }
+
+    @Test
+    public void shouldSkipUnchangedDirectoriesWithJournal() throws IOException {
+        ScanJournal journal = new ScanJournal();
+        TestCallback callback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, callback).setJournal(journal).scan(mRoot.getAbsolutePath());
+        Assert.assertEquals(mExpected.size(), callback.written.size());
+
+        // nothing changed: nothing to do
+        callback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, callback).setJournal(journal).scan(mRoot.getAbsolutePath());
+        Assert.assertEquals(0, callback.written.size());
+
+        // new file in sub dir: only this dir is scanned again
+        String added = createFile("a/b/new.jpg");
+        callback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, callback).setJournal(journal).scan(mRoot.getAbsolutePath());
+        Assert.assertEquals(6, callback.written.size());
+        Assert.assertTrue(callback.written.contains(added));
+    }
+
+    @Test
+    public void shouldNotJournalCancelledDirectories() {
+        Set<String> journaled = Collections.synchronizedSet(new HashSet<String>());
+        ScanJournal journal = createJournal(journaled);
+        String[] roots = new String[] {
+                new File(mRoot, "d").getAbsolutePath(),
+                new File(mRoot, "e/f").getAbsolutePath(),
+                new File(mRoot, "a/b/c").getAbsolutePath()};
+
+        // one worker processes the roots in order in chunks of 2 files:
+        // cancel after all 5 files of "d" and the first chunk of "e/f"
+        new ParallelDirectoryScanner<String>(1, 2, JPG, new TestCallback(7)).setJournal(journal).scan(roots);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(roots[0])), journaled);
+
+        // rescan must find everything that was not processed completely in the cancelled scan
+        TestCallback callback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, callback).setJournal(journal).scan(roots);
+        Set<String> expected = new HashSet<String>();
+        for (String path : mExpected) {
+            if (path.startsWith(roots[1] + File.separator) || path.startsWith(roots[2] + File.separator)) {
+                expected.add(path);
+            }
+        }
+        Assert.assertEquals(10, expected.size());
+        Assert.assertEquals(expected, new HashSet<String>(callback.written));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(roots)), journaled);
+    }
+
+    @Test
+    public void shouldNotJournalDirectoryBeforeAllItsFilesAreWritten() {
+        Set<String> journaled = Collections.synchronizedSet(new HashSet<String>());
+        String root = new File(mRoot, "d").getAbsolutePath();
+
+        // the worker extracts all 5 files of "d" while the slow writer writes the first batch.
+        // the second batch crashes.
+        TestCallback crashing = new TestCallback(-1) {
+            @Override
+            public int write(List<String> batch) {
+                if (written.isEmpty()) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.write(batch);
+            }
+        };
+        crashing.crashAtBatch = 2;
+        try {
+            new ParallelDirectoryScanner<String>(1, 2, JPG, crashing).setJournal(createJournal(journaled)).scan(root);
+            Assert.fail("crash expected");
+        } catch (IllegalStateException expected) {
+        }
+
+        Assert.assertEquals(2, crashing.written.size());
+        Assert.assertEquals("extracted but not written", 0, journaled.size());
+    }
+
+    @Test
+    public void shouldOnlyExtractModifiedFiles() {
+        final File unmodified = new File(mRoot, "a/img0.jpg");
+        TestCallback callback = new TestCallback(-1);
+        new ParallelDirectoryScanner<String>(3, 2, JPG, callback).setChangeDetector(new ParallelDirectoryScanner.ChangeDetector() {
+            @Override
+            public List<File> getModified(String directory, List<File> files) {
+                List<File> result = new ArrayList<File>(files);
+                result.remove(unmodified);
+                return result;
+            }
+        }).scan(mRoot.getAbsolutePath());
+
+        Assert.assertEquals(mExpected.size() - 1, callback.written.size());
+        Assert.assertFalse(callback.written.contains(unmodified.getAbsolutePath()));
+    }
+
+    @Test
+    public void shouldResumeFromCheckpointAfterCrash() {
+        File checkpointFile = new File(mRoot, ".checkpoint.txt");
+
+        // simulated process death while writing the 4th batch
+        TestCallback crashing = new TestCallback(-1);
+        crashing.crashAtBatch = 4;
+        try {
+            new ParallelDirectoryScanner<String>(3, 2, JPG, crashing)
+                    .setCheckpoint(new ScanCheckpoint(checkpointFile, 0))
+                    .scan(mRoot.getAbsolutePath());
+            Assert.fail("crash expected");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(6, crashing.written.size());
+        Assert.assertTrue(checkpointFile.exists());
+
+        // new process: only the checkpoint file survived
+        TestCallback resumed = new TestCallback(-1);
+        ScanCheckpoint checkpoint = new ScanCheckpoint(checkpointFile, 0).load();
+        new ParallelDirectoryScanner<String>(3, 2, JPG, resumed).setCheckpoint(checkpoint).scan();
+
+        List<String> all = new ArrayList<String>(crashing.written);
+        all.addAll(resumed.written);
+        Assert.assertEquals("no duplicates", mExpected.size(), all.size());
+        Assert.assertEquals(mExpected, new HashSet<String>(all));
+        Assert.assertTrue(checkpoint.isEmpty());
+        Assert.assertFalse("complete scan deletes checkpoint", checkpointFile.exists());
+    }
+
+    @Test
+    public void shouldUseCanonicalPathsInCheckpointAndPaused() {
+        ScanCheckpoint checkpoint = new ScanCheckpoint(null, 0);
+        ParallelDirectoryScanner<String> scanner = new ParallelDirectoryScanner<String>(3, 2, JPG, new TestCallback(7))
+                .setCheckpoint(checkpoint);
+
+        // not canonical
+        scanner.scan(new File(mRoot, "a/..").getPath());
+
+        Assert.assertTrue("something paused", scanner.getPaused().size() > 0);
+        Assert.assertEquals(new HashSet<String>(scanner.getPaused()), new HashSet<String>(checkpoint.getPending()));
+    }
+
+    /** @return journal that remembers all put directories in journaled */
+    private static ScanJournal createJournal(final Set<String> journaled) {
+        return new ScanJournal() {
+            @Override
+            public synchronized void put(String directory, long lastModified, int fileCount) {
+                journaled.add(directory);
+                super.put(directory, lastModified, fileCount);
+            }
+        };
+    }
+
+    private static class TestCallback implements ParallelDirectoryScanner.Callback<String> {
+        private final int mCancelAfter;
+        private final AtomicInteger mExtracted = new AtomicInteger(0);
+
+        final List<String> written = new ArrayList<String>();
+        final Set<Thread> writerThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        int maxBatchSize = 0;
+        int crashAtBatch = -1;
+        int interruptAtBatch = -1;
+        private int mBatchCount = 0;
+
+        TestCallback(int cancelAfter) {
+            mCancelAfter = cancelAfter;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return (mCancelAfter >= 0) && (mExtracted.get() >= mCancelAfter);
+        }
+
+        @Override
+        public void onDirectory(String directory) {
+        }
+
+        @Override
+        public String extract(File file) {
+            mExtracted.incrementAndGet();
+            return file.getAbsolutePath();
+        }
+
+        @Override
+        public int write(List<String> batch) {
+            if (++mBatchCount == crashAtBatch) throw new IllegalStateException("simulated crash");
+            if (mBatchCount == interruptAtBatch) Thread.currentThread().interrupt();
+            writerThreads.add(Thread.currentThread());
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+            written.addAll(batch);
+            return batch.size();
+        }
+    }
+
+    private String createFile(String relPath) throws IOException {
+        File file = new File(mRoot, relPath);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return file.getAbsolutePath();
+    }
+}
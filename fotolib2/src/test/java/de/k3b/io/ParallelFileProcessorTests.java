@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class ParallelFileProcessorTests {
+    @Test
+    public void shouldContinueAfterFailedFile() {
+        final List<File> failed = new ArrayList<File>();
+        final List<Integer> doneCounts = new ArrayList<Integer>();
+        final File bad = new File("b.jpg");
+        ParallelFileProcessor sut = new ParallelFileProcessor(3) {
+            @Override
+            protected void process(File file) throws Exception {
+                if (file.equals(bad)) throw new IOException("cannot write " + file);
+            }
+
+            @Override
+            protected void onDone(File file, int doneCount) {
+                doneCounts.add(doneCount);
+            }
+
+            @Override
+            protected void onFailed(File file, Exception error) {
+                failed.add(file);
+            }
+        };
+
+        List<File> result = sut.processAll(new File("a.jpg"), bad, new File("c.jpg"), new File("d.jpg"));
+
+        Assert.assertEquals(new HashSet<File>(Arrays.asList(new File("a.jpg"), new File("c.jpg"), new File("d.jpg"))),
+                new HashSet<File>(result));
+        Assert.assertEquals(Arrays.asList(bad), failed);
+        Assert.assertEquals(Arrays.asList(1, 2, 3), doneCounts);
+    }
+
+    @Test
+    public void shouldProcessNothing() {
+        ParallelFileProcessor sut = new ParallelFileProcessor(3) {
+            @Override
+            protected void process(File file) throws Exception {
+                Assert.fail("no file expected");
+            }
+        };
+
+        Assert.assertEquals(0, sut.processAll().size());
+    }
+}
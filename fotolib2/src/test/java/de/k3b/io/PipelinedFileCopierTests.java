@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelinedFileCopierTests {
+    private File mSrcDir;
+    private File mDestDir;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("PipelinedFileCopierTests");
+
+    @Before
+    public void setup() throws IOException {
+        mSrcDir = mTempDir.getDir("src");
+        mDestDir = mTempDir.getDir("dest");
+    }
+
+    @Test
+    public void shouldCopyInOrderWithFewBuffers() throws IOException {
+        int count = 20;
+        File[] sources = new File[count];
+        File[] dests = new File[count];
+        for (int i = 0; i < count; i++) {
+            // some files need more than all pooled buffers
+            sources[i] = create(mSrcDir, i + ".jpg", (i % 3 == 0) ? 10000 + i : 100 * i);
+            dests[i] = new File(mDestDir, i + ".jpg");
+        }
+
+        final List<Integer> order = new ArrayList<Integer>();
+        PipelinedFileCopier sut = new PipelinedFileCopier(3, 2, 1024, 4, false);
+        int result = sut.copy(sources, dests, new TestCallback(order, -1));
+
+        Assert.assertEquals(count, result);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals("order " + i, Integer.valueOf(i), order.get(i));
+            assertSameContent(sources[i], dests[i]);
+            Assert.assertEquals(sources[i].lastModified() / 1000, dests[i].lastModified() / 1000);
+        }
+    }
+
+    @Test
+    public void shouldNotAllocateMoreBuffersWithSlowWriter() throws IOException {
+        int count = 6;
+        File[] sources = new File[count];
+        File[] dests = new File[count];
+        for (int i = 0; i < count; i++) {
+            // each file needs more chunks than there are buffers
+            sources[i] = create(mSrcDir, i + ".jpg", 2000 + i);
+            dests[i] = new File(mDestDir, i + ".jpg");
+        }
+
+        final AtomicInteger allocated = new AtomicInteger(0);
+        PipelinedFileCopier sut = new PipelinedFileCopier(3, 3, 100, 4, false) {
+            @Override
+            ByteBuffer allocateBuffer() {
+                allocated.incrementAndGet();
+                return super.allocateBuffer();
+            }
+        };
+
+        // while the writer is slow the readers of the next files take all pooled buffers
+        final List<Integer> order = new ArrayList<Integer>();
+        int result = sut.copy(sources, dests, new TestCallback(order, -1) {
+            @Override
+            public void onCopied(int index, File source, File dest, IOException error) {
+                super.onCopied(index, source, dest, error);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Assert.assertEquals(count, result);
+        for (int i = 0; i < count; i++) {
+            assertSameContent(sources[i], dests[i]);
+        }
+        Assert.assertTrue("4 pooled + 1 reserved but allocated " + allocated, allocated.get() <= 5);
+    }
+
+    @Test
+    public void shouldReportReadErrorAndContinue() throws IOException {
+        File[] sources = {create(mSrcDir, "a.jpg", 5000), new File(mSrcDir, "missing.jpg"), create(mSrcDir, "c.jpg", 5000)};
+        File[] dests = {new File(mDestDir, "a.jpg"), new File(mDestDir, "missing.jpg"), new File(mDestDir, "c.jpg")};
+
+        final List<Integer> failed = new ArrayList<Integer>();
+        int result = new PipelinedFileCopier(2, 1, 1024, 4, false).copy(sources, dests, new PipelinedFileCopier.Callback() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public void onCopied(int index, File source, File dest, IOException error) {
+                if (error != null) failed.add(index);
+            }
+        });
+
+        Assert.assertEquals(2, result);
+        Assert.assertEquals(Arrays.asList(1), failed);
+        Assert.assertFalse("incomplete file is removed", dests[1].exists());
+        assertSameContent(sources[2], dests[2]);
+    }
+
+    @Test
+    public void shouldCancel() throws IOException {
+        int count = 10;
+        File[] sources = new File[count];
+        File[] dests = new File[count];
+        for (int i = 0; i < count; i++) {
+            sources[i] = create(mSrcDir, i + ".jpg", 3000);
+            dests[i] = new File(mDestDir, i + ".jpg");
+        }
+
+        List<Integer> order = new ArrayList<Integer>();
+        int result = new PipelinedFileCopier(2, 2, 1024, 4, false).copy(sources, dests, new TestCallback(order, 3));
+
+        Assert.assertEquals(3, result);
+        Assert.assertEquals(Arrays.asList(0, 1, 2), order);
+        Assert.assertFalse(dests[3].exists());
+    }
+
+    @Test
+    public void shouldCopyWithSidecarAndRenameInFileCommands() throws IOException {
+        create(mSrcDir, "a.jpg", 3000);
+        create(mSrcDir, "a.xmp", 300);
+        create(mSrcDir, "b.jpg", 3000);
+        create(mDestDir, "a.jpg", 10);
+        create(mDestDir, "b(1).xmp", 10);
+
+        File otherDir = new File(mSrcDir.getParentFile(), "other");
+        otherDir.mkdirs();
+        File otherB = create(otherDir, "b.jpg", 4000);
+        try {
+            FileCommands sut = new FileCommands().setCopyPipeline(2, 1);
+            int result = sut.moveOrCopyFilesTo(false, mDestDir,
+                    new File(mSrcDir, "a.jpg"), new File(mSrcDir, "b.jpg"), otherB);
+
+            Assert.assertEquals("3 photos + 1 sidecar", 4, result);
+            assertSameContent(new File(mSrcDir, "a.jpg"), new File(mDestDir, "a(1).jpg"));
+            assertSameContent(new File(mSrcDir, "a.xmp"), new File(mDestDir, "a(1).xmp"));
+            assertSameContent(new File(mSrcDir, "b.jpg"), new File(mDestDir, "b.jpg"));
+
+            // b.jpg is reserved by the first b and b(1) has a sidecar
+            assertSameContent(otherB, new File(mDestDir, "b(2).jpg"));
+        } finally {
+            otherB.delete();
+            otherDir.delete();
+        }
+    }
+
+    private static class TestCallback implements PipelinedFileCopier.Callback {
+        private final List<Integer> mOrder;
+        private final int mCancelAt;
+
+        TestCallback(List<Integer> order, int cancelAt) {
+            mOrder = order;
+            mCancelAt = cancelAt;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mOrder.size() == mCancelAt;
+        }
+
+        @Override
+        public void onCopied(int index, File source, File dest, IOException error) {
+            Assert.assertNull(error);
+            mOrder.add(index);
+        }
+    }
+
+    private static File create(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        byte[] content = new byte[size];
+        new Random(size + name.hashCode()).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        Assert.assertTrue(actual + " exists", actual.exists());
+        Assert.assertEquals(FileUtils.readFile(expected), FileUtils.readFile(actual));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ScanCheckpointTests {
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("ScanCheckpointTests");
+
+    @Test
+    public void shouldSaveAndLoad() throws IOException {
+        File file = new File(mTempDir.getRoot(), "checkpoint.txt");
+        ScanCheckpoint sut = new ScanCheckpoint(file, 0);
+        sut.add("/a");
+        sut.replace("/a", Arrays.asList("/a/b", "/a/img1.jpg"));
+        sut.save();
+
+        ScanCheckpoint loaded = new ScanCheckpoint(file, 0).load();
+        Assert.assertEquals(Arrays.asList("/a/b", "/a/img1.jpg"), loaded.getPending());
+    }
+
+    @Test
+    public void shouldDeleteFileIfEmpty() throws IOException {
+        File file = new File(mTempDir.getRoot(), "checkpoint.txt");
+        ScanCheckpoint sut = new ScanCheckpoint(file, 0);
+        sut.add("/a");
+        sut.save();
+        Assert.assertTrue(file.exists());
+
+        sut.remove("/a");
+        sut.save();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void shouldSaveOnlyIfDue() throws IOException {
+        File file = new File(mTempDir.getRoot(), "checkpoint.txt");
+        ScanCheckpoint sut = new ScanCheckpoint(file, 60000);
+        sut.add("/a");
+        sut.save();
+
+        sut.add("/b");
+        sut.saveIfDue();
+        Assert.assertEquals("interval not reached", 1, new ScanCheckpoint(file, 0).load().getPending().size());
+    }
+}
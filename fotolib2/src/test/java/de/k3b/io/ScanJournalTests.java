@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ScanJournalTests {
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("ScanJournalTests");
+
+    @Test
+    public void shouldDetectChanges() {
+        ScanJournal sut = new ScanJournal();
+        sut.put("/a", 1000, 5);
+
+        Assert.assertTrue(sut.isUnchanged("/a", 1000, 5));
+        Assert.assertFalse("modified", sut.isUnchanged("/a", 1001, 5));
+        Assert.assertFalse("file count", sut.isUnchanged("/a", 1000, 4));
+        Assert.assertFalse("unknown", sut.isUnchanged("/b", 1000, 5));
+    }
+
+    @Test
+    public void shouldSaveAndLoad() throws IOException {
+        File file = new File(mTempDir.getRoot(), "journal.txt");
+        ScanJournal sut = new ScanJournal();
+        sut.put("/a", 1000, 5);
+        sut.put("/with\ttab and ümlaut", 2000, 0);
+        sut.save(file);
+
+        ScanJournal loaded = new ScanJournal().load(file);
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertTrue(loaded.isUnchanged("/a", 1000, 5));
+        Assert.assertTrue(loaded.isUnchanged("/with\ttab and ümlaut", 2000, 0));
+    }
+
+    @Test
+    public void shouldLoadMissingFileAsEmpty() {
+        ScanJournal sut = new ScanJournal();
+        sut.put("/a", 1000, 5);
+        sut.load(new File("/does/not/exist.txt"));
+        Assert.assertEquals(0, sut.size());
+    }
+}
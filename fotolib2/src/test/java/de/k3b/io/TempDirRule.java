@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.io;
+
+import org.junit.rules.ExternalResource;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Junit rule for tests that work with real files:
+ * every test gets a new empty directory (canonical path) that is deleted recursively after the test.
+ */
+public class TempDirRule extends ExternalResource {
+    private final String mPrefix;
+    private File mRoot = null;
+
+    /** @param prefix name of the directory i.e. the name of the test class */
+    public TempDirRule(String prefix) {
+        mPrefix = prefix;
+    }
+
+    @Override
+    protected void before() throws IOException {
+        mRoot = FileUtils.tryGetCanonicalFile(File.createTempFile(mPrefix, ""), null);
+        mRoot.delete();
+        if (!mRoot.mkdirs()) throw new IOException("TempDirRule: cannot create " + mRoot);
+    }
+
+    @Override
+    protected void after() {
+        delete(mRoot);
+        mRoot = null;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /** @return sub directory of root that is created if necessary */
+    public File getDir(String name) {
+        File result = new File(mRoot, name);
+        result.mkdirs();
+        return result;
+    }
+
+    /** deletes file or directory with all its content */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.k3b.io.TempDirRule;
+
+public class DuplicateFinderTests {
+    private static final int BIG = 3 * DuplicateFinder.PARTIAL_SIZE;
+
+    private File mRoot;
+    private List<String> mAll;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("DuplicateFinderTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+        mAll = new ArrayList<String>();
+    }
+
+    @Test
+    public void shouldFindSmallAndBigDuplicates() throws IOException {
+        String small1 = create("small1.jpg", content(1000, 1, -1));
+        String small2 = create("small2.jpg", content(1000, 1, -1));
+        create("smallOther.jpg", content(1000, 2, -1));
+        create("unique.jpg", content(1234, 1, -1));
+
+        String big1 = create("big1.jpg", content(BIG, 3, -1));
+        String big2 = create("big2.jpg", content(BIG, 3, -1));
+        String big3 = create("big3.jpg", content(BIG, 3, -1));
+
+        // same size, first and last 64k identical, differs in the middle
+        create("bigMiddle.jpg", content(BIG, 3, BIG / 2));
+
+        List<List<String>> result = new DuplicateFinder(2, null).findDuplicates(mAll);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(Arrays.asList(big1, big2, big3), result.get(0));
+        Assert.assertEquals(Arrays.asList(small1, small2), result.get(1));
+    }
+
+    @Test
+    public void shouldNotReadUnchangedFilesAgain() throws IOException {
+        create("a.jpg", content(BIG, 5, -1));
+        create("b.jpg", content(BIG, 5, -1));
+        create("c.jpg", content(BIG, 5, BIG / 2));
+        File store = new File(mRoot, "hashes.txt");
+
+        ContentHashStore hashes = new ContentHashStore();
+        DuplicateFinder first = new DuplicateFinder(2, hashes);
+        Assert.assertEquals(1, first.findDuplicates(mAll).size());
+        Assert.assertEquals("3 partial + 3 full", 6, first.getReadCount());
+        hashes.save(store);
+
+        DuplicateFinder second = new DuplicateFinder(2, new ContentHashStore().load(store));
+        Assert.assertEquals(1, second.findDuplicates(mAll).size());
+        Assert.assertEquals(0, second.getReadCount());
+    }
+
+    @Test
+    public void shouldRehashModifiedFile() throws IOException {
+        String a = create("a.jpg", content(1000, 5, -1));
+        create("b.jpg", content(1000, 5, -1));
+        ContentHashStore hashes = new ContentHashStore();
+        Assert.assertEquals(1, new DuplicateFinder(1, hashes).findDuplicates(mAll).size());
+
+        write(new File(a), content(1000, 6, -1));
+        new File(a).setLastModified(new File(a).lastModified() + 5000);
+
+        DuplicateFinder sut = new DuplicateFinder(1, hashes);
+        Assert.assertEquals(0, sut.findDuplicates(mAll).size());
+        Assert.assertEquals(1, sut.getReadCount());
+    }
+
+    /** @return size bytes depending on seed. If differentAt >= 0 that byte is modified */
+    private static byte[] content(int size, int seed, int differentAt) {
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (i * 31 + seed);
+        }
+        if (differentAt >= 0) result[differentAt]++;
+        return result;
+    }
+
+    private String create(String name, byte[] content) throws IOException {
+        File file = new File(mRoot, name);
+        write(file, content);
+        mAll.add(file.getAbsolutePath());
+        return file.getAbsolutePath();
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import de.k3b.io.FileUtils;
+import de.k3b.io.TempDirRule;
+
+/**
+ * Uses the same fixtures as {@link ExifThumbnailTests}.
+ */
+public class ExifGpsPatcherTests {
+    private File mRoot;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("ExifGpsPatcherTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+    }
+
+    @Test
+    public void shouldPatchInPlaceBigEndian() throws IOException {
+        assertPatchInPlace("exif-big-endian.jpg");
+    }
+
+    @Test
+    public void shouldPatchInPlaceLittleEndian() throws IOException {
+        assertPatchInPlace("exif-little-endian.jpg");
+    }
+
+    @Test
+    public void shouldRewriteWithoutExif() throws IOException {
+        File jpg = copy("no-exif.jpg");
+        int result = new ExifGpsPatcher(-1.5, 2.25).setDefaults("2016:10:19 01:02:03", "AndroFotoFinder", "1.2.3").patch(jpg);
+
+        Assert.assertEquals(ExifGpsPatcher.RESULT_REWRITTEN, result);
+        JpegHeaderReader header = JpegHeaderReader.read(jpg);
+        Assert.assertEquals(64, header.getWidth());
+        Assert.assertEquals(48, header.getHeight());
+        Assert.assertEquals(-1.5, header.getLatitude(), 0.000001);
+        Assert.assertEquals(2.25, header.getLongitude(), 0.000001);
+        Assert.assertNotNull(header.getDateTimeTaken());
+
+        TiffReader tiff = getTiff(jpg);
+        Assert.assertEquals("AndroFotoFinder", tiff.getStringValue(tiff.getFirstIfdOffset(), 0x010F));
+        Assert.assertEquals("1.2.3", tiff.getStringValue(tiff.getFirstIfdOffset(), 0x0110));
+
+        // second time there is a gps ifd and all defaults exist
+        long length = jpg.length();
+        result = new ExifGpsPatcher(3.5, 4.5).setDefaults("2016:10:19 01:02:03", "AndroFotoFinder", "1.2.3").patch(jpg);
+        Assert.assertEquals(ExifGpsPatcher.RESULT_IN_PLACE, result);
+        Assert.assertEquals(length, jpg.length());
+        Assert.assertEquals(3.5, JpegHeaderReader.read(jpg).getLatitude(), 0.000001);
+    }
+
+    @Test
+    public void shouldKeepOriginalIfRewriteFails() throws IOException {
+        File jpg = copy("no-exif.jpg");
+        byte[] original = readBytes(jpg);
+        // the temp file cannot be created
+        File blocker = new File(FileUtils.getTempFile(jpg), "blocker");
+        blocker.getParentFile().mkdirs();
+        blocker.createNewFile();
+
+        try {
+            new ExifGpsPatcher(-1.5, 2.25).patch(jpg);
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+            // jpg cannot be rewritten
+        }
+
+        Assert.assertArrayEquals(original, readBytes(jpg));
+    }
+
+    @Test
+    public void shouldRewriteIfDefaultIsMissingAndKeepExistingExif() throws IOException {
+        File jpg = copy("exif-big-endian.jpg");
+        TiffReader original = getTiff(jpg);
+        String dateTime = original.getStringValue(original.getFirstIfdOffset(), 0x0132);
+        Assert.assertNotNull(dateTime);
+
+        int result = new ExifGpsPatcher(10.0, 20.0).setDefaults("2000:01:01 00:00:00", "AndroFotoFinder", null).patch(jpg);
+
+        Assert.assertEquals(ExifGpsPatcher.RESULT_REWRITTEN, result);
+        JpegHeaderReader header = JpegHeaderReader.read(jpg);
+        Assert.assertEquals(6, header.getOrientation());
+        Assert.assertEquals(10.0, header.getLatitude(), 0.000001);
+        Assert.assertEquals(20.0, header.getLongitude(), 0.000001);
+
+        TiffReader tiff = getTiff(jpg);
+        Assert.assertEquals("AndroFotoFinder", tiff.getStringValue(tiff.getFirstIfdOffset(), 0x010F));
+        // existing DateTime is not overwritten
+        Assert.assertEquals(dateTime, tiff.getStringValue(tiff.getFirstIfdOffset(), 0x0132));
+
+        Assert.assertArrayEquals(getBytes("exif-thumbnail.jpg"), ExifThumbnail.getThumbnail(jpg));
+        Assert.assertFalse(new File(jpg.getAbsolutePath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotPatchNonJpg() throws IOException {
+        File file = new File(mRoot, "hello.jpg");
+        write(file, "hello world".getBytes());
+        new ExifGpsPatcher(1.0, 2.0).patch(file);
+    }
+
+    /** many photo sized files are patched in place: the image data after the header is never read or written */
+    @Test
+    public void shouldPatchManyPhotosInPlace() throws IOException {
+        final int count = 500;
+        byte[] original = getBytes("exif-little-endian.jpg");
+        byte[] photo = new byte[2 * 1024 * 1024];
+        System.arraycopy(original, 0, photo, 0, original.length);
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(mRoot, "photo" + i + ".jpg");
+        }
+        for (File file : files) {
+            write(file, photo);
+        }
+
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(ExifGpsPatcher.RESULT_IN_PLACE, new ExifGpsPatcher(i / 10.0, -i / 10.0).patch(files[i]));
+            Assert.assertEquals(photo.length, files[i].length());
+        }
+
+        Assert.assertEquals(49.9, JpegHeaderReader.read(files[count - 1]).getLatitude(), 0.001);
+    }
+
+    private void assertPatchInPlace(String resourceName) throws IOException {
+        byte[] original = getBytes(resourceName);
+        File jpg = copy(resourceName);
+
+        int result = new ExifGpsPatcher(-79.948862, 123.5).setDefaults("2000:01:01 00:00:00", null, null).patch(jpg);
+
+        Assert.assertEquals(ExifGpsPatcher.RESULT_IN_PLACE, result);
+        byte[] patched = readBytes(jpg);
+        Assert.assertEquals(original.length, patched.length);
+        int changed = 0;
+        for (int i = 0; i < original.length; i++) {
+            if (original[i] != patched[i]) changed++;
+        }
+        // only the bytes of 2 refs and 2 * 3 rationals may change
+        Assert.assertTrue("changed bytes " + changed, changed <= 2 * 4 + 2 * 24);
+
+        JpegHeaderReader header = JpegHeaderReader.read(jpg);
+        Assert.assertEquals(-79.948862, header.getLatitude(), 0.00001);
+        Assert.assertEquals(123.5, header.getLongitude(), 0.00001);
+        Assert.assertEquals(6, header.getOrientation());
+    }
+
+    private TiffReader getTiff(File jpg) throws IOException {
+        final TiffReader[] result = new TiffReader[1];
+        JpegSegmentParser.parse(new ByteArrayInputStream(readBytes(jpg)), new JpegSegmentParser.SegmentHandler() {
+            @Override
+            public boolean isInterestedIn(int marker) {
+                return marker == JpegSegmentParser.MARKER_APP1;
+            }
+
+            @Override
+            public boolean onSegment(int marker, byte[] data) {
+                result[0] = TiffReader.fromApp1(data);
+                return result[0] == null;
+            }
+        });
+        Assert.assertNotNull("exif in " + jpg, result[0]);
+        return result[0];
+    }
+
+    private File copy(String resourceName) throws IOException {
+        File result = new File(mRoot, resourceName);
+        write(result, getBytes(resourceName));
+        return result;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] result = new byte[(int) in.length()];
+            in.readFully(result);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] getBytes(String resourceName) throws IOException {
+        InputStream in = this.getClass().getResourceAsStream(resourceName);
+        Assert.assertNotNull("resource " + resourceName, in);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int length = 0;
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixtures in test resources: exif-big-endian.jpg (JFIF + "MM" exif) and exif-little-endian.jpg ("II" exif)
+ * both contain exif-thumbnail.jpg as embedded thumbnail. no-exif.jpg has no exif.
+ */
+public class ExifThumbnailTests {
+    @Test
+    public void shouldGetThumbnailBigEndian() throws IOException {
+        byte[] result = ExifThumbnail.getThumbnail(getStream("exif-big-endian.jpg"));
+        Assert.assertArrayEquals(getBytes("exif-thumbnail.jpg"), result);
+    }
+
+    @Test
+    public void shouldGetThumbnailLittleEndian() throws IOException {
+        byte[] result = ExifThumbnail.getThumbnail(getStream("exif-little-endian.jpg"));
+        Assert.assertArrayEquals(getBytes("exif-thumbnail.jpg"), result);
+    }
+
+    @Test
+    public void shouldNotGetThumbnailWithoutExif() throws IOException {
+        byte[] result = ExifThumbnail.getThumbnail(getStream("no-exif.jpg"));
+        Assert.assertNull(result);
+    }
+
+    @Test
+    public void shouldNotGetThumbnailFromNonJpg() throws IOException {
+        byte[] result = ExifThumbnail.getThumbnail(new ByteArrayInputStream("hello world".getBytes()));
+        Assert.assertNull(result);
+    }
+
+    @Test
+    public void shouldNotGetThumbnailFromTruncatedExif() throws IOException {
+        byte[] jpg = getBytes("exif-little-endian.jpg");
+        byte[] truncated = new byte[200];
+        System.arraycopy(jpg, 0, truncated, 0, truncated.length);
+        try {
+            Assert.assertNull(ExifThumbnail.getThumbnail(new ByteArrayInputStream(truncated)));
+        } catch (IOException expected) {
+            // eof while reading the exif segment is ok, too
+        }
+    }
+
+    @Test
+    public void shouldNotReadImageData() throws IOException {
+        byte[] jpg = getBytes("exif-little-endian.jpg");
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(jpg));
+        Assert.assertNotNull(ExifThumbnail.getThumbnail(in));
+
+        // stops after the exif segment
+        Assert.assertTrue("read " + in.count + " of " + jpg.length, in.count < jpg.length - 300);
+    }
+
+    private InputStream getStream(String resourceName) {
+        InputStream result = this.getClass().getResourceAsStream(resourceName);
+        Assert.assertNotNull("resource " + resourceName, result);
+        return result;
+    }
+
+    private byte[] getBytes(String resourceName) throws IOException {
+        InputStream in = getStream(resourceName);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static class CountingInputStream extends InputStream {
+        private final InputStream mIn;
+        private int count = 0;
+
+        CountingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = mIn.read();
+            if (result >= 0) count++;
+            return result;
+        }
+    }
+}
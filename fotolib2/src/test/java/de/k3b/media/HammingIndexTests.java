@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class HammingIndexTests {
+    @Test
+    public void shouldFindAllWithinDistance() {
+        HammingIndex<String> sut = new HammingIndex<String>(2)
+                .add(0x0L, "zero")
+                .add(0x0L, "zero2")
+                .add(0x3L, "two bits")
+                .add(0xFFL, "eight bits")
+                .add(0x8000000000000001L, "highest bit");
+
+        List<String> result = sut.search(0x1L, null);
+        Collections.sort(result);
+        Assert.assertEquals(Arrays.asList("highest bit", "two bits", "zero", "zero2"), result);
+        Assert.assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void shouldFindSameAsLinearSearch() {
+        Random random = new Random(4711);
+        long[] hashes = createHashes(random, 5000);
+
+        for (int maxDistance = 0; maxDistance <= PerceptualHash.DEFAULT_MAX_DISTANCE; maxDistance += 3) {
+            HammingIndex<Integer> sut = createIndex(hashes, maxDistance);
+            for (int q = 0; q < 50; q++) {
+                long query = hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64));
+                List<Integer> expected = linearSearch(hashes, query, maxDistance);
+                List<Integer> result = sut.search(query, null);
+                Collections.sort(result);
+                Assert.assertEquals("distance " + maxDistance + " query " + q, expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void shouldClusterSimilar() {
+        Map<String, Long> hashes = new HashMap<String, Long>();
+        hashes.put("/burst1.jpg", 0x00FFL);
+        hashes.put("/burst2.jpg", 0x01FFL); // distance 1 to burst1
+        hashes.put("/burst3.jpg", 0x03FFL); // distance 1 to burst2
+        hashes.put("/other.jpg", 0xFFFF0000L);
+        hashes.put("/copy1.jpg", 0xF0F0F0F0F0F0F0F0L);
+        hashes.put("/copy2.jpg", 0xF0F0F0F0F0F0F0F0L);
+
+        List<List<String>> result = new SimilarImageClusterer(1).cluster(hashes);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(Arrays.asList("/burst1.jpg", "/burst2.jpg", "/burst3.jpg"), result.get(0));
+        Assert.assertEquals(Arrays.asList("/copy1.jpg", "/copy2.jpg"), result.get(1));
+    }
+
+    /** multi-index vs linear search with 100000 hashes: same result with much less compares */
+    @Test
+    public void benchmarkSearch() {
+        final int count = 100000;
+        final int queries = 1000;
+        final int maxDistance = PerceptualHash.DEFAULT_MAX_DISTANCE;
+        Random random = new Random(1234);
+        long[] hashes = createHashes(random, count);
+
+        HammingIndex<Integer> sut = createIndex(hashes, maxDistance);
+
+        long[] query = new long[queries];
+        for (int i = 0; i < queries; i++) {
+            query[i] = hashes[random.nextInt(count)] ^ (1L << random.nextInt(64));
+        }
+
+        long compareCount = 0;
+        int found = 0;
+        for (long q : query) {
+            found += sut.search(q, null).size();
+            compareCount += sut.getLastCompareCount();
+        }
+
+        int foundLinear = 0;
+        for (long q : query) {
+            foundLinear += linearSearch(hashes, q, maxDistance).size();
+        }
+
+        Assert.assertEquals(foundLinear, found);
+        Assert.assertTrue("multi-index must compare less than 5% of the hashes but compared " + (compareCount / queries),
+                compareCount / queries < count / 20);
+    }
+
+    /** clustering 100000 images finds the near duplicates */
+    @Test
+    public void benchmarkCluster() {
+        final int count = 100000;
+        Random random = new Random(4711);
+        long[] hashes = createHashes(random, count);
+        Map<String, Long> images = new HashMap<String, Long>();
+        for (int i = 0; i < count; i++) {
+            images.put("/" + i + ".jpg", hashes[i]);
+        }
+
+        List<List<String>> result = new SimilarImageClusterer(PerceptualHash.DEFAULT_MAX_DISTANCE).cluster(images);
+
+        // every 10th hash is a near duplicate of its predecessor
+        Assert.assertTrue("clusters " + result.size(), result.size() >= count / 10 - 100);
+    }
+
+    /** random hashes where every 10th is a near duplicate of its predecessor */
+    private static long[] createHashes(Random random, int count) {
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = ((i % 10 == 9) && (i > 0))
+                    ? result[i - 1] ^ (1L << random.nextInt(64))
+                    : random.nextLong();
+        }
+        return result;
+    }
+
+    private static HammingIndex<Integer> createIndex(long[] hashes, int maxDistance) {
+        HammingIndex<Integer> result = new HammingIndex<Integer>(maxDistance);
+        for (int i = 0; i < hashes.length; i++) {
+            result.add(hashes[i], i);
+        }
+        return result;
+    }
+
+    private static List<Integer> linearSearch(long[] hashes, long query, int maxDistance) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < hashes.length; i++) {
+            if (PerceptualHash.distance(hashes[i], query) <= maxDistance) result.add(i);
+        }
+        return result;
+    }
+}
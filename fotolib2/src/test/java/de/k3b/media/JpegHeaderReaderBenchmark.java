@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the header io of {@link JpegHeaderReader} (one open, one pass) with two opens of the same file
+ * (one for the image size, one for exif) as the former MediaScanner did.<br/>
+ *
+ * What is measured: the bytes read from the file and the time of
+ * <ul>
+ *     <li>two opens: {@link JpegSegmentParser} scans to the first SOF0..SOF3 segment,
+ *     then a second open scans to the APP1 (exif) segment.</li>
+ *     <li>one open: {@link JpegHeaderReader#read(InputStream)} that also decodes size, orientation, date and gps.</li>
+ * </ul>
+ * The former path used android's BitmapFactory (bounds only) and ExifInterface, which do not exist in
+ * plain java. Their parsing cost is not included: the "two opens" numbers are only the file io part of it.<br/>
+ *
+ * Not part of the normal unit tests: only runs with -Dbenchmark=true.
+ * Default input are the jpgs of the test resources. An other folder can be used with
+ * -DJpegHeaderReaderBenchmark.dir=/path/to/jpgs. The measured values are reported in the assertion messages.
+ */
+public class JpegHeaderReaderBenchmark {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** every file is read this often so that small folders give measurable times */
+    private static final int ROUNDS = Integer.getInteger("JpegHeaderReaderBenchmark.rounds", 100);
+
+    private List<File> mFiles;
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue("run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+
+        String dir = System.getProperty("JpegHeaderReaderBenchmark.dir");
+        File folder = (dir != null)
+                ? new File(dir)
+                : new File(JpegHeaderReaderBenchmark.class.getResource("no-exif.jpg").getPath()).getParentFile();
+        mFiles = new ArrayList<File>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName().toLowerCase();
+                if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"))) mFiles.add(file);
+            }
+        }
+        Assert.assertTrue("no jpgs in " + folder, mFiles.size() > 0);
+    }
+
+    @Test
+    public void benchmarkOneOpenAgainstTwoOpens() throws IOException {
+        // first round only warms up the jvm and the file system cache
+        measure();
+        long[] result = measure();
+        long twoPassBytes = result[0];
+        long twoPassTime = result[1];
+        long onePassBytes = result[2];
+        long onePassTime = result[3];
+
+        String measured = mFiles.size() + " jpgs x " + ROUNDS
+                + ": two opens " + twoPassBytes / 1024 + " KB read in " + twoPassTime / 1000000 + " ms"
+                + ", JpegHeaderReader " + onePassBytes / 1024 + " KB read in " + onePassTime / 1000000 + " ms";
+        Assert.assertTrue("bytes: " + measured, onePassBytes <= twoPassBytes);
+        Assert.assertTrue("time: " + measured, onePassTime <= twoPassTime);
+    }
+
+    /** @return twoPassBytes, twoPassNanos, onePassBytes, onePassNanos */
+    private long[] measure() throws IOException {
+        long[] result = new long[4];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (File file : mFiles) {
+                long start = System.nanoTime();
+                result[0] += readTwoPass(file);
+                result[1] += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                result[2] += readOnePass(file);
+                result[3] += System.nanoTime() - start;
+            }
+        }
+        return result;
+    }
+
+    /** like the file io of the former MediaScanner: one open for the size and one for exif */
+    private static long readTwoPass(File file) throws IOException {
+        long result = 0;
+        for (final int wanted : new int[] {0, JpegSegmentParser.MARKER_APP1}) {
+            CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+            InputStream in = new BufferedInputStream(counter, BUFFER_SIZE);
+            try {
+                JpegSegmentParser.parse(in, new JpegSegmentParser.SegmentHandler() {
+                    @Override
+                    public boolean isInterestedIn(int marker) {
+                        return (wanted == 0) ? ((marker >= 0xC0) && (marker <= 0xC3)) : (marker == wanted);
+                    }
+
+                    @Override
+                    public boolean onSegment(int marker, byte[] data) {
+                        return false;
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            result += counter.mCount;
+        }
+        return result;
+    }
+
+    private static long readOnePass(File file) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+        InputStream in = new BufferedInputStream(counter, BUFFER_SIZE);
+        try {
+            JpegHeaderReader.read(in);
+        } finally {
+            in.close();
+        }
+        return counter.mCount;
+    }
+
+    /** counts the bytes that are read from the file */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) mCount++;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) mCount += result;
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            if (result > 0) mCount += result;
+            return result;
+        }
+    }
+}
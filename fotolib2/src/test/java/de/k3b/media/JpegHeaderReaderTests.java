@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Uses the same fixtures as {@link ExifThumbnailTests}.
+ */
+public class JpegHeaderReaderTests {
+    @Test
+    public void shouldReadExifBigEndian() throws IOException {
+        assertExif(JpegHeaderReader.read(getStream("exif-big-endian.jpg")));
+    }
+
+    @Test
+    public void shouldReadExifLittleEndian() throws IOException {
+        assertExif(JpegHeaderReader.read(getStream("exif-little-endian.jpg")));
+    }
+
+    @Test
+    public void shouldReadSizeWithoutExif() throws IOException {
+        JpegHeaderReader result = JpegHeaderReader.read(getStream("no-exif.jpg"));
+        Assert.assertEquals(64, result.getWidth());
+        Assert.assertEquals(48, result.getHeight());
+        Assert.assertEquals(JpegHeaderReader.NO_ORIENTATION, result.getOrientation());
+        Assert.assertNull(result.getDateTimeTaken());
+        Assert.assertFalse(result.hasLatLon());
+    }
+
+    @Test
+    public void shouldNotReadNonJpg() throws IOException {
+        Assert.assertNull(JpegHeaderReader.read(new ByteArrayInputStream("hello world".getBytes())));
+    }
+
+    @Test
+    public void shouldNotParseEmptyDateTime() {
+        Assert.assertNull(JpegHeaderReader.parseDateTime("    :  :     :  :  "));
+    }
+
+    private void assertExif(JpegHeaderReader result) {
+        Assert.assertEquals(64, result.getWidth());
+        Assert.assertEquals(48, result.getHeight());
+        Assert.assertEquals(JpegHeaderReader.MIME_JPEG, result.getMimeType());
+        Assert.assertEquals(6, result.getOrientation());
+
+        // DateTimeOriginal wins over DateTime
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Assert.assertEquals("2016-10-19 12:34:56", format.format(result.getDateTimeTaken()));
+
+        Assert.assertTrue(result.hasLatLon());
+        Assert.assertEquals(52.0 + 30.0 / 60 + 12.34 / 3600, result.getLatitude(), 0.000001);
+        Assert.assertEquals(-13.4, result.getLongitude(), 0.000001);
+    }
+
+    private InputStream getStream(String resourceName) {
+        InputStream result = this.getClass().getResourceAsStream(resourceName);
+        Assert.assertNotNull("resource " + resourceName, result);
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.k3b.io.TempDirRule;
+
+public class PerceptualHashTests {
+    private static final int SIZE = 96;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("PerceptualHashTests");
+
+    @Test
+    public void shouldBeSimilarIfBrighterOrResized() {
+        long original = PerceptualHash.dHash(createImage(SIZE, SIZE, 1, 0), SIZE, SIZE);
+        long brighter = PerceptualHash.dHash(createImage(SIZE, SIZE, 1, 30), SIZE, SIZE);
+        long smaller = PerceptualHash.dHash(createImage(SIZE / 2, SIZE / 2, 1, 0), SIZE / 2, SIZE / 2);
+
+        Assert.assertTrue("brighter " + PerceptualHash.distance(original, brighter),
+                PerceptualHash.distance(original, brighter) <= PerceptualHash.DEFAULT_MAX_DISTANCE);
+        Assert.assertTrue("smaller " + PerceptualHash.distance(original, smaller),
+                PerceptualHash.distance(original, smaller) <= PerceptualHash.DEFAULT_MAX_DISTANCE);
+    }
+
+    @Test
+    public void shouldBeDifferentForOtherImage() {
+        long image1 = PerceptualHash.dHash(createImage(SIZE, SIZE, 1, 0), SIZE, SIZE);
+        long image2 = PerceptualHash.dHash(createImage(SIZE, SIZE, 2, 0), SIZE, SIZE);
+
+        Assert.assertTrue("distance " + PerceptualHash.distance(image1, image2),
+                PerceptualHash.distance(image1, image2) > PerceptualHash.DEFAULT_MAX_DISTANCE);
+    }
+
+    @Test
+    public void shouldFormatAndParse() {
+        long hash = 0x8000000000000001L;
+        Assert.assertEquals("8000000000000001", PerceptualHash.toString(hash));
+        Assert.assertEquals(hash, PerceptualHash.parse(PerceptualHash.toString(hash)));
+        Assert.assertEquals("000000000000000f", PerceptualHash.toString(15));
+    }
+
+    @Test
+    public void shouldStorePerceptualHash() throws IOException {
+        File file = new File(mTempDir.getRoot(), "hashes.txt");
+        ContentHashStore store = new ContentHashStore();
+        store.putPerceptualHash("/a.jpg", 100, 200, -2L);
+        store.putFullHash("/b.jpg", 100, 200, "abc");
+        store.save(file);
+
+        ContentHashStore sut = new ContentHashStore().load(file);
+        Assert.assertEquals(Long.valueOf(-2L), sut.getPerceptualHash("/a.jpg", 100, 200));
+        Assert.assertNull("changed file", sut.getPerceptualHash("/a.jpg", 101, 200));
+        Assert.assertNull(sut.getPerceptualHash("/b.jpg", 100, 200));
+        Assert.assertEquals("abc", sut.getFullHash("/b.jpg", 100, 200));
+    }
+
+    /** gray gradient pattern that depends on variant. brightness is added to all pixels */
+    private static int[] createImage(int width, int height, int variant, int brightness) {
+        int[] result = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // coordinates relative to a 96x96 image so that resized images look the same
+                int rx = x * SIZE / width;
+                int ry = y * SIZE / height;
+                int gray = (variant == 1)
+                        ? ((rx * 7 + ry * 3) % 200)
+                        : (((rx / 12) % 2 == (ry / 12) % 2) ? 20 : 180);
+                gray = Math.min(255, gray + brightness);
+                result[y * width + x] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016 by k3b.
+ *
+ * This file is part of AndroFotoFinder.
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package de.k3b.media;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Date;
+
+import de.k3b.io.FileCommands;
+import de.k3b.io.TempDirRule;
+
+public class XmpSidecarTests {
+    /** xmp as written by other programs: properties as attributes and as elements, with foreign content */
+    private static final String FOREIGN_XMP = "<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n" +
+            "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n" +
+            " <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n" +
+            "  <rdf:Description rdf:about=\"\"\n" +
+            "    xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\"\n" +
+            "    xmlns:exif=\"http://ns.adobe.com/exif/1.0/\"\n" +
+            "    xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n" +
+            "   xmp:Rating=\"3\"\n" +
+            "   exif:GPSLatitude=\"52,30.205667N\">\n" +
+            "   <!-- a comment with <tags> -->\n" +
+            "   <exif:GPSLongitude>13,24.0W</exif:GPSLongitude>\n" +
+            "   <dc:title><rdf:Alt><rdf:li xml:lang=\"x-default\">Tom &amp; Jerry</rdf:li></rdf:Alt></dc:title>\n" +
+            "   <photoshop:DateCreated>2016-10-19T12:34:56+02:00</photoshop:DateCreated>\n" +
+            "  </rdf:Description>\n" +
+            " </rdf:RDF>\n" +
+            "</x:xmpmeta>\n" +
+            "<?xpacket end=\"w\"?>";
+
+    /** the properties are spread over several rdf:Description as allowed by rdf */
+    private static final String MULTI_DESCRIPTION_XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n" +
+            " <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n" +
+            "  <rdf:Description rdf:about=\"\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n" +
+            "   <dc:format>image/jpeg</dc:format>\n" +
+            "  </rdf:Description>\n" +
+            "  <rdf:Description rdf:about=\"\" xmlns:exif=\"http://ns.adobe.com/exif/1.0/\"\n" +
+            "    exif:GPSLatitude=\"52,30.205667N\"/>\n" +
+            "  <rdf:Description rdf:about=\"\" xmlns:exif=\"http://ns.adobe.com/exif/1.0/\" xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\"\n" +
+            "    xmp:Rating=\"3\">\n" +
+            "   <exif:GPSLongitude>13,24.0W</exif:GPSLongitude>\n" +
+            "  </rdf:Description>\n" +
+            " </rdf:RDF>\n" +
+            "</x:xmpmeta>";
+
+    private File mRoot;
+
+    @Rule
+    public final TempDirRule mTempDir = new TempDirRule("XmpSidecarTests");
+
+    @Before
+    public void setup() throws IOException {
+        mRoot = mTempDir.getRoot();
+    }
+
+    @Test
+    public void shouldParseAttributesAndElements() throws IOException {
+        XmpSidecar result = XmpSidecar.parse(new StringReader(FOREIGN_XMP));
+
+        Assert.assertEquals(52.0 + 30.205667 / 60, result.getLatitude(), 0.000001);
+        Assert.assertEquals(-13.4, result.getLongitude(), 0.000001);
+        Assert.assertEquals(Integer.valueOf(3), result.getRating());
+        Assert.assertEquals(XmpSidecar.parseDate("2016-10-19T12:34:56"), result.getDateTimeTaken());
+    }
+
+    @Test
+    public void shouldParseEmptyXmp() throws IOException {
+        XmpSidecar result = XmpSidecar.parse(new StringReader("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"/>"));
+        Assert.assertFalse(result.hasLatLon());
+        Assert.assertNull(result.getRating());
+        Assert.assertNull(result.getDateTimeTaken());
+    }
+
+    @Test
+    public void shouldUpdateAndKeepForeignContent() throws IOException {
+        StringWriter out = new StringWriter();
+        new XmpSidecar().setLatLon(-1.5, 2.25).write(new StringReader(FOREIGN_XMP), out);
+        String xmp = out.toString();
+
+        XmpSidecar result = XmpSidecar.parse(new StringReader(xmp));
+        Assert.assertEquals(-1.5, result.getLatitude(), 0.000001);
+        Assert.assertEquals(2.25, result.getLongitude(), 0.000001);
+        // unchanged
+        Assert.assertEquals(Integer.valueOf(3), result.getRating());
+        Assert.assertTrue(xmp, xmp.contains("<rdf:li xml:lang=\"x-default\">Tom &amp; Jerry</rdf:li>"));
+        Assert.assertTrue(xmp, xmp.contains("<!-- a comment with <tags> -->"));
+        Assert.assertFalse(xmp, xmp.contains("<exif:GPSLongitude>"));
+        // namespace declarations are not duplicated
+        Assert.assertEquals(xmp.indexOf("xmlns:exif="), xmp.lastIndexOf("xmlns:exif="));
+    }
+
+    @Test
+    public void shouldUpdateAllDescriptions() throws IOException {
+        StringWriter out = new StringWriter();
+        new XmpSidecar().setLatLon(-1.5, 2.25).write(new StringReader(MULTI_DESCRIPTION_XMP), out);
+        String xmp = out.toString();
+
+        XmpSidecar result = XmpSidecar.parse(new StringReader(xmp));
+        Assert.assertEquals(-1.5, result.getLatitude(), 0.000001);
+        Assert.assertEquals(2.25, result.getLongitude(), 0.000001);
+        Assert.assertEquals(Integer.valueOf(3), result.getRating());
+        Assert.assertTrue(xmp, xmp.contains("<dc:format>image/jpeg</dc:format>"));
+        // no old value is left in the other descriptions
+        Assert.assertFalse(xmp, xmp.contains("52,30.205667N"));
+        Assert.assertFalse(xmp, xmp.contains("13,24.0W"));
+        Assert.assertEquals(xmp.indexOf("exif:GPSLatitude="), xmp.lastIndexOf("exif:GPSLatitude="));
+    }
+
+    @Test
+    public void shouldCreateNew() throws IOException {
+        Date date = XmpSidecar.parseDate("2001-02-03T04:05:06");
+        StringWriter out = new StringWriter();
+        new XmpSidecar().setLatLon(10, -20).setDateTimeTaken(date).setRating(5).write(null, out);
+
+        XmpSidecar result = XmpSidecar.parse(new StringReader(out.toString()));
+        Assert.assertEquals(10, result.getLatitude(), 0.000001);
+        Assert.assertEquals(-20, result.getLongitude(), 0.000001);
+        Assert.assertEquals(date, result.getDateTimeTaken());
+        Assert.assertEquals(Integer.valueOf(5), result.getRating());
+    }
+
+    @Test
+    public void shouldWriteBatch() throws IOException {
+        File existing = new File(mRoot, "a.xmp");
+        write(existing, FOREIGN_XMP);
+        File created = FileCommands.getSidecar(new File(mRoot, "b.jpg"));
+
+        int count = new XmpSidecar().setRating(1).write(existing, created);
+
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(Integer.valueOf(1), XmpSidecar.read(existing).getRating());
+        Assert.assertEquals(-13.4, XmpSidecar.read(existing).getLongitude(), 0.000001);
+        Assert.assertEquals(Integer.valueOf(1), XmpSidecar.read(created).getRating());
+        Assert.assertEquals(2, mRoot.listFiles().length);
+    }
+
+    @Test
+    public void shouldNotChangeAnySidecarIfOneFails() throws IOException {
+        File existing = new File(mRoot, "a.xmp");
+        write(existing, FOREIGN_XMP);
+        File corrupt = new File(mRoot, "b.xmp");
+        write(corrupt, "no xmp");
+
+        try {
+            new XmpSidecar().setRating(1).write(existing, corrupt);
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+        }
+
+        Assert.assertEquals(Integer.valueOf(3), XmpSidecar.read(existing).getRating());
+        Assert.assertEquals(2, mRoot.listFiles().length);
+    }
+
+    @Test
+    public void shouldRollbackIfRenameFails() throws IOException {
+        File existing = new File(mRoot, "a.xmp");
+        write(existing, FOREIGN_XMP);
+        File created = new File(mRoot, "b.xmp");
+        final File failing = new File(mRoot, "c.xmp");
+        write(failing, FOREIGN_XMP);
+
+        XmpSidecar sut = new XmpSidecar() {
+            @Override
+            void commitTemp(File tempFile, File sidecar) throws IOException {
+                if (sidecar.equals(failing)) throw new IOException("cannot rename " + tempFile);
+                super.commitTemp(tempFile, sidecar);
+            }
+        }.setRating(1);
+
+        try {
+            sut.write(existing, created, failing);
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+        }
+
+        Assert.assertEquals(Integer.valueOf(3), XmpSidecar.read(existing).getRating());
+        Assert.assertFalse(created.exists());
+        Assert.assertEquals(Integer.valueOf(3), XmpSidecar.read(failing).getRating());
+        // no temp files or backups are left
+        Assert.assertEquals(2, mRoot.listFiles().length);
+    }
+
+    @Test
+    public void shouldFormatAndParseCoordinate() {
+        Assert.assertEquals("79,56.931720S", XmpSidecar.formatCoordinate(-79.948862, 'N', 'S'));
+        Assert.assertEquals(-79.948862, XmpSidecar.parseCoordinate("79,56.931720S"), 0.000001);
+        Assert.assertEquals(52.503428, XmpSidecar.parseCoordinate("52,30,12.34N"), 0.000001);
+        Assert.assertEquals(1.5, XmpSidecar.parseCoordinate("1.5"), 0.000001);
+        Assert.assertTrue(Double.isNaN(XmpSidecar.parseCoordinate("hello")));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -42,21 +42,100 @@ public class HugeImageLoader {
         return 4096;
     }
 
+    /** decode strategy: only use the power of 2 inSampleSize that fits into max. Fast but may loose up to 50% resolution. */
+    public static final int STRATEGY_SAMPLE_ONLY = 0;
+
+    /**
+     * decode strategy: decode with the largest power of 2 inSampleSize that is still bigger than max
+     * and let the decoder scale to the exact size via inDensity/inTargetDensity.
+     */
+    public static final int STRATEGY_SAMPLE_AND_DENSITY_SCALE = 1;
+
+    /**
+     * decode strategy: decode with the largest power of 2 inSampleSize that is still bigger than max
+     * followed by one filtered {@link Bitmap#createScaledBitmap(Bitmap, int, int, boolean)}.
+     */
+    public static final int STRATEGY_SAMPLE_AND_FILTERED_SCALE = 2;
+
+    /** one of the STRATEGY_XXX values used by {@link #loadImage(File, int, int)} */
+    public static int DECODE_STRATEGY = STRATEGY_SAMPLE_AND_DENSITY_SCALE;
+
+    /**
+     * true: images without alpha (jpg) are decoded as {@link Bitmap.Config#RGB_565} which needs
+     * half the memory. false: RGB_565 is only used if {@link Bitmap.Config#ARGB_8888} would not fit into memory.
+     */
+    public static boolean PREFER_RGB_565 = false;
+
     public static Bitmap loadImage(File file, int maxWidth, int maxHeight) {
+        return loadImage(file, maxWidth, maxHeight, DECODE_STRATEGY);
+    }
+
+    public static Bitmap loadImage(File file, int maxWidth, int maxHeight, int strategy) {
+        long startTime = (DEBUG) ? System.currentTimeMillis() : 0;
+
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-        // int imageHeight = options.outHeight;
-        // int imageWidth = options.outWidth;
-        // String imageType = options.outMimeType;
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if ((width <= 0) || (height <= 0)) return null; // not an image
+
+        // the exact size that fits into max keeping the aspect ratio
+        final float scale = Math.min(1f, Math.min(((float) maxWidth) / width, ((float) maxHeight) / height));
+        final int targetWidth = Math.max(1, Math.round(width * scale));
+        final int targetHeight = Math.max(1, Math.round(height * scale));
+
+        final long availableMemory = getAvailableMemory();
+        final boolean exactScale = (strategy != STRATEGY_SAMPLE_ONLY) && (scale < 1f);
 
         int downscale = calculateInSampleSize(options, maxWidth, maxHeight);
+        if (exactScale) {
+            // decode bigger and scale down to the exact size if there is enough memory for the bigger intermediate bitmap
+            int bigger = calculateInSampleSizeAbove(width, height, targetWidth, targetHeight);
+            if (getPeakBytes(width, height, bigger, targetWidth, targetHeight, 4, strategy) < availableMemory / 2) {
+                downscale = bigger;
+            }
+        }
         options.inSampleSize = downscale;
 
+        int bytesPerPixel = 4;
+        if (!hasAlpha(options.outMimeType)
+                && (PREFER_RGB_565
+                || (getPeakBytes(width, height, downscale, targetWidth, targetHeight, 4, strategy) >= availableMemory / 2))) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            bytesPerPixel = 2;
+        }
+
+        final int sampledWidth = width / downscale;
+        final int sampledHeight = height / downscale;
+        final boolean densityScale = exactScale && (strategy == STRATEGY_SAMPLE_AND_DENSITY_SCALE)
+                && (sampledWidth > targetWidth);
+        if (densityScale) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = targetWidth;
+        }
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        Bitmap result = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+
+        if (result != null) {
+            if (densityScale) {
+                // else the ImageView would scale the bitmap again according to the display density
+                result.setDensity(Bitmap.DENSITY_NONE);
+            } else if (exactScale && (strategy == STRATEGY_SAMPLE_AND_FILTERED_SCALE)
+                    && (result.getWidth() > targetWidth)) {
+                Bitmap scaled = Bitmap.createScaledBitmap(result, targetWidth, targetHeight, true);
+                if (scaled != result) {
+                    result.recycle();
+                    result = scaled;
+                }
+            }
+        }
+
         if (DEBUG) {
             Runtime r = Runtime.getRuntime();
-            int width = options.outWidth;
-            int height = options.outHeight;
             LogManager.getLogger().d(
                 LOG_TAG,
                 "loadImage(" +
@@ -66,18 +145,52 @@ public class HugeImageLoader {
                         ", max=" + maxWidth +
                         "x" + maxHeight +
                         ", size=" + (width*height*4/1024) +
-                        "k, " +
+                        "k, strategy=" + strategy +
                         "\n\tmemory(total/free/avail)=(" + r.totalMemory()/1024 + "k,"+ r.freeMemory()/1024+ "k,"+ r.maxMemory()/1024 +
                         "k) ) " +
-                        "\n\t==> " + width/downscale +
-                        "x" + height/downscale +
-                        ", size=" + (width*height*4/1024/downscale/downscale) +
-                        "k, scale=" + downscale);
+                        "\n\t==> " + ((result == null) ? "null" : (result.getWidth() +
+                        "x" + result.getHeight() +
+                        ", size=" + (result.getRowBytes() * result.getHeight() / 1024) + "k")) +
+                        ", scale=" + downscale +
+                        ", config=" + ((options.inPreferredConfig == null) ? "default" : options.inPreferredConfig) +
+                        ", peak=" + (getPeakBytes(width, height, downscale, targetWidth, targetHeight, bytesPerPixel, strategy) / 1024) +
+                        "k, time=" + (System.currentTimeMillis() - startTime) +
+                        "ms");
         }
+        return result;
+    }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    /** @return the largest power of 2 sample size where the sampled image is not smaller than the target */
+    private static int calculateInSampleSizeAbove(int width, int height, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        while (((width / (inSampleSize * 2)) >= targetWidth)
+                && ((height / (inSampleSize * 2)) >= targetHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * @return the estimated maximum number of bytes that are allocated at the same time while decoding.
+     * While scaling the sampled and the scaled bitmap exist at the same time.
+     */
+    static long getPeakBytes(int width, int height, int inSampleSize, int targetWidth, int targetHeight,
+                             int bytesPerPixel, int strategy) {
+        long sampledBytes = ((long) (width / inSampleSize)) * (height / inSampleSize) * bytesPerPixel;
+        if ((strategy == STRATEGY_SAMPLE_ONLY) || ((width / inSampleSize) <= targetWidth)) {
+            return sampledBytes;
+        }
+        return sampledBytes + ((long) targetWidth) * targetHeight * bytesPerPixel;
+    }
+
+    private static long getAvailableMemory() {
+        Runtime r = Runtime.getRuntime();
+        return r.maxMemory() - (r.totalMemory() - r.freeMemory());
+    }
+
+    /** @return false if the image format has no transparency */
+    private static boolean hasAlpha(String mimeType) {
+        return (mimeType == null) || !mimeType.toLowerCase().contains("jpeg");
     }
 
     private static int calculateInSampleSize(
@@ -17,6 +17,7 @@ package uk.co.senab.photoview;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
@@ -308,6 +309,14 @@ public class PhotoView extends ImageView implements IPhotoView {
         mAttacher.setOnScaleChangeListener(onScaleChangeListener);
     }
 
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (null != mAttacher) {
+            mAttacher.drawTiles(canvas);
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         mAttacher.cleanup();
@@ -325,4 +334,11 @@ public class PhotoView extends ImageView implements IPhotoView {
     public void setImageReloadFile(File file) {
         mAttacher.setImageReloadFile(file);
     }
+
+    /** Stop loading the high res image in background (i.e. because the page was swiped away). */
+    public void cancelImageReload() {
+        if (null != mAttacher) {
+            mAttacher.cancelImageReload();
+        }
+    }
 }
\ No newline at end of file
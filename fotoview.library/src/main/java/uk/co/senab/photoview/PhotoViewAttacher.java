@@ -16,12 +16,15 @@
 package uk.co.senab.photoview;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Matrix.ScaleToFit;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -59,6 +62,10 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
 
     static final Interpolator sInterpolator = new AccelerateDecelerateInterpolator();
 
+    /** true: on first zoom the visible part of the image is rendered as tiles via {@link TiledImageDecoder}.
+     * false: on first zoom the whole image is reloaded via {@link HugeImageLoader} */
+    public static boolean TILED_DECODING = true;
+
     /** my android 4.4 cannot process images bigger than 4096*4096. -1 means must be calculated from openGL  */
     private static int MAX_IMAGE_DIMENSION = -1; // will be set to 4096
 
@@ -81,6 +88,12 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
     private double mLastFocusX = Double.NaN;
     private double mLastFocusY = Double.NaN;
 
+    /** if not null the visible part of mImageReloadFile is rendered as tiles on top of the low res image */
+    private TiledImageDecoder mTiledImageDecoder = null;
+
+    /** if not null the high res version of the image is currently loaded in background */
+    private ImageReloadTask mImageReloadTask = null;
+
     private static void checkZoomLevels(float minZoom, float midZoom,
                                         float maxZoom) {
         if (minZoom >= midZoom) {
@@ -252,6 +265,9 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
             cancelFling();
         }
 
+        releaseTiledImageDecoder();
+        cancelImageReload();
+
         if (null != mGestureDetector) {
             mGestureDetector.setOnDoubleTapListener(null);
         }
@@ -487,18 +503,11 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
                             LOG_TAG,
                             "onScale: Reloading image from " + mImageReloadFile);
                 }
-                try {
-                    if (MAX_IMAGE_DIMENSION < 0) {
-                        MAX_IMAGE_DIMENSION = (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) ? 4096 : HugeImageLoader.getMaxTextureSize();
-                    }
-                    imageView.setImageBitmap(HugeImageLoader.loadImage(mImageReloadFile.getAbsoluteFile(), MAX_IMAGE_DIMENSION, MAX_IMAGE_DIMENSION));
-                } catch (OutOfMemoryError e) {
-                    String errorMessage = imageView.getContext().getString(R.string.err_low_memory, mImageReloadFile);
-                    Toast.makeText(imageView.getContext(), errorMessage, Toast.LENGTH_LONG).show();
-
-                    LogManager.getLogger().e(
-                            LOG_TAG,
-                            "onScale: Not enought memory to reloading image from " + mImageReloadFile + " failed: " + e.getMessage());
+                if (TILED_DECODING && TiledImageDecoder.isSupported()) {
+                    releaseTiledImageDecoder();
+                    mTiledImageDecoder = new TiledImageDecoder(mImageReloadFile.getAbsoluteFile(), imageView);
+                } else {
+                    reloadImage(imageView, mImageReloadFile);
                 }
 
                 mImageReloadFile = null; // either success or error: do not try it again
@@ -516,6 +525,56 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
         }
     }
 
+    /** replace the low res image with a version in max possible resolution that is loaded in background */
+    private void reloadImage(ImageView imageView, File imageReloadFile) {
+        if (MAX_IMAGE_DIMENSION < 0) {
+            MAX_IMAGE_DIMENSION = (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) ? 4096 : HugeImageLoader.getMaxTextureSize();
+        }
+        cancelImageReload();
+        mImageReloadTask = new ImageReloadTask(imageReloadFile.getAbsoluteFile());
+        mImageReloadTask.executeInParallel();
+    }
+
+    /**
+     * Stop loading the high res image in background (i.e. because the page was swiped away).
+     * The low res image stays. The high res image will be loaded again on next zoom.
+     */
+    public void cancelImageReload() {
+        if (mImageReloadTask != null) {
+            if (DEBUG) {
+                LogManager.getLogger().d(LOG_TAG, "cancelImageReload " + mImageReloadTask.mFile);
+            }
+            mImageReloadTask.cancel(false);
+            if (mImageReloadFile == null) {
+                mImageReloadFile = mImageReloadTask.mFile;
+            }
+            mImageReloadTask = null;
+        }
+    }
+
+    /** replace the image without changing the visible part of the image */
+    private void setImageBitmapKeepDisplayMatrix(ImageView imageView, Bitmap bitmap) {
+        Drawable oldDrawable = imageView.getDrawable();
+        Matrix oldDisplayMatrix = getDisplayMatrix();
+
+        // resets mBaseMatrix and mSuppMatrix
+        imageView.setImageBitmap(bitmap);
+
+        if ((oldDrawable != null) && (bitmap != null) && (bitmap.getWidth() > 0) && (bitmap.getHeight() > 0)) {
+            // newDisplayMatrix = mBaseMatrix * mSuppMatrix must map the new bitmap to the same
+            // display position as oldDisplayMatrix mapped the old drawable.
+            // => mSuppMatrix = inverse(mBaseMatrix) * scale(new to old) * oldDisplayMatrix
+            Matrix supp = new Matrix();
+            if (mBaseMatrix.invert(supp)) {
+                supp.postScale(((float) oldDrawable.getIntrinsicWidth()) / bitmap.getWidth(),
+                        ((float) oldDrawable.getIntrinsicHeight()) / bitmap.getHeight());
+                supp.postConcat(oldDisplayMatrix);
+                mSuppMatrix.set(supp);
+                checkAndDisplayMatrix("setImageBitmapKeepDisplayMatrix");
+            }
+        }
+    }
+
     @SuppressLint("ClickableViewAccessibility")
     @Override
     public boolean onTouch(View v, MotionEvent ev) {
@@ -999,9 +1058,33 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
     /** k3b 20150913 #10: Faster initial loading: initially the view is loaded with low res image. on first zoom it is reloaded with this uri
      * @param imageReloadURI*/
     public void setImageReloadFile(File imageReloadURI) {
+        releaseTiledImageDecoder();
+        cancelImageReload();
         this.mImageReloadFile = imageReloadURI;
     }
 
+    /** draws the visible high res tiles on top of the low res image. Called by {@link PhotoView#onDraw(Canvas)} */
+    public void drawTiles(Canvas canvas) {
+        if (mTiledImageDecoder != null) {
+            ImageView imageView = getImageView();
+            Drawable d = (imageView != null) ? imageView.getDrawable() : null;
+            if (d != null) {
+                canvas.save();
+                canvas.translate(imageView.getPaddingLeft(), imageView.getPaddingTop());
+                mTiledImageDecoder.draw(canvas, getDrawMatrix(), d.getIntrinsicWidth(), d.getIntrinsicHeight(),
+                        getImageViewWidth(imageView), getImageViewHeight(imageView));
+                canvas.restore();
+            }
+        }
+    }
+
+    private void releaseTiledImageDecoder() {
+        if (mTiledImageDecoder != null) {
+            mTiledImageDecoder.recycle();
+            mTiledImageDecoder = null;
+        }
+    }
+
     /**
      * Interface definition for a callback to be invoked when the internal Matrix has changed for
      * this View.
@@ -1074,6 +1157,60 @@ public class PhotoViewAttacher implements IPhotoView, View.OnTouchListener,
         void onViewTap(View view, float x, float y);
     }
 
+    /** Loads the high res image in background and replaces the low res image when finished. */
+    private class ImageReloadTask extends AsyncTask<Void, Void, Bitmap> {
+        private final File mFile;
+        private OutOfMemoryError mError = null;
+
+        ImageReloadTask(File file) {
+            mFile = file;
+        }
+
+        /** do not wait for other (long running) AsyncTasks of the app */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        void executeInParallel() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            } else {
+                execute();
+            }
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            try {
+                return HugeImageLoader.loadImage(mFile, MAX_IMAGE_DIMENSION, MAX_IMAGE_DIMENSION);
+            } catch (OutOfMemoryError e) {
+                mError = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mImageReloadTask != this) {
+                return; // canceled or replaced
+            }
+            mImageReloadTask = null;
+
+            ImageView imageView = getImageView();
+            if (imageView == null) {
+                return;
+            }
+
+            if (bitmap != null) {
+                setImageBitmapKeepDisplayMatrix(imageView, bitmap);
+            } else if (mError != null) {
+                String errorMessage = imageView.getContext().getString(R.string.err_low_memory, mFile);
+                Toast.makeText(imageView.getContext(), errorMessage, Toast.LENGTH_LONG).show();
+
+                LogManager.getLogger().e(
+                        LOG_TAG,
+                        "onScale: Not enought memory to reloading image from " + mFile + " failed: " + mError.getMessage());
+            }
+        }
+    }
+
     private class AnimatedZoomRunnable implements Runnable {
 
         private final float mFocalX, mFocalY;
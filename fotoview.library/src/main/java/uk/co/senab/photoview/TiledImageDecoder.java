@@ -0,0 +1,288 @@
+package uk.co.senab.photoview;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.view.View;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uk.co.senab.photoview.log.LogManager;
+
+/**
+ * Renders the visible part of a huge image as tiles using {@link BitmapRegionDecoder}.
+ *
+ * Only the visible region is decoded with the inSampleSize that matches the current zoom,
+ * so zooming into a huge photo costs memory proportional to the screen, not to the image.
+ * Tiles are decoded in a background thread and kept in a memory limited cache.
+ *
+ * The low res image of the ImageView stays visible below the tiles until the tiles are available.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class TiledImageDecoder {
+    public static final String LOG_TAG = "TiledImageDecoder";
+
+    // let debug flag be dynamic, but still Proguard can be used to remove from
+    // release builds
+    public static boolean DEBUG = true; //!!! Log.isLoggable(LOG_TAG, Log.DEBUG);
+
+    /** width and height of one decoded tile in pixels */
+    private static final int TILE_SIZE = 512;
+
+    private final File mFile;
+    private final WeakReference<View> mView;
+
+    /** all decoding is done in this background thread. */
+    private final ExecutorService mDecodeThread = Executors.newSingleThreadExecutor();
+
+    /** decoded tiles by {@link #getKey(int, int, int)} */
+    private final LruCache<String, Bitmap> mTileCache;
+
+    /** keys of tiles that are waiting to be decoded */
+    private final Set<String> mPending = Collections.synchronizedSet(new HashSet<String>());
+
+    /** incremented every time the visible tiles change. Outdated decode requests are skipped. */
+    private volatile int mGeneration = 0;
+    private String mLastVisibleTiles = null;
+
+    private volatile BitmapRegionDecoder mDecoder = null;
+    private volatile boolean mRecycled = false;
+    private int mImageWidth = 0;
+    private int mImageHeight = 0;
+
+    // These are set so we don't keep allocating them on the heap
+    private final Matrix mImageToView = new Matrix();
+    private final Matrix mViewToImage = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileRect = new RectF();
+    private final float[] mMatrixValues = new float[9];
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** @return true if this android version supports {@link BitmapRegionDecoder} */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+    /**
+     * @param file  the full resolution image
+     * @param view  the view that is invalidated when new tiles become available
+     */
+    public TiledImageDecoder(File file, View view) {
+        mFile = file;
+        mView = new WeakReference<>(view);
+
+        // use 1/8 of the available memory for tiles
+        int cacheSizeInBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        mTileCache = new LruCache<String, Bitmap>(cacheSizeInBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        mDecodeThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /** runs in background thread. Opening the decoder is expensive because the jpg index must be built. */
+    private void open() {
+        if (mRecycled) return;
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+            mImageWidth = decoder.getWidth();
+            mImageHeight = decoder.getHeight();
+            mDecoder = decoder;
+
+            if (DEBUG) {
+                LogManager.getLogger().d(LOG_TAG, "open('" + mFile + "') " + mImageWidth + "x" + mImageHeight);
+            }
+            invalidateView();
+        } catch (IOException e) {
+            LogManager.getLogger().e(LOG_TAG, "open('" + mFile + "') failed: " + e.getMessage());
+        }
+    }
+
+    /** @return true if tiles can be rendered */
+    public boolean isReady() {
+        return (mDecoder != null) && !mRecycled;
+    }
+
+    /**
+     * Draws all cached tiles that are visible and requests decoding of the missing ones.
+     *
+     * @param canvas         where to draw to
+     * @param drawMatrix     maps drawable coordinates to view coordinates
+     * @param drawableWidth  width of the low res drawable that is currently displayed
+     * @param drawableHeight height of the low res drawable that is currently displayed
+     * @param viewWidth      visible width without padding
+     * @param viewHeight     visible height without padding
+     */
+    public void draw(Canvas canvas, Matrix drawMatrix, int drawableWidth, int drawableHeight,
+                     int viewWidth, int viewHeight) {
+        if (!isReady() || (drawableWidth <= 0) || (drawableHeight <= 0)) return;
+
+        // mImageToView maps full resolution image coordinates to view coordinates
+        mImageToView.set(drawMatrix);
+        mImageToView.preScale(((float) drawableWidth) / mImageWidth, ((float) drawableHeight) / mImageHeight);
+
+        int sampleSize = calculateSampleSize(mImageToView);
+        if (sampleSize * drawableWidth >= mImageWidth) {
+            // the low res drawable is already good enough
+            return;
+        }
+
+        if (!mImageToView.invert(mViewToImage)) return;
+        mVisibleRect.set(0, 0, viewWidth, viewHeight);
+        mViewToImage.mapRect(mVisibleRect);
+        if (!mVisibleRect.intersect(0, 0, mImageWidth, mImageHeight)) return;
+
+        final int tileSizeInImage = TILE_SIZE * sampleSize;
+        final int colMin = (int) (mVisibleRect.left / tileSizeInImage);
+        final int colMax = (int) ((mVisibleRect.right - 1) / tileSizeInImage);
+        final int rowMin = (int) (mVisibleRect.top / tileSizeInImage);
+        final int rowMax = (int) ((mVisibleRect.bottom - 1) / tileSizeInImage);
+
+        String visibleTiles = sampleSize + ":" + colMin + "-" + colMax + ":" + rowMin + "-" + rowMax;
+        if (!visibleTiles.equals(mLastVisibleTiles)) {
+            // pending requests for tiles that are not visible any more become outdated
+            mLastVisibleTiles = visibleTiles;
+            mGeneration++;
+        }
+
+        canvas.save();
+        canvas.concat(mImageToView);
+        for (int row = rowMin; row <= rowMax; row++) {
+            for (int col = colMin; col <= colMax; col++) {
+                String key = getKey(sampleSize, col, row);
+                Bitmap tile = mTileCache.get(key);
+                if (tile != null) {
+                    mTileRect.set(col * tileSizeInImage, row * tileSizeInImage,
+                            Math.min(mImageWidth, (col + 1) * tileSizeInImage),
+                            Math.min(mImageHeight, (row + 1) * tileSizeInImage));
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    requestTile(key, sampleSize, col, row);
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    /** @return the largest power of 2 sample size where one decoded pixel is not smaller than one screen pixel */
+    private int calculateSampleSize(Matrix imageToView) {
+        imageToView.getValues(mMatrixValues);
+        float scale = (float) Math.sqrt(mMatrixValues[Matrix.MSCALE_X] * mMatrixValues[Matrix.MSCALE_X]
+                + mMatrixValues[Matrix.MSKEW_Y] * mMatrixValues[Matrix.MSKEW_Y]);
+
+        int sampleSize = 1;
+        while ((sampleSize * 2 * scale) <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static String getKey(int sampleSize, int col, int row) {
+        return sampleSize + "/" + col + "/" + row;
+    }
+
+    private void requestTile(final String key, final int sampleSize, final int col, final int row) {
+        if (!mPending.add(key)) return; // already waiting to be decoded
+
+        final int generation = mGeneration;
+        mDecodeThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRecycled) return;
+                if (generation == mGeneration) {
+                    try {
+                        decodeTile(key, sampleSize, col, row);
+                    } finally {
+                        mPending.remove(key);
+                    }
+                } else {
+                    // outdated. If the tile is still visible the next draw will request it again
+                    mPending.remove(key);
+                    invalidateView();
+                }
+            }
+        });
+    }
+
+    /** runs in background thread */
+    private void decodeTile(String key, int sampleSize, int col, int row) {
+        final int tileSizeInImage = TILE_SIZE * sampleSize;
+        Rect region = new Rect(col * tileSizeInImage, row * tileSizeInImage,
+                Math.min(mImageWidth, (col + 1) * tileSizeInImage),
+                Math.min(mImageHeight, (row + 1) * tileSizeInImage));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+
+        try {
+            Bitmap tile = mDecoder.decodeRegion(region, options);
+            if (tile != null) {
+                mTileCache.put(key, tile);
+                invalidateView();
+            }
+        } catch (OutOfMemoryError e) {
+            // free all tiles. The visible ones will be requested again
+            mTileCache.evictAll();
+            LogManager.getLogger().e(LOG_TAG, "decodeTile(" + key + ") of '" + mFile + "': Not enought memory " + e.getMessage());
+        } catch (IllegalStateException e) {
+            // decoder was recycled while decoding
+            if (DEBUG) {
+                LogManager.getLogger().d(LOG_TAG, "decodeTile(" + key + ") canceled: " + e.getMessage());
+            }
+        }
+    }
+
+    private void invalidateView() {
+        View view = mView.get();
+        if (view != null) {
+            view.postInvalidate();
+        }
+    }
+
+    /** Free all resources. This instance cannot be used afterwards. */
+    public void recycle() {
+        if (mRecycled) return;
+        mRecycled = true;
+        mGeneration++;
+
+        // recycle after the currently running decode has finished
+        mDecodeThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDecoder != null) {
+                    mDecoder.recycle();
+                    mDecoder = null;
+                }
+            }
+        });
+        mDecodeThread.shutdown();
+        mTileCache.evictAll();
+
+        if (DEBUG) {
+            LogManager.getLogger().d(LOG_TAG, "recycle('" + mFile + "')");
+        }
+    }
+}